@@ -0,0 +1,60 @@
+#!/bin/bash -e
+
+# runs the agent hot path benchmarks with the agent attached and writes the JMH results (including
+# gc allocation rates) as json, one file per configuration, so they can be compared against a
+# previous baseline
+#
+# usage (from agent/benchmarks, after building agent/dist and agent/benchmarks):
+#
+#   ./baseline.sh [output dir] [additional jmh args]
+#
+# e.g. ./baseline.sh target/baseline -f 1 -wi 5 -i 5
+
+benchmarks="TransactionBenchmark TraceEntryBenchmark TimerBenchmark TraceBenchmark QueryBenchmark"
+thread_counts="1 4"
+
+cd "$(dirname "$0")"
+
+out_dir=${1:-target/baseline}
+shift || true
+
+dist_zip=$(ls ../dist/target/glowroot-agent-*-dist.zip)
+
+mkdir -p $out_dir
+for profiling in off on
+do
+  if [[ "$profiling" == "on" ]]
+  then
+    profiling_interval_millis=10
+  else
+    profiling_interval_millis=0
+  fi
+
+  agent_dir=target/baseline-agent-profiling-$profiling
+  rm -rf $agent_dir
+  mkdir -p $agent_dir
+  unzip -q $dist_zip -d $agent_dir
+  # the microbenchmark aspects are only loaded from the agent's plugins directory
+  mkdir $agent_dir/glowroot/plugins
+  cp target/benchmarks.jar $agent_dir/glowroot/plugins
+  # slow threshold of zero so that every transaction is captured as a trace
+  cat > $agent_dir/glowroot/config.json <<EOF
+{
+  "transactions": {
+    "slowThresholdMillis": 0,
+    "profilingIntervalMillis": $profiling_interval_millis
+  }
+}
+EOF
+
+  for threads in $thread_counts
+  do
+    java -jar target/benchmarks.jar $benchmarks \
+         -t $threads \
+         -prof gc \
+         -rf json \
+         -rff $out_dir/profiling-$profiling-threads-$threads.json \
+         -jvmArgsPrepend "-javaagent:$agent_dir/glowroot/glowroot.jar" \
+         "$@"
+  done
+done
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.plugin.jdbc.support.MockConnection;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures query entries, including the per transaction query data lookups, one op is one prepare
+// and execute, cycling through distinctQueries different query texts
+//
+// statements are prepared inside the transaction since the jdbc plugin only captures the query text
+// of statements prepared inside of a transaction
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryBenchmark extends TransactionWorthy {
+
+    @Param({"1", "100", "1000"})
+    private int distinctQueries;
+
+    private Connection connection;
+    private String[] queryTexts;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = new MockConnection();
+        queryTexts = new String[distinctQueries];
+        for (int i = 0; i < distinctQueries; i++) {
+            queryTexts[i] = "select * from mock where id = ? and n = " + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws SQLException {
+        for (int i = 0; i < 1000; i++) {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement(queryTexts[i % distinctQueries]);
+            preparedStatement.execute();
+            preparedStatement.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.glowroot.agent.plugin.api.util.WildcardMatcher;
+import org.glowroot.agent.plugin.servlet.support.MockHttpRequest;
+
+// compares matching request parameter and header names against the servlet plugin's capture and
+// mask lists using a list of regex patterns (the previous implementation) vs WildcardMatcher
+//
+// this needs to be run with the glowroot agent attached to the forked benchmark JVMs since the
+// plugin api is provided by the agent, e.g.
+//
+// java -jar benchmarks.jar DetailCaptureBenchmark -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DetailCaptureBenchmark {
+
+    private static final int PARAMETER_COUNT = 40;
+
+    private static final ImmutableList<String> CAPTURE_REQUEST_PARAMETERS = ImmutableList.of("*");
+    private static final ImmutableList<String> MASK_REQUEST_PARAMETERS =
+            ImmutableList.of("*password*", "*secret*", "*token");
+    private static final ImmutableList<String> CAPTURE_REQUEST_HEADERS =
+            ImmutableList.of("content-*", "accept*", "user-agent", "x-request-id", "x-*-for");
+
+    private HttpServletRequest request;
+
+    private List<Pattern> captureRequestParameterPatterns;
+    private List<Pattern> maskRequestParameterPatterns;
+    private List<Pattern> captureRequestHeaderPatterns;
+
+    private WildcardMatcher captureRequestParameterMatcher;
+    private WildcardMatcher maskRequestParameterMatcher;
+    private WildcardMatcher captureRequestHeaderMatcher;
+
+    @Setup
+    public void setup() {
+        request = new MockRequestWithNames();
+        captureRequestParameterPatterns = buildPatternList(CAPTURE_REQUEST_PARAMETERS);
+        maskRequestParameterPatterns = buildPatternList(MASK_REQUEST_PARAMETERS);
+        captureRequestHeaderPatterns = buildPatternList(CAPTURE_REQUEST_HEADERS);
+        captureRequestParameterMatcher = WildcardMatcher.compile(CAPTURE_REQUEST_PARAMETERS);
+        maskRequestParameterMatcher = WildcardMatcher.compile(MASK_REQUEST_PARAMETERS);
+        captureRequestHeaderMatcher = WildcardMatcher.compile(CAPTURE_REQUEST_HEADERS);
+    }
+
+    @Benchmark
+    public void regexPatterns(Blackhole bh) {
+        Enumeration<String> e = request.getParameterNames();
+        while (e.hasMoreElements()) {
+            String keyLowerCase = e.nextElement().toLowerCase(Locale.ENGLISH);
+            if (matchesOneOf(keyLowerCase, captureRequestParameterPatterns)) {
+                bh.consume(matchesOneOf(keyLowerCase, maskRequestParameterPatterns));
+            }
+        }
+        e = request.getHeaderNames();
+        while (e.hasMoreElements()) {
+            String keyLowerCase = e.nextElement().toLowerCase(Locale.ENGLISH);
+            bh.consume(matchesOneOf(keyLowerCase, captureRequestHeaderPatterns));
+        }
+    }
+
+    @Benchmark
+    public void wildcardMatcher(Blackhole bh) {
+        Enumeration<String> e = request.getParameterNames();
+        while (e.hasMoreElements()) {
+            String name = e.nextElement();
+            if (captureRequestParameterMatcher.matches(name)) {
+                bh.consume(maskRequestParameterMatcher.matches(name));
+            }
+        }
+        e = request.getHeaderNames();
+        while (e.hasMoreElements()) {
+            bh.consume(captureRequestHeaderMatcher.matches(e.nextElement()));
+        }
+    }
+
+    private static boolean matchesOneOf(String key, List<Pattern> patterns) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(key).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> buildPatternList(List<String> wildcardPatterns) {
+        List<Pattern> patterns = Lists.newArrayList();
+        for (String wildcardPattern : wildcardPatterns) {
+            String regex = "\\Q" + wildcardPattern.toLowerCase(Locale.ENGLISH).replace("*",
+                    "\\E.*\\Q") + "\\E";
+            patterns.add(Pattern.compile(regex.replace("\\Q\\E", "")));
+        }
+        return patterns;
+    }
+
+    private static class MockRequestWithNames extends MockHttpRequest {
+
+        private static final ImmutableList<String> PARAMETER_NAMES;
+        private static final ImmutableList<String> HEADER_NAMES = ImmutableList.of("Host",
+                "User-Agent", "Accept", "Accept-Language", "Accept-Encoding", "Content-Type",
+                "Content-Length", "Cookie", "Connection", "Referer", "X-Forwarded-For",
+                "X-Request-Id", "Cache-Control", "Pragma", "Origin", "Authorization");
+
+        static {
+            List<String> parameterNames = Lists.newArrayList();
+            for (int i = 0; i < PARAMETER_COUNT; i++) {
+                parameterNames.add("filterField" + i);
+            }
+            parameterNames.add("password");
+            parameterNames.add("csrfToken");
+            PARAMETER_NAMES = ImmutableList.copyOf(parameterNames);
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return copyOf(PARAMETER_NAMES);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return copyOf(HEADER_NAMES);
+        }
+
+        // servlet containers parse new name strings for each request (so their hash codes are not
+        // already computed)
+        private static Enumeration<String> copyOf(List<String> names) {
+            Vector<String> copy = new Vector<String>(names.size());
+            for (String name : names) {
+                copy.add(new String(name));
+            }
+            return copy.elements();
+        }
+    }
+}
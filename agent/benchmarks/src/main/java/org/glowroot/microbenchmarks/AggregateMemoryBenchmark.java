@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.NamedTransactionWorthy;
+
+// measures the heap retained by the in-memory aggregates of an interval with many distinct
+// transaction names, which is printed after each iteration as retained bytes per transaction name
+// (the benchmark time itself is the cost of aggregating each transaction)
+//
+// run with the glowroot agent attached to the forked benchmark JVMs, with
+// "maxAggregateTransactionsPerType" set to at least 5000 in the agent config.json (otherwise most
+// transaction names end up in the single "limit exceeded" bucket), e.g.
+//
+// java -jar benchmarks.jar AggregateMemoryBenchmark
+//         -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+//
+// iterations should be short relative to the aggregate interval, since the retained heap drops when
+// an interval is flushed
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AggregateMemoryBenchmark {
+
+    private static final int TRANSACTION_NAME_COUNT = 5000;
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+    private NamedTransactionWorthy namedTransactionWorthy;
+    private String[] transactionNames;
+    private int iteration;
+    private long heapUsedBefore;
+
+    @Setup
+    public void setup() {
+        namedTransactionWorthy = new NamedTransactionWorthy();
+        transactionNames = new String[TRANSACTION_NAME_COUNT];
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        // new transaction names each iteration, so that each iteration adds new aggregates (as
+        // opposed to merging into the aggregates from the prior iteration)
+        iteration++;
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            transactionNames[i] = "transaction " + iteration + "-" + i;
+        }
+        heapUsedBefore = getHeapUsedAfterGc();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws InterruptedException {
+        // give the aggregate processing thread time to process the transactions
+        Thread.sleep(1000);
+        long retainedBytes = getHeapUsedAfterGc() - heapUsedBefore;
+        System.out.println("retained bytes per transaction name: "
+                + retainedBytes / TRANSACTION_NAME_COUNT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSACTION_NAME_COUNT)
+    public void execute() {
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            namedTransactionWorthy.doSomethingTransactionWorthy(transactionNames[i]);
+        }
+    }
+
+    private long getHeapUsedAfterGc() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return memoryMXBean.getHeapMemoryUsage().getUsed();
+    }
+}
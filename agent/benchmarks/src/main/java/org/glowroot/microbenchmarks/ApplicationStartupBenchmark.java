@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.microbenchmarks.support.StartupFixture;
+
+// measures time to first request of a spring boot-like application, with and without background
+// pre-analysis of the classpath
+//
+// this needs to be run with the glowroot agent attached to the forked benchmark JVMs (not to the
+// JMH launcher JVM, which would hold the lock on the glowroot directory), and with many forks since
+// each fork only measures a single (cold) startup, e.g.
+//
+// java -jar benchmarks.jar ApplicationStartupBenchmark -f 10
+//         -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ApplicationStartupBenchmark {
+
+    @Benchmark
+    public String withoutPreAnalysis() throws Exception {
+        return StartupFixture.startAndServeFirstRequest();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.preAnalyze=true")
+    public String withPreAnalysis() throws Exception {
+        return StartupFixture.startAndServeFirstRequest();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.AsyncTransactionWorthy;
+
+// measures the contention of many threads starting and ending async trace entries (and so async
+// timers) in the same async transaction at the same time, e.g. reactive frameworks
+//
+// run with the glowroot agent attached to the forked benchmark JVMs, e.g.
+//
+// java -jar benchmarks.jar AsyncTransactionBenchmark
+//         -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(32)
+public class AsyncTransactionBenchmark extends AsyncTransactionWorthy {
+
+    private static final int ASYNC_COUNT = 100;
+
+    // a new async transaction each iteration so that the number of async timers retained by the
+    // transaction doesn't grow without bound
+    @Setup(Level.Iteration)
+    public void setup() {
+        startAsyncTransaction();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        completeAsyncTransaction();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ASYNC_COUNT)
+    public void execute() {
+        joinAsyncTransaction();
+    }
+
+    @Override
+    public void joinAsyncTransaction() {
+        for (int i = 0; i < ASYNC_COUNT; i++) {
+            doSomethingAsync();
+        }
+    }
+}
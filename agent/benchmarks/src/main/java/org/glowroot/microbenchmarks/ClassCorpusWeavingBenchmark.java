@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// measures the average (post warmup) weaving (transform) time per class over a corpus of real-world
+// classes (guava, commons, spring, etc. which are all bundled in the benchmarks jar), with and
+// without the weaving constant pool pre-filter (without the pre-filter every class goes through
+// full analysis)
+//
+// a different jar can be used as the corpus by passing -Dglowroot.benchmark.corpus=path/to/jar
+//
+// this needs to be run with the glowroot agent attached to the forked benchmark JVMs (not to the
+// JMH launcher JVM, which would hold the lock on the glowroot directory), e.g.
+//
+// java -jar benchmarks.jar ClassCorpusWeavingBenchmark
+//         -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ClassCorpusWeavingBenchmark {
+
+    private static final int CLASS_COUNT = 4000;
+
+    private URL corpusUrl;
+    private List<String> classNames;
+
+    @Setup
+    public void setup() throws Exception {
+        String corpus = System.getProperty("glowroot.benchmark.corpus");
+        File corpusFile;
+        if (corpus == null) {
+            corpusFile = new File(ClassCorpusWeavingBenchmark.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+        } else {
+            corpusFile = new File(corpus);
+        }
+        corpusUrl = corpusFile.toURI().toURL();
+        // classes whose dependencies are not in the corpus cannot be loaded, so those are filtered
+        // out up front (this also weaves the remaining classes once, but in a class loader that is
+        // not used again)
+        URLClassLoader loader = createClassLoader();
+        classNames = Lists.newArrayList();
+        for (String className : getClassNames(corpusFile)) {
+            try {
+                Class.forName(className, false, loader);
+            } catch (Throwable t) {
+                continue;
+            }
+            classNames.add(className);
+            if (classNames.size() == CLASS_COUNT) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Corpus has only " + classNames.size()
+                + " loadable classes, at least " + CLASS_COUNT + " are needed");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void withPreFilter() throws Exception {
+        loadClasses();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.preFilter=false")
+    public void withoutPreFilter() throws Exception {
+        loadClasses();
+    }
+
+    private void loadClasses() throws Exception {
+        // new class loader each time so that all classes go through weaving
+        URLClassLoader loader = createClassLoader();
+        for (String className : classNames) {
+            Class.forName(className, false, loader);
+        }
+    }
+
+    private URLClassLoader createClassLoader() {
+        // bootstrap class loader as parent so that the corpus classes are not found (already
+        // loaded) in the application class loader
+        return new URLClassLoader(new URL[] {corpusUrl}, null);
+    }
+
+    private static List<String> getClassNames(File jarFile) throws IOException {
+        List<String> classNames = Lists.newArrayList();
+        JarFile jar = new JarFile(jarFile);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+                    classNames.add(name.substring(0, name.length() - ".class".length())
+                            .replace('/', '.'));
+                }
+            }
+        } finally {
+            jar.close();
+        }
+        return classNames;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the executor plugin overhead of propagating the transaction context to many small tasks
+// that do not record anything themselves
+//
+// run with the glowroot agent attached to the forked benchmark JVMs, once with the default
+// executor plugin configuration and once with "lowOverheadContextPropagation" enabled in the agent
+// config.json, e.g.
+//
+// java -jar benchmarks.jar ExecutorBenchmark -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ExecutorBenchmark extends TransactionWorthy {
+
+    private static final int TASK_COUNT = 1000;
+
+    private ExecutorService executor;
+    private Future<?>[] futures;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newSingleThreadExecutor();
+        futures = new Future<?>[TASK_COUNT];
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public void execute() {
+        doSomethingTransactionWorthy2();
+    }
+
+    // overriding the method that is instrumented via the plugin's instrumentation config, since
+    // aspects are not loaded from the application class path
+    @Override
+    public void doSomethingTransactionWorthy2() {
+        for (int i = 0; i < TASK_COUNT; i++) {
+            futures[i] = executor.submit(new Runnable() {
+                @Override
+                public void run() {}
+            });
+        }
+        for (int i = 0; i < TASK_COUNT; i++) {
+            Futures.getUnchecked(futures[i]);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// measures recording and encoding the transaction duration histogram of one aggregate, and merging
+// encoded histograms the way rollups do, for the default (raw values, then HdrHistogram) and the
+// compact (log-linear) histogram
+//
+// the encoded size and the max relative error of the p50, p95, p99 and p99.9 percentiles (versus
+// the exact percentiles) are printed once per trial, since they do not vary between invocations
+//
+// this does not need the glowroot agent attached
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    private static final double[] PERCENTILES = {50, 95, 99, 99.9};
+
+    private static final int ROLLUP_HISTOGRAM_COUNT = 10;
+
+    // zero means not compact
+    @Param({"0", "6"})
+    private int compactPrecisionBits;
+
+    @Param({"100", "1000", "10000"})
+    private int transactionCount;
+
+    private long[] durationNanos;
+    private Aggregate.Histogram[] encodedHistograms;
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        durationNanos = new long[transactionCount];
+        for (int i = 0; i < transactionCount; i++) {
+            // log-normal distribution with median of 50 milliseconds
+            durationNanos[i] = (long) (50000000 * Math.exp(random.nextGaussian()));
+        }
+        scratchBuffer = new ScratchBuffer();
+        encodedHistograms = new Aggregate.Histogram[ROLLUP_HISTOGRAM_COUNT];
+        for (int i = 0; i < ROLLUP_HISTOGRAM_COUNT; i++) {
+            encodedHistograms[i] = record().toProto(scratchBuffer);
+        }
+        long[] sortedDurationNanos = durationNanos.clone();
+        Arrays.sort(sortedDurationNanos);
+        LazyHistogram histogram = new LazyHistogram(encodedHistograms[0]);
+        double maxErrorPercent = 0;
+        for (double percentile : PERCENTILES) {
+            long exact = sortedDurationNanos[(int) Math.ceil(transactionCount * percentile / 100)
+                    - 1];
+            double errorPercent =
+                    100.0 * Math.abs(histogram.getValueAtPercentile(percentile) - exact) / exact;
+            maxErrorPercent = Math.max(maxErrorPercent, errorPercent);
+        }
+        System.out.format("%ncompactPrecisionBits=%d transactionCount=%d encodedBytes=%d"
+                + " maxErrorPercent=%.3f%n", compactPrecisionBits, transactionCount,
+                encodedHistograms[0].getSerializedSize(), maxErrorPercent);
+    }
+
+    @Benchmark
+    public void recordAndEncode(Blackhole bh) {
+        bh.consume(record().toProto(scratchBuffer));
+    }
+
+    @Benchmark
+    public void rollup(Blackhole bh) {
+        LazyHistogram histogram = new LazyHistogram();
+        for (Aggregate.Histogram encodedHistogram : encodedHistograms) {
+            histogram.merge(encodedHistogram);
+        }
+        bh.consume(histogram.toProto(scratchBuffer));
+    }
+
+    private LazyHistogram record() {
+        LazyHistogram histogram = new LazyHistogram(compactPrecisionBits);
+        for (long value : durationNanos) {
+            histogram.add(value);
+        }
+        return histogram;
+    }
+}
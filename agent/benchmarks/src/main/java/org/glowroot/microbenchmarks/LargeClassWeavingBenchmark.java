@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// measures the average weaving time per class for large (JSP-like) classes where only one method
+// (Servlet.service(), which is instrumented by the servlet plugin) is woven, with and without
+// lazy frames mode
+//
+// this needs to be run on a JDK (not a JRE) since the synthetic classes are compiled during setup,
+// and with the glowroot agent attached to the forked benchmark JVMs (not to the JMH launcher JVM,
+// which would hold the lock on the glowroot directory), e.g.
+//
+// java -jar benchmarks.jar LargeClassWeavingBenchmark
+//         -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LargeClassWeavingBenchmark {
+
+    private static final int CLASS_COUNT = 100;
+
+    private static final int METHOD_COUNT = 100;
+
+    private File tempDir;
+    private File classesDir;
+    private List<String> classNames;
+
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDir();
+        File srcDir = new File(tempDir, "src");
+        classesDir = new File(tempDir, "classes");
+        srcDir.mkdir();
+        classesDir.mkdir();
+        classNames = Lists.newArrayList();
+        List<String> args = Lists.newArrayList("-d", classesDir.getPath(), "-classpath",
+                System.getProperty("java.class.path"), "-nowarn");
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String simpleName = "LargeServlet" + i;
+            File srcFile = new File(srcDir, simpleName + ".java");
+            Files.write(createSource(simpleName), srcFile, Charsets.UTF_8);
+            args.add(srcFile.getPath());
+            classNames.add("synthetic." + simpleName);
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("This benchmark must be run on a JDK");
+        }
+        if (compiler.run(null, null, null, args.toArray(new String[args.size()])) != 0) {
+            throw new IllegalStateException("Could not compile synthetic classes");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void computeAllFrames() throws Exception {
+        loadClasses();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.lazyFrames=true")
+    public void lazyFrames() throws Exception {
+        loadClasses();
+    }
+
+    private void loadClasses() throws Exception {
+        // new class loader each time so that all classes go through weaving
+        URLClassLoader loader = new URLClassLoader(new URL[] {classesDir.toURI().toURL()},
+                LargeClassWeavingBenchmark.class.getClassLoader());
+        for (String className : classNames) {
+            Class.forName(className, false, loader);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Could not delete: " + file.getPath());
+        }
+    }
+
+    private static String createSource(String simpleName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package synthetic;\n");
+        sb.append("import java.util.*;\n");
+        sb.append("import javax.servlet.*;\n");
+        sb.append("import javax.servlet.http.*;\n");
+        sb.append("public class ");
+        sb.append(simpleName);
+        sb.append(" extends HttpServlet {\n");
+        sb.append("  public void service(ServletRequest request, ServletResponse response) {\n");
+        sb.append("    List<String> list = Arrays.asList(request.getParameter(\"x\"));\n");
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            sb.append("    helper");
+            sb.append(i);
+            sb.append("(list.size(), list);\n");
+        }
+        sb.append("  }\n");
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            // the branches merge different types, which requires getCommonSuperClass() when frames
+            // are computed
+            sb.append("  private Object helper");
+            sb.append(i);
+            sb.append("(int i, List<String> list) {\n");
+            sb.append("    AbstractList<String> items;\n");
+            sb.append("    if (i > ");
+            sb.append(i);
+            sb.append(") {\n");
+            sb.append("      items = new ArrayList<String>(list);\n");
+            sb.append("    } else {\n");
+            sb.append("      items = new LinkedList<String>(list);\n");
+            sb.append("    }\n");
+            sb.append("    for (String item : items) {\n");
+            sb.append("      if (item.isEmpty()) {\n");
+            sb.append("        return items;\n");
+            sb.append("      }\n");
+            sb.append("    }\n");
+            sb.append("    return items.toString();\n");
+            sb.append("  }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
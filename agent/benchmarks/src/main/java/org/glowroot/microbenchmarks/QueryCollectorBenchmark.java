@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+
+// measures building and flushing query and service call aggregates with many distinct query texts
+//
+// agentFlush mirrors the agent building an overall aggregate over an interval and converting it to
+// protobuf, and centralRollup mirrors the central collector merging the (already truncated) queries
+// of several aggregates into a rollup and truncating the result
+//
+// this does not need the glowroot agent attached
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class QueryCollectorBenchmark {
+
+    // default maxAggregateQueriesPerType and maxAggregateServiceCallsPerType
+    private static final int LIMIT_PER_TYPE = 500;
+    // AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER
+    private static final int MAX_MULTIPLIER_WHILE_BUILDING = 10;
+
+    private static final int ROLLUP_AGGREGATE_COUNT = 4;
+
+    @Param({"100", "1000", "5000"})
+    private int distinctQueries;
+
+    private String[] queryTexts;
+    private String[] fullTextSha1s;
+
+    @Setup
+    public void setup() {
+        queryTexts = new String[distinctQueries];
+        fullTextSha1s = new String[distinctQueries];
+        for (int i = 0; i < distinctQueries; i++) {
+            queryTexts[i] = "select name, value from mock where id = ? and n = " + i;
+            // some long queries are stored as truncated text plus sha1 of the full text
+            fullTextSha1s[i] = i % 10 == 0 ? Integer.toHexString(i * 31) : null;
+        }
+    }
+
+    @Benchmark
+    public void agentFlush(Blackhole bh) {
+        ServiceCallCollector collector =
+                new ServiceCallCollector(LIMIT_PER_TYPE, MAX_MULTIPLIER_WHILE_BUILDING);
+        for (int i = 0; i < distinctQueries; i++) {
+            // each query text is seen a few times over the interval
+            for (int j = 0; j < 3; j++) {
+                collector.mergeServiceCall("HTTP", queryTexts[i], (i * 7 + j) % 1000, 1);
+            }
+        }
+        bh.consume(collector.toProto());
+    }
+
+    @Benchmark
+    public void centralRollup(Blackhole bh) {
+        QueryCollector collector = new QueryCollector(LIMIT_PER_TYPE);
+        for (int i = 0; i < ROLLUP_AGGREGATE_COUNT; i++) {
+            for (int j = 0; j < distinctQueries; j++) {
+                collector.mergeQuery("SQL", queryTexts[j], fullTextSha1s[j],
+                        (j * 7 + i) % 1000, 1, true, 10);
+            }
+        }
+        bh.consume(collector.getSortedAndTruncatedQueries());
+    }
+}
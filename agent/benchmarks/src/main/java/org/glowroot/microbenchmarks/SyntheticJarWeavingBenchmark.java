@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// measures startup weaving cost of loading a large jar of (mostly) uninstrumented classes, with and
+// without the weaving constant pool pre-filter
+//
+// this needs to be run on a JDK (not a JRE) since the synthetic jar is compiled during setup, and
+// with the glowroot agent attached to the forked benchmark JVMs (not to the JMH launcher JVM, which
+// would hold the lock on the glowroot directory), e.g.
+//
+// java -jar benchmarks.jar SyntheticJarWeavingBenchmark
+//         -jvmArgsPrepend -javaagent:path/to/glowroot.jar
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class SyntheticJarWeavingBenchmark {
+
+    private static final int CLASS_COUNT = 10000;
+
+    // every HIERARCHY_DEPTH classes start a new class hierarchy
+    private static final int HIERARCHY_DEPTH = 10;
+
+    // one in every RUNNABLE_EVERY classes implements Runnable (which is instrumented by the
+    // executor plugin)
+    private static final int RUNNABLE_EVERY = 50;
+
+    private File tempDir;
+    private File jarFile;
+    private List<String> classNames;
+
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDir();
+        File srcDir = new File(tempDir, "src");
+        File classesDir = new File(tempDir, "classes");
+        srcDir.mkdir();
+        classesDir.mkdir();
+        classNames = Lists.newArrayList();
+        List<String> args = Lists.newArrayList("-d", classesDir.getPath(), "-nowarn");
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String simpleName = "Synthetic" + i;
+            File srcFile = new File(srcDir, simpleName + ".java");
+            Files.write(createSource(i), srcFile, Charsets.UTF_8);
+            args.add(srcFile.getPath());
+            classNames.add("synthetic." + simpleName);
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("This benchmark must be run on a JDK");
+        }
+        if (compiler.run(null, null, null, args.toArray(new String[args.size()])) != 0) {
+            throw new IllegalStateException("Could not compile synthetic classes");
+        }
+        jarFile = new File(tempDir, "synthetic.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                String path = "synthetic/Synthetic" + i + ".class";
+                out.putNextEntry(new JarEntry(path));
+                Files.copy(new File(classesDir, path), out);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public void withPreFilter() throws Exception {
+        loadClasses();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.preFilter=false")
+    public void withoutPreFilter() throws Exception {
+        loadClasses();
+    }
+
+    private void loadClasses() throws Exception {
+        // new class loader each time so that all classes go through weaving
+        URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()},
+                SyntheticJarWeavingBenchmark.class.getClassLoader());
+        for (String className : classNames) {
+            Class.forName(className, false, loader);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Could not delete: " + file.getPath());
+        }
+    }
+
+    private static String createSource(int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package synthetic;\n");
+        sb.append("public class Synthetic");
+        sb.append(i);
+        if (i % HIERARCHY_DEPTH != 0) {
+            sb.append(" extends Synthetic");
+            sb.append(i - 1);
+        }
+        if (i % RUNNABLE_EVERY == 0) {
+            sb.append(" implements Runnable");
+        }
+        sb.append(" {\n");
+        sb.append("  private int value");
+        sb.append(i);
+        sb.append(";\n");
+        sb.append("  public int getValue");
+        sb.append(i);
+        sb.append("() { return value");
+        sb.append(i);
+        sb.append("; }\n");
+        sb.append("  public void setValue");
+        sb.append(i);
+        sb.append("(int value) { this.value");
+        sb.append(i);
+        sb.append(" = value; }\n");
+        sb.append("  public String describe(java.util.List<String> list) {\n");
+        sb.append("    StringBuilder sb = new StringBuilder();\n");
+        sb.append("    for (String item : list) { sb.append(item).append(value");
+        sb.append(i);
+        sb.append("); }\n");
+        sb.append("    return sb.toString();\n");
+        sb.append("  }\n");
+        if (i % RUNNABLE_EVERY == 0) {
+            sb.append("  public void run() {}\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the cost of starting and ending an (otherwise empty) transaction, which is dominated by
+// capturing thread stats at the start and end of the transaction
+//
+// thread stats capture is controlled by the agent config, so this needs to be run with the agent
+// attached, once for each thread stats setting, see thread-stats.sh
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    public void execute() {
+        transactionWorthy.doSomethingTransactionWorthy2();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures starting and stopping nested timers, one op is one stack of nested timers (alternating
+// between two timer names so that each level is a new child timer)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TimerBenchmark extends TransactionWorthy {
+
+    @Param
+    private PointcutType pointcutType;
+
+    @Param({"1", "5", "20"})
+    private int depth;
+
+    private NestedTimerWorthy timerWorthy;
+
+    @Setup
+    public void setup() {
+        timerWorthy = new NestedTimerWorthy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            timerWorthy.remaining = depth - 1;
+            switch (pointcutType) {
+                case API:
+                    timerWorthy.doSomethingTimerWorthy();
+                    break;
+                case CONFIG:
+                    timerWorthy.doSomethingTimerWorthy2();
+                    break;
+            }
+        }
+    }
+
+    private static class NestedTimerWorthy extends TimerWorthy {
+
+        private int remaining;
+
+        @Override
+        public void doSomethingTimerWorthy() {
+            if (remaining-- > 0) {
+                doSomethingTimerWorthyB();
+            }
+        }
+
+        @Override
+        public void doSomethingTimerWorthyB() {
+            if (remaining-- > 0) {
+                doSomethingTimerWorthy();
+            }
+        }
+
+        @Override
+        public void doSomethingTimerWorthy2() {
+            if (remaining-- > 0) {
+                doSomethingTimerWorthy2B();
+            }
+        }
+
+        @Override
+        public void doSomethingTimerWorthy2B() {
+            if (remaining-- > 0) {
+                doSomethingTimerWorthy2();
+            }
+        }
+    }
+}
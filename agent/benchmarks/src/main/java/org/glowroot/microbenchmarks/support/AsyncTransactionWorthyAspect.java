@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.AsyncTraceEntry;
+import org.glowroot.agent.plugin.api.AuxThreadContext;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.OptionalThreadContext;
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.OnAfter;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+public class AsyncTransactionWorthyAspect {
+
+    // the single async transaction that all benchmark threads join
+    private static volatile AuxThreadContext auxThreadContext;
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AsyncTransactionWorthy",
+            methodName = "startAsyncTransaction", methodParameterTypes = {},
+            timerName = "async transaction worthy")
+    public static class StartAsyncTransactionAdvice {
+
+        private static final TimerName timerName =
+                Agent.getTimerName(StartAsyncTransactionAdvice.class);
+
+        @OnBefore
+        public static TraceEntry onBefore(OptionalThreadContext context) {
+            TraceEntry traceEntry = context.startTransaction("Microbenchmark",
+                    "async transaction worthy", MessageSupplier.create("async transaction worthy"),
+                    timerName);
+            context.setTransactionAsync();
+            auxThreadContext = context.createAuxThreadContext();
+            return traceEntry;
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler TraceEntry traceEntry) {
+            traceEntry.end();
+        }
+    }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AsyncTransactionWorthy",
+            methodName = "joinAsyncTransaction", methodParameterTypes = {})
+    public static class JoinAsyncTransactionAdvice {
+
+        @OnBefore
+        public static TraceEntry onBefore() {
+            return auxThreadContext.start();
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler TraceEntry traceEntry) {
+            traceEntry.end();
+        }
+    }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AsyncTransactionWorthy",
+            methodName = "doSomethingAsync", methodParameterTypes = {},
+            timerName = "something async")
+    public static class DoSomethingAsyncAdvice {
+
+        private static final TimerName timerName =
+                Agent.getTimerName(DoSomethingAsyncAdvice.class);
+
+        @OnBefore
+        public static AsyncTraceEntry onBefore(ThreadContext context) {
+            AsyncTraceEntry asyncTraceEntry = context
+                    .startAsyncTraceEntry(MessageSupplier.create("something async"), timerName);
+            asyncTraceEntry.stopSyncTimer();
+            return asyncTraceEntry;
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler AsyncTraceEntry asyncTraceEntry) {
+            asyncTraceEntry.end();
+        }
+    }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AsyncTransactionWorthy",
+            methodName = "completeAsyncTransaction", methodParameterTypes = {})
+    public static class CompleteAsyncTransactionAdvice {
+
+        @OnBefore
+        public static TraceEntry onBefore() {
+            return auxThreadContext.startAndMarkAsyncTransactionComplete();
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler TraceEntry traceEntry) {
+            traceEntry.end();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.ImmutableList;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Repository;
+import org.springframework.stereotype.Service;
+
+// spring boot-like application (component scanning, dependency injection, servlet) on a large
+// classpath (the benchmarks jar), used to measure time to first request
+@Configuration
+@ComponentScan(basePackageClasses = StartupFixture.class)
+public class StartupFixture {
+
+    public static String startAndServeFirstRequest() throws Exception {
+        AnnotationConfigApplicationContext context =
+                new AnnotationConfigApplicationContext(StartupFixture.class);
+        try {
+            StringWriter body = new StringWriter();
+            context.getBean(FixtureServlet.class).service(
+                    newProxy(HttpServletRequest.class, null),
+                    newProxy(HttpServletResponse.class, new PrintWriter(body)));
+            return body.toString();
+        } finally {
+            context.close();
+        }
+    }
+
+    private static <T> T newProxy(Class<T> type, final PrintWriter writer) {
+        return type.cast(Proxy.newProxyInstance(StartupFixture.class.getClassLoader(),
+                new Class<?>[] {type}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        Class<?> returnType = method.getReturnType();
+                        if (name.equals("getMethod")) {
+                            return "GET";
+                        } else if (name.equals("getRequestURI")) {
+                            return "/";
+                        } else if (name.equals("getWriter")) {
+                            return writer;
+                        } else if (returnType == boolean.class) {
+                            return false;
+                        } else if (returnType == int.class) {
+                            return 0;
+                        } else if (returnType == long.class) {
+                            return 0L;
+                        } else if (returnType == java.util.Enumeration.class) {
+                            return Collections.enumeration(Collections.emptyList());
+                        } else if (returnType == java.util.Map.class) {
+                            return Collections.emptyMap();
+                        }
+                        return null;
+                    }
+                }));
+    }
+
+    @Repository
+    public static class FixtureRepository {
+
+        public List<String> findAll() {
+            return ImmutableList.of("one", "two", "three");
+        }
+    }
+
+    @Service
+    public static class FixtureService {
+
+        @Autowired
+        private FixtureRepository repository;
+
+        public String describe() {
+            StringBuilder sb = new StringBuilder();
+            for (String item : repository.findAll()) {
+                sb.append(item);
+            }
+            return sb.toString();
+        }
+    }
+
+    @Component
+    @SuppressWarnings("serial")
+    public static class FixtureServlet extends HttpServlet {
+
+        @Autowired
+        private FixtureService service;
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException {
+            response.getWriter().print(service.describe());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+#!/bin/bash -e
+
+# runs the thread stats benchmark with the agent attached, once for each thread stats setting, and
+# writes the JMH results as json, one file per setting
+#
+# usage (from agent/benchmarks, after building agent/dist and agent/benchmarks):
+#
+#   ./thread-stats.sh [output dir] [additional jmh args]
+#
+# e.g. ./thread-stats.sh target/thread-stats -f 1 -wi 5 -i 5
+
+cd "$(dirname "$0")"
+
+out_dir=${1:-target/thread-stats}
+shift || true
+
+dist_zip=$(ls ../dist/target/glowroot-agent-*-dist.zip)
+
+declare -A settings
+settings[off]='"transactions": { "captureThreadStats": false }'
+settings[default]='"transactions": {}'
+settings[fast]='"advanced": { "fastThreadStats": true }'
+settings[sampled]='"advanced": { "threadStatsSamplingInterval": 10 }'
+settings[fast-sampled]='"advanced": { "fastThreadStats": true, "threadStatsSamplingInterval": 10 }'
+
+mkdir -p $out_dir
+for setting in off default fast sampled fast-sampled
+do
+  agent_dir=target/thread-stats-agent-$setting
+  rm -rf $agent_dir
+  mkdir -p $agent_dir
+  unzip -q $dist_zip -d $agent_dir
+  # the microbenchmark aspects are only loaded from the agent's plugins directory
+  mkdir $agent_dir/glowroot/plugins
+  cp target/benchmarks.jar $agent_dir/glowroot/plugins
+  cat > $agent_dir/glowroot/config.json <<EOT
+{
+  ${settings[$setting]}
+}
+EOT
+
+  java -jar target/benchmarks.jar ThreadStatsBenchmark \
+       -rf json \
+       -rff $out_dir/$setting.json \
+       -jvmArgsPrepend "-javaagent:$agent_dir/glowroot/glowroot.jar" \
+       "$@"
+done
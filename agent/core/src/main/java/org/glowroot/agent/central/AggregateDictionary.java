@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.grpc.stub.StreamObserver;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateDictionaryEntry;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// dictionary of strings that is shared with the central collector across aggregate streams, so
+// that timer names, transaction names, query texts, etc only need to be sent once per dictionary
+//
+// new entries are only committed once the central collector confirms that it has appended them to
+// its own copy of the dictionary, and any mismatch between the two results in a new dictionary
+//
+// if the central collector does not have the dictionary (e.g. after central collector restart, or
+// when the agent is routed to a different central collector node) then the next stream re-sends
+// all of the committed entries as a snapshot, so that the dictionary (and its indexes) can be kept
+class AggregateDictionary {
+
+    // the central collector retains a copy of the dictionary in memory for each agent, so start a
+    // new dictionary once this size is reached
+    static final int MAX_SIZE = 50000;
+
+    private final SharedQueryTextLimiter sharedQueryTextLimiter;
+
+    // only contains entries that have been committed, and are only modified under lock
+    private final ConcurrentMap<String, Integer> textIndexes = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Integer> queryTextIndexes = Maps.newConcurrentMap();
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private String id = newId();
+    @GuardedBy("lock")
+    private int size;
+    @GuardedBy("lock")
+    private boolean resetNeeded;
+    @GuardedBy("lock")
+    private boolean snapshotNeeded;
+
+    // committed entries in index order (full query texts are retained so that they can be re-sent
+    // via the shared query text limiter), in order to send a snapshot
+    @GuardedBy("lock")
+    private final List<String> values = Lists.newArrayList();
+    @GuardedBy("lock")
+    private final BitSet queryTextValues = new BitSet();
+
+    AggregateDictionary(SharedQueryTextLimiter sharedQueryTextLimiter) {
+        this.sharedQueryTextLimiter = sharedQueryTextLimiter;
+    }
+
+    void snapshotNeeded() {
+        synchronized (lock) {
+            snapshotNeeded = true;
+        }
+    }
+
+    // fullTextSha1s is populated with the sha1 of any full query texts that are sent
+    StreamEncoder newStreamEncoder(StreamObserver<AggregateStreamMessage> requestObserver,
+            List<String> fullTextSha1s) {
+        synchronized (lock) {
+            if (resetNeeded || size >= MAX_SIZE) {
+                textIndexes.clear();
+                queryTextIndexes.clear();
+                values.clear();
+                queryTextValues.clear();
+                id = newId();
+                size = 0;
+                resetNeeded = false;
+                snapshotNeeded = false;
+            }
+            if (snapshotNeeded && size > 0) {
+                return new StreamEncoder(id, size, ImmutableList.copyOf(values),
+                        (BitSet) queryTextValues.clone(), requestObserver, fullTextSha1s);
+            }
+            return new StreamEncoder(id, size, null, null, requestObserver, fullTextSha1s);
+        }
+    }
+
+    void onResponse(StreamEncoder streamEncoder, int centralDictionarySize) {
+        synchronized (lock) {
+            if (!streamEncoder.dictionaryId.equals(id)) {
+                // dictionary has been reset since the stream was sent
+                return;
+            }
+            if (size == streamEncoder.baseSize
+                    && centralDictionarySize == streamEncoder.baseSize + streamEncoder.newSize) {
+                textIndexes.putAll(streamEncoder.newTextIndexes);
+                queryTextIndexes.putAll(streamEncoder.newQueryTextIndexes);
+                for (int i = 0; i < streamEncoder.newValues.size(); i++) {
+                    values.add(streamEncoder.newValues.get(i));
+                    if (streamEncoder.newQueryTextValues.get(i)) {
+                        queryTextValues.set(size + i);
+                    }
+                }
+                size = centralDictionarySize;
+                snapshotNeeded = false;
+            } else if (centralDictionarySize != size) {
+                // the central collector's copy of the dictionary has diverged (e.g. a prior
+                // response was lost after the central collector appended the entries)
+                resetNeeded = true;
+            }
+            // otherwise another stream with the same base size was committed first, and the
+            // central collector did not append the entries from this stream
+        }
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    class StreamEncoder {
+
+        private final String dictionaryId;
+        // this is the number of committed entries when the stream was started, which is also the
+        // index of the first new entry (even when sending a snapshot, in which case the stream
+        // header's base size is zero)
+        private final int baseSize;
+        private final @Nullable List<String> snapshotValues;
+        private final @Nullable BitSet snapshotQueryTextValues;
+        private final StreamObserver<AggregateStreamMessage> requestObserver;
+        private final List<String> fullTextSha1s;
+
+        private final Map<String, Integer> newTextIndexes = Maps.newHashMap();
+        private final Map<String, Integer> newQueryTextIndexes = Maps.newHashMap();
+        private final List<String> newValues = Lists.newArrayList();
+        private final BitSet newQueryTextValues = new BitSet();
+        private int newSize;
+
+        // index into this list is the shared query text index used by the aggregate visitor
+        private final List<String> streamSharedQueryTexts = Lists.newArrayList();
+
+        private StreamEncoder(String dictionaryId, int baseSize,
+                @Nullable List<String> snapshotValues, @Nullable BitSet snapshotQueryTextValues,
+                StreamObserver<AggregateStreamMessage> requestObserver,
+                List<String> fullTextSha1s) {
+            this.dictionaryId = dictionaryId;
+            this.baseSize = baseSize;
+            this.snapshotValues = snapshotValues;
+            this.snapshotQueryTextValues = snapshotQueryTextValues;
+            this.requestObserver = requestObserver;
+            this.fullTextSha1s = fullTextSha1s;
+        }
+
+        void populateStreamHeader(AggregateStreamHeader.Builder streamHeader) {
+            streamHeader.setDictionaryId(dictionaryId);
+            if (snapshotValues == null) {
+                streamHeader.setDictionaryBaseSize(baseSize);
+            } else {
+                streamHeader.setDictionarySnapshot(true);
+            }
+        }
+
+        // must be called after the stream header is sent, and before encoding any aggregates
+        void sendSnapshotEntries() {
+            if (snapshotValues == null) {
+                return;
+            }
+            for (int i = 0; i < snapshotValues.size(); i++) {
+                String value = snapshotValues.get(i);
+                AggregateDictionaryEntry.Builder entry = AggregateDictionaryEntry.newBuilder();
+                if (checkNotNull(snapshotQueryTextValues).get(i)) {
+                    entry.setSharedQueryText(buildSharedQueryText(value));
+                } else {
+                    entry.setText(value);
+                }
+                requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                        .setDictionaryEntry(entry)
+                        .build());
+            }
+        }
+
+        OverallAggregate encodeOverallAggregate(String transactionType,
+                List<String> sharedQueryTexts, Aggregate overallAggregate) {
+            streamSharedQueryTexts.addAll(sharedQueryTexts);
+            return OverallAggregate.newBuilder()
+                    .setTransactionTypeDictionaryIndex(getTextIndex(transactionType))
+                    .setAggregate(encode(overallAggregate))
+                    .build();
+        }
+
+        TransactionAggregate encodeTransactionAggregate(String transactionType,
+                String transactionName, List<String> sharedQueryTexts,
+                Aggregate transactionAggregate) {
+            streamSharedQueryTexts.addAll(sharedQueryTexts);
+            return TransactionAggregate.newBuilder()
+                    .setTransactionTypeDictionaryIndex(getTextIndex(transactionType))
+                    .setTransactionNameDictionaryIndex(getTextIndex(transactionName))
+                    .setAggregate(encode(transactionAggregate))
+                    .build();
+        }
+
+        private Aggregate encode(Aggregate aggregate) {
+            Aggregate.Builder builder = aggregate.toBuilder()
+                    .clearMainThreadRootTimer()
+                    .clearAuxThreadRootTimer()
+                    .clearAsyncTimer()
+                    .clearQueriesByType()
+                    .clearServiceCallsByType();
+            for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+                builder.addMainThreadRootTimer(encode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+                builder.addAuxThreadRootTimer(encode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+                builder.addAsyncTimer(encode(timer));
+            }
+            for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+                Aggregate.QueriesByType.Builder queriesByTypeBuilder =
+                        Aggregate.QueriesByType.newBuilder()
+                                .setTypeDictionaryIndex(getTextIndex(queriesByType.getType()));
+                for (Aggregate.Query query : queriesByType.getQueryList()) {
+                    String queryText =
+                            streamSharedQueryTexts.get(query.getSharedQueryTextIndex());
+                    queriesByTypeBuilder.addQuery(query.toBuilder()
+                            .setSharedQueryTextIndex(getQueryTextIndex(queryText)));
+                }
+                builder.addQueriesByType(queriesByTypeBuilder);
+            }
+            for (Aggregate.ServiceCallsByType serviceCallsByType : aggregate
+                    .getServiceCallsByTypeList()) {
+                Aggregate.ServiceCallsByType.Builder serviceCallsByTypeBuilder =
+                        Aggregate.ServiceCallsByType.newBuilder()
+                                .setTypeDictionaryIndex(
+                                        getTextIndex(serviceCallsByType.getType()));
+                for (Aggregate.ServiceCall serviceCall : serviceCallsByType
+                        .getServiceCallList()) {
+                    serviceCallsByTypeBuilder.addServiceCall(serviceCall.toBuilder()
+                            .clearText()
+                            .setTextDictionaryIndex(getTextIndex(serviceCall.getText())));
+                }
+                builder.addServiceCallsByType(serviceCallsByTypeBuilder);
+            }
+            return builder.build();
+        }
+
+        private Aggregate.Timer encode(Aggregate.Timer timer) {
+            Aggregate.Timer.Builder builder = timer.toBuilder()
+                    .clearName()
+                    .setNameDictionaryIndex(getTextIndex(timer.getName()))
+                    .clearChildTimer();
+            for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+                builder.addChildTimer(encode(childTimer));
+            }
+            return builder.build();
+        }
+
+        private int getTextIndex(String text) {
+            Integer index = getIndex(textIndexes, newTextIndexes, text);
+            if (index != null) {
+                return index;
+            }
+            index = addEntry(AggregateDictionaryEntry.newBuilder()
+                    .setText(text)
+                    .build(), text, false);
+            newTextIndexes.put(text, index);
+            return index;
+        }
+
+        private int getQueryTextIndex(String queryText) {
+            Integer index = getIndex(queryTextIndexes, newQueryTextIndexes, queryText);
+            if (index != null) {
+                return index;
+            }
+            index = addEntry(AggregateDictionaryEntry.newBuilder()
+                    .setSharedQueryText(buildSharedQueryText(queryText))
+                    .build(), queryText, true);
+            newQueryTextIndexes.put(queryText, index);
+            return index;
+        }
+
+        private Aggregate.SharedQueryText buildSharedQueryText(String queryText) {
+            Aggregate.SharedQueryText sharedQueryText =
+                    sharedQueryTextLimiter.buildAggregateSharedQueryText(queryText);
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            if (!fullTextSha1.isEmpty()) {
+                fullTextSha1s.add(fullTextSha1);
+            }
+            return sharedQueryText;
+        }
+
+        private @Nullable Integer getIndex(Map<String, Integer> committedIndexes,
+                Map<String, Integer> newIndexes, String value) {
+            Integer index = committedIndexes.get(value);
+            // committed entries past the base size may have been committed by a concurrent stream
+            // and so cannot be used by this stream
+            if (index != null && index < baseSize) {
+                return index;
+            }
+            return newIndexes.get(value);
+        }
+
+        private int addEntry(AggregateDictionaryEntry entry, String value,
+                boolean queryText) {
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setDictionaryEntry(entry)
+                    .build());
+            newValues.add(value);
+            if (queryText) {
+                newQueryTextValues.set(newSize);
+            }
+            return baseSize + newSize++;
+        }
+    }
+}
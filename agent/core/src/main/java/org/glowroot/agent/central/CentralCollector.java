@@ -27,10 +27,12 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.central.AggregateDictionary.StreamEncoder;
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
@@ -76,8 +78,11 @@ public class CentralCollector implements Collector {
     private final DownstreamServiceObserver downstreamServiceObserver;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
+    private final AggregateDictionary aggregateDictionary =
+            new AggregateDictionary(sharedQueryTextLimiter);
 
     private volatile int nextAggregateDelayMillis;
+    private volatile boolean aggregateDictionarySupported;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
@@ -127,6 +132,7 @@ public class CentralCollector implements Collector {
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}, version {}",
                         collectorAddress, response.getGlowrootCentralVersion());
+                aggregateDictionarySupported = response.getAggregateDictionarySupported();
                 if (response.hasAgentConfig()) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -207,12 +213,22 @@ public class CentralCollector implements Collector {
 
         private class AggregateVisitorImpl implements AggregateVisitor {
             private final StreamObserver<AggregateStreamMessage> requestObserver;
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
+            private final @Nullable StreamEncoder streamEncoder;
+            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                    @Nullable StreamEncoder streamEncoder) {
                 this.requestObserver = requestObserver;
+                this.streamEncoder = streamEncoder;
             }
             @Override
             public void visitOverallAggregate(String transactionType,
                     List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                if (streamEncoder != null) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setOverallAggregate(streamEncoder.encodeOverallAggregate(
+                                    transactionType, sharedQueryTexts, overallAggregate))
+                            .build());
+                    return;
+                }
                 for (String sharedQueryText : sharedQueryTexts) {
                     Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
                             .buildAggregateSharedQueryText(sharedQueryText);
@@ -234,6 +250,14 @@ public class CentralCollector implements Collector {
             public void visitTransactionAggregate(String transactionType,
                     String transactionName, List<String> sharedQueryTexts,
                     Aggregate transactionAggregate) {
+                if (streamEncoder != null) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setTransactionAggregate(streamEncoder.encodeTransactionAggregate(
+                                    transactionType, transactionName, sharedQueryTexts,
+                                    transactionAggregate))
+                            .build());
+                    return;
+                }
                 for (String sharedQueryText : sharedQueryTexts) {
                     requestObserver.onNext(AggregateStreamMessage.newBuilder()
                             .setSharedQueryText(sharedQueryTextLimiter
@@ -252,6 +276,8 @@ public class CentralCollector implements Collector {
         private final AggregateReader aggregateReader;
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
+        private @Nullable StreamEncoder streamEncoder;
+
         private CollectAggregatesGrpcCall(AggregateReader aggregateReader) {
             this.aggregateReader = aggregateReader;
         }
@@ -259,16 +285,28 @@ public class CentralCollector implements Collector {
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
             final StreamObserver<AggregateStreamMessage> requestObserver =
-                    collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime()))
-                    .build());
+                    collectorServiceStub.collectAggregateStream(
+                            new AggregateResponseObserver(responseObserver));
             // need to clear in case this is a retry
             fullTextSha1s.clear();
+            AggregateStreamHeader.Builder streamHeader = AggregateStreamHeader.newBuilder()
+                    .setAgentId(agentId)
+                    .setCaptureTime(aggregateReader.captureTime());
+            if (aggregateDictionarySupported) {
+                streamEncoder = aggregateDictionary.newStreamEncoder(requestObserver,
+                        fullTextSha1s);
+                streamEncoder.populateStreamHeader(streamHeader);
+            } else {
+                streamEncoder = null;
+            }
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setStreamHeader(streamHeader)
+                    .build());
+            if (streamEncoder != null) {
+                streamEncoder.sendSnapshotEntries();
+            }
             try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
+                aggregateReader.accept(new AggregateVisitorImpl(requestObserver, streamEncoder));
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
@@ -281,12 +319,46 @@ public class CentralCollector implements Collector {
         public void doWithResponse(AggregateResponseMessage response) {
             // Math.min is just for safety
             nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+            if (streamEncoder != null) {
+                aggregateDictionary.onResponse(streamEncoder, response.getDictionarySize());
+            }
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
         }
     }
 
+    // the central collector rejects a dictionary encoded stream with FAILED_PRECONDITION when it
+    // does not have the agent's dictionary (e.g. after central collector restart, or when routed to
+    // a different central collector node), in which case the retry sends a snapshot of the
+    // dictionary instead of starting over with a new dictionary
+    private class AggregateResponseObserver implements StreamObserver<AggregateResponseMessage> {
+
+        private final StreamObserver<AggregateResponseMessage> delegate;
+
+        private AggregateResponseObserver(StreamObserver<AggregateResponseMessage> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onNext(AggregateResponseMessage value) {
+            delegate.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (Status.fromThrowable(t).getCode() == Status.Code.FAILED_PRECONDITION) {
+                aggregateDictionary.snapshotNeeded();
+            }
+            delegate.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            delegate.onCompleted();
+        }
+    }
+
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
 
         private final TraceReader traceReader;
@@ -81,7 +81,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignaturesR
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.PreloadClasspathCacheResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.SystemPropertiesResponse;
-import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.UnknownRequestResponse;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
@@ -300,9 +300,21 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void threadDumpAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) {
-        ThreadDump threadDump;
+        ThreadDumpRequest threadDumpRequest = request.getThreadDumpRequest();
+        ThreadDumpResponse threadDumpResponse;
         try {
-            threadDump = liveJvmService.getThreadDump("");
+            if (threadDumpRequest.getIncremental()) {
+                threadDumpResponse = ThreadDumpResponse.newBuilder()
+                        .setIncrementalThreadDump(liveJvmService.getIncrementalThreadDump(
+                                threadDumpRequest.getBaseVersion(),
+                                threadDumpRequest.getMaxStackDepth()))
+                        .build();
+            } else {
+                threadDumpResponse = ThreadDumpResponse.newBuilder()
+                        .setThreadDump(liveJvmService.getThreadDump("",
+                                threadDumpRequest.getMaxStackDepth()))
+                        .build();
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
@@ -310,8 +322,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
-                .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
-                        .setThreadDump(threadDump))
+                .setThreadDumpResponse(threadDumpResponse)
                 .build());
     }
 
@@ -426,11 +437,18 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(AgentResponse.newBuilder()
-                .setRequestId(request.getRequestId())
-                .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
-                        .setHeapHistogram(heapHistogram))
-                .build());
+        List<List<HeapHistogram.ClassInfo>> chunks = MessageChunks.split(
+                heapHistogram.getClassInfoList(), HeapHistogram.CLASS_INFO_FIELD_NUMBER,
+                request.getHeapHistogramRequest().getMaxChunkBytes());
+        for (int i = 0; i < chunks.size(); i++) {
+            responseObserver.onNext(AgentResponse.newBuilder()
+                    .setRequestId(request.getRequestId())
+                    .setMoreChunks(i < chunks.size() - 1)
+                    .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                            .setHeapHistogram(HeapHistogram.newBuilder()
+                                    .addAllClassInfo(chunks.get(i))))
+                    .build());
+        }
     }
 
     private void gcAndRespond(CentralRequest request,
@@ -459,11 +477,17 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(AgentResponse.newBuilder()
-                .setRequestId(request.getRequestId())
-                .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
-                        .setMbeanDump(mbeanDump))
-                .build());
+        List<List<MBeanDump.MBeanInfo>> chunks = MessageChunks.split(mbeanDump.getMbeanInfoList(),
+                MBeanDump.MBEAN_INFO_FIELD_NUMBER, req.getMaxChunkBytes());
+        for (int i = 0; i < chunks.size(); i++) {
+            responseObserver.onNext(AgentResponse.newBuilder()
+                    .setRequestId(request.getRequestId())
+                    .setMoreChunks(i < chunks.size() - 1)
+                    .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
+                            .setMbeanDump(MBeanDump.newBuilder()
+                                    .addAllMbeanInfo(chunks.get(i))))
+                    .build());
+        }
     }
 
     private void matchingMBeanObjectNamesAndRespond(CentralRequest request,
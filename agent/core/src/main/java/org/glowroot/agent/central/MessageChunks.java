@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+class MessageChunks {
+
+    private MessageChunks() {}
+
+    // splits the elements of a repeated message field into consecutive chunks whose encoded size
+    // (as elements of the repeated field) does not exceed maxChunkBytes, except that a single
+    // element larger than maxChunkBytes is put in a chunk by itself
+    //
+    // always returns at least one chunk (possibly empty) so that a response is always sent
+    static <T extends MessageLite> List<List<T>> split(List<T> elements, int fieldNumber,
+            int maxChunkBytes) {
+        if (maxChunkBytes <= 0) {
+            return ImmutableList.of(elements);
+        }
+        List<List<T>> chunks = Lists.newArrayList();
+        int chunkStart = 0;
+        int chunkBytes = 0;
+        for (int i = 0; i < elements.size(); i++) {
+            int elementBytes = CodedOutputStream.computeMessageSize(fieldNumber, elements.get(i));
+            if (chunkBytes + elementBytes > maxChunkBytes && i > chunkStart) {
+                chunks.add(elements.subList(chunkStart, i));
+                chunkStart = i;
+                chunkBytes = 0;
+            }
+            chunkBytes += elementBytes;
+        }
+        chunks.add(elements.subList(chunkStart, elements.size()));
+        return chunks;
+    }
+}
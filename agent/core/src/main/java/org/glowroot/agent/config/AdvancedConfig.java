@@ -80,6 +80,63 @@ public abstract class AdvancedConfig {
         return 60;
     }
 
+    // used to limit aggregate storage size, transaction duration percentiles are tracked in
+    // log-linear buckets instead of raw values and HdrHistogram, each power of two range is split
+    // into 2^N buckets giving max relative error of 2^-(N + 1), e.g. 6 gives 0.78% (zero means
+    // not compact, values above 20 are treated as 20)
+    @Value.Default
+    @JsonInclude(Include.NON_EMPTY)
+    public int compactHistogramPrecisionBits() {
+        return 0;
+    }
+
+    // used to reduce per transaction overhead, thread stats are captured without blocked and
+    // waited times, which require the relatively expensive ThreadMXBean.getThreadInfo()
+    @Value.Default
+    @JsonInclude(Include.NON_EMPTY)
+    public boolean fastThreadStats() {
+        return false;
+    }
+
+    // used to reduce per transaction overhead, thread stats are captured for only 1 in every N
+    // transactions (and scaled up by N in aggregates)
+    @Value.Default
+    public int threadStatsSamplingInterval() {
+        return 1;
+    }
+
+    // used to limit the number of stored slow traces during latency spikes, this is the max number
+    // of slow traces stored immediately per minute for each transaction type and name (zero means
+    // no limit), error traces are not limited
+    @Value.Default
+    public int maxSlowTracesPerMinute() {
+        return 0;
+    }
+
+    // slow traces over maxSlowTracesPerMinute are reservoir sampled within each aggregate interval
+    // (per transaction type and name) and stored at the end of the interval
+    @Value.Default
+    public int slowTraceReservoirSize() {
+        return 10;
+    }
+
+    // used to reduce trace entry overhead (and trace size) for transactions that execute the same
+    // query or service call many times in a row, consecutive executions are collapsed into a single
+    // trace entry with execution count, total and max duration
+    @Value.Default
+    @JsonInclude(Include.NON_EMPTY)
+    public boolean collapseTraceEntries() {
+        return false;
+    }
+
+    // used to limit the heap retained by active transactions (e.g. during a spike of long running
+    // requests), beyond 75% of this estimated memory new trace entries are not captured, and beyond
+    // 100% profile samples are not captured (zero means no limit)
+    @Value.Default
+    public int maxActiveTransactionMemoryMb() {
+        return 0;
+    }
+
     public AgentConfig.AdvancedConfig toProto() {
         return AgentConfig.AdvancedConfig.newBuilder()
                 .setWeavingTimer(weavingTimer())
@@ -91,12 +148,23 @@ public abstract class AdvancedConfig {
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                .setCompactHistogramPrecisionBits(compactHistogramPrecisionBits())
+                .setFastThreadStats(fastThreadStats())
+                .setThreadStatsSamplingInterval(of(threadStatsSamplingInterval()))
+                .setMaxSlowTracesPerMinute(of(maxSlowTracesPerMinute()))
+                .setSlowTraceReservoirSize(of(slowTraceReservoirSize()))
+                .setCollapseTraceEntries(collapseTraceEntries())
+                .setMaxActiveTransactionMemoryMb(maxActiveTransactionMemoryMb())
                 .build();
     }
 
     public static AdvancedConfig create(AgentConfig.AdvancedConfig config) {
         ImmutableAdvancedConfig.Builder builder = ImmutableAdvancedConfig.builder()
-                .weavingTimer(config.getWeavingTimer());
+                .weavingTimer(config.getWeavingTimer())
+                .compactHistogramPrecisionBits(config.getCompactHistogramPrecisionBits())
+                .fastThreadStats(config.getFastThreadStats())
+                .collapseTraceEntries(config.getCollapseTraceEntries())
+                .maxActiveTransactionMemoryMb(config.getMaxActiveTransactionMemoryMb());
         if (config.hasImmediatePartialStoreThresholdSeconds()) {
             builder.immediatePartialStoreThresholdSeconds(
                     config.getImmediatePartialStoreThresholdSeconds().getValue());
@@ -124,6 +192,16 @@ public abstract class AdvancedConfig {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
+        if (config.hasThreadStatsSamplingInterval()) {
+            builder.threadStatsSamplingInterval(
+                    config.getThreadStatsSamplingInterval().getValue());
+        }
+        if (config.hasMaxSlowTracesPerMinute()) {
+            builder.maxSlowTracesPerMinute(config.getMaxSlowTracesPerMinute().getValue());
+        }
+        if (config.hasSlowTraceReservoirSize()) {
+            builder.slowTraceReservoirSize(config.getSlowTraceReservoirSize().getValue());
+        }
         return builder.build();
     }
 
@@ -138,7 +138,8 @@ class EmbeddedAgentModule {
                     NonEmbeddedGlowrootAgentInit.createBackgroundExecutorSupplier();
 
             agentModule = new AgentModule(clock, null, pluginCache, configService,
-                    backgroundExecutorSupplier, collectorProxy, instrumentation, tmpDir);
+                    backgroundExecutorSupplier, collectorProxy, instrumentation, tmpDir,
+                    glowrootVersion);
 
             backgroundExecutor = backgroundExecutorSupplier.get();
 
@@ -24,6 +24,7 @@ import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.agent.config.AdvancedConfig;
+import org.glowroot.agent.impl.AggregateSlab.ThreadStatsOffsets;
 import org.glowroot.agent.impl.Transaction.RootTimerCollector;
 import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
 import org.glowroot.agent.model.CommonTimerImpl;
@@ -53,6 +54,12 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.glowroot.agent.impl.AggregateSlab.ASYNC_TRANSACTIONS;
+import static org.glowroot.agent.impl.AggregateSlab.AUX_THREAD_STATS;
+import static org.glowroot.agent.impl.AggregateSlab.ERROR_COUNT;
+import static org.glowroot.agent.impl.AggregateSlab.MAIN_THREAD_STATS;
+import static org.glowroot.agent.impl.AggregateSlab.TOTAL_DURATION_NANOS;
+import static org.glowroot.agent.impl.AggregateSlab.TRANSACTION_COUNT;
 
 // must be used under an appropriate lock
 @Styles.Private
@@ -61,19 +68,21 @@ class AggregateCollector {
     private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
 
     private final @Nullable String transactionName;
-    // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
-    private double totalDurationNanos;
-    private long transactionCount;
-    private long errorCount;
-    private boolean asyncTransactions;
-    private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
-    private final RootTimerCollectorImpl auxThreadRootTimers = new RootTimerCollectorImpl();
-    private final RootTimerCollectorImpl asyncTimers = new RootTimerCollectorImpl();
-    private final ThreadStatsCollectorImpl mainThreadStats = new ThreadStatsCollectorImpl();
-    private final ThreadStatsCollectorImpl auxThreadStats = new ThreadStatsCollectorImpl();
+    // scalar values (total duration, counts and thread stats) are stored in slab, which is shared
+    // by all aggregate collectors of the interval, to reduce the memory footprint per transaction
+    // name
+    private final AggregateSlab slab;
+    private final int slot;
+    // root timer lists are sized for a single root timer (the common case), and aux thread and
+    // async root timer lists are lazy instantiated, since most transactions do not have aux thread
+    // or async timers
+    private final List<MutableAggregateTimer> mainThreadRootTimers =
+            Lists.newArrayListWithCapacity(1);
+    private @MonotonicNonNull List<MutableAggregateTimer> auxThreadRootTimers;
+    private @MonotonicNonNull List<MutableAggregateTimer> asyncTimers;
     // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
     // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    private final LazyHistogram durationNanosHistogram;
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
@@ -83,38 +92,51 @@ class AggregateCollector {
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
 
-    AggregateCollector(@Nullable String transactionName, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType) {
+    AggregateCollector(@Nullable String transactionName, AggregateSlab slab,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType,
+            int compactHistogramPrecisionBits) {
         this.transactionName = transactionName;
+        this.slab = slab;
+        slot = slab.allocateSlot();
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        durationNanosHistogram = new LazyHistogram(compactHistogramPrecisionBits);
     }
 
     void add(Transaction transaction) {
         long totalDurationNanos = transaction.getDurationNanos();
-        this.totalDurationNanos += totalDurationNanos;
-        transactionCount++;
+        slab.add(slot, TOTAL_DURATION_NANOS, totalDurationNanos);
+        slab.add(slot, TRANSACTION_COUNT, 1);
         if (transaction.getErrorMessage() != null) {
-            errorCount++;
+            slab.add(slot, ERROR_COUNT, 1);
         }
         if (transaction.isAsync()) {
-            asyncTransactions = true;
+            slab.set(slot, ASYNC_TRANSACTIONS, 1);
         }
-        mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
-        transaction.mergeAuxThreadStatsInto(auxThreadStats);
+        int threadStatsSampleWeight = transaction.getThreadStatsSampleWeight();
+        if (threadStatsSampleWeight > 0) {
+            // when thread stats are only captured for 1 in N transactions, they are scaled up by N
+            // to estimate the totals across all transactions
+            new SlabThreadStatsCollector(MAIN_THREAD_STATS, threadStatsSampleWeight)
+                    .mergeThreadStats(transaction.getMainThreadStats());
+            transaction.mergeAuxThreadStatsInto(
+                    new SlabThreadStatsCollector(AUX_THREAD_STATS, threadStatsSampleWeight));
+        }
+        // zero weight means thread stats were not sampled for this transaction, in which case they
+        // are not merged, since that would make the aggregate thread stats not available
         durationNanosHistogram.add(totalDurationNanos);
     }
 
-    RootTimerCollector getMainThreadRootTimers() {
-        return mainThreadRootTimers;
+    void mergeMainThreadRootTimer(CommonTimerImpl rootTimer) {
+        mergeRootTimer(rootTimer, mainThreadRootTimers);
     }
 
     RootTimerCollector getAuxThreadRootTimers() {
-        return auxThreadRootTimers;
+        return new RootTimerCollectorImpl(false);
     }
 
     RootTimerCollector getAsyncTimers() {
-        return asyncTimers;
+        return new RootTimerCollectorImpl(true);
     }
 
     void mergeMainThreadProfile(Profile toBeMergedProfile) {
@@ -156,19 +178,19 @@ class AggregateCollector {
     Aggregate build(SharedQueryTextCollector sharedQueryTextCollector,
             ScratchBuffer scratchBuffer) {
         Aggregate.Builder builder = Aggregate.newBuilder()
-                .setTotalDurationNanos(totalDurationNanos)
-                .setTransactionCount(transactionCount)
-                .setErrorCount(errorCount)
-                .setAsyncTransactions(asyncTransactions)
-                .addAllMainThreadRootTimer(mainThreadRootTimers.toProto())
-                .addAllAuxThreadRootTimer(auxThreadRootTimers.toProto())
-                .addAllAsyncTimer(asyncTimers.toProto())
+                .setTotalDurationNanos(getTotalDurationNanos())
+                .setTransactionCount(getTransactionCount())
+                .setErrorCount(getErrorCount())
+                .setAsyncTransactions(isAsyncTransactions())
+                .addAllMainThreadRootTimer(toProto(mainThreadRootTimers))
+                .addAllAuxThreadRootTimer(toProto(auxThreadRootTimers))
+                .addAllAsyncTimer(toProto(asyncTimers))
                 .setDurationNanosHistogram(durationNanosHistogram.toProto(scratchBuffer));
-        if (!mainThreadStats.isNA()) {
-            builder.setMainThreadStats(mainThreadStats.toProto());
+        if (!isThreadStatsNA(MAIN_THREAD_STATS)) {
+            builder.setMainThreadStats(getThreadStatsProto(MAIN_THREAD_STATS));
         }
-        if (!auxThreadStats.isNA()) {
-            builder.setAuxThreadStats(auxThreadStats.toProto());
+        if (!isThreadStatsNA(AUX_THREAD_STATS)) {
+            builder.setAuxThreadStats(getThreadStatsProto(AUX_THREAD_STATS));
         }
         if (queries != null) {
             builder.addAllQueriesByType(queries.toAggregateProto(sharedQueryTextCollector));
@@ -186,39 +208,40 @@ class AggregateCollector {
     }
 
     void mergeOverallSummaryInto(OverallSummaryCollector collector) {
-        collector.mergeSummary(totalDurationNanos, transactionCount, 0);
+        collector.mergeSummary(getTotalDurationNanos(), getTransactionCount(), 0);
     }
 
     void mergeTransactionSummariesInto(TransactionSummaryCollector collector) {
         checkNotNull(transactionName);
-        collector.collect(transactionName, totalDurationNanos, transactionCount, 0);
+        collector.collect(transactionName, getTotalDurationNanos(), getTransactionCount(), 0);
     }
 
     void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector) {
-        collector.mergeErrorSummary(errorCount, transactionCount, 0);
+        collector.mergeErrorSummary(getErrorCount(), getTransactionCount(), 0);
     }
 
     void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector) {
         checkNotNull(transactionName);
+        long errorCount = getErrorCount();
         if (errorCount != 0) {
-            collector.collect(transactionName, errorCount, transactionCount, 0);
+            collector.collect(transactionName, errorCount, getTransactionCount(), 0);
         }
     }
 
     OverviewAggregate getOverviewAggregate(long captureTime) {
         ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
                 .captureTime(captureTime)
-                .totalDurationNanos(totalDurationNanos)
-                .transactionCount(transactionCount)
-                .asyncTransactions(asyncTransactions)
-                .mainThreadRootTimers(mainThreadRootTimers.toProto())
-                .auxThreadRootTimers(auxThreadRootTimers.toProto())
-                .asyncTimers(asyncTimers.toProto());
-        if (!mainThreadStats.isNA()) {
-            builder.mainThreadStats(mainThreadStats.toProto());
-        }
-        if (!auxThreadStats.isNA()) {
-            builder.auxThreadStats(auxThreadStats.toProto());
+                .totalDurationNanos(getTotalDurationNanos())
+                .transactionCount(getTransactionCount())
+                .asyncTransactions(isAsyncTransactions())
+                .mainThreadRootTimers(toProto(mainThreadRootTimers))
+                .auxThreadRootTimers(toProto(auxThreadRootTimers))
+                .asyncTimers(toProto(asyncTimers));
+        if (!isThreadStatsNA(MAIN_THREAD_STATS)) {
+            builder.mainThreadStats(getThreadStatsProto(MAIN_THREAD_STATS));
+        }
+        if (!isThreadStatsNA(AUX_THREAD_STATS)) {
+            builder.auxThreadStats(getThreadStatsProto(AUX_THREAD_STATS));
         }
         return builder.build();
     }
@@ -226,8 +249,8 @@ class AggregateCollector {
     PercentileAggregate getPercentileAggregate(long captureTime) {
         return ImmutablePercentileAggregate.builder()
                 .captureTime(captureTime)
-                .totalDurationNanos(totalDurationNanos)
-                .transactionCount(transactionCount)
+                .totalDurationNanos(getTotalDurationNanos())
+                .transactionCount(getTransactionCount())
                 .durationNanosHistogram(durationNanosHistogram.toProto(new ScratchBuffer()))
                 .build();
     }
@@ -235,8 +258,8 @@ class AggregateCollector {
     ThroughputAggregate getThroughputAggregate(long captureTime) {
         return ImmutableThroughputAggregate.builder()
                 .captureTime(captureTime)
-                .transactionCount(transactionCount)
-                .errorCount(errorCount)
+                .transactionCount(getTransactionCount())
+                .errorCount(getErrorCount())
                 .build();
     }
 
@@ -272,92 +295,152 @@ class AggregateCollector {
         }
     }
 
-    private static class RootTimerCollectorImpl implements RootTimerCollector {
+    private double getTotalDurationNanos() {
+        return slab.get(slot, TOTAL_DURATION_NANOS);
+    }
 
-        List<MutableAggregateTimer> rootMutableTimers = Lists.newArrayList();
+    private long getTransactionCount() {
+        return (long) slab.get(slot, TRANSACTION_COUNT);
+    }
 
-        @Override
-        public void mergeRootTimer(CommonTimerImpl rootTimer) {
-            mergeRootTimer(rootTimer, rootMutableTimers);
+    private long getErrorCount() {
+        return (long) slab.get(slot, ERROR_COUNT);
+    }
+
+    private boolean isAsyncTransactions() {
+        return slab.get(slot, ASYNC_TRANSACTIONS) != 0;
+    }
+
+    private boolean isThreadStatsNA(int threadStatsOffset) {
+        if (slab.get(slot, threadStatsOffset + ThreadStatsOffsets.PRESENT) == 0) {
+            return true;
         }
+        return NotAvailableAware.isNA(getThreadStat(threadStatsOffset,
+                ThreadStatsOffsets.TOTAL_CPU_NANOS))
+                && NotAvailableAware.isNA(getThreadStat(threadStatsOffset,
+                        ThreadStatsOffsets.TOTAL_BLOCKED_MILLIS))
+                && NotAvailableAware.isNA(getThreadStat(threadStatsOffset,
+                        ThreadStatsOffsets.TOTAL_WAITED_MILLIS))
+                && NotAvailableAware.isNA(getThreadStat(threadStatsOffset,
+                        ThreadStatsOffsets.TOTAL_ALLOCATED_BYTES));
+    }
 
-        private List<Aggregate.Timer> toProto() {
-            List<Aggregate.Timer> rootTimers = Lists.newArrayList();
-            for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
-                rootTimers.add(rootMutableTimer.toProto());
-            }
+    private Aggregate.ThreadStats getThreadStatsProto(int threadStatsOffset) {
+        double totalCpuNanos =
+                getThreadStat(threadStatsOffset, ThreadStatsOffsets.TOTAL_CPU_NANOS);
+        double totalBlockedMillis =
+                getThreadStat(threadStatsOffset, ThreadStatsOffsets.TOTAL_BLOCKED_MILLIS);
+        double totalWaitedMillis =
+                getThreadStat(threadStatsOffset, ThreadStatsOffsets.TOTAL_WAITED_MILLIS);
+        double totalAllocatedBytes =
+                getThreadStat(threadStatsOffset, ThreadStatsOffsets.TOTAL_ALLOCATED_BYTES);
+        Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
+        if (!NotAvailableAware.isNA(totalCpuNanos)) {
+            builder.setTotalCpuNanos(toProto(totalCpuNanos));
+        }
+        if (!NotAvailableAware.isNA(totalBlockedMillis)) {
+            builder.setTotalBlockedNanos(toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND));
+        }
+        if (!NotAvailableAware.isNA(totalWaitedMillis)) {
+            builder.setTotalWaitedNanos(toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND));
+        }
+        if (!NotAvailableAware.isNA(totalAllocatedBytes)) {
+            builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes));
+        }
+        return builder.build();
+    }
+
+    private double getThreadStat(int threadStatsOffset, int threadStatOffset) {
+        return slab.get(slot, threadStatsOffset + threadStatOffset);
+    }
+
+    private static OptionalDouble toProto(double value) {
+        return OptionalDouble.newBuilder().setValue(value).build();
+    }
+
+    private static List<Aggregate.Timer> toProto(
+            @Nullable List<MutableAggregateTimer> rootMutableTimers) {
+        List<Aggregate.Timer> rootTimers = Lists.newArrayList();
+        if (rootMutableTimers == null) {
             return rootTimers;
         }
+        for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
+            rootTimers.add(rootMutableTimer.toProto());
+        }
+        return rootTimers;
+    }
 
-        private static void mergeRootTimer(CommonTimerImpl toBeMergedRootTimer,
-                List<MutableAggregateTimer> rootTimers) {
-            for (MutableAggregateTimer rootTimer : rootTimers) {
-                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
-                        && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
-                    rootTimer.merge(toBeMergedRootTimer);
-                    return;
+    private static void mergeRootTimer(CommonTimerImpl toBeMergedRootTimer,
+            List<MutableAggregateTimer> rootTimers) {
+        for (MutableAggregateTimer rootTimer : rootTimers) {
+            if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                    && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                rootTimer.merge(toBeMergedRootTimer);
+                return;
+            }
+        }
+        MutableAggregateTimer rootTimer = MutableAggregateTimer.createRootTimer(
+                toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+        rootTimer.merge(toBeMergedRootTimer);
+        rootTimers.add(rootTimer);
+    }
+
+    // merges aux thread or async root timers, this is short-lived (created per transaction), so
+    // that the root timer lists are only instantiated once a root timer is merged
+    private class RootTimerCollectorImpl implements RootTimerCollector {
+
+        private final boolean async;
+
+        private RootTimerCollectorImpl(boolean async) {
+            this.async = async;
+        }
+
+        @Override
+        public void mergeRootTimer(CommonTimerImpl rootTimer) {
+            List<MutableAggregateTimer> rootTimers;
+            if (async) {
+                if (asyncTimers == null) {
+                    asyncTimers = Lists.newArrayListWithCapacity(1);
                 }
+                rootTimers = asyncTimers;
+            } else {
+                if (auxThreadRootTimers == null) {
+                    auxThreadRootTimers = Lists.newArrayListWithCapacity(1);
+                }
+                rootTimers = auxThreadRootTimers;
             }
-            MutableAggregateTimer rootTimer = MutableAggregateTimer.createRootTimer(
-                    toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
-            rootTimer.merge(toBeMergedRootTimer);
-            rootTimers.add(rootTimer);
+            AggregateCollector.mergeRootTimer(rootTimer, rootTimers);
         }
     }
 
-    private static class ThreadStatsCollectorImpl implements ThreadStatsCollector {
+    // merges thread stats into the slab, this is short-lived (created per transaction)
+    private class SlabThreadStatsCollector implements ThreadStatsCollector {
 
-        // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
-        private double totalCpuNanos;
-        private double totalBlockedMillis;
-        private double totalWaitedMillis;
-        private double totalAllocatedBytes;
+        private final int threadStatsOffset;
+        private final int weight;
 
-        private boolean empty = true;
+        private SlabThreadStatsCollector(int threadStatsOffset, int weight) {
+            this.threadStatsOffset = threadStatsOffset;
+            this.weight = weight;
+        }
 
         @Override
         public void mergeThreadStats(ThreadStats threadStats) {
-            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.getTotalCpuNanos());
-            totalBlockedMillis =
-                    NotAvailableAware.add(totalBlockedMillis, threadStats.getTotalBlockedMillis());
-            totalWaitedMillis =
-                    NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
-            totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
-                    threadStats.getTotalAllocatedBytes());
-            empty = false;
-        }
-
-        private boolean isNA() {
-            if (empty) {
-                return true;
-            }
-            return NotAvailableAware.isNA(totalCpuNanos)
-                    && NotAvailableAware.isNA(totalBlockedMillis)
-                    && NotAvailableAware.isNA(totalWaitedMillis)
-                    && NotAvailableAware.isNA(totalAllocatedBytes);
+            merge(ThreadStatsOffsets.TOTAL_CPU_NANOS, threadStats.getTotalCpuNanos());
+            merge(ThreadStatsOffsets.TOTAL_BLOCKED_MILLIS, threadStats.getTotalBlockedMillis());
+            merge(ThreadStatsOffsets.TOTAL_WAITED_MILLIS, threadStats.getTotalWaitedMillis());
+            merge(ThreadStatsOffsets.TOTAL_ALLOCATED_BYTES, threadStats.getTotalAllocatedBytes());
+            slab.set(slot, threadStatsOffset + ThreadStatsOffsets.PRESENT, 1);
         }
 
-        public Aggregate.ThreadStats toProto() {
-            Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
-            if (!NotAvailableAware.isNA(totalCpuNanos)) {
-                builder.setTotalCpuNanos(toProto(totalCpuNanos));
-            }
-            if (!NotAvailableAware.isNA(totalBlockedMillis)) {
-                builder.setTotalBlockedNanos(
-                        toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND));
-            }
-            if (!NotAvailableAware.isNA(totalWaitedMillis)) {
-                builder.setTotalWaitedNanos(
-                        toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND));
-            }
-            if (!NotAvailableAware.isNA(totalAllocatedBytes)) {
-                builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes));
-            }
-            return builder.build();
+        private void merge(int threadStatOffset, long value) {
+            int offset = threadStatsOffset + threadStatOffset;
+            slab.set(slot, offset, NotAvailableAware.add(slab.get(slot, offset),
+                    scale(value)));
         }
 
-        private static OptionalDouble toProto(double value) {
-            return OptionalDouble.newBuilder().setValue(value).build();
+        private double scale(long value) {
+            return NotAvailableAware.isNA(value) ? NotAvailableAware.NA : (double) value * weight;
         }
     }
 }
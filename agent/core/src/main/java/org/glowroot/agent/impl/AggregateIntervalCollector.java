@@ -52,20 +52,26 @@ public class AggregateIntervalCollector {
     private final int maxAggregateTransactionsType;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
+    private final int compactHistogramPrecisionBits;
     private final Clock clock;
 
     @GuardedBy("lock")
     private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // non-null once the interval has ended and been serialized, at which point typeCollectors is
+    // cleared to release memory, and this is used instead for both flushing and live reads
+    @GuardedBy("lock")
+    private @Nullable SerializedAggregates serializedAggregates;
 
     private final Object lock = new Object();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsType, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType, Clock clock) {
+            int maxAggregateServiceCallsPerType, int compactHistogramPrecisionBits, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
         this.maxAggregateTransactionsType = maxAggregateTransactionsType;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        this.compactHistogramPrecisionBits = compactHistogramPrecisionBits;
         this.clock = clock;
     }
 
@@ -83,6 +89,10 @@ public class AggregateIntervalCollector {
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeOverallSummaryInto(collector, transactionType);
+                return;
+            }
             IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
             if (typeCollector == null) {
                 return;
@@ -94,6 +104,10 @@ public class AggregateIntervalCollector {
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeTransactionSummariesInto(collector, transactionType);
+                return;
+            }
             IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
             if (typeCollector == null) {
                 return;
@@ -108,6 +122,10 @@ public class AggregateIntervalCollector {
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeOverallErrorSummaryInto(collector, transactionType);
+                return;
+            }
             IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
             if (typeCollector == null) {
                 return;
@@ -119,6 +137,11 @@ public class AggregateIntervalCollector {
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeTransactionErrorSummariesInto(collector,
+                        transactionType);
+                return;
+            }
             IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
             if (typeCollector == null) {
                 return;
@@ -133,44 +156,56 @@ public class AggregateIntervalCollector {
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                return serializedAggregates.getOverviewAggregate(transactionType, transactionName,
+                        getLiveCaptureTime());
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+            return aggregateCollector.getOverviewAggregate(getLiveCaptureTime());
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                return serializedAggregates.getPercentileAggregate(transactionType, transactionName,
+                        getLiveCaptureTime());
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+            return aggregateCollector.getPercentileAggregate(getLiveCaptureTime());
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                return serializedAggregates.getThroughputAggregate(transactionType, transactionName,
+                        getLiveCaptureTime());
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+            return aggregateCollector.getThroughputAggregate(getLiveCaptureTime());
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                return serializedAggregates.getFullQueryText(fullQueryTextSha1);
+            }
             for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
                 String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
                 if (fullQueryText != null) {
@@ -184,6 +219,10 @@ public class AggregateIntervalCollector {
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeQueriesInto(collector, transactionType, transactionName);
+                return;
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
@@ -196,6 +235,11 @@ public class AggregateIntervalCollector {
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeServiceCallsInto(collector, transactionType,
+                        transactionName);
+                return;
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
@@ -208,6 +252,11 @@ public class AggregateIntervalCollector {
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeMainThreadProfilesInto(collector, transactionType,
+                        transactionName);
+                return;
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
@@ -220,6 +269,11 @@ public class AggregateIntervalCollector {
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
         synchronized (lock) {
+            if (serializedAggregates != null) {
+                serializedAggregates.mergeAuxThreadProfilesInto(collector, transactionType,
+                        transactionName);
+                return;
+            }
             AggregateCollector aggregateCollector =
                     getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
@@ -229,6 +283,14 @@ public class AggregateIntervalCollector {
         }
     }
 
+    // called once the interval has ended (no more transactions will be added), so that the
+    // serialization can run in parallel with flushing of prior intervals
+    void serialize() {
+        synchronized (lock) {
+            getOrCreateSerializedAggregates();
+        }
+    }
+
     void flush(Collector collector) throws Exception {
         collector.collectAggregates(new AggregatesImpl(captureTime));
     }
@@ -236,7 +298,41 @@ public class AggregateIntervalCollector {
     void clear() {
         synchronized (lock) {
             typeCollectors.clear();
+            serializedAggregates = null;
+        }
+    }
+
+    // must be called under lock
+    private SerializedAggregates getOrCreateSerializedAggregates() {
+        if (serializedAggregates != null) {
+            return serializedAggregates;
+        }
+        SerializedAggregates.Builder builder = new SerializedAggregates.Builder();
+        SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+            IntervalTypeCollector intervalTypeCollector = e.getValue();
+            Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
+                    .build(sharedQueryTextCollector, scratchBuffer);
+            builder.addOverallAggregate(e.getKey(),
+                    sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                    overallAggregate);
+            for (Entry<String, AggregateCollector> f : intervalTypeCollector
+                    .transactionAggregateCollectors.entrySet()) {
+                Aggregate transactionAggregate =
+                        f.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                builder.addTransactionAggregate(f.getKey(),
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        transactionAggregate);
+            }
         }
+        serializedAggregates = builder.build();
+        typeCollectors.clear();
+        return serializedAggregates;
+    }
+
+    private long getLiveCaptureTime() {
+        return Math.min(captureTime, clock.currentTimeMillis());
     }
 
     private IntervalTypeCollector getTypeCollector(String transactionType) {
@@ -264,13 +360,15 @@ public class AggregateIntervalCollector {
 
     private class IntervalTypeCollector {
 
+        private final AggregateSlab slab = new AggregateSlab();
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
 
         private IntervalTypeCollector() {
-            overallAggregateCollector = new AggregateCollector(null, maxAggregateQueriesPerType,
-                    maxAggregateServiceCallsPerType);
+            overallAggregateCollector = new AggregateCollector(null, slab,
+                    maxAggregateQueriesPerType, maxAggregateServiceCallsPerType,
+                    compactHistogramPrecisionBits);
         }
 
         private void add(Transaction transaction) {
@@ -295,19 +393,25 @@ public class AggregateIntervalCollector {
 
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                    transactionName, slab, maxAggregateQueriesPerType,
+                    maxAggregateServiceCallsPerType, compactHistogramPrecisionBits);
             transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
             return transactionAggregateCollector;
         }
 
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
             aggregateCollector.add(transaction);
-            aggregateCollector.getMainThreadRootTimers()
-                    .mergeRootTimer(transaction.getMainThreadRootTimer());
+            aggregateCollector.mergeMainThreadRootTimer(transaction.getMainThreadRootTimer());
             transaction.mergeAuxThreadTimersInto(aggregateCollector.getAuxThreadRootTimers());
             transaction.mergeAsyncTimersInto(aggregateCollector.getAsyncTimers());
-            transaction.mergeQueriesInto(aggregateCollector.getQueryCollector());
-            transaction.mergeServiceCallsInto(aggregateCollector.getServiceCallCollector());
+            // query and service call collectors are only instantiated when needed, since many
+            // transaction names never have any
+            if (transaction.hasQueries()) {
+                transaction.mergeQueriesInto(aggregateCollector.getQueryCollector());
+            }
+            if (transaction.hasServiceCalls()) {
+                transaction.mergeServiceCallsInto(aggregateCollector.getServiceCallCollector());
+            }
             Profile mainThreadProfile = transaction.getMainThreadProfile();
             if (mainThreadProfile != null) {
                 aggregateCollector.mergeMainThreadProfile(mainThreadProfile);
@@ -348,27 +452,13 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+            SerializedAggregates serializedAggregates;
             synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
-                    }
-                }
+                serializedAggregates = getOrCreateSerializedAggregates();
             }
+            // the serialized aggregates are immutable, so the lock is not held while visiting,
+            // which can be slow (e.g. sending to the central collector)
+            serializedAggregates.accept(aggregateVisitor);
         }
     }
 }
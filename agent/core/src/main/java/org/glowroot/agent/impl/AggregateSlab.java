@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+// fixed layout primitive slots for the scalar values of the aggregate collectors of an interval
+// (one slot per aggregate collector), so that high cardinality transaction names do not each
+// require their own thread stats collector objects, etc
+//
+// slots are allocated in chunks, instead of a single growable array, so that growing does not copy
+// prior slots and does not over-allocate by more than one chunk
+//
+// the first chunk starts small and is grown (by copying) up to the full chunk size, so that
+// transaction types with only a few transaction names do not each allocate a full chunk
+//
+// chunks are not re-used across intervals, since the UI can still read from an interval after it
+// has been flushed
+//
+// must be used under an appropriate lock
+class AggregateSlab {
+
+    static final int TOTAL_DURATION_NANOS = 0;
+    static final int TRANSACTION_COUNT = 1;
+    static final int ERROR_COUNT = 2;
+    // 1 if any of the transactions were async, otherwise 0
+    static final int ASYNC_TRANSACTIONS = 3;
+    static final int MAIN_THREAD_STATS = 4;
+    static final int AUX_THREAD_STATS = 4 + ThreadStatsOffsets.SIZE;
+
+    private static final int SLOT_SIZE = 4 + 2 * ThreadStatsOffsets.SIZE;
+
+    private static final int SLOTS_PER_CHUNK = 64;
+
+    // enough for the overall aggregate collector plus one transaction aggregate collector
+    private static final int INITIAL_SLOTS = 2;
+
+    // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover, and
+    // counts are stored as double too, which is exact up to 2^53
+    private final List<double[]> chunks = Lists.newArrayList();
+    private int slotCount;
+
+    int allocateSlot() {
+        int slot = slotCount++;
+        if (slot == 0) {
+            chunks.add(new double[INITIAL_SLOTS * SLOT_SIZE]);
+        } else if (slot < SLOTS_PER_CHUNK) {
+            double[] firstChunk = chunks.get(0);
+            if (slot * SLOT_SIZE == firstChunk.length) {
+                chunks.set(0, Arrays.copyOf(firstChunk,
+                        Math.min(2 * slot, SLOTS_PER_CHUNK) * SLOT_SIZE));
+            }
+        } else if (slot % SLOTS_PER_CHUNK == 0) {
+            chunks.add(new double[SLOTS_PER_CHUNK * SLOT_SIZE]);
+        }
+        return slot;
+    }
+
+    double get(int slot, int offset) {
+        return chunks.get(slot / SLOTS_PER_CHUNK)[index(slot, offset)];
+    }
+
+    void set(int slot, int offset, double value) {
+        chunks.get(slot / SLOTS_PER_CHUNK)[index(slot, offset)] = value;
+    }
+
+    void add(int slot, int offset, double value) {
+        chunks.get(slot / SLOTS_PER_CHUNK)[index(slot, offset)] += value;
+    }
+
+    private static int index(int slot, int offset) {
+        return (slot % SLOTS_PER_CHUNK) * SLOT_SIZE + offset;
+    }
+
+    // relative to MAIN_THREAD_STATS or AUX_THREAD_STATS
+    static class ThreadStatsOffsets {
+
+        // 1 once thread stats have been merged, otherwise 0
+        static final int PRESENT = 0;
+        static final int TOTAL_CPU_NANOS = 1;
+        static final int TOTAL_BLOCKED_MILLIS = 2;
+        static final int TOTAL_WAITED_MILLIS = 3;
+        static final int TOTAL_ALLOCATED_BYTES = 4;
+
+        private static final int SIZE = 5;
+
+        private ThreadStatsOffsets() {}
+    }
+}
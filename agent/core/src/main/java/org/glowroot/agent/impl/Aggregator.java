@@ -18,10 +18,12 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -37,7 +39,7 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class Aggregator {
+public class Aggregator implements AggregatorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
@@ -51,6 +53,10 @@ public class Aggregator {
             Lists.newCopyOnWriteArrayList();
 
     private final ExecutorService processingExecutor;
+    // serializing and flushing are separate stages so that serializing an interval that has just
+    // ended runs in parallel with flushing of prior intervals (e.g. when the central collector is
+    // slow), and pending intervals are held in the (compact) serialized form
+    private final ExecutorService serializingExecutor;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
     private final ConfigService configService;
@@ -69,23 +75,36 @@ public class Aggregator {
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushLatencyMillis = new AtomicLong();
+    private volatile long lastFlushLatencyMillis;
+
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, clock, Executors
+                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Serializing")));
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            Clock clock, ExecutorService serializingExecutor) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        this.serializingExecutor = serializingExecutor;
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
         activeIntervalCollector =
                 new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
                         configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
                         configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(),
+                        configService.getAdvancedConfig().compactHistogramPrecisionBits(), clock);
         processingExecutor.execute(new TransactionProcessor());
     }
 
@@ -102,10 +121,34 @@ public class Aggregator {
         return intervalCollectors;
     }
 
+    long getAggregateIntervalMillis() {
+        return aggregateIntervalMillis;
+    }
+
     public void clearInMemoryAggregate() {
         activeIntervalCollector.clear();
     }
 
+    @Override
+    public int getPendingIntervalCount() {
+        return pendingIntervalCollectors.size();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public long getLastFlushLatencyMillis() {
+        return lastFlushLatencyMillis;
+    }
+
+    @Override
+    public long getTotalFlushLatencyMillis() {
+        return totalFlushLatencyMillis.get();
+    }
+
     long add(Transaction transaction) {
         // this synchronized block is to ensure traces are placed into processing queue in the
         // order of captureTime (so that queue reader can assume if captureTime indicates time to
@@ -152,6 +195,10 @@ public class Aggregator {
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        serializingExecutor.shutdown();
+        if (!serializingExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -204,7 +251,8 @@ public class Aggregator {
                         pendingTransaction.captureTime, aggregateIntervalMillis,
                         configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
                         configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(),
+                        configService.getAdvancedConfig().compactHistogramPrecisionBits(), clock);
             }
             activeIntervalCollector.add(transaction);
         }
@@ -230,7 +278,8 @@ public class Aggregator {
                         aggregateIntervalMillis,
                         configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
                         configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(),
+                        configService.getAdvancedConfig().compactHistogramPrecisionBits(), clock);
             }
         }
 
@@ -241,23 +290,43 @@ public class Aggregator {
                 return;
             }
             final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
+            final long intervalEndTime = clock.currentTimeMillis();
             pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
+            // serialize and flush in separate threads to avoid pending transactions from piling up
+            // quickly
+            serializingExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        intervalCollector.flush(collector);
+                        intervalCollector.serialize();
                     } catch (Throwable t) {
                         logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
                     }
+                    flushingExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                intervalCollector.flush(collector);
+                            } catch (Throwable t) {
+                                logger.error(t.getMessage(), t);
+                            } finally {
+                                pendingIntervalCollectors.remove(intervalCollector);
+                                recordFlushLatency(intervalEndTime);
+                            }
+                        }
+                    });
                 }
             });
         }
     }
 
+    private void recordFlushLatency(long intervalEndTime) {
+        long flushLatencyMillis = clock.currentTimeMillis() - intervalEndTime;
+        lastFlushLatencyMillis = flushLatencyMillis;
+        totalFlushLatencyMillis.addAndGet(flushLatencyMillis);
+        flushCount.getAndIncrement();
+    }
+
     private static class PendingTransaction {
 
         private final @Nullable Transaction transaction; // only null for head
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.impl.Transaction.RootTimerCollector;
+import org.glowroot.agent.model.AsyncTimerImpl;
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.CommonTimerImpl.TimerImplSnapshot;
+import org.glowroot.agent.model.ImmutableTimerImplSnapshot;
+import org.glowroot.agent.model.MutableAggregateTimer;
+import org.glowroot.agent.model.MutableTraceTimer;
+
+// the async timers of a transaction, which can be started by many threads at the same time (e.g.
+// reactive frameworks), so this is lock-free and striped by thread to reduce contention
+//
+// completed async timers are periodically folded into aggregates (per timer name) to conserve
+// memory, and readers retry if this happens while they are reading (falling back to the state as of
+// the last completed compaction if the retries are exhausted), see Stripe.mergeInto()
+class AsyncTimerCollection {
+
+    private static final int STRIPE_COUNT = getStripeCount();
+
+    // this is just to conserve memory
+    private static final int COMPACTION_THRESHOLD = 100;
+
+    // compaction is short, so this is only exhausted if the compacting thread is stalled
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    // stripes are created lazily, since most async transactions only start async timers from a
+    // few threads
+    private final AtomicReferenceArray<Stripe> stripes =
+            new AtomicReferenceArray<Stripe>(STRIPE_COUNT);
+
+    void add(AsyncTimerImpl asyncTimer) {
+        int index = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe());
+            stripe = stripes.get(index);
+        }
+        stripe.add(asyncTimer);
+    }
+
+    void mergeInto(RootTimerCollector rootTimers) {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                stripe.mergeInto(rootTimers);
+            }
+        }
+    }
+
+    private static int getStripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        // power of two so that stripe index can be computed using bit mask
+        return Math.min(Integer.highestOneBit(Math.max(processors, 1)) * 2, 16);
+    }
+
+    private static class Stripe {
+
+        // lock-free stack of async timers (linked via AsyncTimerImpl.nextAsyncTimer)
+        private final AtomicReference</*@Nullable*/ AsyncTimerImpl> head =
+                new AtomicReference</*@Nullable*/ AsyncTimerImpl>();
+
+        // approximate number of async timers in the stack
+        private final AtomicInteger size = new AtomicInteger();
+
+        // raised when many async timers are still active after compaction, so that adding each
+        // additional async timer doesn't trigger another (mostly futile) compaction
+        private volatile int compactionThreshold = COMPACTION_THRESHOLD;
+
+        // odd while compaction is in progress
+        private final AtomicInteger version = new AtomicInteger();
+
+        // replaced (never mutated) by compaction, so that readers do not need to lock
+        private volatile CompactedState compacted =
+                new CompactedState(ImmutableMap.<String, SimpleTimerImpl>of(),
+                        ImmutableList.<AsyncTimerImpl>of());
+
+        private void add(AsyncTimerImpl asyncTimer) {
+            push(asyncTimer, asyncTimer);
+            if (size.incrementAndGet() >= compactionThreshold) {
+                compactIfNotAlreadyCompacting();
+            }
+        }
+
+        private void push(AsyncTimerImpl first, AsyncTimerImpl last) {
+            AsyncTimerImpl currHead;
+            do {
+                currHead = head.get();
+                last.setNextAsyncTimer(currHead);
+            } while (!head.compareAndSet(currHead, first));
+        }
+
+        private void compactIfNotAlreadyCompacting() {
+            int currVersion = version.get();
+            if ((currVersion & 1) != 0 || !version.compareAndSet(currVersion, currVersion + 1)) {
+                // another thread is compacting
+                return;
+            }
+            try {
+                compact();
+            } finally {
+                version.set(currVersion + 2);
+            }
+        }
+
+        private void compact() {
+            AsyncTimerImpl curr = head.getAndSet(null);
+            Map<String, AggregateAsyncTimer> newAggregates = Maps.newHashMap();
+            for (SimpleTimerImpl aggregate : compacted.aggregates.values()) {
+                AggregateAsyncTimer aggregateAsyncTimer = new AggregateAsyncTimer();
+                aggregateAsyncTimer.totalNanos = aggregate.totalNanos;
+                aggregateAsyncTimer.count = aggregate.count;
+                newAggregates.put(aggregate.name, aggregateAsyncTimer);
+            }
+            AsyncTimerImpl activeHead = null;
+            AsyncTimerImpl activeTail = null;
+            ImmutableList.Builder<AsyncTimerImpl> activeTimers = ImmutableList.builder();
+            int activeCount = 0;
+            int foldedCount = 0;
+            while (curr != null) {
+                AsyncTimerImpl next = curr.getNextAsyncTimer();
+                if (curr.active()) {
+                    if (activeTail == null) {
+                        activeHead = curr;
+                    } else {
+                        activeTail.setNextAsyncTimer(curr);
+                    }
+                    activeTail = curr;
+                    activeTimers.add(curr);
+                    activeCount++;
+                } else {
+                    AggregateAsyncTimer aggregateAsyncTimer = newAggregates.get(curr.getName());
+                    if (aggregateAsyncTimer == null) {
+                        aggregateAsyncTimer = new AggregateAsyncTimer();
+                        newAggregates.put(curr.getName(), aggregateAsyncTimer);
+                    }
+                    aggregateAsyncTimer.totalNanos += curr.getTotalNanos();
+                    aggregateAsyncTimer.count += curr.getCount();
+                    foldedCount++;
+                }
+                curr = next;
+            }
+            if (activeHead != null && activeTail != null) {
+                push(activeHead, activeTail);
+            }
+            ImmutableMap.Builder<String, SimpleTimerImpl> builder = ImmutableMap.builder();
+            for (Map.Entry<String, AggregateAsyncTimer> entry : newAggregates.entrySet()) {
+                AggregateAsyncTimer value = entry.getValue();
+                builder.put(entry.getKey(),
+                        new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
+            }
+            compacted = new CompactedState(builder.build(), activeTimers.build());
+            size.addAndGet(-foldedCount);
+            compactionThreshold = Math.max(COMPACTION_THRESHOLD, 2 * activeCount);
+        }
+
+        private void mergeInto(RootTimerCollector rootTimers) {
+            List<CommonTimerImpl> timers = Lists.newArrayList();
+            for (int i = 0; i < MAX_READ_ATTEMPTS; i++) {
+                int currVersion = version.get();
+                if ((currVersion & 1) == 0 && collect(timers, currVersion)) {
+                    mergeInto(rootTimers, timers);
+                    return;
+                }
+                // compaction is in progress, which is short
+                timers.clear();
+                Thread.yield();
+            }
+            // the compacting thread is stalled, so fall back to the state as of the last completed
+            // compaction (missing only the async timers started since then), instead of spinning
+            // until the compacting thread is scheduled again
+            CompactedState compacted = this.compacted;
+            timers.addAll(compacted.activeTimers);
+            timers.addAll(compacted.aggregates.values());
+            mergeInto(rootTimers, timers);
+        }
+
+        // returns false if compaction occurred while collecting
+        private boolean collect(List<CommonTimerImpl> timers, int currVersion) {
+            AsyncTimerImpl curr = head.get();
+            int count = 0;
+            while (curr != null) {
+                timers.add(curr);
+                curr = curr.getNextAsyncTimer();
+                // compaction re-links the stack, so check periodically to avoid following links
+                // indefinitely
+                if (++count % 1024 == 0 && version.get() != currVersion) {
+                    return false;
+                }
+            }
+            timers.addAll(compacted.aggregates.values());
+            return version.get() == currVersion;
+        }
+
+        private static void mergeInto(RootTimerCollector rootTimers,
+                List<CommonTimerImpl> timers) {
+            for (CommonTimerImpl timer : timers) {
+                rootTimers.mergeRootTimer(timer);
+            }
+        }
+    }
+
+    private static class CompactedState {
+
+        private final ImmutableMap<String, SimpleTimerImpl> aggregates;
+        // async timers that were still active at the end of the compaction
+        private final ImmutableList<AsyncTimerImpl> activeTimers;
+
+        private CompactedState(ImmutableMap<String, SimpleTimerImpl> aggregates,
+                ImmutableList<AsyncTimerImpl> activeTimers) {
+            this.aggregates = aggregates;
+            this.activeTimers = activeTimers;
+        }
+    }
+
+    private static class AggregateAsyncTimer {
+
+        private long totalNanos;
+        private long count;
+    }
+
+    private static class SimpleTimerImpl implements CommonTimerImpl {
+
+        private final String name;
+        private final long totalNanos;
+        private final long count;
+
+        private SimpleTimerImpl(String name, long totalNanos, long count) {
+            this.name = name;
+            this.totalNanos = totalNanos;
+            this.count = count;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isExtended() {
+            return false;
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void mergeChildTimersInto(List<MutableTraceTimer> childTimers) {
+            // async timers have no child timers
+        }
+
+        @Override
+        public void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers) {
+            // async timers have no child timers
+        }
+
+        @Override
+        public TimerImplSnapshot getSnapshot() {
+            return ImmutableTimerImplSnapshot.builder()
+                    .totalNanos(totalNanos)
+                    .count(count)
+                    .active(false)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+
+import org.glowroot.agent.impl.Transaction.RootTimerCollector;
+import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
+import org.glowroot.agent.model.CommonTimerImpl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// the aux thread contexts of a transaction, which are added (and merged) by the transaction's
+// threads while holding the transaction's lock (see Transaction.startAuxThreadContext()), but are
+// read without locking, so that capturing traces, aggregates and thread stats from other threads
+// does not block transaction threads that are starting aux thread contexts
+//
+// aux thread contexts are appended in place (the element is written before the volatile size),
+// and a new snapshot is published when the array is full or when completed aux thread contexts
+// are merged, so that readers always see a consistent set of aux thread contexts and already
+// merged timers and thread stats
+class AuxThreadContextCollection implements Iterable<ThreadContextImpl> {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private volatile Snapshot snapshot = new Snapshot(new ThreadContextImpl[INITIAL_CAPACITY], 0,
+            MergedAuxThreadContexts.EMPTY);
+
+    // limit exceeded aux thread contexts (see Transaction.startAuxThreadContext()) are only kept
+    // here until they complete, and can be many at the same time, so this is not copy-on-write
+    private volatile @MonotonicNonNull Set<ThreadContextImpl> unmergedLimitExceeded;
+
+    // must be called under the transaction's lock
+    int size() {
+        return snapshot.size;
+    }
+
+    // must be called under the transaction's lock
+    void add(ThreadContextImpl auxThreadContext) {
+        Snapshot snapshot = this.snapshot;
+        int size = snapshot.size;
+        if (size == snapshot.auxThreadContexts.length) {
+            snapshot = new Snapshot(Arrays.copyOf(snapshot.auxThreadContexts, size * 2), size,
+                    snapshot.merged);
+            this.snapshot = snapshot;
+        }
+        snapshot.auxThreadContexts[size] = auxThreadContext;
+        snapshot.size = size + 1;
+    }
+
+    // must be called under the transaction's lock
+    void addLimitExceeded(ThreadContextImpl auxThreadContext) {
+        Set<ThreadContextImpl> unmergedLimitExceeded = this.unmergedLimitExceeded;
+        if (unmergedLimitExceeded == null) {
+            unmergedLimitExceeded = Sets.newConcurrentHashSet();
+            this.unmergedLimitExceeded = unmergedLimitExceeded;
+        }
+        unmergedLimitExceeded.add(auxThreadContext);
+    }
+
+    // must be called under the transaction's lock
+    //
+    // the limit exceeded aux thread context is added to its new place before it is removed from
+    // the unmerged limit exceeded aux thread contexts, so a concurrent reader may briefly count it
+    // twice, but will never miss it
+    void mergeLimitExceeded(ThreadContextImpl auxThreadContext) {
+        if (auxThreadContext.hasTraceEntries()) {
+            add(auxThreadContext);
+        } else {
+            Snapshot snapshot = this.snapshot;
+            this.snapshot = new Snapshot(snapshot.auxThreadContexts, snapshot.size,
+                    snapshot.merged.plus(ImmutableList.of(auxThreadContext)));
+        }
+        checkNotNull(unmergedLimitExceeded).remove(auxThreadContext);
+    }
+
+    // must be called under the transaction's lock
+    //
+    // returns false (without merging) if less than 10% of the aux thread contexts can be merged
+    boolean mergeCompleteAndEmpty() {
+        Snapshot snapshot = this.snapshot;
+        List<ThreadContextImpl> mergeableAuxThreadContexts = Lists.newArrayList();
+        ThreadContextImpl[] nonMergeableAuxThreadContexts =
+                new ThreadContextImpl[snapshot.auxThreadContexts.length];
+        int nonMergeableSize = 0;
+        for (int i = 0; i < snapshot.size; i++) {
+            ThreadContextImpl auxThreadContext = snapshot.auxThreadContexts[i];
+            if (auxThreadContext.isCompleteAndEmptyExceptForTimersAndThreadStats()) {
+                mergeableAuxThreadContexts.add(auxThreadContext);
+            } else {
+                nonMergeableAuxThreadContexts[nonMergeableSize++] = auxThreadContext;
+            }
+        }
+        if (mergeableAuxThreadContexts.size() < 0.1 * snapshot.size) {
+            return false;
+        }
+        this.snapshot = new Snapshot(nonMergeableAuxThreadContexts, nonMergeableSize,
+                snapshot.merged.plus(mergeableAuxThreadContexts));
+        return true;
+    }
+
+    // iterates over the (non-merged) aux thread contexts, not including limit exceeded aux thread
+    // contexts
+    @Override
+    public Iterator<ThreadContextImpl> iterator() {
+        return snapshot.iterator();
+    }
+
+    void mergeRootTimersInto(RootTimerCollector rootTimers) {
+        Snapshot snapshot = this.snapshot;
+        for (ThreadContextImpl auxThreadContext : snapshot) {
+            rootTimers.mergeRootTimer(auxThreadContext.getRootTimer());
+        }
+        RootTimerCollectorImpl mergedRootTimers = snapshot.merged.rootTimers;
+        if (mergedRootTimers != null) {
+            for (CommonTimerImpl rootTimer : mergedRootTimers.getRootTimers()) {
+                rootTimers.mergeRootTimer(rootTimer);
+            }
+        }
+        Set<ThreadContextImpl> unmergedLimitExceeded = this.unmergedLimitExceeded;
+        if (unmergedLimitExceeded != null) {
+            for (ThreadContextImpl auxThreadContext : unmergedLimitExceeded) {
+                rootTimers.mergeRootTimer(auxThreadContext.getRootTimer());
+            }
+        }
+    }
+
+    void mergeThreadStatsInto(ThreadStatsCollector threadStats) {
+        Snapshot snapshot = this.snapshot;
+        for (ThreadContextImpl auxThreadContext : snapshot) {
+            threadStats.mergeThreadStats(auxThreadContext.getThreadStats());
+        }
+        ThreadStatsCollectorImpl mergedThreadStats = snapshot.merged.threadStats;
+        if (mergedThreadStats != null) {
+            threadStats.mergeThreadStats(mergedThreadStats.getMergedThreadStats());
+        }
+        Set<ThreadContextImpl> unmergedLimitExceeded = this.unmergedLimitExceeded;
+        if (unmergedLimitExceeded != null) {
+            for (ThreadContextImpl auxThreadContext : unmergedLimitExceeded) {
+                threadStats.mergeThreadStats(auxThreadContext.getThreadStats());
+            }
+        }
+    }
+
+    private static class Snapshot implements Iterable<ThreadContextImpl> {
+
+        private final ThreadContextImpl[] auxThreadContexts;
+        private volatile int size;
+
+        private final MergedAuxThreadContexts merged;
+
+        private Snapshot(ThreadContextImpl[] auxThreadContexts, int size,
+                MergedAuxThreadContexts merged) {
+            this.auxThreadContexts = auxThreadContexts;
+            this.size = size;
+            this.merged = merged;
+        }
+
+        @Override
+        public Iterator<ThreadContextImpl> iterator() {
+            final int size = this.size;
+            return new Iterator<ThreadContextImpl>() {
+
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public ThreadContextImpl next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return auxThreadContexts[index++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    // the timers and thread stats of aux thread contexts that have been merged away, this is
+    // copied (never mutated) once published so that it can be read without locking
+    private static class MergedAuxThreadContexts {
+
+        private static final MergedAuxThreadContexts EMPTY =
+                new MergedAuxThreadContexts(null, null);
+
+        private final @Nullable RootTimerCollectorImpl rootTimers;
+        private final @Nullable ThreadStatsCollectorImpl threadStats;
+
+        private MergedAuxThreadContexts(@Nullable RootTimerCollectorImpl rootTimers,
+                @Nullable ThreadStatsCollectorImpl threadStats) {
+            this.rootTimers = rootTimers;
+            this.threadStats = threadStats;
+        }
+
+        private MergedAuxThreadContexts plus(List<ThreadContextImpl> auxThreadContexts) {
+            RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+            ThreadStatsCollectorImpl threadStats = new ThreadStatsCollectorImpl();
+            if (this.rootTimers != null) {
+                for (CommonTimerImpl rootTimer : this.rootTimers.getRootTimers()) {
+                    rootTimers.mergeRootTimer(rootTimer);
+                }
+            }
+            if (this.threadStats != null) {
+                threadStats.mergeThreadStats(this.threadStats.getMergedThreadStats());
+            }
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                rootTimers.mergeRootTimer(auxThreadContext.getRootTimer());
+                threadStats.mergeThreadStats(auxThreadContext.getThreadStats());
+            }
+            return new MergedAuxThreadContexts(rootTimers, threadStats);
+        }
+    }
+}
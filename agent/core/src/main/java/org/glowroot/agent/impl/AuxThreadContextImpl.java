@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.model.ThreadStatsComponent;
 import org.glowroot.agent.plugin.api.AuxThreadContext;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -87,6 +88,45 @@ class AuxThreadContextImpl implements AuxThreadContext {
         return start(true);
     }
 
+    @Override
+    public TraceEntry startLazily() {
+        Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder =
+                transactionRegistry.getCurrentThreadContextHolder();
+        if (threadContextHolder.get() != null) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
+        Holder</*@Nullable*/ PendingAuxThreadContext> pendingHolder =
+                transactionRegistry.getPendingAuxThreadContextHolder();
+        if (pendingHolder.get() != null) {
+            // same as above, this thread is already executing on behalf of the transaction
+            return NopTransactionService.TRACE_ENTRY;
+        }
+        PendingAuxThreadContext pending = new PendingAuxThreadContext(this,
+                transactionService.getTicker().read(),
+                transactionService.createAuxThreadStatsComponent(transaction),
+                threadContextHolder, pendingHolder);
+        pendingHolder.set(pending);
+        return pending;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    @Nullable
+    MessageSupplier getServletMessageSupplier() {
+        return servletMessageSupplier;
+    }
+
+    // used for hand-offs from a lazily started auxiliary thread context that has not actually been
+    // started yet, which has no trace entries of its own, so the new auxiliary thread context is
+    // attached to the same parent
+    AuxThreadContextImpl createSibling() {
+        return new AuxThreadContextImpl(transaction, parentTraceEntry,
+                parentThreadContextPriorEntry, servletMessageSupplier, locationStackTrace,
+                transactionRegistry, transactionService);
+    }
+
     private TraceEntry start(boolean completeAsyncTransaction) {
         Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder =
                 transactionRegistry.getCurrentThreadContextHolder();
@@ -97,12 +137,29 @@ class AuxThreadContextImpl implements AuxThreadContext {
             }
             return NopTransactionService.TRACE_ENTRY;
         }
-        context = transactionService.startAuxThreadContextInternal(transaction, parentTraceEntry,
-                parentThreadContextPriorEntry, servletMessageSupplier, threadContextHolder);
+        context = start(transactionService.getTicker().read(),
+                transactionService.createAuxThreadStatsComponent(transaction),
+                threadContextHolder);
         if (context == null) {
             // transaction is already complete or auxiliary thread context limit exceeded
             return NopTransactionService.TRACE_ENTRY;
         }
+        if (completeAsyncTransaction) {
+            context.setTransactionAsyncComplete();
+        }
+        return context.getRootEntry();
+    }
+
+    // returns null if transaction is already complete or auxiliary thread context limit exceeded
+    @Nullable
+    ThreadContextImpl start(long startTick, @Nullable ThreadStatsComponent threadStatsComponent,
+            Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
+        ThreadContextImpl context = transactionService.startAuxThreadContextInternal(transaction,
+                parentTraceEntry, parentThreadContextPriorEntry, servletMessageSupplier, startTick,
+                threadStatsComponent, threadContextHolder);
+        if (context == null) {
+            return null;
+        }
         if (logger.isDebugEnabled()
                 && !Thread.currentThread().getName().startsWith("Glowroot-GRPC-")
                 && inAuxDebugLogging.get() == null) {
@@ -116,14 +173,10 @@ class AuxThreadContextImpl implements AuxThreadContext {
                 inAuxDebugLogging.remove();
             }
         }
-        if (completeAsyncTransaction) {
-            context.setTransactionAsyncComplete();
-        }
-        TraceEntryImpl rootEntry = context.getRootEntry();
         if (locationStackTrace != null) {
-            rootEntry.setLocationStackTrace(locationStackTrace);
+            context.getRootEntry().setLocationStackTrace(locationStackTrace);
         }
-        return rootEntry;
+        return context;
     }
 
     private static Object getThreadContextDisplay(@Nullable TraceEntryImpl parentTraceEntry) {
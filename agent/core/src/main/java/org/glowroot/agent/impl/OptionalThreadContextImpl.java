@@ -50,9 +50,15 @@ public class OptionalThreadContextImpl implements ThreadContextPlus {
     private final TransactionServiceImpl transactionService;
     private final Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder;
 
+    // this is only called when there is no current thread context, so it also picks up any lazily
+    // started auxiliary thread context (see AuxThreadContext.startLazily())
     @UsedByGeneratedBytecode
-    public static OptionalThreadContextImpl create(TransactionServiceImpl transactionService,
+    public static ThreadContextPlus create(TransactionServiceImpl transactionService,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
+        ThreadContextPlus pendingAuxThreadContext = transactionService.getPendingAuxThreadContext();
+        if (pendingAuxThreadContext != null) {
+            return pendingAuxThreadContext;
+        }
         return new OptionalThreadContextImpl(transactionService, threadContextHolder);
     }
 
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.glowroot.agent.model.ThreadContextPlus;
+import org.glowroot.agent.model.ThreadStatsComponent;
+import org.glowroot.agent.plugin.api.AsyncQueryEntry;
+import org.glowroot.agent.plugin.api.AsyncTraceEntry;
+import org.glowroot.agent.plugin.api.AuxThreadContext;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.Timer;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.internal.NopTransactionService;
+import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopAuxThreadContext;
+import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
+
+// auxiliary thread context that has been started lazily (see AuxThreadContext.startLazily()), but
+// that is only actually started (and becomes part of the transaction) once something is recorded on
+// the thread, so that the many tiny tasks that do not record anything have very little overhead
+//
+// until then, this is the thread context that is passed to advice on this thread (see
+// TransactionRegistry.getPendingAuxThreadContext()), and this is also the trace entry returned
+// from startLazily()
+class PendingAuxThreadContext implements ThreadContextPlus, TraceEntry {
+
+    private final AuxThreadContextImpl auxThreadContext;
+    private final long startTick;
+    // thread stats baseline is captured when the task starts, same as the start tick, so that the
+    // thread stats cover the whole task and not just from the first thing recorded
+    private final @Nullable ThreadStatsComponent threadStatsComponent;
+
+    private final Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder;
+    private final Holder</*@Nullable*/ PendingAuxThreadContext> pendingHolder;
+
+    // only accessed by the thread context's thread
+    private boolean started;
+    // null if not started yet, or if transaction was already complete or auxiliary thread context
+    // limit exceeded when starting
+    private @Nullable ThreadContextImpl threadContext;
+
+    private int currentNestingGroupId;
+    private int currentSuppressionKeyId;
+
+    PendingAuxThreadContext(AuxThreadContextImpl auxThreadContext, long startTick,
+            @Nullable ThreadStatsComponent threadStatsComponent,
+            Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder,
+            Holder</*@Nullable*/ PendingAuxThreadContext> pendingHolder) {
+        this.auxThreadContext = auxThreadContext;
+        this.startTick = startTick;
+        this.threadStatsComponent = threadStatsComponent;
+        this.threadContextHolder = threadContextHolder;
+        this.pendingHolder = pendingHolder;
+    }
+
+    Transaction getTransaction() {
+        return auxThreadContext.getTransaction();
+    }
+
+    private @Nullable ThreadContextImpl start() {
+        if (!started) {
+            started = true;
+            // using the original start tick so that the auxiliary thread timer covers the whole
+            // task, and not just from the first thing recorded
+            threadContext =
+                    auxThreadContext.start(startTick, threadStatsComponent, threadContextHolder);
+            if (threadContext != null) {
+                threadContext.setCurrentNestingGroupId(currentNestingGroupId);
+                threadContext.setCurrentSuppressionKeyId(currentSuppressionKeyId);
+            }
+        }
+        return threadContext;
+    }
+
+    private void clearPending() {
+        if (pendingHolder.get() == this) {
+            pendingHolder.set(null);
+        }
+    }
+
+    @Override
+    public TraceEntry startTransaction(String transactionType, String transactionName,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
+        return threadContext.startTransaction(transactionType, transactionName, messageSupplier,
+                timerName);
+    }
+
+    @Override
+    public TraceEntry startTraceEntry(MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
+        return threadContext.startTraceEntry(messageSupplier, timerName);
+    }
+
+    @Override
+    public AsyncTraceEntry startAsyncTraceEntry(MessageSupplier messageSupplier,
+            TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.ASYNC_TRACE_ENTRY;
+        }
+        return threadContext.startAsyncTraceEntry(messageSupplier, timerName);
+    }
+
+    @Override
+    public QueryEntry startQueryEntry(String queryType, String queryText,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.QUERY_ENTRY;
+        }
+        return threadContext.startQueryEntry(queryType, queryText, queryMessageSupplier, timerName);
+    }
+
+    @Override
+    public QueryEntry startQueryEntry(String queryType, String queryText, long queryExecutionCount,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.QUERY_ENTRY;
+        }
+        return threadContext.startQueryEntry(queryType, queryText, queryExecutionCount,
+                queryMessageSupplier, timerName);
+    }
+
+    @Override
+    public AsyncQueryEntry startAsyncQueryEntry(String queryType, String queryText,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.ASYNC_QUERY_ENTRY;
+        }
+        return threadContext.startAsyncQueryEntry(queryType, queryText, queryMessageSupplier,
+                timerName);
+    }
+
+    @Override
+    public TraceEntry startServiceCallEntry(String serviceCallType, String serviceCallText,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
+        return threadContext.startServiceCallEntry(serviceCallType, serviceCallText,
+                messageSupplier, timerName);
+    }
+
+    @Override
+    public AsyncTraceEntry startAsyncServiceCallEntry(String serviceCallType,
+            String serviceCallText, MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTransactionService.ASYNC_TRACE_ENTRY;
+        }
+        return threadContext.startAsyncServiceCallEntry(serviceCallType, serviceCallText,
+                messageSupplier, timerName);
+    }
+
+    @Override
+    public Timer startTimer(TimerName timerName) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext == null) {
+            return NopTimer.INSTANCE;
+        }
+        return threadContext.startTimer(timerName);
+    }
+
+    @Override
+    public AuxThreadContext createAuxThreadContext() {
+        if (started) {
+            // this is only reachable from advice that was already in progress when this was started
+            return threadContext == null ? NopAuxThreadContext.INSTANCE
+                    : threadContext.createAuxThreadContext();
+        }
+        // propagating does not need to start this auxiliary thread context
+        return auxThreadContext.createSibling();
+    }
+
+    @Override
+    public void setTransactionAsync() {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionAsync();
+        }
+    }
+
+    @Override
+    public void setTransactionAsyncComplete() {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionAsyncComplete();
+        }
+    }
+
+    @Override
+    public void setTransactionOuter() {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionOuter();
+        }
+    }
+
+    @Override
+    public void setTransactionType(@Nullable String transactionType, int priority) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionType(transactionType, priority);
+        }
+    }
+
+    @Override
+    public void setTransactionName(@Nullable String transactionName, int priority) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionName(transactionName, priority);
+        }
+    }
+
+    @Override
+    public void setTransactionUser(@Nullable String user, int priority) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionUser(user, priority);
+        }
+    }
+
+    @Override
+    public void addTransactionAttribute(String name, @Nullable String value) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.addTransactionAttribute(name, value);
+        }
+    }
+
+    @Override
+    public void setTransactionSlowThreshold(long threshold, TimeUnit unit, int priority) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionSlowThreshold(threshold, unit, priority);
+        }
+    }
+
+    @Override
+    public void setTransactionError(Throwable t) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionError(t);
+        }
+    }
+
+    @Override
+    public void setTransactionError(@Nullable String message) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionError(message);
+        }
+    }
+
+    @Override
+    public void setTransactionError(@Nullable String message, @Nullable Throwable t) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setTransactionError(message, t);
+        }
+    }
+
+    @Override
+    public void addErrorEntry(Throwable t) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.addErrorEntry(t);
+        }
+    }
+
+    @Override
+    public void addErrorEntry(@Nullable String message) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.addErrorEntry(message);
+        }
+    }
+
+    @Override
+    public void addErrorEntry(@Nullable String message, Throwable t) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.addErrorEntry(message, t);
+        }
+    }
+
+    @Override
+    public @Nullable MessageSupplier getServletMessageSupplier() {
+        if (threadContext != null) {
+            return threadContext.getServletMessageSupplier();
+        }
+        return auxThreadContext.getServletMessageSupplier();
+    }
+
+    @Override
+    public void setServletMessageSupplier(@Nullable MessageSupplier messageSupplier) {
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.setServletMessageSupplier(messageSupplier);
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void setAsyncTransaction() {
+        setTransactionAsync();
+    }
+
+    @Override
+    @Deprecated
+    public void completeAsyncTransaction() {
+        setTransactionAsyncComplete();
+    }
+
+    @Override
+    @Deprecated
+    public void setOuterTransaction() {
+        setTransactionOuter();
+    }
+
+    @Override
+    public int getCurrentNestingGroupId() {
+        if (threadContext != null) {
+            return threadContext.getCurrentNestingGroupId();
+        }
+        return currentNestingGroupId;
+    }
+
+    @Override
+    public void setCurrentNestingGroupId(int nestingGroupId) {
+        if (threadContext != null) {
+            threadContext.setCurrentNestingGroupId(nestingGroupId);
+        } else {
+            currentNestingGroupId = nestingGroupId;
+        }
+    }
+
+    @Override
+    public int getCurrentSuppressionKeyId() {
+        if (threadContext != null) {
+            return threadContext.getCurrentSuppressionKeyId();
+        }
+        return currentSuppressionKeyId;
+    }
+
+    @Override
+    public void setCurrentSuppressionKeyId(int suppressionKeyId) {
+        if (threadContext != null) {
+            threadContext.setCurrentSuppressionKeyId(suppressionKeyId);
+        } else {
+            currentSuppressionKeyId = suppressionKeyId;
+        }
+    }
+
+    // ========== TraceEntry (returned from AuxThreadContext.startLazily()) ==========
+
+    @Override
+    public void end() {
+        clearPending();
+        if (threadContext != null) {
+            threadContext.getRootEntry().end();
+        }
+    }
+
+    @Override
+    public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
+        clearPending();
+        if (threadContext != null) {
+            threadContext.getRootEntry().endWithLocationStackTrace(threshold, unit);
+        }
+    }
+
+    @Override
+    public void endWithStackTrace(long threshold, TimeUnit unit) {
+        clearPending();
+        if (threadContext != null) {
+            threadContext.getRootEntry().endWithStackTrace(threshold, unit);
+        }
+    }
+
+    @Override
+    public void endWithError(Throwable t) {
+        // the error is recorded on the auxiliary thread context, so it needs to be started
+        clearPending();
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.getRootEntry().endWithError(t);
+        }
+    }
+
+    @Override
+    public void endWithError(@Nullable String message) {
+        clearPending();
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.getRootEntry().endWithError(message);
+        }
+    }
+
+    @Override
+    public void endWithError(@Nullable String message, Throwable t) {
+        clearPending();
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.getRootEntry().endWithError(message, t);
+        }
+    }
+
+    @Override
+    public void endWithInfo(Throwable t) {
+        clearPending();
+        ThreadContextImpl threadContext = start();
+        if (threadContext != null) {
+            threadContext.getRootEntry().endWithInfo(t);
+        }
+    }
+
+    @Override
+    public Timer extend() {
+        if (threadContext != null) {
+            return threadContext.getRootEntry().extend();
+        }
+        return NopTimer.INSTANCE;
+    }
+
+    @Override
+    public @Nullable Object getMessageSupplier() {
+        if (threadContext != null) {
+            return threadContext.getRootEntry().getMessageSupplier();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.live.ImmutableOverviewAggregate;
+import org.glowroot.common.live.ImmutablePercentileAggregate;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.OverallErrorSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.ProfileCollector;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+import org.glowroot.common.model.TransactionErrorSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// the aggregates of an interval that has ended, in serialized protobuf form, which is much more
+// compact than the aggregate collectors, and which can be sent to the collector (including retries)
+// without holding the aggregate interval collector lock
+//
+// the summary values are kept outside of the serialized form, since they are needed for every
+// transaction name when the UI reads the transaction summaries of a pending interval
+//
+// immutable, so thread safe
+class SerializedAggregates {
+
+    // in order of shared query text index
+    private final ImmutableList<String> sharedQueryTexts;
+    // sha1 of each shared query text that is truncated when stored (null otherwise), in order of
+    // shared query text index
+    private final /*@Nullable*/ String[] sharedQueryTextSha1s;
+    // full text of each shared query text that is truncated when stored, by sha1
+    private final ImmutableMap<String, String> fullQueryTexts;
+    private final Map<String, SerializedTypeAggregates> typeAggregates;
+
+    private SerializedAggregates(List<String> sharedQueryTexts,
+            Map<String, SerializedTypeAggregates> typeAggregates) {
+        this.sharedQueryTexts = ImmutableList.copyOf(sharedQueryTexts);
+        this.typeAggregates = typeAggregates;
+        // computed once here (on the serializing thread) instead of on every lookup
+        sharedQueryTextSha1s = new String[sharedQueryTexts.size()];
+        Map<String, String> fullQueryTexts = Maps.newHashMap();
+        for (int i = 0; i < sharedQueryTexts.size(); i++) {
+            String sharedQueryText = sharedQueryTexts.get(i);
+            if (sharedQueryText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                String sha1 = Hashing.sha1().hashString(sharedQueryText, Charsets.UTF_8).toString();
+                sharedQueryTextSha1s[i] = sha1;
+                fullQueryTexts.put(sha1, sharedQueryText);
+            }
+        }
+        this.fullQueryTexts = ImmutableMap.copyOf(fullQueryTexts);
+    }
+
+    void accept(AggregateVisitor aggregateVisitor) throws Exception {
+        int sharedQueryTextIndex = 0;
+        for (Entry<String, SerializedTypeAggregates> e : typeAggregates.entrySet()) {
+            String transactionType = e.getKey();
+            SerializedTypeAggregates serializedTypeAggregates = e.getValue();
+            SerializedAggregate overallAggregate = serializedTypeAggregates.overallAggregate;
+            aggregateVisitor.visitOverallAggregate(transactionType,
+                    getNewSharedQueryTexts(sharedQueryTextIndex, overallAggregate),
+                    overallAggregate.parse());
+            sharedQueryTextIndex += overallAggregate.newSharedQueryTextCount;
+            for (Entry<String, SerializedAggregate> f : serializedTypeAggregates
+                    .transactionAggregates.entrySet()) {
+                SerializedAggregate transactionAggregate = f.getValue();
+                aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
+                        getNewSharedQueryTexts(sharedQueryTextIndex, transactionAggregate),
+                        transactionAggregate.parse());
+                sharedQueryTextIndex += transactionAggregate.newSharedQueryTextCount;
+            }
+        }
+    }
+
+    void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
+        SerializedTypeAggregates serializedTypeAggregates = typeAggregates.get(transactionType);
+        if (serializedTypeAggregates == null) {
+            return;
+        }
+        SerializedAggregate overallAggregate = serializedTypeAggregates.overallAggregate;
+        collector.mergeSummary(overallAggregate.totalDurationNanos,
+                overallAggregate.transactionCount, 0);
+    }
+
+    void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
+            String transactionType) {
+        SerializedTypeAggregates serializedTypeAggregates = typeAggregates.get(transactionType);
+        if (serializedTypeAggregates == null) {
+            return;
+        }
+        for (Entry<String, SerializedAggregate> entry : serializedTypeAggregates
+                .transactionAggregates.entrySet()) {
+            SerializedAggregate transactionAggregate = entry.getValue();
+            collector.collect(entry.getKey(), transactionAggregate.totalDurationNanos,
+                    transactionAggregate.transactionCount, 0);
+        }
+    }
+
+    void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
+            String transactionType) {
+        SerializedTypeAggregates serializedTypeAggregates = typeAggregates.get(transactionType);
+        if (serializedTypeAggregates == null) {
+            return;
+        }
+        SerializedAggregate overallAggregate = serializedTypeAggregates.overallAggregate;
+        collector.mergeErrorSummary(overallAggregate.errorCount,
+                overallAggregate.transactionCount, 0);
+    }
+
+    void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
+            String transactionType) {
+        SerializedTypeAggregates serializedTypeAggregates = typeAggregates.get(transactionType);
+        if (serializedTypeAggregates == null) {
+            return;
+        }
+        for (Entry<String, SerializedAggregate> entry : serializedTypeAggregates
+                .transactionAggregates.entrySet()) {
+            SerializedAggregate transactionAggregate = entry.getValue();
+            if (transactionAggregate.errorCount != 0) {
+                collector.collect(entry.getKey(), transactionAggregate.errorCount,
+                        transactionAggregate.transactionCount, 0);
+            }
+        }
+    }
+
+    @Nullable
+    OverviewAggregate getOverviewAggregate(String transactionType,
+            @Nullable String transactionName, long liveCaptureTime) {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return null;
+        }
+        Aggregate aggregate = serializedAggregate.parse();
+        ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
+                .captureTime(liveCaptureTime)
+                .totalDurationNanos(aggregate.getTotalDurationNanos())
+                .transactionCount(aggregate.getTransactionCount())
+                .asyncTransactions(aggregate.getAsyncTransactions())
+                .mainThreadRootTimers(aggregate.getMainThreadRootTimerList())
+                .auxThreadRootTimers(aggregate.getAuxThreadRootTimerList())
+                .asyncTimers(aggregate.getAsyncTimerList());
+        if (aggregate.hasMainThreadStats()) {
+            builder.mainThreadStats(aggregate.getMainThreadStats());
+        }
+        if (aggregate.hasAuxThreadStats()) {
+            builder.auxThreadStats(aggregate.getAuxThreadStats());
+        }
+        return builder.build();
+    }
+
+    @Nullable
+    PercentileAggregate getPercentileAggregate(String transactionType,
+            @Nullable String transactionName, long liveCaptureTime) {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return null;
+        }
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(liveCaptureTime)
+                .totalDurationNanos(serializedAggregate.totalDurationNanos)
+                .transactionCount(serializedAggregate.transactionCount)
+                .durationNanosHistogram(serializedAggregate.parse().getDurationNanosHistogram())
+                .build();
+    }
+
+    @Nullable
+    ThroughputAggregate getThroughputAggregate(String transactionType,
+            @Nullable String transactionName, long liveCaptureTime) {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return null;
+        }
+        return ImmutableThroughputAggregate.builder()
+                .captureTime(liveCaptureTime)
+                .transactionCount(serializedAggregate.transactionCount)
+                .errorCount(serializedAggregate.errorCount)
+                .build();
+    }
+
+    @Nullable
+    String getFullQueryText(String fullQueryTextSha1) {
+        return fullQueryTexts.get(fullQueryTextSha1);
+    }
+
+    void mergeQueriesInto(QueryCollector collector, String transactionType,
+            @Nullable String transactionName) throws IOException {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return;
+        }
+        for (Aggregate.QueriesByType queriesByType : serializedAggregate.parse()
+                .getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                int sharedQueryTextIndex = query.getSharedQueryTextIndex();
+                String fullQueryText = sharedQueryTexts.get(sharedQueryTextIndex);
+                String fullQueryTextSha1 = sharedQueryTextSha1s[sharedQueryTextIndex];
+                String truncatedQueryText;
+                if (fullQueryTextSha1 == null) {
+                    truncatedQueryText = fullQueryText;
+                } else {
+                    truncatedQueryText =
+                            fullQueryText.substring(0, StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE);
+                }
+                collector.mergeQuery(queriesByType.getType(), truncatedQueryText,
+                        fullQueryTextSha1, query.getTotalDurationNanos(),
+                        query.getExecutionCount(), query.hasTotalRows(),
+                        query.getTotalRows().getValue());
+            }
+        }
+    }
+
+    void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
+            @Nullable String transactionName) throws IOException {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return;
+        }
+        collector.mergeServiceCalls(serializedAggregate.parse().getServiceCallsByTypeList());
+    }
+
+    void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
+            @Nullable String transactionName) {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return;
+        }
+        Aggregate aggregate = serializedAggregate.parse();
+        if (aggregate.hasMainThreadProfile()) {
+            collector.mergeProfile(aggregate.getMainThreadProfile());
+        }
+    }
+
+    void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
+            @Nullable String transactionName) {
+        SerializedAggregate serializedAggregate =
+                getSerializedAggregate(transactionType, transactionName);
+        if (serializedAggregate == null) {
+            return;
+        }
+        Aggregate aggregate = serializedAggregate.parse();
+        if (aggregate.hasAuxThreadProfile()) {
+            collector.mergeProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    private List<String> getNewSharedQueryTexts(int sharedQueryTextIndex,
+            SerializedAggregate serializedAggregate) {
+        return sharedQueryTexts.subList(sharedQueryTextIndex,
+                sharedQueryTextIndex + serializedAggregate.newSharedQueryTextCount);
+    }
+
+    private @Nullable SerializedAggregate getSerializedAggregate(String transactionType,
+            @Nullable String transactionName) {
+        SerializedTypeAggregates serializedTypeAggregates = typeAggregates.get(transactionType);
+        if (serializedTypeAggregates == null) {
+            return null;
+        }
+        if (transactionName == null) {
+            return serializedTypeAggregates.overallAggregate;
+        } else {
+            return serializedTypeAggregates.transactionAggregates.get(transactionName);
+        }
+    }
+
+    // must be used under the aggregate interval collector lock
+    static class Builder {
+
+        private final List<String> sharedQueryTexts = Lists.newArrayList();
+        // linked hash map to preserve the order that the aggregates were built in, which is needed
+        // for replaying the new shared query texts of each aggregate in accept()
+        private final Map<String, SerializedTypeAggregates> typeAggregates =
+                Maps.newLinkedHashMap();
+
+        private @Nullable SerializedTypeAggregates currTypeAggregates;
+
+        void addOverallAggregate(String transactionType, List<String> newSharedQueryTexts,
+                Aggregate overallAggregate) {
+            currTypeAggregates = new SerializedTypeAggregates(
+                    new SerializedAggregate(newSharedQueryTexts.size(), overallAggregate));
+            typeAggregates.put(transactionType, currTypeAggregates);
+            sharedQueryTexts.addAll(newSharedQueryTexts);
+        }
+
+        // must be called after addOverallAggregate() for the same transaction type
+        void addTransactionAggregate(String transactionName, List<String> newSharedQueryTexts,
+                Aggregate transactionAggregate) {
+            if (currTypeAggregates == null) {
+                throw new IllegalStateException("Overall aggregate must be added first");
+            }
+            currTypeAggregates.transactionAggregates.put(transactionName,
+                    new SerializedAggregate(newSharedQueryTexts.size(), transactionAggregate));
+            sharedQueryTexts.addAll(newSharedQueryTexts);
+        }
+
+        SerializedAggregates build() {
+            return new SerializedAggregates(sharedQueryTexts, typeAggregates);
+        }
+    }
+
+    private static class SerializedTypeAggregates {
+
+        private final SerializedAggregate overallAggregate;
+        private final Map<String, SerializedAggregate> transactionAggregates =
+                Maps.newLinkedHashMap();
+
+        private SerializedTypeAggregates(SerializedAggregate overallAggregate) {
+            this.overallAggregate = overallAggregate;
+        }
+    }
+
+    private static class SerializedAggregate {
+
+        private final int newSharedQueryTextCount;
+        private final double totalDurationNanos;
+        private final long transactionCount;
+        private final long errorCount;
+        private final byte[] bytes;
+
+        private SerializedAggregate(int newSharedQueryTextCount, Aggregate aggregate) {
+            this.newSharedQueryTextCount = newSharedQueryTextCount;
+            totalDurationNanos = aggregate.getTotalDurationNanos();
+            transactionCount = aggregate.getTransactionCount();
+            errorCount = aggregate.getErrorCount();
+            bytes = aggregate.toByteArray();
+        }
+
+        private Aggregate parse() {
+            try {
+                return Aggregate.parseFrom(bytes);
+            } catch (InvalidProtocolBufferException e) {
+                // bytes were produced by Aggregate.toByteArray() in the constructor
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
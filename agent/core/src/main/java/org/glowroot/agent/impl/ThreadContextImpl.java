@@ -54,7 +54,6 @@ import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
-import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.NotAvailableAware;
@@ -131,8 +130,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, MessageSupplier messageSupplier,
-            TimerName rootTimerName, long startTick, boolean captureThreadStats,
-            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            TimerName rootTimerName, long startTick,
+            @Nullable ThreadStatsComponent threadStatsComponent,
             boolean limitExceededAuxThreadContext, Ticker ticker,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder,
             @Nullable MessageSupplier servletMessageSupplier) {
@@ -144,8 +143,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        this.threadStatsComponent = threadStatsComponent;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
         this.ticker = ticker;
         this.threadContextHolder = threadContextHolder;
@@ -239,6 +237,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 && headQueryData == null && headServiceCallData == null;
     }
 
+    boolean hasQueries() {
+        return headQueryData != null;
+    }
+
+    boolean hasServiceCalls() {
+        return headServiceCallData != null;
+    }
+
     void mergeQueriesInto(QueryCollector queries) {
         QueryData curr = headQueryData;
         while (curr != null) {
@@ -613,6 +619,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
+        if (transaction.isCollapseTraceEntries()) {
+            // collapsed entries are not counted against the trace entry limit
+            TraceEntryImpl entry = traceEntryComponent.pushCollapsingEntry(startTick,
+                    queryMessageSupplier, timer, queryType, queryText, 1);
+            if (entry != null) {
+                return entry;
+            }
+        }
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
@@ -645,6 +659,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
+        if (transaction.isCollapseTraceEntries()) {
+            // collapsed entries are not counted against the trace entry limit
+            TraceEntryImpl entry = traceEntryComponent.pushCollapsingEntry(startTick,
+                    queryMessageSupplier, timer, queryType, queryText, queryExecutionCount);
+            if (entry != null) {
+                return entry;
+            }
+        }
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
@@ -711,6 +733,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
+        if (transaction.isCollapseTraceEntries()) {
+            // collapsed entries are not counted against the trace entry limit
+            TraceEntryImpl entry = traceEntryComponent.pushCollapsingEntry(startTick,
+                    messageSupplier, timer, serviceCallType, serviceCallText, 1);
+            if (entry != null) {
+                return entry;
+            }
+        }
         QueryData queryData =
                 getOrCreateServiceCallDataIfPossible(serviceCallType, serviceCallText);
         if (transaction.allowAnotherEntry()) {
@@ -985,8 +1015,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 entry = entry.getNextTraceEntry();
                 continue;
             }
-            if (!entryIsRoot) {
-                parentChildMap.put(parentTraceEntry, entry);
+            if (!entryIsRoot && parentTraceEntry != null) {
+                // the parent trace entry may not be captured (see TraceEntryImpl.setUncaptured())
+                parentChildMap.put(parentTraceEntry.getNearestCapturedEntry(), entry);
             }
             for (ThreadContextImpl auxThreadContext : priorEntryAuxThreadContextMap.get(entry)) {
                 TraceEntryImpl auxThreadRootEntry = auxThreadContext.getRootEntry();
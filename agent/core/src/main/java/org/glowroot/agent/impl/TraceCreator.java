@@ -46,20 +46,21 @@ public class TraceCreator {
                 transaction.isPartiallyStored()) {
             @Override
             public void accept(TraceVisitor traceVisitor) throws Exception {
-                createFullTrace(transaction, true, partial, captureTime, captureTick, traceVisitor);
+                createFullTrace(transaction, true, partial, captureTime, captureTick, 0,
+                        traceVisitor);
             }
         };
     }
 
     public static TraceReader createTraceReaderForCompleted(final Transaction transaction,
-            final boolean slow) {
+            final boolean slow, final double samplingWeight) {
         final boolean partial = false;
         return new TraceReaderImpl(transaction.getCaptureTime(), transaction.getTraceId(),
                 partial, transaction.isPartiallyStored()) {
             @Override
             public void accept(TraceVisitor traceVisitor) throws Exception {
                 createFullTrace(transaction, slow, partial, transaction.getCaptureTime(),
-                        transaction.getEndTick(), traceVisitor);
+                        transaction.getEndTick(), samplingWeight, traceVisitor);
             }
         };
     }
@@ -72,7 +73,7 @@ public class TraceCreator {
         long mainThreadProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxThreadProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
-        return createTraceHeader(transaction, true, true, captureTime, captureTick,
+        return createTraceHeader(transaction, true, true, captureTime, captureTick, 0,
                 entryVisitor.count, mainThreadProfileSampleCount, auxThreadProfileSampleCount);
     }
 
@@ -85,7 +86,7 @@ public class TraceCreator {
         long auxProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
         return createTraceHeader(transaction, true, false, transaction.getCaptureTime(),
-                transaction.getEndTick(), entryVisitor.count, mainProfileSampleCount,
+                transaction.getEndTick(), 0, entryVisitor.count, mainProfileSampleCount,
                 auxProfileSampleCount);
     }
 
@@ -103,7 +104,8 @@ public class TraceCreator {
     // *attempt* to present a picture of the trace at that exact tick
     // (without using synchronization to block updates to the trace while it is being read)
     private static void createFullTrace(Transaction transaction, boolean slow, boolean partial,
-            long captureTime, long captureTick, TraceVisitor traceVisitor) throws Exception {
+            long captureTime, long captureTick, double samplingWeight, TraceVisitor traceVisitor)
+            throws Exception {
         CountingEntryVisitorWrapper entryVisitorWrapper =
                 new CountingEntryVisitorWrapper(traceVisitor);
         transaction.accept(captureTick, entryVisitorWrapper);
@@ -123,14 +125,14 @@ public class TraceCreator {
         // auxThreadProfile can be gc'd at this point
 
         Trace.Header header = createTraceHeader(transaction, slow, partial, captureTime,
-                captureTick, entryVisitorWrapper.count, mainThreadProfileSampleCount,
-                auxThreadProfileSampleCount);
+                captureTick, samplingWeight, entryVisitorWrapper.count,
+                mainThreadProfileSampleCount, auxThreadProfileSampleCount);
         traceVisitor.visitHeader(header);
     }
 
     private static Trace.Header createTraceHeader(Transaction transaction, boolean slow,
-            boolean partial, long captureTime, long captureTick, int entryCount,
-            long mainProfileSampleCount, long auxProfileSampleCount) {
+            boolean partial, long captureTime, long captureTick, double samplingWeight,
+            int entryCount, long mainProfileSampleCount, long auxProfileSampleCount) {
         Trace.Header.Builder builder = Trace.Header.newBuilder();
         builder.setPartial(partial);
         builder.setSlow(slow);
@@ -185,6 +187,7 @@ public class TraceCreator {
         builder.setAuxThreadProfileSampleCount(auxProfileSampleCount);
         builder.setAuxThreadProfileSampleLimitExceeded(
                 transaction.isAuxThreadProfileSampleLimitExceeded());
+        builder.setSamplingWeight(samplingWeight);
         return builder.build();
     }
 
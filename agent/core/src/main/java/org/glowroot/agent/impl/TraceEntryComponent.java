@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -25,6 +25,8 @@ import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 // this supports updating by a single thread and reading by multiple threads
 class TraceEntryComponent {
 
@@ -73,6 +75,7 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
+        linkCollapsingEntry();
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
                 queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
         tailEntry.setNextTraceEntry(entry);
@@ -81,6 +84,32 @@ class TraceEntryComponent {
         return entry;
     }
 
+    // returns null if the query (or service call) cannot be collapsed into the tail entry, which is
+    // the case unless the tail entry is a completed sibling entry for the same query
+    //
+    // the returned entry is not linked into the list of trace entries, and when it ends it is
+    // collapsed into the tail entry (see popEntry() below), this keeps the tail entry unchanged so
+    // any number of consecutive executions can be collapsed into it
+    @Nullable
+    TraceEntryImpl pushCollapsingEntry(long startTick, Object messageSupplier,
+            TimerImpl syncTimer, String queryType, String queryText, long queryExecutionCount) {
+        TraceEntryImpl collapseInto = tailEntry;
+        if (collapseInto.getParentTraceEntry() != activeEntry) {
+            return null;
+        }
+        QueryData queryData =
+                collapseInto.getQueryDataIfCollapsible(messageSupplier, queryType, queryText,
+                        queryExecutionCount);
+        if (queryData == null) {
+            return null;
+        }
+        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
+                queryData, queryExecutionCount, startTick, syncTimer, null);
+        entry.setCollapseInto(collapseInto);
+        activeEntry = entry;
+        return entry;
+    }
+
     // typically pop() methods don't require the objects to pop, but for safety, the entry is
     // passed in just to make sure it is the one on top (and if not, then pop until it is found,
     // preventing any nasty bugs from a missed pop, e.g. an entry never being marked as complete)
@@ -89,6 +118,8 @@ class TraceEntryComponent {
         if (entry == rootEntry) {
             this.endTick = endTick;
             this.completed = true;
+        } else if (entry.getCollapseInto() != null) {
+            endCollapsingEntry(entry, endTick);
         }
     }
 
@@ -101,6 +132,7 @@ class TraceEntryComponent {
 
     TraceEntryImpl addErrorEntry(long startTick, long endTick, @Nullable Object messageSupplier,
             @Nullable QueryData queryData, ErrorMessage errorMessage) {
+        linkCollapsingEntry();
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
                 queryData, 1, startTick, null, null);
         entry.immediateEndAsErrorEntry(errorMessage, endTick);
@@ -110,7 +142,10 @@ class TraceEntryComponent {
     }
 
     TraceEntryImpl getActiveEntry() {
-        return activeEntry;
+        // the active entry may become the parent of auxiliary thread entries, so it needs to be
+        // linked into the list of trace entries
+        linkCollapsingEntry();
+        return activeEntry.getNearestCapturedEntry();
     }
 
     TraceEntryImpl getTailEntry() {
@@ -121,6 +156,49 @@ class TraceEntryComponent {
         return rootEntry == tailEntry;
     }
 
+    private void endCollapsingEntry(TraceEntryImpl entry, long endTick) {
+        TraceEntryImpl collapseInto = checkNotNull(entry.getCollapseInto());
+        entry.setCollapseInto(null);
+        ErrorMessage errorMessage = entry.getErrorMessage();
+        if (collapseInto == tailEntry && errorMessage == null && !entry.hasLocationStackTrace()) {
+            collapseInto.addCollapsedEntry(entry, endTick);
+            return;
+        }
+        // errors and location stack traces are specific to an execution, so the entry is kept as
+        // a separate entry after all, which is subject to the same limits as any other entry
+        Transaction transaction = threadContext.getTransaction();
+        if (errorMessage == null ? transaction.allowAnotherEntry()
+                : transaction.allowAnotherErrorEntry()) {
+            linkEntry(entry);
+        } else if (collapseInto == tailEntry) {
+            // over the limit, so at least count the execution in the collapsed entry
+            collapseInto.addCollapsedEntry(entry, endTick);
+        }
+    }
+
+    // only an active entry can still be collapsing, since pushing a child entry links it first
+    private void linkCollapsingEntry() {
+        if (activeEntry.getCollapseInto() != null) {
+            activeEntry.setCollapseInto(null);
+            // the entry is no longer collapsed, so it is subject to the same limits as any other
+            // entry
+            if (threadContext.getTransaction().allowAnotherEntry()) {
+                linkEntry(activeEntry);
+            } else {
+                // over the limit, so the entry is still tracked as the active entry (so that it is
+                // popped as usual), but it is not captured, similar to the dummy entries used when
+                // over the limit (see ThreadContextImpl), and its child entries are captured under
+                // its nearest captured ancestor instead
+                activeEntry.setUncaptured();
+            }
+        }
+    }
+
+    private void linkEntry(TraceEntryImpl entry) {
+        tailEntry.setNextTraceEntry(entry);
+        tailEntry = entry;
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry != entry) {
             // somehow(?) a pop was missed (or maybe too many pops), this is just damage control
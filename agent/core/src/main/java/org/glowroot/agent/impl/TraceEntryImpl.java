@@ -73,6 +73,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only null for trace entries added using addEntryEntry()
     private final @Nullable TimerImpl syncTimer;
     private final @Nullable AsyncTimerImpl asyncTimer;
+    private final long queryExecutionCount;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
 
@@ -81,6 +82,24 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only used by transaction thread
     private @MonotonicNonNull TimerImpl extendedTimer;
 
+    // non-null while this entry is not linked into the list of trace entries because it is being
+    // collapsed into a prior entry (see TraceEntryComponent.pushCollapsingEntry())
+    // only used by transaction thread
+    private @Nullable TraceEntryImpl collapseInto;
+    // set when this entry could not be linked into the list of trace entries after all due to the
+    // trace entry limit (see TraceEntryComponent.linkCollapsingEntry()), in which case it is still
+    // tracked as an active entry, but its children are captured under its nearest captured ancestor
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private boolean uncaptured;
+
+    // these fields are not volatile, so depends on memory barrier in Transaction for visibility
+    private long collapsedCount;
+    private long collapsedTotalDurationNanos;
+    private long collapsedMaxDurationNanos;
+    private long collapsedEndTick;
+    private boolean collapsedRowNavigationAttempted;
+    private long collapsedRowCount;
+
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
             long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
@@ -92,6 +111,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.startTick = startTick;
         this.syncTimer = syncTimer;
         this.asyncTimer = asyncTimer;
+        this.queryExecutionCount = queryExecutionCount;
         revisedStartTick = startTick;
         selfNestingLevel = 1;
         if (queryData != null) {
@@ -131,6 +151,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
                 .setStartOffsetNanos(offsetNanos)
                 .setDurationNanos(durationNanos)
                 .setActive(active);
+        if (collapsedCount != 0) {
+            // duration is the span from the start of the first execution to the end of the last
+            // execution, while the collapsed fields describe the individual executions
+            builder.setDurationNanos(Math.max(durationNanos, collapsedEndTick - revisedStartTick))
+                    .setCollapsedCount(collapsedCount + 1)
+                    .setCollapsedTotalDurationNanos(durationNanos + collapsedTotalDurationNanos)
+                    .setCollapsedMaxDurationNanos(
+                            Math.max(durationNanos, collapsedMaxDurationNanos));
+        }
 
         // async root entry always has empty message and empty detail
 
@@ -318,6 +347,68 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.nextTraceEntry = nextTraceEntry;
     }
 
+    @Nullable
+    TraceEntryImpl getCollapseInto() {
+        return collapseInto;
+    }
+
+    void setCollapseInto(@Nullable TraceEntryImpl collapseInto) {
+        this.collapseInto = collapseInto;
+    }
+
+    void setUncaptured() {
+        uncaptured = true;
+    }
+
+    // returns this entry, or its nearest captured ancestor if this entry is not captured (the root
+    // entry is always captured)
+    TraceEntryImpl getNearestCapturedEntry() {
+        TraceEntryImpl entry = this;
+        while (entry.uncaptured) {
+            entry = checkNotNull(entry.parentTraceEntry);
+        }
+        return entry;
+    }
+
+    // returns null if the query (or service call) cannot be collapsed into this entry, errors and
+    // location stack traces are specific to an execution, so entries with these are never collapsed
+    @Nullable
+    QueryData getQueryDataIfCollapsible(Object messageSupplier, String queryType,
+            String queryText, long queryExecutionCount) {
+        QueryData queryData = getQueryData();
+        if (queryData == null || !isCompleted() || isAsync() || errorMessage != null
+                || locationStackTrace != null) {
+            return null;
+        }
+        // batch executions are only collapsed with batches of the same size, since the collapsed
+        // entry is displayed with a single execution count
+        if (queryExecutionCount != this.queryExecutionCount) {
+            return null;
+        }
+        // query entries and service call entries can have the same type and text
+        if (messageSupplier instanceof QueryMessageSupplier
+                != this.messageSupplier instanceof QueryMessageSupplier) {
+            return null;
+        }
+        if (!queryData.getQueryType().equals(queryType)
+                || !queryData.getQueryText().equals(queryText)) {
+            return null;
+        }
+        return queryData;
+    }
+
+    void addCollapsedEntry(TraceEntryImpl entry, long endTick) {
+        long durationNanos = endTick - entry.getStartTick();
+        collapsedCount++;
+        collapsedTotalDurationNanos += durationNanos;
+        collapsedMaxDurationNanos = Math.max(collapsedMaxDurationNanos, durationNanos);
+        collapsedEndTick = endTick;
+        if (entry.isRowNavigationAttempted()) {
+            collapsedRowNavigationAttempted = true;
+            collapsedRowCount += entry.getRowCount();
+        }
+    }
+
     void immediateEndAsErrorEntry(ErrorMessage errorMessage, long endTick) {
         this.errorMessage = errorMessage;
         this.endTick = endTick;
@@ -408,10 +499,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     }
 
     private String getRowCountSuffix() {
-        if (!isRowNavigationAttempted()) {
+        boolean rowNavigationAttempted = isRowNavigationAttempted();
+        if (!rowNavigationAttempted && !collapsedRowNavigationAttempted) {
             return "";
         }
-        long rowCount = getRowCount();
+        // row counts of collapsed executions are summed
+        long rowCount = collapsedRowCount;
+        if (rowNavigationAttempted) {
+            rowCount += getRowCount();
+        }
         if (rowCount == 1) {
             return " => 1 row";
         } else {
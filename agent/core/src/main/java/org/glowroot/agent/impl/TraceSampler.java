@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// limits the rate of stored slow traces using a token bucket per transaction type and name, slow
+// traces over the limit are reservoir sampled within each aggregate interval and stored at the end
+// of the interval, with a sampling weight so that counts can be extrapolated
+//
+// decisions are made at transaction end, based on the final duration and error status, and error
+// traces bypass this (see TransactionCollector)
+//
+// only slow transactions reach this (and only when the rate is limited), so a single lock is ok
+//
+// transactions retain their memory estimate (see Transaction.retainEstimatedMemory()) while they
+// are held by this, since they retain their trace entries and profiles until they are drained
+class TraceSampler {
+
+    // bounds the number of transactions retained by reservoirs across all transaction names
+    private static final int MAX_RESERVOIR_TRANSACTIONS = 500;
+
+    // bounds the number of tracked transaction names, beyond which slow traces of other
+    // transaction names share a single state per transaction type
+    private static final int MAX_TRANSACTION_NAMES = 10000;
+
+    private final long aggregateIntervalMillis;
+    private final Random random;
+
+    @GuardedBy("this")
+    private final Map<String, Map<String, SamplingState>> states = Maps.newHashMap();
+    @GuardedBy("this")
+    private int transactionNameCount;
+    @GuardedBy("this")
+    private int reservoirTransactionCount;
+    // reservoirs from prior intervals that were replaced before being drained
+    @GuardedBy("this")
+    private final List<SampledTransaction> pendingDrain = Lists.newArrayList();
+
+    TraceSampler(long aggregateIntervalMillis, Random random) {
+        this.aggregateIntervalMillis = aggregateIntervalMillis;
+        this.random = random;
+    }
+
+    // returns the sampling weight to store the slow trace with immediately, or zero if the slow
+    // trace should not be stored immediately (it may still be stored at the end of the aggregate
+    // interval, see drain())
+    synchronized double sample(Transaction transaction, long captureTime,
+            int maxSlowTracesPerMinute, int reservoirSize) {
+        SamplingState state =
+                getState(transaction.getTransactionType(), transaction.getTransactionName());
+        state.refill(captureTime, maxSlowTracesPerMinute);
+        if (state.tokens >= 1) {
+            state.tokens--;
+            // this trace also represents the slow traces that were dropped (not reservoir sampled)
+            // since the prior stored trace
+            double samplingWeight = 1 + state.droppedCount;
+            state.droppedCount = 0;
+            return samplingWeight;
+        }
+        long intervalEnd = getIntervalEnd(captureTime);
+        if (state.reservoirIntervalEnd != intervalEnd) {
+            drainReservoir(state, pendingDrain);
+            state.reservoirIntervalEnd = intervalEnd;
+        }
+        List<Transaction> reservoir = state.reservoir;
+        if (reservoir.size() < reservoirSize
+                && reservoirTransactionCount < MAX_RESERVOIR_TRANSACTIONS) {
+            transaction.retainEstimatedMemory();
+            reservoir.add(transaction);
+            reservoirTransactionCount++;
+            state.overflowCount++;
+        } else if (reservoir.isEmpty()) {
+            state.droppedCount++;
+        } else {
+            // standard reservoir sampling (algorithm R)
+            state.overflowCount++;
+            long index = (long) (random.nextDouble() * state.overflowCount);
+            if (index < reservoir.size()) {
+                transaction.retainEstimatedMemory();
+                reservoir.set((int) index, transaction).releaseEstimatedMemory();
+            }
+        }
+        return 0;
+    }
+
+    // called when a slow trace that sample() returned a sampling weight for could not be stored
+    // after all (e.g. due to back pressure), so that its sampling weight is carried over to the
+    // next stored trace
+    synchronized void carryOver(Transaction transaction, double samplingWeight) {
+        SamplingState state =
+                getState(transaction.getTransactionType(), transaction.getTransactionName());
+        // sampling weights returned by sample() are whole numbers
+        state.droppedCount += (long) samplingWeight;
+    }
+
+    // returns the reservoir sampled transactions from aggregate intervals that have ended, and
+    // discards the state of transaction names that have not had slow traces recently
+    synchronized List<SampledTransaction> drain(long currentTime, int maxSlowTracesPerMinute) {
+        List<SampledTransaction> sampledTransactions = Lists.newArrayList(pendingDrain);
+        pendingDrain.clear();
+        for (Iterator<Map<String, SamplingState>> i = states.values().iterator(); i.hasNext();) {
+            Map<String, SamplingState> statesForType = i.next();
+            for (Iterator<SamplingState> j = statesForType.values().iterator(); j.hasNext();) {
+                SamplingState state = j.next();
+                if (state.reservoirIntervalEnd <= currentTime) {
+                    drainReservoir(state, sampledTransactions);
+                }
+                if (state.reservoir.isEmpty() && isIdle(state, currentTime,
+                        maxSlowTracesPerMinute)) {
+                    j.remove();
+                    transactionNameCount--;
+                }
+            }
+            if (statesForType.isEmpty()) {
+                i.remove();
+            }
+        }
+        for (SampledTransaction sampledTransaction : sampledTransactions) {
+            sampledTransaction.transaction.releaseEstimatedMemory();
+        }
+        return sampledTransactions;
+    }
+
+    private static boolean isIdle(SamplingState state, long currentTime,
+            int maxSlowTracesPerMinute) {
+        if (maxSlowTracesPerMinute == 0) {
+            // sampling has been disabled
+            return true;
+        }
+        state.refill(currentTime, maxSlowTracesPerMinute);
+        return state.droppedCount == 0 && state.tokens >= getCapacity(maxSlowTracesPerMinute);
+    }
+
+    private SamplingState getState(String transactionType, String transactionName) {
+        Map<String, SamplingState> statesForType = states.get(transactionType);
+        if (statesForType == null) {
+            statesForType = Maps.newHashMap();
+            states.put(transactionType, statesForType);
+        }
+        SamplingState state = statesForType.get(transactionName);
+        if (state == null) {
+            if (transactionNameCount >= MAX_TRANSACTION_NAMES) {
+                // empty string is never used as a transaction name
+                transactionName = "";
+                state = statesForType.get(transactionName);
+            }
+            if (state == null) {
+                state = new SamplingState();
+                statesForType.put(transactionName, state);
+                transactionNameCount++;
+            }
+        }
+        return state;
+    }
+
+    private void drainReservoir(SamplingState state, List<SampledTransaction> sampledTransactions) {
+        List<Transaction> reservoir = state.reservoir;
+        if (reservoir.isEmpty()) {
+            return;
+        }
+        double samplingWeight = state.overflowCount / (double) reservoir.size();
+        for (Transaction transaction : reservoir) {
+            sampledTransactions.add(new SampledTransaction(transaction, samplingWeight));
+        }
+        reservoirTransactionCount -= reservoir.size();
+        reservoir.clear();
+        state.overflowCount = 0;
+    }
+
+    private long getIntervalEnd(long captureTime) {
+        return (long) Math.ceil(captureTime / (double) aggregateIntervalMillis)
+                * aggregateIntervalMillis;
+    }
+
+    private static double getCapacity(int maxSlowTracesPerMinute) {
+        return Math.max(maxSlowTracesPerMinute, 1);
+    }
+
+    static class SampledTransaction {
+
+        private final Transaction transaction;
+        private final double samplingWeight;
+
+        private SampledTransaction(Transaction transaction, double samplingWeight) {
+            this.transaction = transaction;
+            this.samplingWeight = samplingWeight;
+        }
+
+        Transaction transaction() {
+            return transaction;
+        }
+
+        double samplingWeight() {
+            return samplingWeight;
+        }
+    }
+
+    private static class SamplingState {
+
+        // token bucket with capacity of one minute's worth of tokens, so that bursts up to the
+        // per minute limit are stored immediately
+        private boolean initialized;
+        private double tokens;
+        private long lastRefillTime;
+
+        private final List<Transaction> reservoir = Lists.newArrayList();
+        private long reservoirIntervalEnd;
+        // number of slow traces over the limit in the reservoir interval (the reservoir is a
+        // uniform sample of these)
+        private long overflowCount;
+
+        // number of slow traces over the limit that were not reservoir sampled (e.g. reservoir size
+        // is zero), these are accounted for in the sampling weight of the next stored trace
+        private long droppedCount;
+
+        private void refill(long currentTime, int maxSlowTracesPerMinute) {
+            double capacity = getCapacity(maxSlowTracesPerMinute);
+            if (!initialized) {
+                // new state starts with a full bucket
+                tokens = capacity;
+                initialized = true;
+            } else if (currentTime > lastRefillTime) {
+                tokens = Math.min(capacity, tokens + (currentTime - lastRefillTime)
+                        * maxSlowTracesPerMinute / 60000.0);
+            }
+            lastRefillTime = Math.max(lastRefillTime, currentTime);
+        }
+    }
+}
@@ -18,14 +18,12 @@ package org.glowroot.agent.impl;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -40,13 +38,10 @@ import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
-import com.google.common.collect.Sets;
 import com.google.common.collect.TreeMultimap;
 import com.google.common.io.BaseEncoding;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
-import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,12 +52,10 @@ import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 import org.glowroot.agent.model.AsyncTimerImpl;
 import org.glowroot.agent.model.CommonTimerImpl;
 import org.glowroot.agent.model.ErrorMessage;
-import org.glowroot.agent.model.ImmutableTimerImplSnapshot;
-import org.glowroot.agent.model.MutableAggregateTimer;
-import org.glowroot.agent.model.MutableTraceTimer;
 import org.glowroot.agent.model.Profile;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.ThreadStatsComponent;
 import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
@@ -100,6 +93,20 @@ public class Transaction {
     private static final int TRANSACTION_AUX_THREAD_CONTEXT_LIMIT =
             Integer.getInteger("glowroot.transaction.aux.thread.context.limit", 10000);
 
+    // rough estimates of the heap retained by each part of an active transaction, used for the
+    // active transaction memory budget (see TransactionRegistry)
+    private static final int ESTIMATED_TRANSACTION_BYTES = 2048;
+    private static final int ESTIMATED_AUX_THREAD_CONTEXT_BYTES = 512;
+    private static final int ESTIMATED_ENTRY_BYTES = 256;
+    private static final int ESTIMATED_QUERY_DATA_BYTES = 256;
+    private static final int ESTIMATED_PROFILE_NODE_BYTES = 96;
+    private static final int ESTIMATED_ATTRIBUTE_BYTES = 64;
+
+    // trace entries are accounted for in batches, to avoid updating the shared estimate (see
+    // TransactionRegistry) on every trace entry, each batch is charged once all of its entries have
+    // been used, so that transactions with only a few entries are not charged for a whole batch
+    private static final int ENTRY_ESTIMATE_BATCH_SIZE = 64;
+
     private static final Random random = new Random();
 
     private volatile @Nullable String traceId;
@@ -126,7 +133,11 @@ public class Transaction {
     // trace-level error
     private volatile @Nullable ErrorMessage errorMessage;
 
+    private final boolean fastThreadStats;
+    private final int threadStatsSampleWeight;
+
     private final int maxTraceEntriesPerTransaction;
+    private final boolean collapseTraceEntries;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
 
@@ -170,22 +181,31 @@ public class Transaction {
     private volatile int aggregateQueryLimitCounter;
     private volatile int aggregateServiceCallLimitCounter;
 
+    // set when trace entries are not captured due to the active transaction memory budget
+    private volatile boolean entryMemoryLimitExceeded;
+
+    // the estimated heap retained by this transaction, this is set to Long.MIN_VALUE once the
+    // estimate is released, so that estimates added after that (e.g. by an auxiliary thread that is
+    // still running) are not added to the shared estimate
+    private final AtomicLong estimatedMemoryBytes = new AtomicLong(ESTIMATED_TRANSACTION_BYTES);
+    // the estimate is released once the transaction has been removed from the active transactions
+    // and is no longer retained by the slow trace reservoir (see TraceSampler)
+    private final AtomicInteger estimatedMemoryHolders = new AtomicInteger(1);
+
     private volatile @Nullable AtomicInteger throwableFrameLimitCounter;
 
     private final ThreadContextImpl mainThreadContext;
 
-    @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
-    @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull Set<ThreadContextImpl> unmergedLimitExceededAuxThreadContexts;
+    // added to under synchronized (mainThreadContext), but read without locking
+    //
+    // lazy loaded to reduce memory when aux thread contexts are not used
+    private volatile @MonotonicNonNull AuxThreadContextCollection auxThreadContexts;
 
     // async root timers are the root timers which do not have corresponding thread context
     // (those corresponding to async trace entries)
-    private final Object asyncTimerLock = new Object();
-    @GuardedBy("asyncTimerLock")
-    private @MonotonicNonNull List<AsyncTimerImpl> asyncTimers;
-    @GuardedBy("asyncTimerLock")
-    private @MonotonicNonNull Map<String, AggregateAsyncTimer> aggregateAsyncTimers;
+    //
+    // lazy loaded to reduce memory when async timers are not used
+    private volatile @MonotonicNonNull AsyncTimerCollection asyncTimers;
 
     private volatile boolean completed;
     private volatile long endTick;
@@ -196,17 +216,14 @@ public class Transaction {
 
     private @Nullable TransactionEntry transactionEntry;
 
-    @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull RootTimerCollectorImpl alreadyMergedAuxThreadTimers;
-    @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull ThreadStatsCollectorImpl alreadyMergedAuxThreadStats;
     @GuardedBy("mainThreadContext")
     private boolean stopMergingAuxThreadContexts;
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType,
+            boolean fastThreadStats, int threadStatsSampleWeight,
+            int maxTraceEntriesPerTransaction, boolean collapseTraceEntries,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
@@ -216,7 +233,10 @@ public class Transaction {
         this.startTick = startTick;
         this.transactionType = transactionType;
         this.transactionName = transactionName;
+        this.fastThreadStats = fastThreadStats;
+        this.threadStatsSampleWeight = threadStatsSampleWeight;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
+        this.collapseTraceEntries = collapseTraceEntries;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.completionCallback = completionCallback;
@@ -225,8 +245,11 @@ public class Transaction {
         this.transactionRegistry = transactionRegistry;
         this.transactionService = transactionService;
         this.configService = configService;
+        transactionRegistry.addEstimatedMemoryBytes(ESTIMATED_TRANSACTION_BYTES);
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
-                messageSupplier, timerName, startTick, captureThreadStats, threadAllocatedBytes,
+                messageSupplier, timerName, startTick,
+                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes, fastThreadStats)
+                        : null,
                 false, ticker, threadContextHolder, null);
     }
 
@@ -327,46 +350,27 @@ public class Transaction {
     }
 
     void mergeAuxThreadTimersInto(RootTimerCollector rootTimers) {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return;
-            }
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                rootTimers.mergeRootTimer(auxThreadContext.getRootTimer());
-            }
-            if (alreadyMergedAuxThreadTimers != null) {
-                for (CommonTimerImpl rootTimer : alreadyMergedAuxThreadTimers.getRootTimers()) {
-                    rootTimers.mergeRootTimer(rootTimer);
-                }
-            }
-            if (unmergedLimitExceededAuxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : unmergedLimitExceededAuxThreadContexts) {
-                    rootTimers.mergeRootTimer(auxThreadContext.getRootTimer());
-                }
-            }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeRootTimersInto(rootTimers);
         }
     }
 
     void mergeAsyncTimersInto(RootTimerCollector rootTimers) {
         memoryBarrierRead();
-        synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                return;
-            }
-            for (AsyncTimerImpl asyncTimer : asyncTimers) {
-                rootTimers.mergeRootTimer(asyncTimer);
-            }
-            if (aggregateAsyncTimers == null) {
-                return;
-            }
-            for (Entry<String, AggregateAsyncTimer> entry : aggregateAsyncTimers.entrySet()) {
-                AggregateAsyncTimer value = entry.getValue();
-                rootTimers.mergeRootTimer(
-                        new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
-            }
+        AsyncTimerCollection asyncTimers = this.asyncTimers;
+        if (asyncTimers != null) {
+            asyncTimers.mergeInto(rootTimers);
         }
     }
 
+    // 1 if thread stats are captured for every transaction, N if thread stats are captured for
+    // only 1 in every N transactions and were captured for this transaction, or 0 if thread stats
+    // are captured for only 1 in every N transactions and were not captured for this transaction
+    int getThreadStatsSampleWeight() {
+        return threadStatsSampleWeight;
+    }
+
     // can be called from a non-transaction thread
     ThreadStats getMainThreadStats() {
         return mainThreadContext.getThreadStats();
@@ -374,45 +378,66 @@ public class Transaction {
 
     public long getTotalCpuNanos() {
         long totalCpuNanos = mainThreadContext.getTotalCpuNanos();
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return totalCpuNanos;
-            }
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                totalCpuNanos =
-                        NotAvailableAware.add(totalCpuNanos, auxThreadContext.getTotalCpuNanos());
-            }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts == null) {
             return totalCpuNanos;
         }
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            totalCpuNanos =
+                    NotAvailableAware.add(totalCpuNanos, auxThreadContext.getTotalCpuNanos());
+        }
+        return totalCpuNanos;
     }
 
     void mergeAuxThreadStatsInto(ThreadStatsCollector threadStats) {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return;
-            }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            auxThreadContexts.mergeThreadStatsInto(threadStats);
+        }
+    }
+
+    // used to avoid instantiating aggregate query collectors for transactions without queries
+    boolean hasQueries() {
+        memoryBarrierRead();
+        if (mainThreadContext.hasQueries()) {
+            return true;
+        }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
             for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                threadStats.mergeThreadStats(auxThreadContext.getThreadStats());
-            }
-            if (alreadyMergedAuxThreadStats != null) {
-                threadStats.mergeThreadStats(alreadyMergedAuxThreadStats.getMergedThreadStats());
+                if (auxThreadContext.hasQueries()) {
+                    return true;
+                }
             }
-            if (unmergedLimitExceededAuxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : unmergedLimitExceededAuxThreadContexts) {
-                    threadStats.mergeThreadStats(auxThreadContext.getThreadStats());
+        }
+        return false;
+    }
+
+    // used to avoid instantiating aggregate service call collectors for transactions without
+    // service calls
+    boolean hasServiceCalls() {
+        memoryBarrierRead();
+        if (mainThreadContext.hasServiceCalls()) {
+            return true;
+        }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                if (auxThreadContext.hasServiceCalls()) {
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     void mergeQueriesInto(QueryCollector queries) {
         memoryBarrierRead();
         mainThreadContext.mergeQueriesInto(queries);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeQueriesInto(queries);
-                }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                auxThreadContext.mergeQueriesInto(queries);
             }
         }
     }
@@ -420,40 +445,68 @@ public class Transaction {
     void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
         memoryBarrierRead();
         mainThreadContext.mergeServiceCallsInto(serviceCalls);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeServiceCallsInto(serviceCalls);
-                }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                auxThreadContext.mergeServiceCallsInto(serviceCalls);
             }
         }
     }
 
+    boolean isCollapseTraceEntries() {
+        return collapseTraceEntries;
+    }
+
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
-        return entryLimitCounter++ < maxTraceEntriesPerTransaction;
+        if (transactionRegistry.isEntryMemoryLimitExceeded()) {
+            if (!entryMemoryLimitExceeded) {
+                entryMemoryLimitExceeded = true;
+            }
+            return false;
+        }
+        int count = entryLimitCounter++;
+        if (count >= maxTraceEntriesPerTransaction) {
+            return false;
+        }
+        if ((count + 1) % ENTRY_ESTIMATE_BATCH_SIZE == 0) {
+            addEstimatedMemoryBytes(ENTRY_ESTIMATE_BATCH_SIZE * ESTIMATED_ENTRY_BYTES);
+        }
+        return true;
     }
 
     // this method has side effect of incrementing counter
     boolean allowAnotherErrorEntry() {
         // use higher entry limit when adding errors, but still need some kind of cap
-        return entryLimitCounter++ < maxTraceEntriesPerTransaction
-                || extraErrorEntryLimitCounter++ < maxTraceEntriesPerTransaction;
+        //
+        // error entries are not limited by the active transaction memory budget, since they are
+        // the most important entries, and are already capped
+        if (entryLimitCounter++ < maxTraceEntriesPerTransaction
+                || extraErrorEntryLimitCounter++ < maxTraceEntriesPerTransaction) {
+            addEstimatedMemoryBytes(ESTIMATED_ENTRY_BYTES);
+            return true;
+        }
+        return false;
     }
 
     // this method has side effect of incrementing counter
     boolean allowAnotherAggregateQuery(boolean bypassLimit) {
         if (aggregateQueryLimitCounter++ < maxAggregateQueriesPerType
-                * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER) {
+                * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER || bypassLimit) {
+            addEstimatedMemoryBytes(ESTIMATED_QUERY_DATA_BYTES);
             return true;
         }
-        return bypassLimit;
+        return false;
     }
 
     // this method has side effect of incrementing counter
     boolean allowAnotherAggregateServiceCall() {
-        return aggregateServiceCallLimitCounter++ < maxAggregateServiceCallsPerType
-                * AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER;
+        if (aggregateServiceCallLimitCounter++ < maxAggregateServiceCallsPerType
+                * AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER) {
+            addEstimatedMemoryBytes(ESTIMATED_QUERY_DATA_BYTES);
+            return true;
+        }
+        return false;
     }
 
     public void accept(long captureTick, EntryVisitor entryVisitor) throws Exception {
@@ -463,12 +516,11 @@ public class Transaction {
         ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap = ArrayListMultimap.create();
         mainThreadContext.populateParentChildMap(parentChildMap, captureTick,
                 priorEntryChildThreadContextMap);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
-                            priorEntryChildThreadContextMap);
-                }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts != null) {
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
+                        priorEntryChildThreadContextMap);
             }
         }
         new ParentChildMapTrimmer(mainThreadContext.getRootEntry(), parentChildMap, captureTick)
@@ -544,18 +596,17 @@ public class Transaction {
     }
 
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return ImmutableList.of();
-            }
-            List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                if (auxThreadContext.isActive()) {
-                    activeAuxThreadContexts.add(auxThreadContext);
-                }
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts == null) {
+            return ImmutableList.of();
+        }
+        List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            if (auxThreadContext.isActive()) {
+                activeAuxThreadContexts.add(auxThreadContext);
             }
-            return activeAuxThreadContexts;
         }
+        return activeAuxThreadContexts;
     }
 
     void setAsync() {
@@ -598,8 +649,9 @@ public class Transaction {
         String val = Strings.nullToEmpty(value);
         synchronized (attributes) {
             Collection<String> values = attributes.get(name);
-            if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT) {
-                values.add(val);
+            if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT && values.add(val)) {
+                addEstimatedMemoryBytes(
+                        ESTIMATED_ATTRIBUTE_BYTES + 2 * (name.length() + val.length()));
             }
         }
     }
@@ -645,6 +697,20 @@ public class Transaction {
 
     void removeFromActiveTransactions() {
         checkNotNull(transactionEntry).remove();
+        releaseEstimatedMemory();
+    }
+
+    // must be called while still holding the estimate (e.g. before the transaction can be removed
+    // from the active transactions)
+    void retainEstimatedMemory() {
+        estimatedMemoryHolders.incrementAndGet();
+    }
+
+    void releaseEstimatedMemory() {
+        if (estimatedMemoryHolders.decrementAndGet() == 0) {
+            transactionRegistry
+                    .addEstimatedMemoryBytes(-estimatedMemoryBytes.getAndSet(Long.MIN_VALUE));
+        }
     }
 
     @Nullable
@@ -652,7 +718,7 @@ public class Transaction {
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
             long startTick, Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder,
             @Nullable MessageSupplier servletMessageSupplier,
-            @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+            @Nullable ThreadStatsComponent threadStatsComponent) {
         ThreadContextImpl auxThreadContext;
         synchronized (mainThreadContext) {
             // check completed and add aux thread context inside synchronized block to avoid race
@@ -661,32 +727,31 @@ public class Transaction {
             if (completed) {
                 return null;
             }
+            AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
             if (auxThreadContexts == null) {
-                auxThreadContexts = Lists.newArrayList();
+                auxThreadContexts = new AuxThreadContextCollection();
+                this.auxThreadContexts = auxThreadContexts;
             }
             // conditions below for parentTraceEntry and parentThreadContextPriorEntry are redundant
             // since they will not be null until after allowAnotherAuxThreadContextWithHierarchy()
             // starts returning false
-            if (allowAnotherAuxThreadContextWithHierarchy() && parentTraceEntry != null
+            if (allowAnotherAuxThreadContextWithHierarchy(auxThreadContexts)
+                    && parentTraceEntry != null
                     && parentThreadContextPriorEntry != null) {
                 auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                         parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE,
-                        auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        threadAllocatedBytes, false, ticker, threadContextHolder,
-                        servletMessageSupplier);
+                        auxTimerName, startTick, threadStatsComponent, false, ticker,
+                        threadContextHolder, servletMessageSupplier);
                 auxThreadContexts.add(auxThreadContext);
             } else {
                 auxThreadContext = new ThreadContextImpl(this, mainThreadContext.getRootEntry(),
                         mainThreadContext.getTailEntry(), AuxThreadRootMessageSupplier.INSTANCE,
-                        auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        threadAllocatedBytes, true, ticker, threadContextHolder,
-                        servletMessageSupplier);
-                if (unmergedLimitExceededAuxThreadContexts == null) {
-                    unmergedLimitExceededAuxThreadContexts = Sets.newHashSet();
-                }
-                unmergedLimitExceededAuxThreadContexts.add(auxThreadContext);
+                        auxTimerName, startTick, threadStatsComponent, true, ticker,
+                        threadContextHolder, servletMessageSupplier);
+                auxThreadContexts.addLimitExceeded(auxThreadContext);
             }
         }
+        addEstimatedMemoryBytes(ESTIMATED_AUX_THREAD_CONTEXT_BYTES);
         // see counterpart to this synchronization (and explanation) in ThreadContextImpl.detach()
         synchronized (threadContextHolder) {
             threadContextHolder.set(auxThreadContext);
@@ -696,52 +761,34 @@ public class Transaction {
 
     void mergeLimitExceededAuxThreadContext(ThreadContextImpl auxThreadContext) {
         synchronized (mainThreadContext) {
-            checkNotNull(unmergedLimitExceededAuxThreadContexts).remove(auxThreadContext);
-            if (auxThreadContext.hasTraceEntries()) {
-                checkNotNull(auxThreadContexts).add(auxThreadContext);
-                return;
-            }
-            if (alreadyMergedAuxThreadTimers == null) {
-                alreadyMergedAuxThreadTimers = new RootTimerCollectorImpl();
-            }
-            if (alreadyMergedAuxThreadStats == null) {
-                alreadyMergedAuxThreadStats = new ThreadStatsCollectorImpl();
-            }
-            alreadyMergedAuxThreadTimers.mergeRootTimer(auxThreadContext.getRootTimer());
-            alreadyMergedAuxThreadStats.mergeThreadStats(auxThreadContext.getThreadStats());
+            checkNotNull(auxThreadContexts).mergeLimitExceeded(auxThreadContext);
         }
     }
 
+    // this must be called from the auxiliary thread, since that is the thread that the thread stats
+    // are captured for
+    @Nullable
+    ThreadStatsComponent createAuxThreadStatsComponent(
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        if (!mainThreadContext.getCaptureThreadStats()) {
+            return null;
+        }
+        return new ThreadStatsComponent(threadAllocatedBytes, fastThreadStats);
+    }
+
     AsyncTimerImpl startAsyncTimer(TimerName asyncTimerName, long startTick) {
         AsyncTimerImpl asyncTimer = new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick);
-        synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                asyncTimers = Lists.newArrayList();
-            }
-            if (asyncTimers.size() >= 1000) {
-                // this is just to conserve memory
-                if (aggregateAsyncTimers == null) {
-                    aggregateAsyncTimers = Maps.newHashMap();
+        AsyncTimerCollection asyncTimers = this.asyncTimers;
+        if (asyncTimers == null) {
+            synchronized (mainThreadContext) {
+                asyncTimers = this.asyncTimers;
+                if (asyncTimers == null) {
+                    asyncTimers = new AsyncTimerCollection();
+                    this.asyncTimers = asyncTimers;
                 }
-                List<AsyncTimerImpl> activeAsyncTimers = Lists.newArrayList();
-                for (AsyncTimerImpl loopAsyncTimer : asyncTimers) {
-                    if (loopAsyncTimer.active()) {
-                        activeAsyncTimers.add(loopAsyncTimer);
-                        continue;
-                    }
-                    AggregateAsyncTimer aggregateAsyncTimer =
-                            aggregateAsyncTimers.get(loopAsyncTimer.getName());
-                    if (aggregateAsyncTimer == null) {
-                        aggregateAsyncTimer = new AggregateAsyncTimer();
-                        aggregateAsyncTimers.put(loopAsyncTimer.getName(), aggregateAsyncTimer);
-                    }
-                    aggregateAsyncTimer.totalNanos += loopAsyncTimer.getTotalNanos();
-                    aggregateAsyncTimer.count += loopAsyncTimer.getCount();
-                }
-                asyncTimers = activeAsyncTimers;
             }
-            asyncTimers.add(asyncTimer);
         }
+        asyncTimers.add(asyncTimer);
         return asyncTimer;
     }
 
@@ -753,13 +800,16 @@ public class Transaction {
     }
 
     boolean isEntryLimitExceeded() {
-        return entryLimitCounter > maxTraceEntriesPerTransaction;
+        return entryLimitCounter > maxTraceEntriesPerTransaction || entryMemoryLimitExceeded;
     }
 
     void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
         if (completed) {
             return;
         }
+        if (transactionRegistry.isProfileMemoryLimitExceeded()) {
+            return;
+        }
         Profile profile;
         if (auxiliary) {
             profile = auxThreadProfile;
@@ -775,15 +825,24 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new Profile();
-            profile.addStackTrace(threadInfo, limit);
+            int newNodeCount = profile.addStackTrace(threadInfo, limit);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
                 mainThreadProfile = profile;
             }
+            addEstimatedProfileMemoryBytes(newNodeCount);
             return;
         }
-        profile.addStackTrace(threadInfo, limit);
+        addEstimatedProfileMemoryBytes(profile.addStackTrace(threadInfo, limit));
+    }
+
+    // samples are only charged when they add nodes to the profile tree, since repeated samples of
+    // the same stack trace only increment the existing nodes' sample counts
+    private void addEstimatedProfileMemoryBytes(int newNodeCount) {
+        if (newNodeCount > 0) {
+            addEstimatedMemoryBytes(newNodeCount * (long) ESTIMATED_PROFILE_NODE_BYTES);
+        }
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
@@ -857,42 +916,26 @@ public class Transaction {
         memoryBarrierWrite();
     }
 
+    private void addEstimatedMemoryBytes(long bytes) {
+        if (estimatedMemoryBytes.getAndAdd(bytes) >= 0) {
+            transactionRegistry.addEstimatedMemoryBytes(bytes);
+        }
+    }
+
     // must be called under synchronized (mainThreadContext)
-    @RequiresNonNull("auxThreadContexts")
-    private boolean allowAnotherAuxThreadContextWithHierarchy() {
+    private boolean allowAnotherAuxThreadContextWithHierarchy(
+            AuxThreadContextCollection auxThreadContexts) {
         if (auxThreadContexts.size() < TRANSACTION_AUX_THREAD_CONTEXT_LIMIT) {
             return true;
         }
         if (stopMergingAuxThreadContexts) {
             return false;
         }
-        List<ThreadContextImpl> mergeableAuxThreadContexts = Lists.newArrayList();
-        List<ThreadContextImpl> nonMergeableAuxThreadContexts = Lists.newArrayList();
-        for (Iterator<ThreadContextImpl> i = auxThreadContexts.iterator(); i.hasNext();) {
-            ThreadContextImpl loopAuxThreadContext = i.next();
-            if (loopAuxThreadContext.isCompleteAndEmptyExceptForTimersAndThreadStats()) {
-                mergeableAuxThreadContexts.add(loopAuxThreadContext);
-            } else {
-                nonMergeableAuxThreadContexts.add(loopAuxThreadContext);
-            }
-        }
-        if (mergeableAuxThreadContexts.size() < 0.1 * auxThreadContexts.size()) {
+        if (!auxThreadContexts.mergeCompleteAndEmpty()) {
             // unable to merge more than 10%
             stopMergingAuxThreadContexts = true;
             return false;
         }
-        if (alreadyMergedAuxThreadTimers == null) {
-            alreadyMergedAuxThreadTimers = new RootTimerCollectorImpl();
-        }
-        if (alreadyMergedAuxThreadStats == null) {
-            alreadyMergedAuxThreadStats = new ThreadStatsCollectorImpl();
-        }
-        for (ThreadContextImpl mergeableAuxThreadContext : mergeableAuxThreadContexts) {
-            alreadyMergedAuxThreadTimers.mergeRootTimer(mergeableAuxThreadContext.getRootTimer());
-            alreadyMergedAuxThreadStats
-                    .mergeThreadStats(mergeableAuxThreadContext.getThreadStats());
-        }
-        auxThreadContexts = nonMergeableAuxThreadContexts;
         return true;
     }
 
@@ -920,25 +963,24 @@ public class Transaction {
     }
 
     private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return ImmutableListMultimap.of();
-            }
-            ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
-                    ArrayListMultimap.create();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                // checkNotNull is safe b/c aux thread contexts have non-null parent thread context
-                // prior entries when they are not limit exceeded aux thread contexts
-                parentChildMap.put(
-                        checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
-                        auxThreadContext);
-            }
-            return parentChildMap;
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
+        if (auxThreadContexts == null) {
+            return ImmutableListMultimap.of();
+        }
+        ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
+                ArrayListMultimap.create();
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            // checkNotNull is safe b/c aux thread contexts have non-null parent thread context
+            // prior entries when they are not limit exceeded aux thread contexts
+            parentChildMap.put(checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
+                    auxThreadContext);
         }
+        return parentChildMap;
     }
 
     // must be called under synchronized (mainThreadContext)
     private void detachIncompleteAuxThreadContexts() {
+        AuxThreadContextCollection auxThreadContexts = this.auxThreadContexts;
         if (auxThreadContexts == null) {
             return;
         }
@@ -994,64 +1036,6 @@ public class Transaction {
         void mergeThreadStats(ThreadStats threadStats);
     }
 
-    private static class AggregateAsyncTimer {
-
-        private long totalNanos;
-        private long count;
-    }
-
-    private static class SimpleTimerImpl implements CommonTimerImpl {
-
-        private final String name;
-        private final long totalNanos;
-        private final long count;
-
-        private SimpleTimerImpl(String name, long totalNanos, long count) {
-            this.name = name;
-            this.totalNanos = totalNanos;
-            this.count = count;
-        }
-
-        @Override
-        public String getName() {
-            return name;
-        }
-
-        @Override
-        public boolean isExtended() {
-            return false;
-        }
-
-        @Override
-        public long getTotalNanos() {
-            return totalNanos;
-        }
-
-        @Override
-        public long getCount() {
-            return count;
-        }
-
-        @Override
-        public void mergeChildTimersInto(List<MutableTraceTimer> childTimers) {
-            // async timers have no child timers
-        }
-
-        @Override
-        public void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers) {
-            // async timers have no child timers
-        }
-
-        @Override
-        public TimerImplSnapshot getSnapshot() {
-            return ImmutableTimerImplSnapshot.builder()
-                    .totalNanos(totalNanos)
-                    .count(count)
-                    .active(false)
-                    .build();
-        }
-    }
-
     private static class AuxThreadRootMessageSupplier extends MessageSupplier {
 
         private static final AuxThreadRootMessageSupplier INSTANCE =
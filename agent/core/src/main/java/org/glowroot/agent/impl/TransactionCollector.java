@@ -17,9 +17,10 @@ package org.glowroot.agent.impl;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.Sets;
@@ -28,7 +29,9 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TraceSampler.SampledTransaction;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
@@ -45,17 +48,20 @@ public class TransactionCollector {
     // back pressure on trace collection
     private static final int PENDING_LIMIT = 100;
 
-    private final ExecutorService dedicatedExecutor;
+    private final ScheduledExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
     private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    private final TraceSampler traceSampler;
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
 
     private volatile long defaultSlowThresholdNanos;
+    private volatile int maxSlowTracesPerMinute;
+    private volatile int slowTraceReservoirSize;
 
     public TransactionCollector(final ConfigService configService, Collector collector,
             Aggregator aggregator, Clock clock, Ticker ticker) {
@@ -63,15 +69,30 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
+        traceSampler = new TraceSampler(aggregator.getAggregateIntervalMillis(), new Random());
+        dedicatedExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.create("Glowroot-Trace-Collector"));
         configService.addConfigListener(new ConfigListener() {
             @Override
             public void onChange() {
                 defaultSlowThresholdNanos = MILLISECONDS
                         .toNanos(configService.getTransactionConfig().slowThresholdMillis());
+                AdvancedConfig advancedConfig = configService.getAdvancedConfig();
+                maxSlowTracesPerMinute = advancedConfig.maxSlowTracesPerMinute();
+                slowTraceReservoirSize = advancedConfig.slowTraceReservoirSize();
             }
         });
+        // reservoir sampled slow traces are stored once their aggregate interval has ended
+        dedicatedExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storeSampledTraces();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, 1, 1, SECONDS);
     }
 
     public boolean shouldStoreSlow(Transaction transaction) {
@@ -106,35 +127,84 @@ public class TransactionCollector {
         }
     }
 
-    void onCompletedTransaction(final Transaction transaction) {
+    void onCompletedTransaction(Transaction transaction) {
+        boolean slow = shouldStoreSlow(transaction);
+        boolean error = shouldStoreError(transaction);
+        int maxSlowTracesPerMinute = this.maxSlowTracesPerMinute;
+        boolean rateLimited = slow && !error && maxSlowTracesPerMinute > 0
+                && !transaction.isPartiallyStored();
+        if (rateLimited) {
+            // the memory estimate needs to be retained before the aggregator can remove the
+            // transaction from the active transactions, so that the trace sampler can continue to
+            // retain it if the transaction is put into the reservoir
+            transaction.retainEstimatedMemory();
+        }
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        if (!slow && !error) {
             return;
         }
+        // this need to be called inside the transaction thread, and before the trace is put into
+        // the reservoir (where it may be stored from later)
+        transaction.onCompleteWillStoreTrace(captureTime);
+        double samplingWeight = 0;
+        if (rateLimited) {
+            try {
+                samplingWeight = traceSampler.sample(transaction, captureTime,
+                        maxSlowTracesPerMinute, slowTraceReservoirSize);
+            } finally {
+                transaction.releaseEstimatedMemory();
+            }
+            if (samplingWeight == 0) {
+                return;
+            }
+        }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
         if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT);
+            if (samplingWeight > 0) {
+                traceSampler.carryOver(transaction, samplingWeight);
+            }
             return;
         }
         pendingTransactions.add(transaction);
+        storeTrace(transaction, slow, samplingWeight);
+    }
 
-        // this need to be called inside the transaction thread
-        transaction.onCompleteWillStoreTrace(captureTime);
+    private void storeSampledTraces() {
+        List<SampledTransaction> sampledTransactions =
+                traceSampler.drain(clock.currentTimeMillis(), maxSlowTracesPerMinute);
+        for (int i = 0; i < sampledTransactions.size(); i++) {
+            if (pendingTransactions.size() >= PENDING_LIMIT) {
+                // the reservoir for the interval has already been drained, so the remaining
+                // sampled traces are dropped, and their sampling weight is not carried over (the
+                // state of their transaction names may already have been discarded)
+                backPressureLogger.warn("not storing {} sampled trace(s) because of an excessive"
+                        + " backlog of {} traces already waiting to be stored",
+                        sampledTransactions.size() - i, PENDING_LIMIT);
+                return;
+            }
+            SampledTransaction sampledTransaction = sampledTransactions.get(i);
+            Transaction transaction = sampledTransaction.transaction();
+            pendingTransactions.add(transaction);
+            storeTrace(transaction, true, sampledTransaction.samplingWeight());
+        }
+    }
 
+    private void storeTrace(final Transaction transaction, final boolean slow,
+            final double samplingWeight) {
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
         dedicatedExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    TraceReader traceReader =
-                            TraceCreator.createTraceReaderForCompleted(transaction, slow);
+                    TraceReader traceReader = TraceCreator
+                            .createTraceReaderForCompleted(transaction, slow, samplingWeight);
                     collector.collectTrace(traceReader);
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,16 +15,19 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
+import org.glowroot.agent.model.ThreadContextPlus;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.common.util.UsedByGeneratedBytecode;
 
 import static org.glowroot.agent.util.Checkers.castInitialized;
 
-public class TransactionRegistry {
+public class TransactionRegistry implements TransactionRegistryMXBean {
 
     // collection of active running transactions
     private final TransactionCollection transactions = new TransactionCollection();
@@ -33,6 +36,18 @@ public class TransactionRegistry {
     private final FastThreadLocal</*@Nullable*/ ThreadContextImpl> currentThreadContext =
             new FastThreadLocal</*@Nullable*/ ThreadContextImpl>();
 
+    // auxiliary thread context that has been started lazily by the current thread, but not actually
+    // started yet (see PendingAuxThreadContext)
+    private final FastThreadLocal</*@Nullable*/ PendingAuxThreadContext> pendingAuxThreadContext =
+            new FastThreadLocal</*@Nullable*/ PendingAuxThreadContext>();
+
+    // estimated heap retained by active transactions (trace entries, query data, profile nodes,
+    // attributes), this is only a rough estimate, see Transaction.addEstimatedMemoryBytes()
+    private final AtomicLong estimatedMemoryBytes = new AtomicLong();
+
+    // zero means no limit
+    private volatile long memoryLimitBytes;
+
     public TransactionRegistry() {
         TransactionRegistryHolder.transactionRegistry = castInitialized(this);
     }
@@ -41,7 +56,11 @@ public class TransactionRegistry {
     Transaction getCurrentTransaction() {
         ThreadContextImpl threadContext = currentThreadContext.get();
         if (threadContext == null) {
-            return null;
+            if (!TransactionRegistryHolder.pendingAuxThreadContextUsed) {
+                return null;
+            }
+            PendingAuxThreadContext pending = pendingAuxThreadContext.get();
+            return pending == null ? null : pending.getTransaction();
         }
         return threadContext.getTransaction();
     }
@@ -51,6 +70,20 @@ public class TransactionRegistry {
         return currentThreadContext.getHolder();
     }
 
+    // this is only called when there is no current thread context
+    @UsedByGeneratedBytecode
+    public @Nullable ThreadContextPlus getPendingAuxThreadContext() {
+        if (!TransactionRegistryHolder.pendingAuxThreadContextUsed) {
+            return null;
+        }
+        return pendingAuxThreadContext.get();
+    }
+
+    Holder</*@Nullable*/ PendingAuxThreadContext> getPendingAuxThreadContextHolder() {
+        TransactionRegistryHolder.pendingAuxThreadContextUsed = true;
+        return pendingAuxThreadContext.getHolder();
+    }
+
     TransactionEntry addTransaction(Transaction transaction) {
         return transactions.add(transaction);
     }
@@ -59,11 +92,50 @@ public class TransactionRegistry {
         return transactions;
     }
 
+    @Override
+    public long getEstimatedMemoryBytes() {
+        return estimatedMemoryBytes.get();
+    }
+
+    @Override
+    public long getMemoryLimitBytes() {
+        return memoryLimitBytes;
+    }
+
+    void setMemoryLimitBytes(long memoryLimitBytes) {
+        this.memoryLimitBytes = memoryLimitBytes;
+    }
+
+    void addEstimatedMemoryBytes(long bytes) {
+        estimatedMemoryBytes.addAndGet(bytes);
+    }
+
+    // capture degrades in two steps as the memory limit is approached, first new trace entries are
+    // no longer captured (at 75% of the limit), and then profile samples are no longer captured (at
+    // the limit), since a few profile samples of the slowest transactions are typically more
+    // useful than thousands more trace entries
+    boolean isEntryMemoryLimitExceeded() {
+        long memoryLimitBytes = this.memoryLimitBytes;
+        return memoryLimitBytes != 0
+                && estimatedMemoryBytes.get() >= memoryLimitBytes - memoryLimitBytes / 4;
+    }
+
+    boolean isProfileMemoryLimitExceeded() {
+        long memoryLimitBytes = this.memoryLimitBytes;
+        return memoryLimitBytes != 0 && estimatedMemoryBytes.get() >= memoryLimitBytes;
+    }
+
     @UsedByGeneratedBytecode
     public static class TransactionRegistryHolder {
 
         private static @Nullable TransactionRegistry transactionRegistry;
 
+        // this is checked (by generated bytecode) before looking up the pending auxiliary thread
+        // context, so that there is no added cost when lazily started auxiliary thread contexts
+        // are not being used at all, it doesn't need to be volatile since a thread only cares
+        // about the pending auxiliary thread context that it set itself
+        public static boolean pendingAuxThreadContextUsed;
+
         private TransactionRegistryHolder() {}
 
         public static @Nullable TransactionRegistry getTransactionRegistry() {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
@@ -23,6 +25,8 @@ import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.impl.Transaction.CompletionCallback;
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
+import org.glowroot.agent.model.ThreadContextPlus;
+import org.glowroot.agent.model.ThreadStatsComponent;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
@@ -45,12 +49,17 @@ public class TransactionServiceImpl implements ConfigListener {
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
+    private final AtomicInteger threadStatsSamplingCounter = new AtomicInteger();
+
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
+    private boolean fastThreadStats;
+    private int threadStatsSamplingInterval;
     private int maxAggregateQueriesPerType;
     private int maxAggregateServiceCallsPerType;
     private int maxTraceEntriesPerTransaction;
+    private boolean collapseTraceEntries;
 
     public static TransactionServiceImpl create(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
@@ -84,10 +93,23 @@ public class TransactionServiceImpl implements ConfigListener {
         // ensure visibility of recent configuration updates
         configService.readMemoryBarrier();
         long startTick = ticker.read();
+        boolean captureThreadStats = this.captureThreadStats;
+        int threadStatsSampleWeight = 1;
+        if (captureThreadStats && threadStatsSamplingInterval > 1) {
+            // masking keeps the counter non-negative after it overflows
+            if ((threadStatsSamplingCounter.getAndIncrement() & Integer.MAX_VALUE)
+                    % threadStatsSamplingInterval == 0) {
+                threadStatsSampleWeight = threadStatsSamplingInterval;
+            } else {
+                captureThreadStats = false;
+                threadStatsSampleWeight = 0;
+            }
+        }
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
-                maxAggregateServiceCallsPerType, threadAllocatedBytes,
+                fastThreadStats, threadStatsSampleWeight, maxTraceEntriesPerTransaction,
+                collapseTraceEntries, maxAggregateQueriesPerType, maxAggregateServiceCallsPerType,
+                threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
         TransactionEntry transactionEntry = transactionRegistry.addTransaction(transaction);
@@ -100,22 +122,41 @@ public class TransactionServiceImpl implements ConfigListener {
     ThreadContextImpl startAuxThreadContextInternal(Transaction transaction,
             @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry,
-            @Nullable MessageSupplier servletMessageSupplier,
+            @Nullable MessageSupplier servletMessageSupplier, long startTick,
+            @Nullable ThreadStatsComponent threadStatsComponent,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
-        long startTick = ticker.read();
         TimerName auxThreadTimerName = timerNameCache.getAuxThreadTimerName();
         return transaction.startAuxThreadContext(parentTraceEntry, parentThreadContextPriorEntry,
                 auxThreadTimerName, startTick, threadContextHolder, servletMessageSupplier,
-                threadAllocatedBytes);
+                threadStatsComponent);
+    }
+
+    @Nullable
+    ThreadStatsComponent createAuxThreadStatsComponent(Transaction transaction) {
+        return transaction.createAuxThreadStatsComponent(threadAllocatedBytes);
+    }
+
+    @Nullable
+    ThreadContextPlus getPendingAuxThreadContext() {
+        return transactionRegistry.getPendingAuxThreadContext();
+    }
+
+    Ticker getTicker() {
+        return ticker;
     }
 
     @Override
     public void onChange() {
         AdvancedConfig advancedConfig = configService.getAdvancedConfig();
         captureThreadStats = configService.getTransactionConfig().captureThreadStats();
+        fastThreadStats = advancedConfig.fastThreadStats();
+        threadStatsSamplingInterval = advancedConfig.threadStatsSamplingInterval();
         maxAggregateQueriesPerType = advancedConfig.maxAggregateQueriesPerType();
         maxAggregateServiceCallsPerType = advancedConfig.maxAggregateServiceCallsPerType();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
+        collapseTraceEntries = advancedConfig.collapseTraceEntries();
+        transactionRegistry
+                .setMemoryLimitBytes(advancedConfig.maxActiveTransactionMemoryMb() * 1024L * 1024);
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
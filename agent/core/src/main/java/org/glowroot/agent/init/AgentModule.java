@@ -60,9 +60,11 @@ import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.agent.weaving.ClasspathPreAnalyzer;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -90,6 +92,8 @@ public class AgentModule {
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final AdviceCache adviceCache;
+    private final @Nullable WeavingCache weavingCache;
+    private final @Nullable ClasspathPreAnalyzer classpathPreAnalyzer;
 
     private final TransactionCollector transactionCollector;
     private final Aggregator aggregator;
@@ -112,7 +116,8 @@ public class AgentModule {
     public AgentModule(Clock clock, @Nullable Ticker nullableTicker, final PluginCache pluginCache,
             final ConfigService configService,
             Supplier<ScheduledExecutorService> backgroundExecutorSupplier, Collector collector,
-            @Nullable Instrumentation instrumentation, File tmpDir) throws Exception {
+            @Nullable Instrumentation instrumentation, File tmpDir, String glowrootVersion)
+            throws Exception {
 
         Ticker ticker = nullableTicker == null ? Tickers.getTicker() : nullableTicker;
         this.configService = configService;
@@ -129,9 +134,12 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        weavingCache = WeavingCache.create(new File(tmpDir, "weaving-cache"), glowrootVersion,
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes(), analyzedWorld);
+
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -152,6 +160,8 @@ public class AgentModule {
             }
             logRunnableCallableClassWarningIfNeeded(instrumentation);
         }
+        classpathPreAnalyzer = instrumentation == null ? null
+                : ClasspathPreAnalyzer.start(analyzedWorld);
 
         // now that instrumentation is set up, it is safe to create scheduled executor
         ScheduledExecutorService backgroundExecutor = backgroundExecutorSupplier.get();
@@ -193,8 +203,17 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        if (weavingCache != null) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(weavingCache,
+                    "org.glowroot:type=WeavingCache");
+        }
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 clock, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(gaugeCollector,
+                "org.glowroot:type=GaugeCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(transactionRegistry,
+                "org.glowroot:type=TransactionRegistry");
+        lazyPlatformMBeanServer.lazyRegisterMBean(aggregator, "org.glowroot:type=Aggregator");
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
@@ -312,6 +331,9 @@ public class AgentModule {
 
     @OnlyUsedByTests
     public void close() throws Exception {
+        if (classpathPreAnalyzer != null) {
+            classpathPreAnalyzer.close();
+        }
         immedateTraceStoreWatcher.cancel();
         transactionCollector.close();
         aggregator.close();
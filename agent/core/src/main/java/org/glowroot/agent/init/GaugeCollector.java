@@ -23,15 +23,23 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -56,12 +64,15 @@ import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class GaugeCollector extends ScheduledRunnable {
+class GaugeCollector extends ScheduledRunnable implements GaugeCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -81,6 +92,31 @@ class GaugeCollector extends ScheduledRunnable {
     // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
+    // gauge configs resolved to object names and attribute reads, keyed by mbean object name, so
+    // that object names are not parsed and pattern object names are not queried on every
+    // collection (only accessed by the dedicated gauge thread)
+    private final Map<String, ResolvedGauge> resolvedGauges = Maps.newHashMap();
+
+    // pattern matches are re-queried only after mbeans have been registered or unregistered, which
+    // requires listening to mbean server delegate notifications (otherwise they are re-queried on
+    // every collection)
+    private final AtomicLong mbeanRegistrationCount = new AtomicLong();
+    private final NotificationListener mbeanRegistrationListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            mbeanRegistrationCount.getAndIncrement();
+        }
+    };
+    private volatile boolean listeningForMBeanRegistrations;
+    // the listener is removed on close, since otherwise the platform mbean server would keep this
+    // reachable
+    private volatile @Nullable MBeanServer mbeanRegistrationListenerServer;
+    private volatile boolean mbeanServerInitialized;
+
+    private final AtomicLong collectionCount = new AtomicLong();
+    private final AtomicLong totalCollectionDurationNanos = new AtomicLong();
+    private volatile long lastCollectionDurationNanos;
+
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer, Clock clock, Ticker ticker) {
         this.configService = configService;
@@ -106,20 +142,55 @@ class GaugeCollector extends ScheduledRunnable {
                 } catch (Exception e) {
                     logger.debug(e.getMessage(), e);
                 }
+                mbeanServerInitialized = true;
+                try {
+                    // the mbean server delegate only sends registration and unregistration
+                    // notifications
+                    mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            mbeanRegistrationListener, null, null);
+                    mbeanRegistrationListenerServer = mbeanServer;
+                    listeningForMBeanRegistrations = true;
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                }
             }
         });
     }
 
+    @Override
+    public long getCollectionCount() {
+        return collectionCount.get();
+    }
+
+    @Override
+    public double getLastCollectionDurationMillis() {
+        return lastCollectionDurationNanos / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getTotalCollectionDurationMillis() {
+        return totalCollectionDurationNanos.get() / NANOSECONDS_PER_MILLISECOND;
+    }
+
     @Override
     protected void runInternal() throws Exception {
+        Stopwatch stopwatch = Stopwatch.createStarted();
         final List<GaugeValue> gaugeValues = Lists.newArrayList();
         if (priorRawCounterValues == null) {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
             priorRawCounterValues = Maps.newHashMap();
         }
+        Set<String> mbeanObjectNames = Sets.newHashSet();
         for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
             gaugeValues.addAll(collectGaugeValues(gaugeConfig));
+            mbeanObjectNames.add(gaugeConfig.mbeanObjectName());
         }
+        // remove resolved gauges that are no longer configured
+        resolvedGauges.keySet().retainAll(mbeanObjectNames);
+        long durationNanos = stopwatch.elapsed(NANOSECONDS);
+        lastCollectionDurationNanos = durationNanos;
+        totalCollectionDurationNanos.addAndGet(durationNanos);
+        collectionCount.getAndIncrement();
         flushingExecutor.execute(new Runnable() {
             @Override
             public void run() {
@@ -138,6 +209,15 @@ class GaugeCollector extends ScheduledRunnable {
     }
 
     void close() throws InterruptedException {
+        MBeanServer mbeanServer = mbeanRegistrationListenerServer;
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        mbeanRegistrationListener);
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
         collectionExecutor.shutdown();
         if (!collectionExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -152,54 +232,122 @@ class GaugeCollector extends ScheduledRunnable {
     @RequiresNonNull("priorRawCounterValues")
     List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig) throws Exception {
         String mbeanObjectName = gaugeConfig.mbeanObjectName();
-        ObjectName objectName;
-        try {
-            objectName = ObjectName.getInstance(mbeanObjectName);
-        } catch (MalformedObjectNameException e) {
-            logger.debug(e.getMessage(), e);
-            logFirstTimeMBeanException(mbeanObjectName, e);
-            return ImmutableList.of();
+        ResolvedGauge resolvedGauge = resolvedGauges.get(mbeanObjectName);
+        if (resolvedGauge == null
+                || !resolvedGauge.mbeanAttributes.equals(gaugeConfig.mbeanAttributes())) {
+            ObjectName objectName;
+            try {
+                objectName = ObjectName.getInstance(mbeanObjectName);
+            } catch (MalformedObjectNameException e) {
+                logger.debug(e.getMessage(), e);
+                logFirstTimeMBeanException(mbeanObjectName, e);
+                return ImmutableList.of();
+            }
+            resolvedGauge = new ResolvedGauge(objectName, gaugeConfig.mbeanAttributes());
+            resolvedGauges.put(mbeanObjectName, resolvedGauge);
         }
-        if (!objectName.isPattern()) {
-            return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
+        if (!resolvedGauge.objectName.isPattern()) {
+            ResolvedMBean resolvedMBean = resolvedGauge.mbean;
+            if (resolvedMBean == null) {
+                resolvedMBean = new ResolvedMBean(resolvedGauge.objectName, mbeanObjectName,
+                        resolvedGauge.mbeanAttributes);
+                resolvedGauge.mbean = resolvedMBean;
+            }
+            return collectGaugeValues(resolvedGauge, resolvedMBean);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
-        if (matchingObjectNames.isEmpty()) {
+        List<ResolvedMBean> matchingMBeans = getMatchingMBeans(resolvedGauge);
+        if (matchingMBeans.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
         }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (ResolvedMBean matchingMBean : matchingMBeans) {
+            gaugeValues.addAll(collectGaugeValues(resolvedGauge, matchingMBean));
+        }
+        return gaugeValues;
+    }
+
+    private List<ResolvedMBean> getMatchingMBeans(ResolvedGauge resolvedGauge) throws Exception {
+        // the registration count is read before querying, so that a registration concurrent with
+        // the query causes the query to be run again on the next collection
+        boolean listening = listeningForMBeanRegistrations;
+        long registrationCount = mbeanRegistrationCount.get();
+        List<ResolvedMBean> matchingMBeans = resolvedGauge.matchingMBeans;
+        if (listening && matchingMBeans != null
+                && resolvedGauge.matchingMBeansRegistrationCount == registrationCount) {
+            return matchingMBeans;
+        }
+        Set<ObjectName> matchingObjectNames =
+                lazyPlatformMBeanServer.queryNames(resolvedGauge.objectName, null);
+        matchingMBeans = Lists.newArrayList();
         for (ObjectName matchingObjectName : matchingObjectNames) {
-            gaugeValues.addAll(collectGaugeValues(matchingObjectName, gaugeConfig.mbeanAttributes(),
+            matchingMBeans.add(new ResolvedMBean(matchingObjectName,
                     matchingObjectName.getDomain() + ":"
-                            + matchingObjectName.getKeyPropertyListString()));
+                            + matchingObjectName.getKeyPropertyListString(),
+                    resolvedGauge.mbeanAttributes));
         }
-        return gaugeValues;
+        if (listening) {
+            resolvedGauge.matchingMBeans = matchingMBeans;
+            resolvedGauge.matchingMBeansRegistrationCount = registrationCount;
+        }
+        return matchingMBeans;
     }
 
     @RequiresNonNull("priorRawCounterValues")
-    private List<GaugeValue> collectGaugeValues(ObjectName objectName,
-            List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
+    private List<GaugeValue> collectGaugeValues(ResolvedGauge resolvedGauge,
+            ResolvedMBean resolvedMBean) {
         long captureTime = clock.currentTimeMillis();
+        ObjectName objectName = resolvedMBean.objectName;
+        String mbeanObjectName = resolvedMBean.mbeanObjectName;
+        List<ImmutableMBeanAttribute> mbeanAttributes = resolvedGauge.mbeanAttributes;
+        List<PlatformMXBeanAttributes> platformAttributes =
+                getPlatformAttributes(resolvedGauge, resolvedMBean);
+        AttributeList attributeList = null;
+        if (platformAttributes == null && resolvedGauge.attributeNames.length > 1) {
+            // read all attributes of the mbean in one call, any attribute that is missing from the
+            // result is read again individually below in order to report the error
+            try {
+                attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                        resolvedGauge.attributeNames);
+            } catch (InstanceNotFoundException e) {
+                logger.debug(e.getMessage(), e);
+                logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+                return ImmutableList.of();
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
-        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+        for (int i = 0; i < mbeanAttributes.size(); i++) {
+            MBeanAttribute mbeanAttribute = mbeanAttributes.get(i);
             String mbeanAttributeName = mbeanAttribute.name();
             Object attributeValue;
             try {
-                if (mbeanAttributeName.contains(".")) {
-                    String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
-                    CompositeData compositeData = (CompositeData) attributeValue;
-                    if (compositeData == null) {
-                        // this is valid, e.g. attribute LastGcInfo on mbean
-                        // java.lang:type=GarbageCollector,name=*
-                        // prior to first GC, this attribute value is null
+                if (platformAttributes != null) {
+                    attributeValue = platformAttributes.get(i).read();
+                    if (attributeValue == null) {
                         continue;
                     }
-                    attributeValue = compositeData.get(path[1]);
                 } else {
-                    attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                    String attributeName = resolvedGauge.attributeNamesByMBeanAttribute[i];
+                    Attribute attribute = findAttribute(attributeList, attributeName);
+                    if (attribute == null) {
+                        attributeValue =
+                                lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+                    } else {
+                        attributeValue = attribute.getValue();
+                    }
+                    String compositeKey = resolvedGauge.compositeKeys[i];
+                    if (compositeKey != null) {
+                        CompositeData compositeData = (CompositeData) attributeValue;
+                        if (compositeData == null) {
+                            // this is valid, e.g. attribute LastGcInfo on mbean
+                            // java.lang:type=GarbageCollector,name=*
+                            // prior to first GC, this attribute value is null
+                            continue;
+                        }
+                        attributeValue = compositeData.get(compositeKey);
+                    }
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -232,18 +380,9 @@ class GaugeCollector extends ScheduledRunnable {
                         "MBean attribute value is not a number or string");
             }
             if (value != null) {
-                StringBuilder gaugeName = new StringBuilder(mbeanObjectName.length() + 1
-                        + mbeanAttributeName.length() + "[counter]".length());
-                gaugeName.append(mbeanObjectName);
-                gaugeName.append(':');
-                gaugeName.append(mbeanAttributeName);
+                String gaugeName = resolvedMBean.gaugeNames[i];
                 if (mbeanAttribute.counter()) {
-                    // "[counter]" suffix is so gauge name (and gauge id) will change if gauge is
-                    // switched between counter and non-counter (which will prevent counter and
-                    // non-counter values showing up in same chart line)
-                    gaugeName.append("[counter]");
-                    String gaugeNameStr = gaugeName.toString();
-                    RawCounterValue priorRawCounterValue = priorRawCounterValues.get(gaugeNameStr);
+                    RawCounterValue priorRawCounterValue = priorRawCounterValues.get(gaugeName);
                     long captureTick = ticker.read();
                     if (priorRawCounterValue != null) {
                         long intervalNanos = captureTick - priorRawCounterValue.captureTick();
@@ -251,17 +390,17 @@ class GaugeCollector extends ScheduledRunnable {
                         double averageDeltaPerSecond =
                                 1000000000 * (value - priorRawCounterValue.value()) / intervalNanos;
                         gaugeValues.add(GaugeValue.newBuilder()
-                                .setGaugeName(gaugeNameStr)
+                                .setGaugeName(gaugeName)
                                 .setCaptureTime(captureTime)
                                 .setValue(averageDeltaPerSecond)
                                 .setWeight(intervalNanos)
                                 .build());
                     }
-                    priorRawCounterValues.put(gaugeNameStr,
+                    priorRawCounterValues.put(gaugeName,
                             ImmutableRawCounterValue.of(value, captureTick));
                 } else {
                     gaugeValues.add(GaugeValue.newBuilder()
-                            .setGaugeName(gaugeName.toString())
+                            .setGaugeName(gaugeName)
                             .setCaptureTime(captureTime)
                             .setValue(value)
                             .setWeight(1)
@@ -272,6 +411,32 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private @Nullable List<PlatformMXBeanAttributes> getPlatformAttributes(
+            ResolvedGauge resolvedGauge, ResolvedMBean resolvedMBean) {
+        // waiting for the mbean server to be initialized before touching the platform MXBeans,
+        // see LazyPlatformMBeanServer
+        if (!resolvedMBean.platformAttributesResolved && mbeanServerInitialized) {
+            resolvedMBean.platformAttributes = PlatformMXBeanAttributes
+                    .create(resolvedMBean.objectName, resolvedGauge.mbeanAttributes);
+            resolvedMBean.platformAttributesResolved = true;
+        }
+        return resolvedMBean.platformAttributes;
+    }
+
+    private static @Nullable Attribute findAttribute(@Nullable AttributeList attributeList,
+            String attributeName) {
+        if (attributeList == null) {
+            return null;
+        }
+        for (Object item : attributeList) {
+            Attribute attribute = (Attribute) item;
+            if (attribute.getName().equals(attributeName)) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -327,4 +492,73 @@ class GaugeCollector extends ScheduledRunnable {
         double value();
         long captureTick();
     }
+
+    private static class ResolvedGauge {
+
+        private final ObjectName objectName;
+        private final List<ImmutableMBeanAttribute> mbeanAttributes;
+
+        // distinct attribute names to read from each mbean (composite attribute names like
+        // "HeapMemoryUsage.used" are read as "HeapMemoryUsage")
+        private final String[] attributeNames;
+        private final String[] attributeNamesByMBeanAttribute;
+        private final @Nullable String /*@Nullable*/ [] compositeKeys;
+
+        // only used for non-pattern object names
+        private @Nullable ResolvedMBean mbean;
+
+        // only used for pattern object names
+        private @Nullable List<ResolvedMBean> matchingMBeans;
+        private long matchingMBeansRegistrationCount;
+
+        private ResolvedGauge(ObjectName objectName,
+                List<ImmutableMBeanAttribute> mbeanAttributes) {
+            this.objectName = objectName;
+            this.mbeanAttributes = mbeanAttributes;
+            Set<String> attributeNames = Sets.newLinkedHashSet();
+            attributeNamesByMBeanAttribute = new String[mbeanAttributes.size()];
+            compositeKeys = new String[mbeanAttributes.size()];
+            for (int i = 0; i < mbeanAttributes.size(); i++) {
+                String mbeanAttributeName = mbeanAttributes.get(i).name();
+                if (mbeanAttributeName.contains(".")) {
+                    String[] path = mbeanAttributeName.split("\\.");
+                    attributeNamesByMBeanAttribute[i] = path[0];
+                    compositeKeys[i] = path[1];
+                } else {
+                    attributeNamesByMBeanAttribute[i] = mbeanAttributeName;
+                }
+                attributeNames.add(attributeNamesByMBeanAttribute[i]);
+            }
+            this.attributeNames = attributeNames.toArray(new String[attributeNames.size()]);
+        }
+    }
+
+    private static class ResolvedMBean {
+
+        private final ObjectName objectName;
+        // this is the object name used in gauge names and log messages
+        private final String mbeanObjectName;
+        private final String[] gaugeNames;
+
+        private boolean platformAttributesResolved;
+        private @Nullable List<PlatformMXBeanAttributes> platformAttributes;
+
+        private ResolvedMBean(ObjectName objectName, String mbeanObjectName,
+                List<ImmutableMBeanAttribute> mbeanAttributes) {
+            this.objectName = objectName;
+            this.mbeanObjectName = mbeanObjectName;
+            gaugeNames = new String[mbeanAttributes.size()];
+            for (int i = 0; i < mbeanAttributes.size(); i++) {
+                MBeanAttribute mbeanAttribute = mbeanAttributes.get(i);
+                String gaugeName = mbeanObjectName + ':' + mbeanAttribute.name();
+                if (mbeanAttribute.counter()) {
+                    // "[counter]" suffix is so gauge name (and gauge id) will change if gauge is
+                    // switched between counter and non-counter (which will prevent counter and
+                    // non-counter values showing up in same chart line)
+                    gaugeName += "[counter]";
+                }
+                gaugeNames[i] = gaugeName;
+            }
+        }
+    }
 }
@@ -95,7 +95,8 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                 createBackgroundExecutorSupplier();
 
         final AgentModule agentModule = new AgentModule(clock, ticker, pluginCache, configService,
-                backgroundExecutorSupplier, collectorProxy, instrumentation, tmpDir);
+                backgroundExecutorSupplier, collectorProxy, instrumentation, tmpDir,
+                glowrootVersion);
 
         final ScheduledExecutorService backgroundExecutor = backgroundExecutorSupplier.get();
 
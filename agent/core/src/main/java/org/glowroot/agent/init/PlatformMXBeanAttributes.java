@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.config.GaugeConfig.MBeanAttribute;
+
+// reads attributes of the standard java.lang platform mbeans (the ones used by the default gauges)
+// directly from the platform MXBeans, which avoids the mbean server lookup and the conversion of
+// the attribute values to open types (e.g. MemoryUsage to CompositeData) on every collection
+abstract class PlatformMXBeanAttributes {
+
+    private PlatformMXBeanAttributes() {}
+
+    // returns null if the value is not available, e.g. the usage of a memory pool that is no
+    // longer valid (this is the same as a null composite data attribute value)
+    abstract @Nullable Object read();
+
+    // returns null if the object name is not one of the supported platform mbeans, or if any of
+    // the attributes are not supported, in which case the attributes are read from the mbean server
+    static @Nullable List<PlatformMXBeanAttributes> create(ObjectName objectName,
+            List<? extends MBeanAttribute> mbeanAttributes) {
+        if (!objectName.getDomain().equals("java.lang")) {
+            return null;
+        }
+        String type = objectName.getKeyProperty("type");
+        String name = objectName.getKeyProperty("name");
+        int keyCount = objectName.getKeyPropertyList().size();
+        if ("Memory".equals(type) && keyCount == 1) {
+            return createMemoryAttributes(ManagementFactory.getMemoryMXBean(), mbeanAttributes);
+        }
+        if ("MemoryPool".equals(type) && name != null && keyCount == 2) {
+            for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (memoryPool.getName().equals(name)) {
+                    return createMemoryPoolAttributes(memoryPool, mbeanAttributes);
+                }
+            }
+            return null;
+        }
+        if ("GarbageCollector".equals(type) && name != null && keyCount == 2) {
+            for (GarbageCollectorMXBean garbageCollector : ManagementFactory
+                    .getGarbageCollectorMXBeans()) {
+                if (garbageCollector.getName().equals(name)) {
+                    return createGarbageCollectorAttributes(garbageCollector, mbeanAttributes);
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private static @Nullable List<PlatformMXBeanAttributes> createMemoryAttributes(
+            final MemoryMXBean memory, List<? extends MBeanAttribute> mbeanAttributes) {
+        List<PlatformMXBeanAttributes> attributes = Lists.newArrayList();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String[] path = mbeanAttribute.name().split("\\.");
+            if (path.length != 2 || !isMemoryUsageItem(path[1])) {
+                return null;
+            }
+            final String item = path[1];
+            if (path[0].equals("HeapMemoryUsage")) {
+                attributes.add(new PlatformMXBeanAttributes() {
+                    @Override
+                    @Nullable Object read() {
+                        return getMemoryUsageItem(memory.getHeapMemoryUsage(), item);
+                    }
+                });
+            } else if (path[0].equals("NonHeapMemoryUsage")) {
+                attributes.add(new PlatformMXBeanAttributes() {
+                    @Override
+                    @Nullable Object read() {
+                        return getMemoryUsageItem(memory.getNonHeapMemoryUsage(), item);
+                    }
+                });
+            } else {
+                return null;
+            }
+        }
+        return attributes;
+    }
+
+    private static @Nullable List<PlatformMXBeanAttributes> createMemoryPoolAttributes(
+            final MemoryPoolMXBean memoryPool, List<? extends MBeanAttribute> mbeanAttributes) {
+        List<PlatformMXBeanAttributes> attributes = Lists.newArrayList();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String[] path = mbeanAttribute.name().split("\\.");
+            if (path.length != 2 || !isMemoryUsageItem(path[1])) {
+                return null;
+            }
+            final String item = path[1];
+            if (path[0].equals("Usage")) {
+                attributes.add(new PlatformMXBeanAttributes() {
+                    @Override
+                    @Nullable Object read() {
+                        return getMemoryUsageItem(memoryPool.getUsage(), item);
+                    }
+                });
+            } else if (path[0].equals("PeakUsage")) {
+                attributes.add(new PlatformMXBeanAttributes() {
+                    @Override
+                    @Nullable Object read() {
+                        return getMemoryUsageItem(memoryPool.getPeakUsage(), item);
+                    }
+                });
+            } else {
+                return null;
+            }
+        }
+        return attributes;
+    }
+
+    private static @Nullable List<PlatformMXBeanAttributes> createGarbageCollectorAttributes(
+            final GarbageCollectorMXBean garbageCollector,
+            List<? extends MBeanAttribute> mbeanAttributes) {
+        List<PlatformMXBeanAttributes> attributes = Lists.newArrayList();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            if (mbeanAttributeName.equals("CollectionCount")) {
+                attributes.add(new PlatformMXBeanAttributes() {
+                    @Override
+                    Object read() {
+                        return garbageCollector.getCollectionCount();
+                    }
+                });
+            } else if (mbeanAttributeName.equals("CollectionTime")) {
+                attributes.add(new PlatformMXBeanAttributes() {
+                    @Override
+                    Object read() {
+                        return garbageCollector.getCollectionTime();
+                    }
+                });
+            } else {
+                return null;
+            }
+        }
+        return attributes;
+    }
+
+    private static boolean isMemoryUsageItem(String item) {
+        return item.equals("init") || item.equals("used") || item.equals("committed")
+                || item.equals("max");
+    }
+
+    private static @Nullable Object getMemoryUsageItem(@Nullable MemoryUsage memoryUsage,
+            String item) {
+        if (memoryUsage == null) {
+            return null;
+        }
+        if (item.equals("init")) {
+            return memoryUsage.getInit();
+        } else if (item.equals("used")) {
+            return memoryUsage.getUsed();
+        } else if (item.equals("committed")) {
+            return memoryUsage.getCommitted();
+        } else {
+            return memoryUsage.getMax();
+        }
+    }
+}
@@ -70,6 +70,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Availability;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpFileInfo;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.IncrementalThreadDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpRequest.MBeanDumpKind;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanMeta;
@@ -109,8 +110,12 @@ public class LiveJvmServiceImpl implements LiveJvmService {
     }
 
     @Override
-    public ThreadDump getThreadDump(String agentId) {
-        return threadDumpService.getThreadDump();
+    public ThreadDump getThreadDump(String agentId, int maxStackDepth) {
+        return threadDumpService.getThreadDump(maxStackDepth);
+    }
+
+    public IncrementalThreadDump getIncrementalThreadDump(long baseVersion, int maxStackDepth) {
+        return threadDumpService.getIncrementalThreadDump(baseVersion, maxStackDepth);
     }
 
     @Override
@@ -248,7 +248,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
 
     private TraceReader createTraceReader(Transaction transaction) throws Exception {
         if (transaction.isCompleted()) {
-            return TraceCreator.createTraceReaderForCompleted(transaction, true);
+            return TraceCreator.createTraceReaderForCompleted(transaction, true, 0);
         } else {
             return TraceCreator.createTraceReaderForPartial(transaction, clock.currentTimeMillis(),
                     ticker.read());
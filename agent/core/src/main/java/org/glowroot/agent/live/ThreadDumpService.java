@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,17 +20,18 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +41,7 @@ import org.glowroot.agent.impl.Transaction;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.common.util.NotAvailableAware;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.IncrementalThreadDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
@@ -47,16 +49,112 @@ class ThreadDumpService {
 
     private static final Logger logger = LoggerFactory.getLogger(ThreadDumpService.class);
 
+    // the dictionaries are started over once the frame dictionary reaches this size, in order to
+    // bound the memory retained between incremental thread dumps
+    private static final int MAX_INCREMENTAL_FRAMES = 100000;
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionCollector transactionCollector;
 
+    // state of the last incremental thread dump, which the next incremental thread dump is encoded
+    // relative to (there is only one central connection, so a single lineage is enough)
+    @GuardedBy("this")
+    private long incrementalVersion;
+    @GuardedBy("this")
+    private final Map<StackTraceElement, Integer> frameIndexes = Maps.newHashMap();
+    @GuardedBy("this")
+    private final Map<StackKey, Integer> stackIndexes = Maps.newHashMap();
+    @GuardedBy("this")
+    private Map<Long, IncrementalThreadDump.Thread> priorThreads = Maps.newHashMap();
+
     ThreadDumpService(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector) {
         this.transactionRegistry = transactionRegistry;
         this.transactionCollector = transactionCollector;
     }
 
-    ThreadDump getThreadDump() {
+    ThreadDump getThreadDump(int maxStackDepth) {
+        Snapshot snapshot = captureSnapshot(maxStackDepth);
+        ThreadDump.Builder builder = ThreadDump.newBuilder();
+        for (TransactionThreadInfo transactionThreadInfo : snapshot.transactionThreadInfos) {
+            ThreadDump.Transaction.Builder transactionBuilder = ThreadDump.Transaction.newBuilder()
+                    .setHeadline(transactionThreadInfo.headline)
+                    .setTransactionType(transactionThreadInfo.transactionType)
+                    .setTransactionName(transactionThreadInfo.transactionName)
+                    .setTotalDurationNanos(transactionThreadInfo.totalDurationNanos);
+            if (!NotAvailableAware.isNA(transactionThreadInfo.totalCpuNanos)) {
+                transactionBuilder.setTotalCpuNanos(
+                        OptionalInt64.newBuilder().setValue(transactionThreadInfo.totalCpuNanos));
+            }
+            if (transactionThreadInfo.traceId != null) {
+                transactionBuilder.setTraceId(transactionThreadInfo.traceId);
+            }
+            for (ThreadInfo auxThreadInfo : transactionThreadInfo.threadInfos) {
+                transactionBuilder.addThread(createProtobuf(auxThreadInfo));
+            }
+            builder.addTransaction(transactionBuilder);
+        }
+        for (ThreadInfo unmatchedThreadInfo : snapshot.unmatchedThreadInfos) {
+            builder.addUnmatchedThread(createProtobuf(unmatchedThreadInfo));
+        }
+        if (snapshot.currentThreadInfo != null) {
+            builder.setThreadDumpingThread(createProtobuf(snapshot.currentThreadInfo));
+        }
+        return builder.build();
+    }
+
+    synchronized IncrementalThreadDump getIncrementalThreadDump(long baseVersion,
+            int maxStackDepth) {
+        Snapshot snapshot = captureSnapshot(maxStackDepth);
+        IncrementalThreadDump.Builder builder = IncrementalThreadDump.newBuilder();
+        if (baseVersion == 0 || baseVersion != incrementalVersion
+                || frameIndexes.size() > MAX_INCREMENTAL_FRAMES) {
+            // start over with empty dictionaries
+            frameIndexes.clear();
+            stackIndexes.clear();
+            priorThreads = Maps.newHashMap();
+        } else {
+            builder.setBaseVersion(baseVersion);
+        }
+        Map<Long, IncrementalThreadDump.Thread> threads = Maps.newHashMap();
+        for (TransactionThreadInfo transactionThreadInfo : snapshot.transactionThreadInfos) {
+            IncrementalThreadDump.Transaction.Builder transactionBuilder =
+                    IncrementalThreadDump.Transaction.newBuilder()
+                            .setHeadline(transactionThreadInfo.headline)
+                            .setTransactionType(transactionThreadInfo.transactionType)
+                            .setTransactionName(transactionThreadInfo.transactionName)
+                            .setTotalDurationNanos(transactionThreadInfo.totalDurationNanos);
+            if (!NotAvailableAware.isNA(transactionThreadInfo.totalCpuNanos)) {
+                transactionBuilder.setTotalCpuNanos(
+                        OptionalInt64.newBuilder().setValue(transactionThreadInfo.totalCpuNanos));
+            }
+            if (transactionThreadInfo.traceId != null) {
+                transactionBuilder.setTraceId(transactionThreadInfo.traceId);
+            }
+            for (ThreadInfo threadInfo : transactionThreadInfo.threadInfos) {
+                addIncrementalThread(threadInfo, threads, builder);
+                transactionBuilder.addThreadId(threadInfo.getThreadId());
+            }
+            builder.addTransaction(transactionBuilder);
+        }
+        for (ThreadInfo unmatchedThreadInfo : snapshot.unmatchedThreadInfos) {
+            addIncrementalThread(unmatchedThreadInfo, threads, builder);
+        }
+        if (snapshot.currentThreadInfo != null) {
+            addIncrementalThread(snapshot.currentThreadInfo, threads, builder);
+            builder.setThreadDumpingThreadId(snapshot.currentThreadInfo.getThreadId());
+        }
+        for (Long priorThreadId : priorThreads.keySet()) {
+            if (!threads.containsKey(priorThreadId)) {
+                builder.addRemovedThreadId(priorThreadId);
+            }
+        }
+        priorThreads = threads;
+        return builder.setVersion(++incrementalVersion)
+                .build();
+    }
+
+    private Snapshot captureSnapshot(int maxStackDepth) {
         ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         List<ThreadContextImpl> activeThreadContexts = Lists.newArrayList();
         for (Transaction transaction : transactionRegistry.getTransactions()) {
@@ -67,8 +165,14 @@ class ThreadDumpService {
             activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
         }
         @Nullable
-        ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadBean.getAllThreadIds(),
-                threadBean.isObjectMonitorUsageSupported(), false);
+        ThreadInfo[] threadInfos;
+        if (maxStackDepth > 0) {
+            // this variant does not capture locked monitors
+            threadInfos = threadBean.getThreadInfo(threadBean.getAllThreadIds(), maxStackDepth);
+        } else {
+            threadInfos = threadBean.getThreadInfo(threadBean.getAllThreadIds(),
+                    threadBean.isObjectMonitorUsageSupported(), false);
+        }
         long currentThreadId = Thread.currentThread().getId();
         Map<Long, ThreadInfo> unmatchedThreadInfos = Maps.newHashMap();
         ThreadInfo currentThreadInfo = null;
@@ -105,47 +209,19 @@ class ThreadDumpService {
                 transactionThreadInfo = new TransactionThreadInfo(transaction.getHeadline(),
                         transaction.getTransactionType(), transaction.getTransactionName(),
                         transaction.getDurationNanos(), transaction.getTotalCpuNanos(),
-                        transactionCollector.shouldStoreSlow(transaction));
+                        transactionCollector.shouldStoreSlow(transaction) ? traceId : null);
                 transactionThreadInfos.put(traceId, transactionThreadInfo);
             }
             transactionThreadInfo.threadInfos.add(threadInfo);
         }
-        List<ThreadDump.Transaction> transactions = Lists.newArrayList();
-        for (Entry<String, TransactionThreadInfo> entry : transactionThreadInfos.entrySet()) {
-            TransactionThreadInfo value = entry.getValue();
-            ThreadDump.Transaction.Builder builder = ThreadDump.Transaction.newBuilder()
-                    .setHeadline(value.headline)
-                    .setTransactionType(value.transactionType)
-                    .setTransactionName(value.transactionName)
-                    .setTotalDurationNanos(value.totalDurationNanos);
-            if (!NotAvailableAware.isNA(value.totalCpuNanos)) {
-                builder.setTotalCpuNanos(OptionalInt64.newBuilder().setValue(value.totalCpuNanos));
-            }
-            if (value.shouldStoreSlow) {
-                builder.setTraceId(entry.getKey());
-            }
-            for (ThreadInfo auxThreadInfo : value.threadInfos) {
-                builder.addThread(createProtobuf(auxThreadInfo));
-            }
-            transactions.add(builder.build());
-        }
-        List<ThreadDump.Thread> unmatchedThreads = Lists.newArrayList();
-        for (ThreadInfo unmatchedThreadInfo : unmatchedThreadInfos.values()) {
-            unmatchedThreads.add(createProtobuf(unmatchedThreadInfo));
-        }
-
         // sort descending by total time
-        Collections.sort(transactions, new TransactionOrdering());
+        List<TransactionThreadInfo> sortedTransactionThreadInfos = new TransactionOrdering()
+                .sortedCopy(transactionThreadInfos.values());
         // sort descending by thread id (same as jstack)
-        Collections.sort(unmatchedThreads, new UnmatchedThreadOrdering());
-
-        ThreadDump.Builder builder = ThreadDump.newBuilder()
-                .addAllTransaction(transactions)
-                .addAllUnmatchedThread(unmatchedThreads);
-        if (currentThreadInfo != null) {
-            builder.setThreadDumpingThread(createProtobuf(currentThreadInfo));
-        }
-        return builder.build();
+        List<ThreadInfo> sortedUnmatchedThreadInfos =
+                new UnmatchedThreadOrdering().sortedCopy(unmatchedThreadInfos.values());
+        return new Snapshot(sortedTransactionThreadInfos, sortedUnmatchedThreadInfos,
+                currentThreadInfo);
     }
 
     private ThreadDump.Thread createProtobuf(ThreadInfo threadInfo) {
@@ -155,9 +231,7 @@ class ThreadDumpService {
                 .setState(threadInfo.getThreadState().name());
         LockInfo lockInfo = threadInfo.getLockInfo();
         if (lockInfo != null) {
-            builder.setLockInfo(ThreadDump.LockInfo.newBuilder()
-                    .setIdentityHashCode(lockInfo.getIdentityHashCode())
-                    .setClassName(lockInfo.getClassName()));
+            builder.setLockInfo(createProtobuf(lockInfo));
             long lockOwnerId = threadInfo.getLockOwnerId();
             if (lockOwnerId != -1) {
                 builder.setLockOwnerId(OptionalInt64.newBuilder().setValue(lockOwnerId));
@@ -165,19 +239,13 @@ class ThreadDumpService {
         }
         List<ThreadDump.StackTraceElement.Builder> stackTraceElements = Lists.newArrayList();
         for (StackTraceElement stackTraceElement : threadInfo.getStackTrace()) {
-            stackTraceElements.add(ThreadDump.StackTraceElement.newBuilder()
-                    .setClassName(stackTraceElement.getClassName())
-                    .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
-                    .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
-                    .setLineNumber(stackTraceElement.getLineNumber()));
+            stackTraceElements.add(createProtobuf(stackTraceElement));
         }
         for (MonitorInfo lockedMonitor : threadInfo.getLockedMonitors()) {
             int lockedStackDepth = lockedMonitor.getLockedStackDepth();
             if (lockedStackDepth >= 0) {
                 stackTraceElements.get(lockedStackDepth)
-                        .addMonitorInfo(ThreadDump.LockInfo.newBuilder()
-                                .setClassName(lockedMonitor.getClassName())
-                                .setIdentityHashCode(lockedMonitor.getIdentityHashCode()));
+                        .addMonitorInfo(createProtobuf(lockedMonitor));
             }
         }
         for (ThreadDump.StackTraceElement.Builder stackTraceElement : stackTraceElements) {
@@ -186,17 +254,99 @@ class ThreadDumpService {
         return builder.build();
     }
 
-    private static class TransactionOrdering extends Ordering<ThreadDump.Transaction> {
+    @GuardedBy("this")
+    private void addIncrementalThread(ThreadInfo threadInfo,
+            Map<Long, IncrementalThreadDump.Thread> threads,
+            IncrementalThreadDump.Builder builder) {
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        int[] stackFrameIndexes = new int[stackTrace.length];
+        for (int i = 0; i < stackTrace.length; i++) {
+            Integer frameIndex = frameIndexes.get(stackTrace[i]);
+            if (frameIndex == null) {
+                frameIndex = frameIndexes.size();
+                frameIndexes.put(stackTrace[i], frameIndex);
+                builder.addNewFrame(createProtobuf(stackTrace[i]));
+            }
+            stackFrameIndexes[i] = frameIndex;
+        }
+        StackKey stackKey = new StackKey(stackFrameIndexes);
+        Integer stackIndex = stackIndexes.get(stackKey);
+        if (stackIndex == null) {
+            stackIndex = stackIndexes.size();
+            stackIndexes.put(stackKey, stackIndex);
+            builder.addNewStack(IncrementalThreadDump.Stack.newBuilder()
+                    .addAllFrameIndex(Ints.asList(stackFrameIndexes)));
+        }
+        IncrementalThreadDump.Thread.Builder threadBuilder =
+                IncrementalThreadDump.Thread.newBuilder()
+                        .setId(threadInfo.getThreadId())
+                        .setName(threadInfo.getThreadName())
+                        .setState(threadInfo.getThreadState().name())
+                        .setStackIndex(stackIndex);
+        LockInfo lockInfo = threadInfo.getLockInfo();
+        if (lockInfo != null) {
+            threadBuilder.setLockInfo(createProtobuf(lockInfo));
+            long lockOwnerId = threadInfo.getLockOwnerId();
+            if (lockOwnerId != -1) {
+                threadBuilder.setLockOwnerId(OptionalInt64.newBuilder().setValue(lockOwnerId));
+            }
+        }
+        for (MonitorInfo lockedMonitor : threadInfo.getLockedMonitors()) {
+            int lockedStackDepth = lockedMonitor.getLockedStackDepth();
+            if (lockedStackDepth >= 0) {
+                threadBuilder.addLockedMonitor(IncrementalThreadDump.LockedMonitor.newBuilder()
+                        .setStackDepth(lockedStackDepth)
+                        .setLockInfo(createProtobuf(lockedMonitor)));
+            }
+        }
+        IncrementalThreadDump.Thread thread = threadBuilder.build();
+        threads.put(thread.getId(), thread);
+        if (!thread.equals(priorThreads.get(thread.getId()))) {
+            builder.addChangedThread(thread);
+        }
+    }
+
+    private static ThreadDump.StackTraceElement.Builder createProtobuf(
+            StackTraceElement stackTraceElement) {
+        return ThreadDump.StackTraceElement.newBuilder()
+                .setClassName(stackTraceElement.getClassName())
+                .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
+                .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
+                .setLineNumber(stackTraceElement.getLineNumber());
+    }
+
+    private static ThreadDump.LockInfo createProtobuf(LockInfo lockInfo) {
+        return ThreadDump.LockInfo.newBuilder()
+                .setClassName(lockInfo.getClassName())
+                .setIdentityHashCode(lockInfo.getIdentityHashCode())
+                .build();
+    }
+
+    private static class TransactionOrdering extends Ordering<TransactionThreadInfo> {
         @Override
-        public int compare(ThreadDump.Transaction left, ThreadDump.Transaction right) {
-            return Longs.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
+        public int compare(TransactionThreadInfo left, TransactionThreadInfo right) {
+            return Longs.compare(right.totalDurationNanos, left.totalDurationNanos);
         }
     }
 
-    private static class UnmatchedThreadOrdering extends Ordering<ThreadDump.Thread> {
+    private static class UnmatchedThreadOrdering extends Ordering<ThreadInfo> {
         @Override
-        public int compare(ThreadDump.Thread left, ThreadDump.Thread right) {
-            return Longs.compare(right.getId(), left.getId());
+        public int compare(ThreadInfo left, ThreadInfo right) {
+            return Longs.compare(right.getThreadId(), left.getThreadId());
+        }
+    }
+
+    private static class Snapshot {
+
+        private final List<TransactionThreadInfo> transactionThreadInfos;
+        private final List<ThreadInfo> unmatchedThreadInfos;
+        private final @Nullable ThreadInfo currentThreadInfo;
+
+        private Snapshot(List<TransactionThreadInfo> transactionThreadInfos,
+                List<ThreadInfo> unmatchedThreadInfos, @Nullable ThreadInfo currentThreadInfo) {
+            this.transactionThreadInfos = transactionThreadInfos;
+            this.unmatchedThreadInfos = unmatchedThreadInfos;
+            this.currentThreadInfo = currentThreadInfo;
         }
     }
 
@@ -207,19 +357,42 @@ class ThreadDumpService {
         private final String transactionName;
         private final long totalDurationNanos;
         private final long totalCpuNanos;
-        private final boolean shouldStoreSlow;
+        // only set if a trace will be stored for this transaction
+        private final @Nullable String traceId;
 
         private final List<ThreadInfo> threadInfos = Lists.newArrayList();
 
         private TransactionThreadInfo(String headline, String transactionType,
                 String transactionName, long totalDurationNanos, long totalCpuNanos,
-                boolean shouldStoreSlow) {
+                @Nullable String traceId) {
             this.headline = headline;
             this.transactionType = transactionType;
             this.transactionName = transactionName;
             this.totalDurationNanos = totalDurationNanos;
             this.totalCpuNanos = totalCpuNanos;
-            this.shouldStoreSlow = shouldStoreSlow;
+            this.traceId = traceId;
+        }
+    }
+
+    private static class StackKey {
+
+        private final int[] frameIndexes;
+        private final int hashCode;
+
+        private StackKey(int[] frameIndexes) {
+            this.frameIndexes = frameIndexes;
+            hashCode = Arrays.hashCode(frameIndexes);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            return obj instanceof StackKey
+                    && Arrays.equals(frameIndexes, ((StackKey) obj).frameIndexes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
         }
     }
 }
@@ -83,6 +83,14 @@ public class AsyncTimerImpl implements CommonTimerImpl {
         return totalNanos == -1;
     }
 
+    public @Nullable AsyncTimerImpl getNextAsyncTimer() {
+        return nextAsyncTimer;
+    }
+
+    public void setNextAsyncTimer(@Nullable AsyncTimerImpl nextAsyncTimer) {
+        this.nextAsyncTimer = nextAsyncTimer;
+    }
+
     @Override
     public TimerImplSnapshot getSnapshot() {
         long totalNanos = this.totalNanos;
@@ -47,7 +47,7 @@ class MutableQuery {
         return totalRows;
     }
 
-    void addToTotalDurationNanos(long totalDurationNanos) {
+    void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos.add(totalDurationNanos);
     }
 
@@ -79,7 +79,7 @@ class MutableQuery {
 
         private double value;
 
-        public void add(long value) {
+        public void add(double value) {
             this.value += value;
         }
 
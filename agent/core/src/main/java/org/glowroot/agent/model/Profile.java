@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -73,13 +73,16 @@ public class Profile {
 
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
-    public void addStackTrace(ThreadInfo threadInfo, int limit) {
+    //
+    // returns the number of profile tree nodes that were created by adding the stack trace
+    public int addStackTrace(ThreadInfo threadInfo, int limit) {
         synchronized (lock) {
             if (sampleCount >= limit) {
-                return;
+                return 0;
             }
             List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
             Thread.State threadState = threadInfo.getThreadState();
+            sampleCount++;
             if (profile == null) {
                 unmergedStackTraces.add(stackTrace);
                 unmergedStackTraceThreadStates.add(threadState);
@@ -89,11 +92,13 @@ public class Profile {
                     mergeTheUnmergedInto(profile);
                     unmergedStackTraces.clear();
                     unmergedStackTraceThreadStates.clear();
+                    return profile.getNodeCount();
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                return 0;
             }
-            sampleCount++;
+            int priorNodeCount = profile.getNodeCount();
+            profile.merge(stackTrace, threadState);
+            return profile.getNodeCount() - priorNodeCount;
         }
     }
 
@@ -15,8 +15,6 @@
  */
 package org.glowroot.agent.model;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -28,18 +26,18 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.hash.Hashing;
-import com.google.common.primitives.Doubles;
 
 import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.model.QueryTable;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
-    // first key is query type, second key is query text
-    private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
-    private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
+    // key is query type, query table is keyed by query text
+    private final Map<String, QueryTable> queries = Maps.newHashMap();
     private final int limitPerQueryType;
     private final int maxMultiplierWhileBuilding;
 
@@ -54,59 +52,71 @@ public class QueryCollector {
             return ImmutableList.of();
         }
         List<Aggregate.QueriesByType> proto = Lists.newArrayList();
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            Map<String, MutableQuery> innerMap = outerEntry.getValue();
-            // + 1 is for possible limit exceeded bucket
-            List<Aggregate.Query> queries =
-                    Lists.newArrayListWithCapacity(innerMap.values().size() + 1);
-            for (Entry<String, MutableQuery> innerEntry : innerMap.entrySet()) {
-                queries.add(innerEntry.getValue().toAggregateProto(innerEntry.getKey(),
-                        sharedQueryTextCollector));
-            }
-            if (queries.size() > limitPerQueryType) {
-                sort(queries);
-                List<Aggregate.Query> exceededQueries =
-                        queries.subList(limitPerQueryType, queries.size());
-                queries = Lists.newArrayList(queries.subList(0, limitPerQueryType));
-                MutableQuery limitExceededBucket = limitExceededBuckets.get(outerEntry.getKey());
-                if (limitExceededBucket == null) {
-                    limitExceededBucket = new MutableQuery();
+        for (Entry<String, QueryTable> entry : queries.entrySet()) {
+            QueryTable table = entry.getValue();
+            Aggregate.QueriesByType.Builder builder = Aggregate.QueriesByType.newBuilder()
+                    .setType(entry.getKey());
+            int limitExceededBucketIndex = table.indexOf(LIMIT_EXCEEDED_BUCKET);
+            int count = limitExceededBucketIndex == -1 ? table.size() : table.size() - 1;
+            if (count > limitPerQueryType) {
+                int[] indexes = table.getIndexesByTotalDurationDesc(limitPerQueryType,
+                        limitExceededBucketIndex);
+                MutableQuery limitExceededBucket = new MutableQuery();
+                if (limitExceededBucketIndex != -1) {
+                    addTo(limitExceededBucket, table, limitExceededBucketIndex);
+                }
+                for (int i = limitPerQueryType; i < indexes.length; i++) {
+                    addTo(limitExceededBucket, table, indexes[i]);
                 }
-                for (Aggregate.Query exceededQuery : exceededQueries) {
-                    limitExceededBucket
-                            .addToTotalDurationNanos((long) exceededQuery.getTotalDurationNanos());
-                    limitExceededBucket.addToExecutionCount(exceededQuery.getExecutionCount());
-                    limitExceededBucket.addToTotalRows(exceededQuery.hasTotalRows(),
-                            exceededQuery.getTotalRows().getValue());
+                boolean limitExceededBucketAdded = false;
+                for (int i = 0; i < limitPerQueryType; i++) {
+                    int index = indexes[i];
+                    if (!limitExceededBucketAdded && limitExceededBucket
+                            .getTotalDurationNanos() > table.getTotalDurationNanos(index)) {
+                        builder.addQuery(limitExceededBucket.toAggregateProto(
+                                LIMIT_EXCEEDED_BUCKET, sharedQueryTextCollector));
+                        limitExceededBucketAdded = true;
+                    }
+                    builder.addQuery(toAggregateProto(table, index, sharedQueryTextCollector));
+                }
+                if (!limitExceededBucketAdded) {
+                    builder.addQuery(limitExceededBucket.toAggregateProto(LIMIT_EXCEEDED_BUCKET,
+                            sharedQueryTextCollector));
+                }
+            } else {
+                for (int index : table.getIndexesByTotalDurationDesc(Integer.MAX_VALUE, -1)) {
+                    builder.addQuery(toAggregateProto(table, index, sharedQueryTextCollector));
                 }
-                queries.add(limitExceededBucket.toAggregateProto(LIMIT_EXCEEDED_BUCKET,
-                        sharedQueryTextCollector));
-                // need to re-sort now including the limit exceeded bucket
-                sort(queries);
             }
-            proto.add(Aggregate.QueriesByType.newBuilder()
-                    .setType(outerEntry.getKey())
-                    .addAllQuery(queries)
-                    .build());
+            proto.add(builder.build());
         }
         return proto;
     }
 
     public void mergeQuery(String queryType, String queryText, long totalDurationNanos,
             long executionCount, boolean hasTotalRows, long totalRows) {
-        Map<String, MutableQuery> queriesForType = queries.get(queryType);
-        if (queriesForType == null) {
-            queriesForType = Maps.newHashMap();
-            queries.put(queryType, queriesForType);
+        QueryTable table = queries.get(queryType);
+        if (table == null) {
+            table = new QueryTable();
+            queries.put(queryType, table);
+        }
+        int index;
+        if (table.size() < limitPerQueryType * maxMultiplierWhileBuilding) {
+            index = table.getOrAdd(queryText, null);
+        } else {
+            index = table.indexOf(queryText);
+            if (index == -1) {
+                index = table.getOrAdd(LIMIT_EXCEEDED_BUCKET, null);
+            }
         }
-        mergeQuery(queryType, queryText, totalDurationNanos, executionCount, totalRows,
-                hasTotalRows, queriesForType);
+        table.add(index, totalDurationNanos, executionCount, hasTotalRows, totalRows);
     }
 
     public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
-                String fullQueryText = entry.getKey();
+        for (Entry<String, QueryTable> entry : queries.entrySet()) {
+            QueryTable table = entry.getValue();
+            for (int i = 0; i < table.size(); i++) {
+                String fullQueryText = table.getKey(i);
                 String truncatedQueryText;
                 String fullQueryTextSha1;
                 if (fullQueryText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
@@ -118,17 +128,17 @@ public class QueryCollector {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
                 }
-                MutableQuery query = entry.getValue();
-                collector.mergeQuery(outerEntry.getKey(), truncatedQueryText, fullQueryTextSha1,
-                        query.getTotalDurationNanos(), query.getExecutionCount(),
-                        query.hasTotalRows(), query.getTotalRows());
+                collector.mergeQuery(entry.getKey(), truncatedQueryText, fullQueryTextSha1,
+                        table.getTotalDurationNanos(i), table.getExecutionCount(i),
+                        table.hasTotalRows(i), table.getTotalRows(i));
             }
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
+        for (QueryTable table : queries.values()) {
+            for (int i = 0; i < table.size(); i++) {
+                String fullQueryText = table.getKey(i);
                 if (fullQueryText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
@@ -141,35 +151,22 @@ public class QueryCollector {
         return null;
     }
 
-    private void mergeQuery(String queryType, String queryText, long totalDurationNanos,
-            long executionCount, long totalRows, boolean hasTotalRows,
-            Map<String, MutableQuery> queriesForType) {
-        MutableQuery aggregateQuery = queriesForType.get(queryText);
-        if (aggregateQuery == null) {
-            if (queriesForType.size() < limitPerQueryType * maxMultiplierWhileBuilding) {
-                aggregateQuery = new MutableQuery();
-                queriesForType.put(queryText, aggregateQuery);
-            } else {
-                aggregateQuery = limitExceededBuckets.get(queryType);
-                if (aggregateQuery == null) {
-                    aggregateQuery = new MutableQuery();
-                    limitExceededBuckets.put(queryType, aggregateQuery);
-                }
-            }
-        }
-        aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
-        aggregateQuery.addToExecutionCount(executionCount);
-        aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
+    private static void addTo(MutableQuery query, QueryTable table, int index) {
+        query.addToTotalDurationNanos(table.getTotalDurationNanos(index));
+        query.addToExecutionCount(table.getExecutionCount(index));
+        query.addToTotalRows(table.hasTotalRows(index), table.getTotalRows(index));
     }
 
-    private static void sort(List<Aggregate.Query> queries) {
-        // reverse sort by total
-        Collections.sort(queries, new Comparator<Aggregate.Query>() {
-            @Override
-            public int compare(Aggregate.Query left, Aggregate.Query right) {
-                return Doubles.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
-            }
-        });
+    private static Aggregate.Query toAggregateProto(QueryTable table, int index,
+            SharedQueryTextCollector sharedQueryTextCollector) {
+        Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
+                .setSharedQueryTextIndex(sharedQueryTextCollector.getIndex(table.getKey(index)))
+                .setTotalDurationNanos(table.getTotalDurationNanos(index))
+                .setExecutionCount(table.getExecutionCount(index));
+        if (table.hasTotalRows(index)) {
+            builder.setTotalRows(OptionalInt64.newBuilder().setValue(table.getTotalRows(index)));
+        }
+        return builder.build();
     }
 
     public static class SharedQueryTextCollector {
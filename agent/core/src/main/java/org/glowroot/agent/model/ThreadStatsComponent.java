@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -45,22 +45,28 @@ public class ThreadStatsComponent {
 
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
+    // blocked and waited times are not captured in fast mode, since they require
+    // ThreadMXBean.getThreadInfo(), which costs more than reading thread cpu time and thread
+    // allocated bytes combined
+    private final boolean fast;
+
     @GuardedBy("lock")
     private volatile @MonotonicNonNull ThreadStats completedThreadStats;
 
     private final Object lock = new Object();
 
-    public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+    public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean fast) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED && !fast) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
             startingBlockedMillis = threadInfo.getBlockedTime();
             startingWaitedMillis = threadInfo.getWaitedTime();
         } else {
@@ -73,6 +79,7 @@ public class ThreadStatsComponent {
             startingAllocatedBytes = -1;
         }
         this.threadAllocatedBytes = threadAllocatedBytes;
+        this.fast = fast;
     }
 
     // must be called from transaction thread
@@ -115,10 +122,15 @@ public class ThreadStatsComponent {
     }
 
     private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+        ThreadInfo threadInfo;
+        if (fast) {
+            threadInfo = null;
+        } else {
+            threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
@@ -128,7 +140,7 @@ public class ThreadStatsComponent {
         }
         long totalBlockedMillis;
         long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED && threadInfo != null) {
             totalBlockedMillis = getTotalBlockedMillis(threadInfo);
             totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         } else {
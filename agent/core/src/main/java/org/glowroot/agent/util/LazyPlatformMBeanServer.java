@@ -21,6 +21,7 @@ import java.util.Set;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.management.AttributeList;
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
@@ -143,6 +144,11 @@ public class LazyPlatformMBeanServer {
         return platformMBeanServer.getAttribute(name, attribute);
     }
 
+    public AttributeList getAttributes(ObjectName name, String[] attributes) throws Exception {
+        ensureInit();
+        return platformMBeanServer.getAttributes(name, attributes);
+    }
+
     public void addInitListener(InitListener initListener) {
         synchronized (initListeners) {
             if (platformMBeanServer == null) {
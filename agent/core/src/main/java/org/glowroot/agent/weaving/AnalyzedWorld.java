@@ -144,18 +144,37 @@ public class AnalyzedWorld {
         return getOrCreateAnalyzedClass(className, loader);
     }
 
-    List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
-            @Nullable ClassLoader loader, String className) {
+    // this is used by ClasspathPreAnalyzer to populate the analyzed class maps ahead of time (off
+    // of the class loading threads), so that super class lookups during weaving mostly hit already
+    // analyzed classes
+    @Nullable AnalyzedClass preAnalyze(String className, ClassLoader loader) {
+        if (getAnalyzedLoader(className, loader) != loader) {
+            // already loaded by a parent loader, so already analyzed during weaving
+            return null;
+        }
+        try {
+            return getOrCreateAnalyzedClass(className, loader);
+        } catch (ClassNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // this is a cheap check so that @Instrumentation annotations only need to be collected (see
+    // ThinClassVisitor) for the few classes that may have them
+    static boolean mayHaveInstrumentationAnnotations(byte[] classBytes) {
         // TODO after removing deprecated @Instrument, change marker to
         // "Lorg/glowroot/agent/api/Instrumentation$"
         byte[] marker = "Lorg/glowroot/agent/api/Instrument".getBytes(Charsets.UTF_8);
-        if (Bytes.indexOf(classBytes, marker) == -1) {
-            return advisors;
-        }
-        InstrumentationSeekerClassVisitor cv = new InstrumentationSeekerClassVisitor();
-        ClassReader cr = new ClassReader(classBytes);
-        cr.accept(cv, ClassReader.SKIP_CODE);
-        List<InstrumentationConfig> instrumentationConfigs = cv.getInstrumentationConfigs();
+        return Bytes.indexOf(classBytes, marker) != -1;
+    }
+
+    List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors,
+            List<InstrumentationConfig> instrumentationConfigs, @Nullable ClassLoader loader,
+            String className) {
         if (instrumentationConfigs.isEmpty()) {
             return advisors;
         }
@@ -318,12 +337,12 @@ public class AnalyzedWorld {
             return createAnalyzedClassPlanB(className, loader);
         }
         byte[] bytes = Resources.toByteArray(url);
-        List<Advice> advisors =
-                mergeInstrumentationAnnotations(this.advisors.get(), bytes, loader, className);
-        ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ThinClassVisitor accv = ThinClassVisitor.read(new ClassReader(bytes),
+                mayHaveInstrumentationAnnotations(bytes));
+        List<Advice> advisors = mergeInstrumentationAnnotations(this.advisors.get(),
+                accv.getInstrumentationConfigs(), loader, className);
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null, bytes);
+                mixinTypes, loader, this, null);
         classAnalyzer.analyzeMethods();
         return classAnalyzer.getAnalyzedClass();
     }
@@ -38,9 +38,6 @@ import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.immutables.value.Value;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,9 +47,6 @@ import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
 import org.glowroot.agent.weaving.ThinClassVisitor.ThinMethod;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
-import static org.objectweb.asm.Opcodes.ASM5;
-import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 
 class ClassAnalyzer {
 
@@ -71,7 +65,6 @@ class ClassAnalyzer {
 
     private final boolean shortCircuitBeforeAnalyzeMethods;
 
-    private final byte[] classBytes;
 
     private @MonotonicNonNull Map<String, List<Advice>> methodAdvisors;
     private @MonotonicNonNull List<AnalyzedMethod> methodsThatOnlyNowFulfillAdvice;
@@ -81,7 +74,7 @@ class ClassAnalyzer {
 
     ClassAnalyzer(ThinClass thinClass, List<Advice> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
-            @Nullable CodeSource codeSource, byte[] classBytes) {
+            @Nullable CodeSource codeSource) {
         this.thinClass = thinClass;
         ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(thinClass.interfaces());
         className = ClassNames.fromInternalName(thinClass.name());
@@ -142,7 +135,6 @@ class ClassAnalyzer {
                     !hasSuperAdvice(superAnalyzedClasses) && matchedShimTypes.isEmpty()
                             && matchedMixinTypes.isEmpty() && adviceMatchers.isEmpty();
         }
-        this.classBytes = classBytes;
     }
 
     void analyzeMethods() {
@@ -285,10 +277,8 @@ class ClassAnalyzer {
             // probably a visibility bridge for public method in package-private super class
             return null;
         }
-        BridgeMethodClassVisitor bmcv = new BridgeMethodClassVisitor();
-        new ClassReader(classBytes).accept(bmcv, ClassReader.SKIP_FRAMES);
-        Map<String, String> bridgeMethodMap = bmcv.getBridgeTargetMethods();
-        String targetMethod = bridgeMethodMap.get(bridgeMethod.name() + bridgeMethod.desc());
+        String targetMethod =
+                thinClass.bridgeTargetMethods().get(bridgeMethod.name() + bridgeMethod.desc());
         if (targetMethod == null) {
             // probably a visibility bridge for public method in package-private super class
             return null;
@@ -522,64 +512,4 @@ class ClassAnalyzer {
                     .build();
         }
     }
-
-    private static class BridgeMethodClassVisitor extends ClassVisitor {
-
-        private final Map<String, String> bridgeTargetMethods = Maps.newHashMap();
-
-        private BridgeMethodClassVisitor() {
-            super(ASM5);
-        }
-
-        public Map<String, String> getBridgeTargetMethods() {
-            return bridgeTargetMethods;
-        }
-
-        @Override
-        public @Nullable MethodVisitor visitMethod(int access, String name, String desc,
-                @Nullable String signature, String /*@Nullable*/ [] exceptions) {
-            if ((access & ACC_BRIDGE) == 0) {
-                return null;
-            }
-            return new BridgeMethodVisitor(name, desc);
-        }
-
-        private class BridgeMethodVisitor extends MethodVisitor {
-
-            private String bridgeMethodName;
-            private String bridgeMethodDesc;
-            private int bridgeMethodParamCount;
-
-            private boolean found;
-
-            private BridgeMethodVisitor(String bridgeMethodName, String bridgeMethodDesc) {
-                super(ASM5);
-                this.bridgeMethodName = bridgeMethodName;
-                this.bridgeMethodDesc = bridgeMethodDesc;
-                bridgeMethodParamCount = Type.getArgumentTypes(bridgeMethodDesc).length;
-            }
-
-            @Override
-            public void visitMethodInsn(int opcode, String owner, String name, String desc,
-                    boolean itf) {
-                if (found) {
-                    return;
-                }
-                if (!name.equals(bridgeMethodName)) {
-                    return;
-                }
-                if (Type.getArgumentTypes(desc).length != bridgeMethodParamCount) {
-                    return;
-                }
-                if (opcode == INVOKESPECIAL) {
-                    // this is a generated bridge method that just calls super, see
-                    // WeaverTest.shouldHandleBridgeCallingSuper(), presumably the super method
-                    // already matches advice
-                    return;
-                }
-                bridgeTargetMethods.put(this.bridgeMethodName + this.bridgeMethodDesc, name + desc);
-                found = true;
-            }
-        }
-    }
 }
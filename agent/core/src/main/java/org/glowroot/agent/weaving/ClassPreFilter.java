@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.objectweb.asm.Type;
+
+// scans the constant pool of the raw class bytes (before any ASM visitor runs) to rule out classes
+// that cannot match any advice, shim type or mixin type
+//
+// an advice can only apply to a class whose constant pool contains the advice's class annotation,
+// method annotation and (non-pattern) method name, and whose name matches the advice's class name
+// (any advice that applies via a super type is checked separately by Weaver using the super types'
+// analyzed classes)
+class ClassPreFilter {
+
+    // TODO after removing deprecated @Instrument, change marker to
+    // "Lorg/glowroot/agent/api/Instrumentation$"
+    private static final byte[] INSTRUMENTATION_ANNOTATION_PREFIX =
+            "Lorg/glowroot/agent/api/Instrument".getBytes(Charsets.UTF_8);
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    private final List<Advice> advisors;
+    private final List<AdviceHints> adviceHints;
+    private final Set<String> shimAndMixinTargets;
+    private final Set<String> alwaysWeaveClassNames;
+
+    // literal hints bucketed by length for quick comparison against constant pool utf8 entries
+    private final byte[][][] literalsByLength;
+    private final int literalCount;
+    private final List<Pattern> annotationPatterns;
+
+    // true when some advice can apply to classes regardless of constant pool contents
+    private final boolean disabled;
+
+    private ClassPreFilter(List<Advice> advisors, List<AdviceHints> adviceHints,
+            Set<String> shimAndMixinTargets, Set<String> alwaysWeaveClassNames,
+            byte[][][] literalsByLength, int literalCount, List<Pattern> annotationPatterns,
+            boolean disabled) {
+        this.advisors = advisors;
+        this.adviceHints = adviceHints;
+        this.shimAndMixinTargets = shimAndMixinTargets;
+        this.alwaysWeaveClassNames = alwaysWeaveClassNames;
+        this.literalsByLength = literalsByLength;
+        this.literalCount = literalCount;
+        this.annotationPatterns = annotationPatterns;
+        this.disabled = disabled;
+    }
+
+    static ClassPreFilter create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, Set<String> alwaysWeaveClassNames) {
+        List<String> literals = Lists.newArrayList();
+        List<Pattern> annotationPatterns = Lists.newArrayList();
+        List<AdviceHints> adviceHints = Lists.newArrayList();
+        boolean disabled = false;
+        for (Advice advice : advisors) {
+            AdviceHints hints = new AdviceHints(advice,
+                    getAnnotationHint(advice.pointcutClassAnnotationPattern(),
+                            advice.pointcut().classAnnotation(), literals, annotationPatterns),
+                    getAnnotationHint(advice.pointcutMethodAnnotationPattern(),
+                            advice.pointcut().methodAnnotation(), literals, annotationPatterns),
+                    getMethodNameHint(advice, literals));
+            if (hints.isUnconstrained()) {
+                disabled = true;
+            }
+            adviceHints.add(hints);
+        }
+        Set<String> shimAndMixinTargets = Sets.newHashSet();
+        for (ShimType shimType : shimTypes) {
+            shimAndMixinTargets.addAll(shimType.targets());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            shimAndMixinTargets.addAll(mixinType.targets());
+        }
+        List<byte[]> literalBytes = Lists.newArrayList();
+        int maxLength = 0;
+        for (String literal : literals) {
+            byte[] bytes = literal.getBytes(Charsets.UTF_8);
+            literalBytes.add(bytes);
+            maxLength = Math.max(maxLength, bytes.length);
+        }
+        List<List<byte[]>> buckets = Lists.newArrayList();
+        for (int i = 0; i <= maxLength; i++) {
+            buckets.add(Lists.<byte[]>newArrayList());
+        }
+        for (byte[] bytes : literalBytes) {
+            buckets.get(bytes.length).add(bytes);
+        }
+        byte[][][] literalsByLength = new byte[maxLength + 1][][];
+        for (int i = 0; i <= maxLength; i++) {
+            literalsByLength[i] = buckets.get(i).toArray(new byte[0][]);
+        }
+        return new ClassPreFilter(advisors, ImmutableList.copyOf(adviceHints), shimAndMixinTargets,
+                alwaysWeaveClassNames, literalsByLength, literals.size(),
+                ImmutableList.copyOf(annotationPatterns), disabled);
+    }
+
+    // the advisors list is replaced (not mutated) when instrumentation config changes
+    boolean isFor(List<Advice> advisors) {
+        return this.advisors == advisors;
+    }
+
+    // returns the analyzed class if the class cannot match any advice, shim type or mixin type
+    // (based on its own bytes), otherwise returns null
+    //
+    // the returned analyzed class is identical to what ClassAnalyzer would have produced, as long
+    // as none of its super types have advice, shim types or mixin types
+    @Nullable
+    AnalyzedClass analyzeIfNoMatch(byte[] bytes) {
+        if (disabled) {
+            return null;
+        }
+        try {
+            return new Scanner(bytes).analyzeIfNoMatch();
+        } catch (RuntimeException e) {
+            // malformed or unexpected class file, let the regular weaving pipeline deal with it
+            return null;
+        }
+    }
+
+    private static @Nullable Object getAnnotationHint(@Nullable Pattern pattern, String annotation,
+            List<String> literals, List<Pattern> annotationPatterns) {
+        if (pattern != null) {
+            annotationPatterns.add(pattern);
+            return pattern;
+        }
+        if (annotation.isEmpty()) {
+            return null;
+        }
+        String descriptor = "L" + ClassNames.toInternalName(annotation) + ";";
+        literals.add(descriptor);
+        return descriptor;
+    }
+
+    private static @Nullable String getMethodNameHint(Advice advice, List<String> literals) {
+        if (advice.pointcutMethodNamePattern() != null) {
+            return null;
+        }
+        String methodName = advice.pointcut().methodName();
+        if (methodName.isEmpty()) {
+            return null;
+        }
+        literals.add(methodName);
+        return methodName;
+    }
+
+    private static class AdviceHints {
+
+        private final Advice advice;
+        // each hint is either null (no constraint), a literal String or a Pattern
+        private final @Nullable Object classAnnotation;
+        private final @Nullable Object methodAnnotation;
+        private final @Nullable String methodName;
+
+        private AdviceHints(Advice advice, @Nullable Object classAnnotation,
+                @Nullable Object methodAnnotation, @Nullable String methodName) {
+            this.advice = advice;
+            this.classAnnotation = classAnnotation;
+            this.methodAnnotation = methodAnnotation;
+            this.methodName = methodName;
+        }
+
+        private boolean isUnconstrained() {
+            return advice.pointcutClassNamePattern() == null
+                    && advice.pointcut().className().isEmpty() && classAnnotation == null
+                    && methodAnnotation == null && methodName == null;
+        }
+
+        private boolean isClassNameMatch(String className) {
+            Pattern classNamePattern = advice.pointcutClassNamePattern();
+            if (classNamePattern != null) {
+                return classNamePattern.matcher(className).matches();
+            }
+            String pointcutClassName = advice.pointcut().className();
+            return pointcutClassName.isEmpty() || pointcutClassName.equals(className);
+        }
+    }
+
+    private class Scanner {
+
+        private final byte[] b;
+        private final int[] offsets;
+
+        private final Set<Object> foundHints = Sets.newHashSet();
+
+        private int index;
+
+        private Scanner(byte[] b) {
+            this.b = b;
+            offsets = new int[readUnsignedShort(8)];
+        }
+
+        private @Nullable AnalyzedClass analyzeIfNoMatch() {
+            index = 10;
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = index + 1;
+                int tag = b[index];
+                switch (tag) {
+                    case CONSTANT_UTF8:
+                        int length = readUnsignedShort(index + 1);
+                        if (scanUtf8(index + 3, length)) {
+                            return null;
+                        }
+                        index += 3 + length;
+                        break;
+                    case CONSTANT_CLASS:
+                    case CONSTANT_STRING:
+                    case CONSTANT_METHOD_TYPE:
+                        index += 3;
+                        break;
+                    case CONSTANT_METHOD_HANDLE:
+                        index += 4;
+                        break;
+                    case CONSTANT_INTEGER:
+                    case CONSTANT_FLOAT:
+                    case CONSTANT_FIELDREF:
+                    case CONSTANT_METHODREF:
+                    case CONSTANT_INTERFACE_METHODREF:
+                    case CONSTANT_NAME_AND_TYPE:
+                    case CONSTANT_INVOKE_DYNAMIC:
+                        index += 5;
+                        break;
+                    case CONSTANT_LONG:
+                    case CONSTANT_DOUBLE:
+                        index += 9;
+                        i++;
+                        break;
+                    default:
+                        // unknown constant pool tag (e.g. newer class file version)
+                        return null;
+                }
+            }
+            int access = readUnsignedShort(index);
+            String internalName = readClass(index + 2);
+            if (internalName == null || alwaysWeaveClassNames.contains(internalName)) {
+                return null;
+            }
+            String className = ClassNames.fromInternalName(internalName);
+            if (shimAndMixinTargets.contains(className) || isAnyAdviceMatch(className)) {
+                return null;
+            }
+            String superName = ClassNames.fromInternalName(readClass(index + 4));
+            int interfaceCount = readUnsignedShort(index + 6);
+            index += 8;
+            List<String> interfaceNames = Lists.newArrayList();
+            for (int i = 0; i < interfaceCount; i++) {
+                interfaceNames.add(ClassNames.fromInternalName(readClass(index)));
+                index += 2;
+            }
+            ImmutableAnalyzedClass.Builder analyzedClassBuilder = ImmutableAnalyzedClass.builder()
+                    .modifiers(access)
+                    .name(className)
+                    .superName(superName)
+                    .addAllInterfaceNames(interfaceNames);
+            skipMembers();
+            int methodCount = readUnsignedShort(index);
+            index += 2;
+            for (int i = 0; i < methodCount; i++) {
+                int methodAccess = readUnsignedShort(index);
+                if (Modifier.isPublic(methodAccess) && Modifier.isFinal(methodAccess)) {
+                    ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod
+                            .builder()
+                            .name(readUtf8(index + 2));
+                    for (Type parameterType : Type.getArgumentTypes(readUtf8(index + 4))) {
+                        builder.addParameterTypes(parameterType.getClassName());
+                    }
+                    analyzedClassBuilder.addPublicFinalMethods(builder.build());
+                }
+                index += 6;
+                skipAttributes();
+            }
+            return analyzedClassBuilder.build();
+        }
+
+        // returns true if the class needs to go through the regular weaving pipeline
+        private boolean scanUtf8(int start, int length) {
+            if (startsWith(start, length, INSTRUMENTATION_ANNOTATION_PREFIX)) {
+                return true;
+            }
+            if (foundHints.size() < literalCount && length < literalsByLength.length) {
+                for (byte[] literal : literalsByLength[length]) {
+                    if (startsWith(start, length, literal)) {
+                        foundHints.add(new String(literal, Charsets.UTF_8));
+                    }
+                }
+            }
+            if (!annotationPatterns.isEmpty() && length > 2 && b[start] == 'L'
+                    && b[start + length - 1] == ';') {
+                String className = ClassNames
+                        .fromInternalName(readUtf8Bytes(start + 1, length - 2));
+                for (Pattern annotationPattern : annotationPatterns) {
+                    if (annotationPattern.matcher(className).matches()) {
+                        foundHints.add(annotationPattern);
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean isAnyAdviceMatch(String className) {
+            for (AdviceHints hints : adviceHints) {
+                if (hints.isClassNameMatch(className) && isFound(hints.classAnnotation)
+                        && isFound(hints.methodAnnotation) && isFound(hints.methodName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isFound(@Nullable Object hint) {
+            return hint == null || foundHints.contains(hint);
+        }
+
+        // skips the fields and leaves index at methods_count
+        private void skipMembers() {
+            int fieldCount = readUnsignedShort(index);
+            index += 2;
+            for (int i = 0; i < fieldCount; i++) {
+                index += 6;
+                skipAttributes();
+            }
+        }
+
+        private void skipAttributes() {
+            int attributeCount = readUnsignedShort(index);
+            index += 2;
+            for (int i = 0; i < attributeCount; i++) {
+                index += 6 + readInt(index + 2);
+            }
+        }
+
+        private boolean startsWith(int start, int length, byte[] prefix) {
+            if (length < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (b[start + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private @Nullable String readClass(int offset) {
+            int cpIndex = readUnsignedShort(offset);
+            if (cpIndex == 0) {
+                return null;
+            }
+            return readUtf8(offsets[cpIndex]);
+        }
+
+        private String readUtf8(int offset) {
+            int utf8Offset = offsets[readUnsignedShort(offset)];
+            return readUtf8Bytes(utf8Offset + 2, readUnsignedShort(utf8Offset));
+        }
+
+        // decodes modified UTF-8
+        private String readUtf8Bytes(int start, int length) {
+            char[] buf = new char[length];
+            int end = start + length;
+            int strLength = 0;
+            int i = start;
+            while (i < end) {
+                int c = b[i++] & 0xFF;
+                if (c < 0x80) {
+                    buf[strLength++] = (char) c;
+                } else if (c < 0xE0) {
+                    buf[strLength++] = (char) (((c & 0x1F) << 6) | (b[i++] & 0x3F));
+                } else {
+                    buf[strLength++] = (char) (((c & 0x0F) << 12) | ((b[i++] & 0x3F) << 6)
+                            | (b[i++] & 0x3F));
+                }
+            }
+            return new String(buf, 0, strLength);
+        }
+
+        private int readUnsignedShort(int offset) {
+            return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+        }
+
+        private int readInt(int offset) {
+            return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                    | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+        }
+    }
+}
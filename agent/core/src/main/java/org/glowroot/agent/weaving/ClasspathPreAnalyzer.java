@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// optional (-Dglowroot.weaving.preAnalyze=true) startup mode that analyzes the classes on the
+// system classpath in parallel on background threads, so that super class lookups during weaving
+// (which otherwise read and analyze the super class bytes on the class loading thread, inside of
+// ClassFileTransformer.transform()) mostly hit already analyzed classes
+//
+// this trades startup cpu (on otherwise mostly idle cores) and memory (every class on the classpath
+// is analyzed, not just the ones that end up being loaded) for faster class loading
+//
+// only the system class loader is pre-analyzed since other class loaders (e.g. application server
+// or spring boot launcher class loaders) do not exist yet at agent startup
+public class ClasspathPreAnalyzer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClasspathPreAnalyzer.class);
+
+    private static final boolean PRE_ANALYZE = Boolean.getBoolean("glowroot.weaving.preAnalyze");
+
+    private static final int BATCH_SIZE = 100;
+
+    private final AnalyzedWorld analyzedWorld;
+    private final ClassLoader loader;
+    private final ExecutorService executor;
+
+    private final AtomicInteger remainingBatches = new AtomicInteger();
+    private final AtomicInteger analyzedCount = new AtomicInteger();
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+
+    private ClasspathPreAnalyzer(AnalyzedWorld analyzedWorld, ClassLoader loader,
+            int threadCount) {
+        this.analyzedWorld = analyzedWorld;
+        this.loader = loader;
+        executor = Executors.newFixedThreadPool(threadCount,
+                ThreadFactories.create("Glowroot-Pre-Analysis-%d"));
+    }
+
+    public static @Nullable ClasspathPreAnalyzer start(AnalyzedWorld analyzedWorld) {
+        if (!PRE_ANALYZE) {
+            return null;
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (processors < 2) {
+            // without a spare core, pre-analysis only competes with the application's own startup
+            // (and in testing made time to first request worse, not better)
+            logger.debug("classpath pre-analysis disabled since there is only one processor");
+            return null;
+        }
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        final ClasspathPreAnalyzer preAnalyzer =
+                new ClasspathPreAnalyzer(analyzedWorld, loader, processors / 2);
+        // even listing the classpath entries is done in the background, to not delay startup
+        preAnalyzer.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preAnalyzer.submitBatches();
+            }
+        });
+        return preAnalyzer;
+    }
+
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        executor.shutdownNow();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void submitBatches() {
+        stopwatch.start();
+        List<String> classNames = Lists.newArrayList();
+        File agentJarFile = getAgentJarFile();
+        String classpath = System.getProperty("java.class.path");
+        if (classpath != null) {
+            for (String path : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+                    .split(classpath)) {
+                File file = new File(path).getAbsoluteFile();
+                if (file.equals(agentJarFile)) {
+                    continue;
+                }
+                try {
+                    classNames.addAll(getClassNames(file));
+                } catch (IOException e) {
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+        }
+        List<List<String>> batches = Lists.partition(classNames, BATCH_SIZE);
+        if (batches.isEmpty()) {
+            executor.shutdown();
+            return;
+        }
+        remainingBatches.set(batches.size());
+        for (final List<String> batch : batches) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    preAnalyze(batch);
+                }
+            });
+        }
+    }
+
+    private void preAnalyze(List<String> batch) {
+        for (String className : batch) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (analyzedWorld.preAnalyze(className, loader) != null) {
+                analyzedCount.getAndIncrement();
+            }
+        }
+        if (remainingBatches.decrementAndGet() == 0) {
+            logger.debug("pre-analyzed {} classes in {} milliseconds", analyzedCount.get(),
+                    stopwatch.elapsed(MILLISECONDS));
+            executor.shutdown();
+        }
+    }
+
+    static List<String> getClassNames(File file) throws IOException {
+        List<String> classNames = Lists.newArrayList();
+        if (file.isDirectory()) {
+            addClassNamesFromDirectory(file, "", classNames);
+        } else if (file.isFile() && file.getName().endsWith(".jar")) {
+            JarFile jarFile = new JarFile(file);
+            try {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    addClassNameIfClass(entries.nextElement().getName(), classNames);
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+        return classNames;
+    }
+
+    private static void addClassNamesFromDirectory(File dir, String prefix,
+            List<String> classNames) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                addClassNamesFromDirectory(file, prefix + name + "/", classNames);
+            } else {
+                addClassNameIfClass(prefix + name, classNames);
+            }
+        }
+    }
+
+    private static void addClassNameIfClass(String path, List<String> classNames) {
+        if (!path.endsWith(".class") || path.startsWith("META-INF/")
+                || path.endsWith("package-info.class") || path.endsWith("module-info.class")) {
+            return;
+        }
+        classNames.add(ClassNames.fromInternalName(
+                path.substring(0, path.length() - ".class".length())));
+    }
+
+    private static @Nullable File getAgentJarFile() {
+        CodeSource codeSource = ClasspathPreAnalyzer.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            return null;
+        }
+        try {
+            return new File(codeSource.getLocation().toURI()).getAbsoluteFile();
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+}
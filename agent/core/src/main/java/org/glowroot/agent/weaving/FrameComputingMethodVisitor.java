@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import org.glowroot.agent.weaving.Weaver.ComputeFramesClassWriter;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ASM5;
+
+// used in lazy frames mode (see Weaver) to compute frames for a single method
+//
+// the method is written to its own throwaway class writer with COMPUTE_FRAMES (which ignores any
+// frames visited on it), and at the end the method, now with computed frames, is copied into the
+// real class writer (which does not compute frames)
+class FrameComputingMethodVisitor extends MethodVisitor {
+
+    private final ComputeFramesClassWriter cw;
+    private final ClassWriter methodCw;
+
+    FrameComputingMethodVisitor(final ComputeFramesClassWriter cw, int version,
+            String internalName, int access, String name, String desc, @Nullable String signature,
+            String /*@Nullable*/ [] exceptions) {
+        super(ASM5);
+        this.cw = cw;
+        methodCw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            // delegating so that the types looked up are still recorded (see WeavingCache)
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return cw.getCommonSuperClass(type1, type2);
+            }
+        };
+        methodCw.visit(version, ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+        mv = methodCw.visitMethod(access, name, desc, signature, exceptions);
+    }
+
+    @Override
+    public void visitEnd() {
+        super.visitEnd();
+        methodCw.visitEnd();
+        new ClassReader(methodCw.toByteArray()).accept(new ClassVisitor(ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                    @Nullable String signature, String /*@Nullable*/ [] exceptions) {
+                return cw.visitMethod(access, name, desc, signature, exceptions);
+            }
+        }, 0);
+    }
+}
@@ -227,20 +227,34 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.collect.TreeTraverser");
         types.add("com.google.common.collect.UnmodifiableIterator");
         types.add("com.google.common.collect.UnmodifiableListIterator");
+        types.add("com.google.common.hash.AbstractHasher");
+        types.add("com.google.common.hash.AbstractStreamingHashFunction");
+        types.add("com.google.common.hash.AbstractStreamingHashFunction$AbstractStreamingHasher");
+        types.add("com.google.common.hash.HashCode");
+        types.add("com.google.common.hash.HashCode$BytesHashCode");
+        types.add("com.google.common.hash.HashFunction");
+        types.add("com.google.common.hash.Hasher");
+        types.add("com.google.common.hash.Hashing");
+        types.add("com.google.common.hash.Hashing$Murmur3_128Holder");
+        types.add("com.google.common.hash.Murmur3_128HashFunction");
+        types.add("com.google.common.hash.Murmur3_128HashFunction$Murmur3_128Hasher");
+        types.add("com.google.common.hash.PrimitiveSink");
         types.add("com.google.common.io.ByteSink");
         types.add("com.google.common.io.ByteSource");
         types.add("com.google.common.io.ByteStreams");
         types.add("com.google.common.io.ByteStreams$1");
+        types.add("com.google.common.io.ByteStreams$FastByteArrayOutputStream");
         types.add("com.google.common.io.Closeables");
         types.add("com.google.common.io.Closer");
         types.add("com.google.common.io.Closer$LoggingSuppressor");
         types.add("com.google.common.io.Closer$SuppressingSuppressor");
         types.add("com.google.common.io.Closer$Suppressor");
+        types.add("com.google.common.io.FileWriteMode");
         types.add("com.google.common.io.Files");
         types.add("com.google.common.io.Files$1");
         types.add("com.google.common.io.Files$2");
         types.add("com.google.common.io.Files$FileByteSink");
-        types.add("com.google.common.io.FileWriteMode");
+        types.add("com.google.common.io.Files$FileByteSource");
         types.add("com.google.common.io.LineProcessor");
         types.add("com.google.common.io.Resources");
         types.add("com.google.common.io.Resources$1");
@@ -248,6 +262,8 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.primitives.Booleans");
         types.add("com.google.common.primitives.Bytes");
         types.add("com.google.common.primitives.Ints");
+        types.add("com.google.common.primitives.Longs");
+        types.add("com.google.common.primitives.UnsignedBytes");
         return types;
     }
 
@@ -263,6 +279,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.impl.TimerImpl");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.impl.TransactionRegistry$TransactionRegistryHolder");
+        types.add("org.glowroot.agent.impl.TransactionRegistryMXBean");
         types.add("org.glowroot.agent.impl.TransactionServiceImpl");
         types.add("org.glowroot.agent.impl.TransactionServiceImpl$TransactionServiceHolder");
         types.add("org.glowroot.agent.model.CommonTimerImpl");
@@ -316,12 +333,15 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
         types.add("org.glowroot.agent.weaving.ClassAnalyzer");
         types.add("org.glowroot.agent.weaving.ClassAnalyzer$AnalyzedMethodKey");
-        types.add("org.glowroot.agent.weaving.ClassAnalyzer$BridgeMethodClassVisitor");
-        types.add("org.glowroot.agent.weaving.ClassAnalyzer$BridgeMethodClassVisitor"
-                + "$BridgeMethodVisitor");
         types.add("org.glowroot.agent.weaving.ClassLoaders");
         types.add("org.glowroot.agent.weaving.ClassLoaders$LazyDefinedClass");
         types.add("org.glowroot.agent.weaving.ClassNames");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter$AdviceHints");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter$Scanner");
+        types.add("org.glowroot.agent.weaving.FrameComputingMethodVisitor");
+        types.add("org.glowroot.agent.weaving.FrameComputingMethodVisitor$1");
+        types.add("org.glowroot.agent.weaving.FrameComputingMethodVisitor$2");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackMethodVisitor");
         types.add("org.glowroot.agent.weaving.Weaver$JBoss4HackClassVisitor");
@@ -365,15 +385,22 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ShimType");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$AnnotationCaptureMethodVisitor");
+        types.add("org.glowroot.agent.weaving.ThinClassVisitor$BridgeMethodCaptureVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
         types.add("org.glowroot.agent.weaving.Weaver");
         types.add("org.glowroot.agent.weaving.Weaver$ComputeFramesClassWriter");
         types.add("org.glowroot.agent.weaving.Weaver$JSRInlinerClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Fingerprint");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Hit");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Key");
+        types.add("org.glowroot.agent.weaving.WeavingCacheMXBean");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
+        types.add("org.glowroot.agent.weaving.WeavingClassVisitor$SkipFramesMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
         types.add("org.glowroot.common.util.Patterns");
@@ -491,7 +518,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AnalyzedMethodKey$1");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$1");
         types.add("org.glowroot.agent.weaving.ClassAnalyzer$1");
-        types.add("org.glowroot.agent.weaving.ClassAnalyzer$BridgeMethodClassVisitor$1");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter$1");
         types.add("org.glowroot.agent.weaving.ImmutableAnalyzedClass$1");
         types.add("org.glowroot.agent.weaving.ImmutableAnalyzedMethod$1");
         types.add("org.glowroot.agent.weaving.ImmutableAnalyzedMethodKey$1");
@@ -507,6 +534,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$1");
         types.add("org.glowroot.agent.weaving.Weaver$1");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor$1");
+        types.add("org.glowroot.agent.weaving.WeavingCache$1");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Fingerprint$1");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$1");
         // this is a special class generated by javac (but not by the eclipse compiler) to handle
         // enum switch statements
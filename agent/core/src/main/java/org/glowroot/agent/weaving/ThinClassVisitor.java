@@ -16,31 +16,65 @@
 package org.glowroot.agent.weaving;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
+import com.google.common.collect.ImmutableList;
 import org.immutables.value.Value;
 import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.config.InstrumentationConfig;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
 import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 
+// collects everything needed for class analysis (the thin class model, including bridge method
+// targets, and optionally @Instrumentation annotations) in a single read of the class bytes
 class ThinClassVisitor extends ClassVisitor {
 
     private final ImmutableThinClass.Builder thinClassBuilder = ImmutableThinClass.builder();
 
+    private final @Nullable InstrumentationSeekerClassVisitor instrumentationSeeker;
+
     private @Nullable ThinClass thinClass;
 
     ThinClassVisitor() {
-        super(ASM5);
+        this(null);
+    }
+
+    private ThinClassVisitor(@Nullable InstrumentationSeekerClassVisitor instrumentationSeeker) {
+        super(ASM5, instrumentationSeeker);
+        this.instrumentationSeeker = instrumentationSeeker;
+    }
+
+    // bridge method targets can only be found by reading the bridge method code, so code is only
+    // read for classes that have bridge methods
+    static ThinClassVisitor read(ClassReader cr, boolean seekInstrumentationAnnotations) {
+        ThinClassVisitor thinClassVisitor;
+        if (seekInstrumentationAnnotations) {
+            thinClassVisitor = new ThinClassVisitor(new InstrumentationSeekerClassVisitor());
+        } else {
+            thinClassVisitor = new ThinClassVisitor();
+        }
+        int parsingOptions = ClassReader.SKIP_FRAMES;
+        if (!hasBridgeMethods(cr)) {
+            parsingOptions += ClassReader.SKIP_CODE;
+        }
+        cr.accept(thinClassVisitor, parsingOptions);
+        return thinClassVisitor;
     }
 
     @Override
     public void visit(int version, int access, String name, @Nullable String signature,
             @Nullable String superName, String /*@Nullable*/ [] interfaces) {
+        super.visit(version, access, name, signature, superName, interfaces);
         thinClassBuilder.access(access);
         thinClassBuilder.name(name);
         thinClassBuilder.superName(superName);
@@ -52,12 +86,13 @@ class ThinClassVisitor extends ClassVisitor {
     @Override
     public @Nullable AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         thinClassBuilder.addAnnotations(desc);
-        return null;
+        return super.visitAnnotation(desc, visible);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc,
             @Nullable String signature, String /*@Nullable*/ [] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
         ImmutableThinMethod.Builder thinMethodBuilder = ImmutableThinMethod.builder();
         thinMethodBuilder.access(access);
         thinMethodBuilder.name(name);
@@ -66,11 +101,15 @@ class ThinClassVisitor extends ClassVisitor {
         if (exceptions != null) {
             thinMethodBuilder.addExceptions(exceptions);
         }
-        return new AnnotationCaptureMethodVisitor(thinMethodBuilder);
+        if ((access & ACC_BRIDGE) != 0) {
+            return new BridgeMethodCaptureVisitor(thinMethodBuilder, mv, name, desc);
+        }
+        return new AnnotationCaptureMethodVisitor(thinMethodBuilder, mv);
     }
 
     @Override
     public void visitEnd() {
+        super.visitEnd();
         thinClass = thinClassBuilder.build();
     }
 
@@ -78,6 +117,48 @@ class ThinClassVisitor extends ClassVisitor {
         return checkNotNull(thinClass);
     }
 
+    List<InstrumentationConfig> getInstrumentationConfigs() {
+        if (instrumentationSeeker == null) {
+            return ImmutableList.of();
+        }
+        return instrumentationSeeker.getInstrumentationConfigs();
+    }
+
+    // this only walks the class file structure, it does not decode any constant pool entries
+    private static boolean hasBridgeMethods(ClassReader cr) {
+        // skip access flags, this class and super class
+        int u = cr.header + 6;
+        // skip interfaces
+        u += 2 + 2 * cr.readUnsignedShort(u);
+        // skip fields
+        int fieldCount = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            u = skipMember(cr, u);
+        }
+        int methodCount = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < methodCount; i++) {
+            if ((cr.readUnsignedShort(u) & ACC_BRIDGE) != 0) {
+                return true;
+            }
+            u = skipMember(cr, u);
+        }
+        return false;
+    }
+
+    private static int skipMember(ClassReader cr, int offset) {
+        // skip access flags, name and desc
+        int u = offset + 6;
+        int attributeCount = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            // skip attribute name and length, then attribute content
+            u += 6 + cr.readInt(u + 2);
+        }
+        return u;
+    }
+
     @Value.Immutable
     interface ThinClass {
         int access();
@@ -88,6 +169,8 @@ class ThinClassVisitor extends ClassVisitor {
         List<String> annotations();
         List<ThinMethod> nonBridgeMethods();
         List<ThinMethod> bridgeMethods();
+        // map from bridge method name + desc to its target method name + desc
+        Map<String, String> bridgeTargetMethods();
     }
 
     @Value.Immutable
@@ -105,19 +188,21 @@ class ThinClassVisitor extends ClassVisitor {
 
         private final ImmutableThinMethod.Builder thinMethodBuilder;
 
-        private AnnotationCaptureMethodVisitor(ImmutableThinMethod.Builder thinMethodBuilder) {
-            super(ASM5);
+        private AnnotationCaptureMethodVisitor(ImmutableThinMethod.Builder thinMethodBuilder,
+                @Nullable MethodVisitor mv) {
+            super(ASM5, mv);
             this.thinMethodBuilder = thinMethodBuilder;
         }
 
         @Override
         public @Nullable AnnotationVisitor visitAnnotation(String desc, boolean visible) {
             thinMethodBuilder.addAnnotations(desc);
-            return null;
+            return super.visitAnnotation(desc, visible);
         }
 
         @Override
         public void visitEnd() {
+            super.visitEnd();
             ThinMethod thinMethod = thinMethodBuilder.build();
             if ((thinMethod.access() & ACC_BRIDGE) != 0) {
                 thinClassBuilder.addBridgeMethods(thinMethod);
@@ -126,4 +211,45 @@ class ThinClassVisitor extends ClassVisitor {
             }
         }
     }
+
+    private class BridgeMethodCaptureVisitor extends AnnotationCaptureMethodVisitor {
+
+        private final String bridgeMethodName;
+        private final String bridgeMethodDesc;
+        private final int bridgeMethodParamCount;
+
+        private boolean found;
+
+        private BridgeMethodCaptureVisitor(ImmutableThinMethod.Builder thinMethodBuilder,
+                @Nullable MethodVisitor mv, String bridgeMethodName, String bridgeMethodDesc) {
+            super(thinMethodBuilder, mv);
+            this.bridgeMethodName = bridgeMethodName;
+            this.bridgeMethodDesc = bridgeMethodDesc;
+            bridgeMethodParamCount = Type.getArgumentTypes(bridgeMethodDesc).length;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc,
+                boolean itf) {
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            if (found) {
+                return;
+            }
+            if (!name.equals(bridgeMethodName)) {
+                return;
+            }
+            if (Type.getArgumentTypes(desc).length != bridgeMethodParamCount) {
+                return;
+            }
+            if (opcode == INVOKESPECIAL) {
+                // this is a generated bridge method that just calls super, see
+                // WeaverTest.shouldHandleBridgeCallingSuper(), presumably the super method
+                // already matches advice
+                return;
+            }
+            thinClassBuilder.putBridgeTargetMethods(bridgeMethodName + bridgeMethodDesc,
+                    name + desc);
+            found = true;
+        }
+    }
 }
@@ -21,6 +21,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.CodeSource;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -28,6 +29,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -52,6 +55,7 @@ import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.V1_6;
 
 public class Weaver {
 
@@ -60,6 +64,20 @@ public class Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean VERIFY_WEAVING = Boolean.getBoolean("glowroot.weaving.verify");
 
+    // the constant pool pre-filter can be disabled for comparison (e.g. in benchmarks)
+    private static final boolean PRE_FILTER =
+            Boolean.parseBoolean(System.getProperty("glowroot.weaving.preFilter", "true"));
+
+    // in lazy frames mode, stack map frames are only computed for the methods that are actually
+    // woven (or generated), and are copied unchanged for all other methods, instead of computing
+    // frames for every method in the class (and looking up types for getCommonSuperClass() in the
+    // process), which matters most for large classes where only one method is woven, e.g. JSPs
+    private static final boolean LAZY_FRAMES = Boolean.getBoolean("glowroot.weaving.lazyFrames");
+
+    // these classes are always passed through the weaving pipeline, see weaveUnderTimer()
+    private static final ImmutableSet<String> HACKED_CLASS_NAMES = ImmutableSet.of(
+            "org/apache/felix/framework/BundleWiringImpl", "org/jboss/system/server/ServerImpl");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -69,14 +87,19 @@ public class Weaver {
 
     private volatile boolean enabled;
 
+    private final @Nullable WeavingCache weavingCache;
+
+    private volatile @Nullable ClassPreFilter preFilter;
+
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
+        this.weavingCache = weavingCache;
         this.transactionRegistry = transactionRegistry;
         configService.addConfigListener(new ConfigListener() {
             @Override
@@ -121,31 +144,52 @@ public class Weaver {
 
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
-                classBytes, loader, className);
-        ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        List<Advice> pluginAdvisors = this.advisors.get();
+        if (PRE_FILTER && isNoMatch(pluginAdvisors, classBytes, className, codeSource, loader)) {
+            return null;
+        }
+        boolean mayHaveInstrumentationAnnotations =
+                AnalyzedWorld.mayHaveInstrumentationAnnotations(classBytes);
+        WeavingCache.Key cacheKey = null;
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        // see WeavingCache for which classes cannot be cached
+        if (weavingCache != null && loader != null && !mayHaveInstrumentationAnnotations
+                && !HACKED_CLASS_NAMES.contains(className)) {
+            cacheKey = weavingCache.newKey(pluginAdvisors, classBytes);
+            WeavingCache.Hit hit = weavingCache.get(cacheKey, loader, parseContext);
+            if (hit != null) {
+                return hit.wovenBytes();
+            }
+        }
+        // the same class reader is used for analysis and for weaving, and analysis only reads the
+        // class bytes once
+        ClassReader cr = new ClassReader(classBytes);
+        ThinClassVisitor accv = ThinClassVisitor.read(cr, mayHaveInstrumentationAnnotations);
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(pluginAdvisors,
+                accv.getInstrumentationConfigs(), loader, className);
         byte[] maybeProcessedBytes = null;
         if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new FelixOsgiHackClassVisitor(cw);
-            ClassReader cr = new ClassReader(classBytes);
             cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
             maybeProcessedBytes = cw.toByteArray();
         } else if (className.equals("org/jboss/system/server/ServerImpl")) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new JBoss4HackClassVisitor(cw);
-            ClassReader cr = new ClassReader(classBytes);
             cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
             maybeProcessedBytes = cw.toByteArray();
         }
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, analyzedWorld, codeSource, classBytes);
+                mixinTypes, loader, analyzedWorld, codeSource);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (cacheKey != null) {
+                checkNotNull(weavingCache).put(cacheKey, classAnalyzer.getAnalyzedClass(), null,
+                        ImmutableList.<String>of(), loader, parseContext);
+            }
             return maybeProcessedBytes;
         }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
@@ -160,17 +204,23 @@ public class Weaver {
         // stackmap information to be consistent with the bytecode in order to pass
         // verification."
         //
-        ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
-                loader, codeSource, className);
+        if (maybeProcessedBytes != null) {
+            cr = new ClassReader(maybeProcessedBytes);
+        }
+        // stack map frames were introduced in Java 6 class files (and for Java 6 class files only,
+        // the JVM falls back to the type inferencing verifier if frames are incorrect, e.g. in the
+        // rare case of a method with JSR/RET instructions, see JSRInlinerClassVisitor)
+        boolean lazyFrames = LAZY_FRAMES && cr.readUnsignedShort(6) >= V1_6;
+        ComputeFramesClassWriter cw = new ComputeFramesClassWriter(
+                lazyFrames ? 0 : ClassWriter.COMPUTE_FRAMES, analyzedWorld, loader, codeSource,
+                className);
         WeavingClassVisitor cv =
-                new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
+                new WeavingClassVisitor(cw, lazyFrames, loader, classAnalyzer.getAnalyzedClass(),
                         classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
                         classAnalyzer.getMatchedShimTypes(), classAnalyzer.getMatchedMixinTypes(),
                         classAnalyzer.getMethodAdvisors(), analyzedWorld);
-        ClassReader cr =
-                new ClassReader(maybeProcessedBytes == null ? classBytes : maybeProcessedBytes);
         try {
-            cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
+            cr.accept(new JSRInlinerClassVisitor(cv), lazyFrames ? 0 : ClassReader.SKIP_FRAMES);
         } catch (RuntimeException e) {
             logger.error("unable to weave {}: {}", className, e.getMessage(), e);
             try {
@@ -186,9 +236,52 @@ public class Weaver {
         if (VERIFY_WEAVING) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (cacheKey != null && !cv.hasMetaHolder()) {
+            checkNotNull(weavingCache).put(cacheKey, classAnalyzer.getAnalyzedClass(),
+                    transformedBytes, cw.getTypesLookedUp(), loader, parseContext);
+        }
         return transformedBytes;
     }
 
+    // most classes cannot match any advice, and this is a much cheaper way to rule them out than
+    // running them through ThinClassVisitor and ClassAnalyzer
+    private boolean isNoMatch(List<Advice> advisors, byte[] classBytes, String className,
+            @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
+        ClassPreFilter preFilter = this.preFilter;
+        if (preFilter == null || !preFilter.isFor(advisors)) {
+            preFilter = ClassPreFilter.create(advisors, shimTypes, mixinTypes, HACKED_CLASS_NAMES);
+            this.preFilter = preFilter;
+        }
+        AnalyzedClass analyzedClass = preFilter.analyzeIfNoMatch(classBytes);
+        if (analyzedClass == null) {
+            return false;
+        }
+        // advice, shim types and mixin types can also be inherited from super types
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        if (hasAnyMatch(analyzedWorld.getAnalyzedHierarchy(analyzedClass.superName(), loader,
+                parseContext))) {
+            return false;
+        }
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            if (hasAnyMatch(analyzedWorld.getAnalyzedHierarchy(interfaceName, loader,
+                    parseContext))) {
+                return false;
+            }
+        }
+        analyzedWorld.add(analyzedClass, loader);
+        return true;
+    }
+
+    private static boolean hasAnyMatch(List<AnalyzedClass> analyzedClasses) {
+        for (AnalyzedClass analyzedClass : analyzedClasses) {
+            if (!analyzedClass.analyzedMethods().isEmpty() || !analyzedClass.shimTypes().isEmpty()
+                    || !analyzedClass.mixinTypes().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -260,6 +353,9 @@ public class Weaver {
         private final @Nullable ClassLoader loader;
         private final ParseContext parseContext;
 
+        // these are recorded so that cached weaving results can be validated, see WeavingCache
+        private final Set<String> typesLookedUp = Sets.newLinkedHashSet();
+
         public ComputeFramesClassWriter(int flags, AnalyzedWorld analyzedWorld,
                 @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
             super(flags);
@@ -268,6 +364,10 @@ public class Weaver {
             this.parseContext = ImmutableParseContext.of(className, codeSource);
         }
 
+        List<String> getTypesLookedUp() {
+            return ImmutableList.copyOf(typesLookedUp);
+        }
+
         // implements logic similar to org.objectweb.asm.ClassWriter.getCommonSuperClass()
         @Override
         protected String getCommonSuperClass(String type1, String type2) {
@@ -285,8 +385,7 @@ public class Weaver {
         private String getCommonSuperClassInternal(String type1, String type2) throws IOException {
             AnalyzedClass analyzedClass1;
             try {
-                analyzedClass1 =
-                        analyzedWorld.getAnalyzedClass(ClassNames.fromInternalName(type1), loader);
+                analyzedClass1 = getAnalyzedClass(ClassNames.fromInternalName(type1));
             } catch (ClassNotFoundException e) {
                 // log at debug level only since this code will fail anyways if it is actually used
                 // at runtime since type doesn't exist
@@ -295,8 +394,7 @@ public class Weaver {
             }
             AnalyzedClass analyzedClass2;
             try {
-                analyzedClass2 =
-                        analyzedWorld.getAnalyzedClass(ClassNames.fromInternalName(type2), loader);
+                analyzedClass2 = getAnalyzedClass(ClassNames.fromInternalName(type2));
             } catch (ClassNotFoundException e) {
                 // log at debug level only since this code will fail anyways if it is actually used
                 // at runtime since type doesn't exist
@@ -330,8 +428,7 @@ public class Weaver {
                     return ClassNames.toInternalName(superName);
                 }
                 try {
-                    AnalyzedClass superAnalyzedClass =
-                            analyzedWorld.getAnalyzedClass(superName, loader);
+                    AnalyzedClass superAnalyzedClass = getAnalyzedClass(superName);
                     superName = superAnalyzedClass.superName();
                 } catch (ClassNotFoundException e) {
                     // log at debug level only since this code must not be getting used anyways, as
@@ -363,8 +460,7 @@ public class Weaver {
                 AnalyzedClass analyzedClass) throws IOException {
             for (String interfaceName : analyzedClass.interfaceNames()) {
                 try {
-                    AnalyzedClass interfaceAnalyzedClass =
-                            analyzedWorld.getAnalyzedClass(interfaceName, loader);
+                    AnalyzedClass interfaceAnalyzedClass = getAnalyzedClass(interfaceName);
                     if (isAssignableFrom(possibleSuperClassName, interfaceAnalyzedClass)) {
                         return true;
                     }
@@ -381,8 +477,7 @@ public class Weaver {
         private boolean isAssignableFromSuperClass(String possibleSuperClassName, String superName)
                 throws IOException {
             try {
-                AnalyzedClass superAnalyzedClass =
-                        analyzedWorld.getAnalyzedClass(superName, loader);
+                AnalyzedClass superAnalyzedClass = getAnalyzedClass(superName);
                 return isAssignableFrom(possibleSuperClassName, superAnalyzedClass);
             } catch (ClassNotFoundException e) {
                 // log at debug level only since this code must not be getting used anyways, as it
@@ -391,6 +486,12 @@ public class Weaver {
                 return false;
             }
         }
+
+        private AnalyzedClass getAnalyzedClass(String className)
+                throws ClassNotFoundException, IOException {
+            typesLookedUp.add(className);
+            return analyzedWorld.getAnalyzedClass(className, loader);
+        }
     }
 
     private static class FelixOsgiHackClassVisitor extends ClassVisitor {
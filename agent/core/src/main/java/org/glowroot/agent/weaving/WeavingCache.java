@@ -0,0 +1,629 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// persistent cache of weaving results, so that agent restarts can skip class analysis and frame
+// computation for classes that were already woven by a previous run
+//
+// entries are stored per fingerprint (agent version + advice + shim types + mixin types), keyed by
+// a hash of the original class bytes, and are only used if the analyzed super types and the types
+// consulted during frame computation are still the same as when the entry was written
+//
+// classes loaded by the bootstrap class loader, classes with @Instrumentation annotations and
+// classes that need meta holders are never cached since weaving them has side effects beyond the
+// returned bytes
+//
+// the total size of the entries is capped, evicting the least recently used entries first
+public class WeavingCache implements WeavingCacheMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int MAGIC = 0x474c5731;
+
+    private static final long MAX_SIZE_BYTES =
+            Integer.getInteger("glowroot.weaving.cache.maxSizeMb", 100) * 1024L * 1024;
+
+    private final File cacheDir;
+    private final long maxSizeBytes;
+    private final String agentVersion;
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+    private final AnalyzedWorld analyzedWorld;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong hitNanos = new AtomicLong();
+    private final AtomicLong missNanos = new AtomicLong();
+
+    private volatile @Nullable Fingerprint fingerprint;
+
+    private volatile boolean staleEntriesDeleted;
+
+    private WeavingCache(File cacheDir, long maxSizeBytes, String agentVersion,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld) {
+        this.cacheDir = cacheDir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.agentVersion = agentVersion;
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        this.analyzedWorld = analyzedWorld;
+    }
+
+    public static @Nullable WeavingCache create(File cacheDir, String agentVersion,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld) {
+        return create(cacheDir, MAX_SIZE_BYTES, agentVersion, shimTypes, mixinTypes,
+                analyzedWorld);
+    }
+
+    @VisibleForTesting
+    static @Nullable WeavingCache create(File cacheDir, long maxSizeBytes, String agentVersion,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld) {
+        if (!Boolean.parseBoolean(System.getProperty("glowroot.weaving.cache", "true"))) {
+            return null;
+        }
+        if (agentVersion.equals("unknown")) {
+            // woven bytes from a different build of the agent must never be used
+            logger.debug("weaving cache disabled since agent version is unknown");
+            return null;
+        }
+        return new WeavingCache(cacheDir, maxSizeBytes, agentVersion, shimTypes, mixinTypes,
+                analyzedWorld);
+    }
+
+    Key newKey(List<Advice> advisors, byte[] classBytes) {
+        long startTick = System.nanoTime();
+        Fingerprint fingerprint = this.fingerprint;
+        if (fingerprint == null || fingerprint.advisors != advisors) {
+            fingerprint = new Fingerprint(advisors);
+            this.fingerprint = fingerprint;
+        }
+        String classHash = Hashing.murmur3_128().hashBytes(classBytes).toString();
+        return new Key(fingerprint, classHash, classBytes.length, startTick);
+    }
+
+    // returns null on cache miss
+    @Nullable
+    Hit get(Key key, @Nullable ClassLoader loader, ParseContext parseContext) {
+        if (!key.fingerprint.touchEntry(key.classHash)) {
+            return null;
+        }
+        File file = key.getFile();
+        try {
+            byte[] bytes = Files.toByteArray(file);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC || in.readInt() != key.classBytesLength) {
+                return null;
+            }
+            boolean woven = in.readBoolean();
+            AnalyzedClass analyzedClass = readAnalyzedClass(in, key.fingerprint);
+            byte[] hierarchyDigest = readBytes(in);
+            byte[] hierarchyDigestNow =
+                    getHierarchyDigest(analyzedClass, key.fingerprint, loader, parseContext);
+            if (!Arrays.equals(hierarchyDigest, hierarchyDigestNow)) {
+                return null;
+            }
+            byte[] wovenBytes = null;
+            if (woven) {
+                List<String> frameDependencies = readStrings(in);
+                byte[] framesDigest = readBytes(in);
+                if (!Arrays.equals(framesDigest, getFramesDigest(frameDependencies, loader))) {
+                    return null;
+                }
+                wovenBytes = readBytes(in);
+            }
+            analyzedWorld.add(analyzedClass, loader);
+            hitCount.incrementAndGet();
+            hitNanos.addAndGet(System.nanoTime() - key.startTick);
+            return new Hit(wovenBytes);
+        } catch (IOException e) {
+            // e.g. truncated entry from an agent that was killed while writing it
+            logger.debug(e.getMessage(), e);
+            key.fingerprint.removeEntry(key.classHash);
+            deleteEntry(file);
+            return null;
+        }
+    }
+
+    void put(Key key, AnalyzedClass analyzedClass, byte /*@Nullable*/ [] wovenBytes,
+            List<String> frameDependencies, @Nullable ClassLoader loader,
+            ParseContext parseContext) {
+        missCount.incrementAndGet();
+        missNanos.addAndGet(System.nanoTime() - key.startTick);
+        byte[] hierarchyDigest =
+                getHierarchyDigest(analyzedClass, key.fingerprint, loader, parseContext);
+        if (hierarchyDigest == null) {
+            // super type analyzed with advice that is not part of the fingerprint
+            return;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(MAGIC);
+            out.writeInt(key.classBytesLength);
+            out.writeBoolean(wovenBytes != null);
+            if (!writeAnalyzedClass(out, analyzedClass, key.fingerprint)) {
+                return;
+            }
+            writeBytes(out, hierarchyDigest);
+            if (wovenBytes != null) {
+                writeStrings(out, frameDependencies);
+                writeBytes(out, getFramesDigest(frameDependencies, loader));
+                writeBytes(out, wovenBytes);
+            }
+            write(key, baos.toByteArray());
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public double getHitPercentage() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : 100 * hits / (double) total;
+    }
+
+    @Override
+    public long getEstimatedTimeSavedMillis() {
+        long hits = hitCount.get();
+        long misses = missCount.get();
+        if (hits == 0 || misses == 0) {
+            return 0;
+        }
+        double averageMissNanos = missNanos.get() / (double) misses;
+        double averageHitNanos = hitNanos.get() / (double) hits;
+        return NANOSECONDS.toMillis((long) (hits * (averageMissNanos - averageHitNanos)));
+    }
+
+    private void write(Key key, byte[] bytes) throws IOException {
+        File dir = key.fingerprint.dir;
+        if (!staleEntriesDeleted) {
+            deleteStaleEntries(dir);
+            staleEntriesDeleted = true;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        // write to temporary file first so that concurrent readers never see partial entries
+        File tmpFile = File.createTempFile(key.classHash, ".tmp", dir);
+        Files.write(bytes, tmpFile);
+        if (!tmpFile.renameTo(key.getFile())) {
+            if (!tmpFile.delete()) {
+                logger.debug("unable to delete temporary file: {}", tmpFile.getPath());
+            }
+            return;
+        }
+        for (String evictedClassHash : key.fingerprint.addEntry(key.classHash, bytes.length)) {
+            deleteEntry(new File(dir, evictedClassHash));
+        }
+    }
+
+    // entries written for other fingerprints (e.g. by prior agent versions) can never be used again
+    private void deleteStaleEntries(File currentDir) {
+        File[] dirs = cacheDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (!dir.equals(currentDir)) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    // this mirrors the super type lookups performed by ClassAnalyzer
+    private byte /*@Nullable*/ [] getHierarchyDigest(AnalyzedClass analyzedClass,
+            Fingerprint fingerprint, @Nullable ClassLoader loader, ParseContext parseContext) {
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        if (!analyzedClass.isInterface()) {
+            superAnalyzedClasses.addAll(analyzedWorld
+                    .getAnalyzedHierarchy(analyzedClass.superName(), loader, parseContext));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+                if (!writeAnalyzedClass(out, superAnalyzedClass, fingerprint)) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            // not possible writing to ByteArrayOutputStream, other than UTFDataFormatException
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        return Hashing.murmur3_128().hashBytes(baos.toByteArray()).asBytes();
+    }
+
+    // this mirrors the lookups performed by ComputeFramesClassWriter.getCommonSuperClass()
+    private byte[] getFramesDigest(List<String> frameDependencies, @Nullable ClassLoader loader) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String className : frameDependencies) {
+            hasher.putString(className, Charsets.UTF_8);
+            try {
+                AnalyzedClass analyzedClass = analyzedWorld.getAnalyzedClass(className, loader);
+                hasher.putInt(analyzedClass.modifiers());
+                String superName = analyzedClass.superName();
+                hasher.putString(superName == null ? "" : superName, Charsets.UTF_8);
+                for (String interfaceName : analyzedClass.interfaceNames()) {
+                    hasher.putString(interfaceName, Charsets.UTF_8);
+                }
+            } catch (ClassNotFoundException e) {
+                logger.trace(e.getMessage(), e);
+                hasher.putInt(-1);
+            } catch (IOException e) {
+                logger.trace(e.getMessage(), e);
+                hasher.putInt(-2);
+            }
+            hasher.putByte((byte) 0);
+        }
+        return hasher.hash().asBytes();
+    }
+
+    private boolean writeAnalyzedClass(DataOutputStream out, AnalyzedClass analyzedClass,
+            Fingerprint fingerprint) throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            if (!writeIndexes(out, analyzedMethod.advisors(), fingerprint.adviceIndexes)) {
+                return false;
+            }
+            if (!writeIndexes(out, analyzedMethod.subTypeRestrictedAdvisors(),
+                    fingerprint.adviceIndexes)) {
+                return false;
+            }
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+        return writeIndexes(out, analyzedClass.shimTypes(), fingerprint.shimTypeIndexes)
+                && writeIndexes(out, analyzedClass.mixinTypes(), fingerprint.mixinTypeIndexes);
+    }
+
+    private AnalyzedClass readAnalyzedClass(DataInputStream in, Fingerprint fingerprint)
+            throws IOException {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            builder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in))
+                    .addAllAdvisors(readIndexes(in, fingerprint.advisors))
+                    .addAllSubTypeRestrictedAdvisors(readIndexes(in, fingerprint.advisors))
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        return builder.addAllShimTypes(readIndexes(in, shimTypes))
+                .addAllMixinTypes(readIndexes(in, mixinTypes))
+                .build();
+    }
+
+    private static <T> boolean writeIndexes(DataOutputStream out, List<T> items,
+            Map<T, Integer> indexes) throws IOException {
+        out.writeInt(items.size());
+        for (T item : items) {
+            Integer index = indexes.get(item);
+            if (index == null) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        return true;
+    }
+
+    private static <T> List<T> readIndexes(DataInputStream in, List<T> items) throws IOException {
+        int size = in.readInt();
+        List<T> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= items.size()) {
+                throw new IOException("Invalid index: " + index);
+            }
+            list.add(items.get(index));
+        }
+        return list;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String string)
+            throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void deleteEntry(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.debug("unable to delete weaving cache entry: {}", file.getPath());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        if (!file.delete()) {
+            logger.debug("unable to delete: {}", file.getPath());
+        }
+    }
+
+    private static <T> Map<T, Integer> getIndexes(List<T> items) {
+        // using identity since that is how advice is compared elsewhere, and it avoids (relatively)
+        // expensive equals() on MixinType implementation bytes
+        Map<T, Integer> indexes = new IdentityHashMap<T, Integer>();
+        for (int i = 0; i < items.size(); i++) {
+            indexes.put(items.get(i), i);
+        }
+        return indexes;
+    }
+
+    private class Fingerprint {
+
+        private final List<Advice> advisors;
+        private final Map<Advice, Integer> adviceIndexes;
+        private final Map<ShimType, Integer> shimTypeIndexes;
+        private final Map<MixinType, Integer> mixinTypeIndexes;
+        private final File dir;
+
+        // in-memory index of the entries in dir (class hash -> entry size), in least recently used
+        // order, so that a cache miss does not need to touch the file system
+        @GuardedBy("this")
+        private final Map<String, Long> entrySizes = new LinkedHashMap<String, Long>(16, 0.75f,
+                true);
+        @GuardedBy("this")
+        private long totalSize;
+
+        private Fingerprint(List<Advice> advisors) {
+            this.advisors = advisors;
+            adviceIndexes = getIndexes(advisors);
+            shimTypeIndexes = getIndexes(shimTypes);
+            mixinTypeIndexes = getIndexes(mixinTypes);
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            hasher.putString(agentVersion, Charsets.UTF_8);
+            for (Advice advice : advisors) {
+                hasher.putString(advice.toString(), Charsets.UTF_8);
+                // nesting group and suppression key ids are embedded in the woven bytecode, and
+                // this also assigns them (deterministically, in advice order) if this is the first
+                // time they are encountered
+                Pointcut pointcut = advice.pointcut();
+                putId(hasher, pointcut.nestingGroup(), true);
+                putId(hasher, pointcut.suppressibleUsingKey(), false);
+                putId(hasher, pointcut.suppressionKey(), false);
+            }
+            for (ShimType shimType : shimTypes) {
+                hasher.putString(shimType.toString(), Charsets.UTF_8);
+            }
+            for (MixinType mixinType : mixinTypes) {
+                hasher.putString(mixinType.targets().toString(), Charsets.UTF_8);
+                hasher.putString(mixinType.interfaces().toString(), Charsets.UTF_8);
+                hasher.putString(String.valueOf(mixinType.initMethodName()), Charsets.UTF_8);
+                hasher.putBytes(mixinType.implementationBytes());
+            }
+            dir = new File(cacheDir, hasher.hash().toString());
+            loadEntries();
+        }
+
+        private synchronized boolean touchEntry(String classHash) {
+            // access order map, so this also marks the entry as most recently used
+            return entrySizes.get(classHash) != null;
+        }
+
+        // returns the class hashes of the entries that were evicted to stay under the size limit
+        private synchronized List<String> addEntry(String classHash, long size) {
+            Long priorSize = entrySizes.put(classHash, size);
+            if (priorSize != null) {
+                totalSize -= priorSize;
+            }
+            totalSize += size;
+            List<String> evictedClassHashes = Lists.newArrayList();
+            Iterator<Map.Entry<String, Long>> i = entrySizes.entrySet().iterator();
+            while (totalSize > maxSizeBytes && i.hasNext()) {
+                Map.Entry<String, Long> eldest = i.next();
+                totalSize -= eldest.getValue();
+                evictedClassHashes.add(eldest.getKey());
+                i.remove();
+            }
+            return evictedClassHashes;
+        }
+
+        private synchronized void removeEntry(String classHash) {
+            Long size = entrySizes.remove(classHash);
+            if (size != null) {
+                totalSize -= size;
+            }
+        }
+
+        // last access time is not persisted (that would require a file system write on every hit),
+        // so across restarts the entries start out in the order they were written
+        private void loadEntries() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File left, File right) {
+                    return Longs.compare(left.lastModified(), right.lastModified());
+                }
+            });
+            List<String> evictedClassHashes = Lists.newArrayList();
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    // left behind by an agent that was killed while writing an entry
+                    deleteEntry(file);
+                } else {
+                    evictedClassHashes.addAll(addEntry(file.getName(), file.length()));
+                }
+            }
+            // e.g. the size limit was lowered since the entries were written
+            for (String evictedClassHash : evictedClassHashes) {
+                deleteEntry(new File(dir, evictedClassHash));
+            }
+        }
+
+        private void putId(Hasher hasher, String name, boolean nestingGroup) {
+            if (name.isEmpty()) {
+                hasher.putInt(0);
+            } else if (nestingGroup) {
+                hasher.putInt(WeavingMethodVisitor.getNestingGroupId(name));
+            } else {
+                hasher.putInt(WeavingMethodVisitor.getSuppressionKeyId(name));
+            }
+        }
+    }
+
+    static class Key {
+
+        private final Fingerprint fingerprint;
+        private final String classHash;
+        private final int classBytesLength;
+        private final long startTick;
+
+        private Key(Fingerprint fingerprint, String classHash, int classBytesLength,
+                long startTick) {
+            this.fingerprint = fingerprint;
+            this.classHash = classHash;
+            this.classBytesLength = classBytesLength;
+            this.startTick = startTick;
+        }
+
+        private File getFile() {
+            return new File(fingerprint.dir, classHash);
+        }
+    }
+
+    static class Hit {
+
+        private final byte /*@Nullable*/ [] wovenBytes;
+
+        private Hit(byte /*@Nullable*/ [] wovenBytes) {
+            this.wovenBytes = wovenBytes;
+        }
+
+        // null means the class did not need to be woven
+        byte /*@Nullable*/ [] wovenBytes() {
+            return wovenBytes;
+        }
+    }
+}
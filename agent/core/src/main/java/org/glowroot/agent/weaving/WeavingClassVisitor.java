@@ -53,6 +53,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.plugin.api.weaving.Shim;
+import org.glowroot.agent.weaving.Weaver.ComputeFramesClassWriter;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.AASTORE;
@@ -88,7 +89,8 @@ class WeavingClassVisitor extends ClassVisitor {
 
     private static final AtomicLong metaHolderCounter = new AtomicLong();
 
-    private final ClassWriter cw;
+    private final ComputeFramesClassWriter cw;
+    private final boolean lazyFrames;
     private final @Nullable ClassLoader loader;
 
     private final AnalyzedClass analyzedClass;
@@ -102,6 +104,7 @@ class WeavingClassVisitor extends ClassVisitor {
     private final AnalyzedWorld analyzedWorld;
 
     private @MonotonicNonNull Type type;
+    private int version;
 
     // these are for handling class and method metas
     private final Set<Type> classMetaTypes = Sets.newHashSet();
@@ -109,12 +112,14 @@ class WeavingClassVisitor extends ClassVisitor {
     private @MonotonicNonNull String metaHolderInternalName;
     private int methodMetaCounter;
 
-    public WeavingClassVisitor(ClassWriter cw, @Nullable ClassLoader loader,
-            AnalyzedClass analyzedClass, List<AnalyzedMethod> methodsThatOnlyNowFulfillAdvice,
-            List<ShimType> shimTypes, List<MixinType> mixinTypes,
-            Map<String, List<Advice>> methodAdvisors, AnalyzedWorld analyzedWorld) {
+    public WeavingClassVisitor(ComputeFramesClassWriter cw, boolean lazyFrames,
+            @Nullable ClassLoader loader, AnalyzedClass analyzedClass,
+            List<AnalyzedMethod> methodsThatOnlyNowFulfillAdvice, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, Map<String, List<Advice>> methodAdvisors,
+            AnalyzedWorld analyzedWorld) {
         super(ASM5, cw);
         this.cw = cw;
+        this.lazyFrames = lazyFrames;
         this.loader = loader;
         this.analyzedClass = analyzedClass;
         this.methodsThatOnlyNowFulfillAdvice = methodsThatOnlyNowFulfillAdvice;
@@ -140,6 +145,7 @@ class WeavingClassVisitor extends ClassVisitor {
             @Nullable String superInternalName,
             String /*@Nullable*/ [] interfaceInternalNamesNullable) {
 
+        this.version = version;
         type = Type.getObjectType(internalName);
         String /*@Nullable*/ [] interfacesIncludingMixins = getInterfacesIncludingShimsAndMixins(
                 interfaceInternalNamesNullable, shimTypes, mixinTypes);
@@ -211,6 +217,11 @@ class WeavingClassVisitor extends ClassVisitor {
         cw.visitEnd();
     }
 
+    // meta holders are generated (and defined) as a side effect of weaving, see WeavingCache
+    boolean hasMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     @RequiresNonNull("type")
     private void handleMetaHolders() {
         if (metaHolderInternalName != null) {
@@ -415,7 +426,7 @@ class WeavingClassVisitor extends ClassVisitor {
             @Nullable String signature, String /*@Nullable*/ [] exceptions,
             List<Advice> matchingAdvisors) {
         Integer methodMetaUniqueNum = collectMetasAtMethod(matchingAdvisors, name, desc);
-        MethodVisitor mv = cw.visitMethod(access, name, desc, signature, exceptions);
+        MethodVisitor mv = visitMethodComputingFrames(access, name, desc, signature, exceptions);
         mv = new InitMixins(mv, access, name, desc, mixinTypes, type);
         for (Advice advice : matchingAdvisors) {
             if (!advice.pointcut().timerName().isEmpty()) {
@@ -423,8 +434,9 @@ class WeavingClassVisitor extends ClassVisitor {
                 break;
             }
         }
-        return new WeavingMethodVisitor(mv, access, name, desc, type, matchingAdvisors,
-                metaHolderInternalName, methodMetaUniqueNum, loader == null, null);
+        return skipFramesIfLazy(new WeavingMethodVisitor(mv, access, name, desc, type,
+                matchingAdvisors, metaHolderInternalName, methodMetaUniqueNum, loader == null,
+                null));
     }
 
     @RequiresNonNull("type")
@@ -433,9 +445,32 @@ class WeavingClassVisitor extends ClassVisitor {
             Iterable<Advice> matchingAdvisors) {
         // FIXME remove superseded advisors
         Integer methodMetaUniqueNum = collectMetasAtMethod(matchingAdvisors, name, desc);
-        MethodVisitor mv = cw.visitMethod(access, name, desc, signature, exceptions);
-        return new WeavingMethodVisitor(mv, access, name, desc, type, matchingAdvisors,
-                metaHolderInternalName, methodMetaUniqueNum, loader == null, null);
+        MethodVisitor mv = visitMethodComputingFrames(access, name, desc, signature, exceptions);
+        return skipFramesIfLazy(new WeavingMethodVisitor(mv, access, name, desc, type,
+                matchingAdvisors, metaHolderInternalName, methodMetaUniqueNum, loader == null,
+                null));
+    }
+
+    // in lazy frames mode (see Weaver), frames are only computed for the methods that are woven or
+    // generated here, all other methods keep their original frames
+    @RequiresNonNull("type")
+    private MethodVisitor visitMethodComputingFrames(int access, String name, String desc,
+            @Nullable String signature, String /*@Nullable*/ [] exceptions) {
+        if (lazyFrames) {
+            return new FrameComputingMethodVisitor(cw, version, type.getInternalName(), access,
+                    name, desc, signature, exceptions);
+        }
+        return cw.visitMethod(access, name, desc, signature, exceptions);
+    }
+
+    // in lazy frames mode the original frames are read, but frames for woven methods are computed
+    // from scratch, and the original frames cannot be passed through WeavingMethodVisitor anyways
+    // since LocalVariablesSorter only accepts expanded frames
+    private MethodVisitor skipFramesIfLazy(MethodVisitor mv) {
+        if (lazyFrames) {
+            return new SkipFramesMethodVisitor(mv);
+        }
+        return mv;
     }
 
     private @Nullable Integer collectMetasAtMethod(Iterable<Advice> matchingAdvisors,
@@ -476,8 +511,8 @@ class WeavingClassVisitor extends ClassVisitor {
                         "@Shim annotation must have exactly one value when used on methods");
             }
             Method targetMethod = Method.getMethod(value[0]);
-            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, method.getName(), method.getDescriptor(),
-                    null, null);
+            MethodVisitor mv = visitMethodComputingFrames(ACC_PUBLIC, method.getName(),
+                    method.getDescriptor(), null, null);
             mv.visitCode();
             int i = 0;
             mv.visitVarInsn(ALOAD, i++);
@@ -511,8 +546,8 @@ class WeavingClassVisitor extends ClassVisitor {
             // SuppressWarnings because generics are explicitly removed from asm binaries
             @SuppressWarnings("unchecked")
             String[] exceptions = Iterables.toArray(mn.exceptions, String.class);
-            MethodVisitor mv =
-                    cw.visitMethod(mn.access, mn.name, mn.desc, mn.signature, exceptions);
+            MethodVisitor mv = visitMethodComputingFrames(mn.access, mn.name, mn.desc,
+                    mn.signature, exceptions);
             mn.accept(new MethodRemapper(mv,
                     new SimpleRemapper(mixinClassNode.name, type.getInternalName())));
         }
@@ -615,6 +650,17 @@ class WeavingClassVisitor extends ClassVisitor {
         }
     }
 
+    private static class SkipFramesMethodVisitor extends MethodVisitor {
+
+        private SkipFramesMethodVisitor(MethodVisitor mv) {
+            super(ASM5, mv);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object /*@Nullable*/ [] local, int nStack,
+                Object /*@Nullable*/ [] stack) {}
+    }
+
     @Value.Immutable
     interface MethodMetaGroup {
         String methodName();
@@ -398,7 +398,18 @@ class WeavingMethodVisitor extends AdviceAdapter {
             checkNotNull(threadContextLocal);
             storeLocal(threadContextLocal);
             if (advice.hasBindThreadContext() && !advice.hasBindOptionalThreadContext()) {
+                Label threadContextLabel = new Label();
+                visitJumpInsn(IFNONNULL, threadContextLabel);
+                // only a static field read when lazily started auxiliary thread contexts are not
+                // being used
+                visitFieldInsn(GETSTATIC, transactionRegistryHolderType.getInternalName(),
+                        "pendingAuxThreadContextUsed", Type.BOOLEAN_TYPE.getDescriptor());
+                visitJumpInsn(IFEQ, disabledLabel);
+                loadPendingAuxThreadContext();
+                dup();
+                storeLocal(threadContextLocal);
                 visitJumpInsn(IFNULL, disabledLabel);
+                visitLabel(threadContextLabel);
                 if (!suppressibleUsingKey.isEmpty()) {
                     checkSuppressibleUsingKey(suppressibleUsingKey, disabledLabel);
                 }
@@ -456,6 +467,15 @@ class WeavingMethodVisitor extends AdviceAdapter {
                 false);
     }
 
+    // only called when there is no current thread context, to pick up any lazily started auxiliary
+    // thread context (see AuxThreadContext.startLazily())
+    private void loadPendingAuxThreadContext() {
+        visitMethodInsn(INVOKESTATIC, transactionRegistryHolderType.getInternalName(),
+                "getTransactionRegistry", "()" + transactionRegistryType.getDescriptor(), false);
+        visitMethodInsn(INVOKEVIRTUAL, transactionRegistryType.getInternalName(),
+                "getPendingAuxThreadContext", "()" + threadContextPlusType.getDescriptor(), false);
+    }
+
     @RequiresNonNull("threadContextLocal")
     private void checkAndUpdateNestingGroupId(int prevNestingGroupIdLocal, String nestingGroup,
             Label disabledLabel) {
@@ -964,13 +984,14 @@ class WeavingMethodVisitor extends AdviceAdapter {
         storeLocal(threadContextLocal);
         Label label2 = new Label();
         visitJumpInsn(IFNONNULL, label2);
+        // this also picks up any lazily started auxiliary thread context
         visitMethodInsn(INVOKESTATIC, transactionServiceHolderType.getInternalName(),
                 "getTransactionService", "()" + transactionServiceImplType.getDescriptor(), false);
         loadLocal(threadContextHolderLocal);
         visitMethodInsn(INVOKESTATIC, optionalThreadContextImplType.getInternalName(), "create",
                 "(" + transactionServiceImplType.getDescriptor()
                         + fastThreadLocalHolderType.getDescriptor() + ")"
-                        + optionalThreadContextImplType.getDescriptor(),
+                        + threadContextPlusType.getDescriptor(),
                 false);
         storeLocal(threadContextLocal);
         visitLabel(label2);
@@ -1075,7 +1096,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
-    private static int getNestingGroupId(String nestingGroup) {
+    static int getNestingGroupId(String nestingGroup) {
         Integer nullableNestingGroupId = nestingGroupIds.get(nestingGroup);
         if (nullableNestingGroupId != null) {
             return nullableNestingGroupId;
@@ -1090,7 +1111,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
-    private static int getSuppressionKeyId(String suppressionKey) {
+    static int getSuppressionKeyId(String suppressionKey) {
         Integer nullableSuppressionKeyId = suppressionKeyIds.get(suppressionKey);
         if (nullableSuppressionKeyId != null) {
             return nullableSuppressionKeyId;
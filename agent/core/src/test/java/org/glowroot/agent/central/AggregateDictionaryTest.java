@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.AggregateDictionary.StreamEncoder;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.MessageCase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionaryTest {
+
+    private AggregateDictionary aggregateDictionary;
+    private RecordingStreamObserver requestObserver;
+
+    @Before
+    public void beforeEachTest() {
+        aggregateDictionary = new AggregateDictionary(new SharedQueryTextLimiter());
+        requestObserver = new RecordingStreamObserver();
+    }
+
+    @Test
+    public void shouldOnlySendEntriesOnce() {
+        // when
+        StreamEncoder streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 10);
+        int firstEntryCount = requestObserver.dictionaryEntryCount;
+        aggregateDictionary.onResponse(streamEncoder, firstEntryCount);
+        requestObserver.clear();
+        encodeMinute(aggregateDictionary, requestObserver, 10);
+
+        // then
+        assertThat(firstEntryCount).isGreaterThan(0);
+        assertThat(requestObserver.dictionaryEntryCount).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldResendEntriesWhenNotCommitted() {
+        // when
+        encodeMinute(aggregateDictionary, requestObserver, 10);
+        int firstEntryCount = requestObserver.dictionaryEntryCount;
+        requestObserver.clear();
+        encodeMinute(aggregateDictionary, requestObserver, 10);
+
+        // then
+        assertThat(requestObserver.dictionaryEntryCount).isEqualTo(firstEntryCount);
+    }
+
+    @Test
+    public void shouldResetOnDivergence() {
+        // given
+        StreamEncoder streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 10);
+        int firstEntryCount = requestObserver.dictionaryEntryCount;
+
+        // when
+        aggregateDictionary.onResponse(streamEncoder, firstEntryCount + 1);
+        requestObserver.clear();
+        StreamEncoder nextStreamEncoder =
+                encodeMinute(aggregateDictionary, requestObserver, 10);
+
+        // then
+        assertThat(requestObserver.dictionaryEntryCount).isEqualTo(firstEntryCount);
+        AggregateStreamHeader.Builder streamHeader = AggregateStreamHeader.newBuilder();
+        AggregateStreamHeader.Builder nextStreamHeader = AggregateStreamHeader.newBuilder();
+        streamEncoder.populateStreamHeader(streamHeader);
+        nextStreamEncoder.populateStreamHeader(nextStreamHeader);
+        assertThat(nextStreamHeader.getDictionaryId())
+                .isNotEqualTo(streamHeader.getDictionaryId());
+        assertThat(nextStreamHeader.getDictionaryBaseSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotUseEntriesCommittedByConcurrentStream() {
+        // given
+        RecordingStreamObserver otherRequestObserver = new RecordingStreamObserver();
+        StreamEncoder streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 10);
+        StreamEncoder otherStreamEncoder =
+                aggregateDictionary.newStreamEncoder(otherRequestObserver,
+                        Lists.<String>newArrayList());
+
+        // when
+        aggregateDictionary.onResponse(streamEncoder, requestObserver.dictionaryEntryCount);
+        encodeMinute(otherStreamEncoder, otherRequestObserver, 10);
+        aggregateDictionary.onResponse(otherStreamEncoder,
+                requestObserver.dictionaryEntryCount);
+
+        // then
+        assertThat(otherRequestObserver.dictionaryEntryCount)
+                .isEqualTo(requestObserver.dictionaryEntryCount);
+        for (AggregateStreamMessage message : otherRequestObserver.messages) {
+            if (message.getMessageCase() == MessageCase.TRANSACTION_AGGREGATE) {
+                assertThat(message.getTransactionAggregate().getTransactionNameDictionaryIndex())
+                        .isLessThan(otherRequestObserver.dictionaryEntryCount);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReduceBandwidth() {
+        // given
+        StreamEncoder streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 500);
+        aggregateDictionary.onResponse(streamEncoder, requestObserver.dictionaryEntryCount);
+        requestObserver.clear();
+
+        // when
+        encodeMinute(aggregateDictionary, requestObserver, 500);
+        int plainBytes = encodePlainMinute(500);
+
+        // then
+        assertThat(requestObserver.bytes).isLessThan(plainBytes / 2);
+    }
+
+    @Test
+    public void shouldSendSnapshotWhenCentralCollectorDoesNotHaveDictionary() {
+        // given
+        StreamEncoder streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 10);
+        int firstEntryCount = requestObserver.dictionaryEntryCount;
+        aggregateDictionary.onResponse(streamEncoder, firstEntryCount);
+        requestObserver.clear();
+
+        // when
+        aggregateDictionary.snapshotNeeded();
+        StreamEncoder snapshotStreamEncoder =
+                aggregateDictionary.newStreamEncoder(requestObserver, Lists.<String>newArrayList());
+        snapshotStreamEncoder.sendSnapshotEntries();
+        encodeMinute(snapshotStreamEncoder, requestObserver, 11);
+        int snapshotEntryCount = requestObserver.dictionaryEntryCount;
+        aggregateDictionary.onResponse(snapshotStreamEncoder, snapshotEntryCount);
+        requestObserver.clear();
+        StreamEncoder nextStreamEncoder = encodeMinute(aggregateDictionary, requestObserver, 11);
+
+        // then
+        AggregateStreamHeader streamHeader = getStreamHeader(streamEncoder);
+        AggregateStreamHeader snapshotStreamHeader = getStreamHeader(snapshotStreamEncoder);
+        AggregateStreamHeader nextStreamHeader = getStreamHeader(nextStreamEncoder);
+        assertThat(snapshotStreamHeader.getDictionaryId())
+                .isEqualTo(streamHeader.getDictionaryId());
+        assertThat(snapshotStreamHeader.getDictionaryBaseSize()).isEqualTo(0);
+        assertThat(snapshotStreamHeader.getDictionarySnapshot()).isTrue();
+        // one new transaction name and one new query text
+        assertThat(snapshotEntryCount).isEqualTo(firstEntryCount + 2);
+        assertThat(nextStreamHeader.getDictionaryId()).isEqualTo(streamHeader.getDictionaryId());
+        assertThat(nextStreamHeader.getDictionaryBaseSize()).isEqualTo(snapshotEntryCount);
+        assertThat(nextStreamHeader.getDictionarySnapshot()).isFalse();
+        assertThat(requestObserver.dictionaryEntryCount).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReduceBandwidthAcrossReconnect() {
+        // given
+        int plainBytesPerMinute = encodePlainMinute(500);
+        int totalBytes = 0;
+        StreamEncoder streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 500);
+        aggregateDictionary.onResponse(streamEncoder, requestObserver.dictionaryEntryCount);
+        totalBytes += requestObserver.bytes;
+        requestObserver.clear();
+        streamEncoder = encodeMinute(aggregateDictionary, requestObserver, 500);
+        aggregateDictionary.onResponse(streamEncoder, getStreamHeader(streamEncoder)
+                .getDictionaryBaseSize());
+        totalBytes += requestObserver.bytes;
+        requestObserver.clear();
+
+        // when
+        // central collector restart, the stream is rejected (counting the whole stream here even
+        // though the central collector rejects it right after the stream header)
+        encodeMinute(aggregateDictionary, requestObserver, 500);
+        aggregateDictionary.snapshotNeeded();
+        totalBytes += requestObserver.bytes;
+        requestObserver.clear();
+        // and retried with a snapshot
+        streamEncoder =
+                aggregateDictionary.newStreamEncoder(requestObserver, Lists.<String>newArrayList());
+        streamEncoder.sendSnapshotEntries();
+        encodeMinute(streamEncoder, requestObserver, 500);
+        aggregateDictionary.onResponse(streamEncoder, requestObserver.dictionaryEntryCount);
+        totalBytes += requestObserver.bytes;
+        requestObserver.clear();
+        encodeMinute(aggregateDictionary, requestObserver, 500);
+        totalBytes += requestObserver.bytes;
+
+        // then
+        // five streams (one rejected) compared to four plain streams
+        assertThat(totalBytes).isLessThan(4 * plainBytesPerMinute);
+    }
+
+    private static StreamEncoder encodeMinute(AggregateDictionary aggregateDictionary,
+            RecordingStreamObserver requestObserver, int transactionNameCount) {
+        StreamEncoder streamEncoder = aggregateDictionary.newStreamEncoder(requestObserver,
+                Lists.<String>newArrayList());
+        encodeMinute(streamEncoder, requestObserver, transactionNameCount);
+        return streamEncoder;
+    }
+
+    private static void encodeMinute(StreamEncoder streamEncoder,
+            RecordingStreamObserver requestObserver, int transactionNameCount) {
+        for (int i = 0; i < transactionNameCount; i++) {
+            List<String> sharedQueryTexts = ImmutableList.of(getQueryText(i));
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(streamEncoder.encodeTransactionAggregate("Web",
+                            "/api/customers/" + i, sharedQueryTexts,
+                            createAggregate(i, ImmutableList.of(i))))
+                    .build());
+        }
+    }
+
+    // returns the number of bytes of the same minute sent without a dictionary
+    private static int encodePlainMinute(int transactionNameCount) {
+        RecordingStreamObserver plainRequestObserver = new RecordingStreamObserver();
+        for (int i = 0; i < transactionNameCount; i++) {
+            plainRequestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                            .setFullText(getQueryText(i)))
+                    .build());
+            plainRequestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(TransactionAggregate.newBuilder()
+                            .setTransactionType("Web")
+                            .setTransactionName("/api/customers/" + i)
+                            .setAggregate(createAggregate(i, ImmutableList.of(i))))
+                    .build());
+        }
+        return plainRequestObserver.bytes;
+    }
+
+    private static AggregateStreamHeader getStreamHeader(StreamEncoder streamEncoder) {
+        AggregateStreamHeader.Builder streamHeader = AggregateStreamHeader.newBuilder();
+        streamEncoder.populateStreamHeader(streamHeader);
+        return streamHeader.build();
+    }
+
+    private static Aggregate createAggregate(int seed, List<Integer> sharedQueryTextIndexes) {
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(seed * 1000000.0)
+                .setTransactionCount(seed + 1)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(seed * 1000000.0)
+                        .setCount(seed + 1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(seed * 100000.0)
+                                .setCount(seed + 1))
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("hibernate query")
+                                .setTotalNanos(seed * 100000.0)
+                                .setCount(seed + 1)));
+        Aggregate.QueriesByType.Builder queriesByType = Aggregate.QueriesByType.newBuilder()
+                .setType("SQL");
+        for (int sharedQueryTextIndex : sharedQueryTextIndexes) {
+            queriesByType.addQuery(Aggregate.Query.newBuilder()
+                    .setSharedQueryTextIndex(sharedQueryTextIndex)
+                    .setTotalDurationNanos(seed * 100000.0)
+                    .setExecutionCount(seed + 1));
+        }
+        return builder.addQueriesByType(queriesByType)
+                .build();
+    }
+
+    private static String getQueryText(int i) {
+        return "select c.id, c.name, c.email, c.address from customer c where c.region_id = ?"
+                + " and c.status = ? and c.category_" + i + " = ?";
+    }
+
+    private static class RecordingStreamObserver
+            implements StreamObserver<AggregateStreamMessage> {
+
+        private final List<AggregateStreamMessage> messages = Lists.newArrayList();
+        private int dictionaryEntryCount;
+        private int bytes;
+
+        @Override
+        public void onNext(AggregateStreamMessage value) {
+            messages.add(value);
+            if (value.getMessageCase() == MessageCase.DICTIONARY_ENTRY) {
+                dictionaryEntryCount++;
+            }
+            bytes += value.getSerializedSize();
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+
+        private void clear() {
+            messages.clear();
+            dictionaryEntryCount = 0;
+            bytes = 0;
+        }
+    }
+}
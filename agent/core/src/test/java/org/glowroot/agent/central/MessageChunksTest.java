@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogramResponse;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageChunksTest {
+
+    @Test
+    public void shouldSplitIntoBoundedChunks() {
+        // given
+        List<HeapHistogram.ClassInfo> classInfos = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            classInfos.add(HeapHistogram.ClassInfo.newBuilder()
+                    .setClassName("org.example.Class" + i)
+                    .setBytes(i * 1000)
+                    .setCount(i)
+                    .build());
+        }
+
+        // when
+        List<List<HeapHistogram.ClassInfo>> chunks = MessageChunks.split(classInfos,
+                HeapHistogram.CLASS_INFO_FIELD_NUMBER, 1024);
+
+        // then
+        assertThat(chunks.size()).isGreaterThan(1);
+        AgentResponse.Builder merged = AgentResponse.newBuilder();
+        for (List<HeapHistogram.ClassInfo> chunk : chunks) {
+            HeapHistogram heapHistogram = HeapHistogram.newBuilder()
+                    .addAllClassInfo(chunk)
+                    .build();
+            assertThat(heapHistogram.getSerializedSize()).isLessThanOrEqualTo(1024);
+            merged.mergeFrom(AgentResponse.newBuilder()
+                    .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                            .setHeapHistogram(heapHistogram))
+                    .build());
+        }
+        assertThat(merged.getHeapHistogramResponse().getHeapHistogram().getClassInfoList())
+                .isEqualTo(classInfos);
+    }
+
+    @Test
+    public void shouldPutOversizedElementInItsOwnChunk() {
+        // given
+        HeapHistogram.ClassInfo small = HeapHistogram.ClassInfo.newBuilder()
+                .setClassName("a")
+                .build();
+        HeapHistogram.ClassInfo large = HeapHistogram.ClassInfo.newBuilder()
+                .setClassName(Strings.repeat("b", 2000))
+                .build();
+
+        // when
+        List<List<HeapHistogram.ClassInfo>> chunks = MessageChunks.split(
+                ImmutableList.of(small, large, small), HeapHistogram.CLASS_INFO_FIELD_NUMBER,
+                1024);
+
+        // then
+        assertThat(chunks).hasSize(3);
+        assertThat(chunks.get(1)).containsExactly(large);
+    }
+
+    @Test
+    public void shouldReturnSingleEmptyChunk() {
+        // when
+        List<List<HeapHistogram.ClassInfo>> chunks = MessageChunks.split(
+                ImmutableList.<HeapHistogram.ClassInfo>of(), HeapHistogram.CLASS_INFO_FIELD_NUMBER,
+                1024);
+
+        // then
+        assertThat(chunks).hasSize(1);
+        assertThat(chunks.get(0)).isEmpty();
+    }
+}
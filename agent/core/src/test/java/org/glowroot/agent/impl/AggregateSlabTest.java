@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateSlabTest {
+
+    @Test
+    public void shouldKeepSlotsSeparateAcrossChunks() {
+        // given
+        AggregateSlab slab = new AggregateSlab();
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            int slot = slab.allocateSlot();
+            slab.add(slot, AggregateSlab.TOTAL_DURATION_NANOS, i);
+            slab.add(slot, AggregateSlab.TOTAL_DURATION_NANOS, i);
+            slab.add(slot, AggregateSlab.TRANSACTION_COUNT, 1);
+            slab.set(slot, AggregateSlab.AUX_THREAD_STATS, i);
+        }
+
+        // then
+        for (int i = 0; i < 1000; i++) {
+            assertThat(slab.get(i, AggregateSlab.TOTAL_DURATION_NANOS)).isEqualTo(2.0 * i);
+            assertThat(slab.get(i, AggregateSlab.TRANSACTION_COUNT)).isEqualTo(1);
+            assertThat(slab.get(i, AggregateSlab.ERROR_COUNT)).isEqualTo(0);
+            assertThat(slab.get(i, AggregateSlab.AUX_THREAD_STATS)).isEqualTo(i);
+        }
+    }
+}
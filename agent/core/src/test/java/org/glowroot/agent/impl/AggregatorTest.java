@@ -17,10 +17,17 @@ package org.glowroot.agent.impl;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
@@ -34,6 +41,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -75,6 +83,52 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldSerializeWhileFlushingPriorInterval() throws Exception {
+        // given
+        BlockingCollector blockingCollector = new BlockingCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        final AtomicLong currentTime = new AtomicLong(1500);
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return currentTime.get();
+            }
+        });
+        final CountDownLatch serializedLatch = new CountDownLatch(2);
+        ExecutorService serializingExecutor = new ThreadPoolExecutor(1, 1, 0, MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void afterExecute(Runnable r, @Nullable Throwable t) {
+                serializedLatch.countDown();
+            }
+        };
+        Aggregator aggregator =
+                new Aggregator(blockingCollector, configService, 1000, clock, serializingExecutor);
+        aggregator.add(buildTransaction());
+
+        // when
+        // end the first interval, whose flush then blocks
+        currentTime.set(2500);
+        aggregator.add(buildTransaction());
+        assertThat(blockingCollector.flushStarted.await(10, SECONDS)).isTrue();
+        // end the second interval while the first interval is still flushing
+        currentTime.set(3500);
+        aggregator.add(buildTransaction());
+
+        // then
+        assertThat(serializedLatch.await(10, SECONDS)).isTrue();
+        assertThat(aggregator.getPendingIntervalCount()).isEqualTo(2);
+        assertThat(aggregator.getFlushCount()).isZero();
+        blockingCollector.releaseFlush.countDown();
+        aggregator.close();
+        assertThat(aggregator.getFlushCount()).isEqualTo(2);
+        assertThat(aggregator.getPendingIntervalCount()).isZero();
+    }
+
     private static Transaction buildTransaction() {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
@@ -87,6 +141,31 @@ public class AggregatorTest {
         return transaction;
     }
 
+    private static class BlockingCollector implements Collector {
+
+        private final CountDownLatch flushStarted = new CountDownLatch(1);
+        private final CountDownLatch releaseFlush = new CountDownLatch(1);
+
+        @Override
+        public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
+                AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
+
+        @Override
+        public void collectAggregates(AggregateReader aggregateReader) throws Exception {
+            flushStarted.countDown();
+            releaseFlush.await();
+        }
+
+        @Override
+        public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
+
+        @Override
+        public void collectTrace(TraceReader traceReader) {}
+
+        @Override
+        public void log(LogEvent logEvent) {}
+    }
+
     private static class MockCollector implements Collector {
 
         // volatile needed for visibility from other thread
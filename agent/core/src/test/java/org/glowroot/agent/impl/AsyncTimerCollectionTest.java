@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.Transaction.RootTimerCollector;
+import org.glowroot.agent.model.AsyncTimerImpl;
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncTimerCollectionTest {
+
+    private static final TimerNameImpl TIMER_NAME = ImmutableTimerNameImpl.of("async", false);
+
+    @Test
+    public void shouldMergeActiveAndCompletedTimers() {
+        // given
+        AsyncTimerCollection asyncTimers = new AsyncTimerCollection();
+        for (int i = 0; i < 1000; i++) {
+            AsyncTimerImpl asyncTimer = new AsyncTimerImpl(TIMER_NAME, 0);
+            asyncTimers.add(asyncTimer);
+            asyncTimer.end(10);
+        }
+        List<AsyncTimerImpl> activeTimers = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            AsyncTimerImpl asyncTimer = new AsyncTimerImpl(TIMER_NAME, 0);
+            asyncTimers.add(asyncTimer);
+            activeTimers.add(asyncTimer);
+        }
+
+        // when
+        TimerCounter timerCounter = new TimerCounter();
+        asyncTimers.mergeInto(timerCounter);
+
+        // then
+        assertThat(timerCounter.count).isEqualTo(1500);
+        assertThat(timerCounter.activeCount).isEqualTo(500);
+        assertThat(timerCounter.completedTotalNanos).isEqualTo(10000);
+    }
+
+    @Test
+    public void shouldMergeTimersAddedConcurrently() throws Exception {
+        // given
+        final AsyncTimerCollection asyncTimers = new AsyncTimerCollection();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < 10000; j++) {
+                        AsyncTimerImpl asyncTimer = new AsyncTimerImpl(TIMER_NAME, 0);
+                        asyncTimers.add(asyncTimer);
+                        asyncTimer.end(1);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            // reading concurrently with adding and compaction
+            asyncTimers.mergeInto(new TimerCounter());
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        TimerCounter timerCounter = new TimerCounter();
+        asyncTimers.mergeInto(timerCounter);
+
+        // then
+        assertThat(timerCounter.count).isEqualTo(80000);
+        assertThat(timerCounter.completedTotalNanos).isEqualTo(80000);
+    }
+
+    private static class TimerCounter implements RootTimerCollector {
+
+        private long count;
+        private long activeCount;
+        private long completedTotalNanos;
+
+        @Override
+        public void mergeRootTimer(CommonTimerImpl rootTimer) {
+            count += rootTimer.getCount();
+            if (rootTimer.getSnapshot().active()) {
+                activeCount += rootTimer.getCount();
+            } else {
+                completedTotalNanos += rootTimer.getTotalNanos();
+            }
+        }
+    }
+}
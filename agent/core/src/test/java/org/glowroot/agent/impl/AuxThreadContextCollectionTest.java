@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.Transaction.RootTimerCollector;
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.ImmutableTimerImplSnapshot;
+import org.glowroot.agent.model.ThreadStats;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuxThreadContextCollectionTest {
+
+    @Test
+    public void shouldMergeCompleteAndEmptyAuxThreadContexts() {
+        // given
+        AuxThreadContextCollection auxThreadContexts = new AuxThreadContextCollection();
+        ThreadContextImpl mergeable = mockAuxThreadContext(true, false);
+        ThreadContextImpl nonMergeable = mockAuxThreadContext(false, true);
+        for (int i = 0; i < 4; i++) {
+            auxThreadContexts.add(mergeable);
+        }
+        for (int i = 0; i < 6; i++) {
+            auxThreadContexts.add(nonMergeable);
+        }
+
+        // when
+        boolean merged = auxThreadContexts.mergeCompleteAndEmpty();
+
+        // then
+        assertThat(merged).isTrue();
+        assertThat(auxThreadContexts).containsOnly(nonMergeable).hasSize(6);
+        assertThat(auxThreadContexts.size()).isEqualTo(6);
+        assertThat(getTimerCount(auxThreadContexts)).isEqualTo(10);
+        assertThat(getTotalCpuNanos(auxThreadContexts)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotMergeWhenLessThanTenPercentCanBeMerged() {
+        // given
+        AuxThreadContextCollection auxThreadContexts = new AuxThreadContextCollection();
+        auxThreadContexts.add(mockAuxThreadContext(true, false));
+        ThreadContextImpl nonMergeable = mockAuxThreadContext(false, true);
+        for (int i = 0; i < 19; i++) {
+            auxThreadContexts.add(nonMergeable);
+        }
+
+        // when
+        boolean merged = auxThreadContexts.mergeCompleteAndEmpty();
+
+        // then
+        assertThat(merged).isFalse();
+        assertThat(auxThreadContexts).hasSize(20);
+        assertThat(getTimerCount(auxThreadContexts)).isEqualTo(20);
+    }
+
+    @Test
+    public void shouldMergeLimitExceededAuxThreadContexts() {
+        // given
+        AuxThreadContextCollection auxThreadContexts = new AuxThreadContextCollection();
+        ThreadContextImpl withoutEntries = mockAuxThreadContext(true, false);
+        ThreadContextImpl withEntries = mockAuxThreadContext(false, true);
+        auxThreadContexts.addLimitExceeded(withoutEntries);
+        auxThreadContexts.addLimitExceeded(withEntries);
+        assertThat(auxThreadContexts).isEmpty();
+        assertThat(getTimerCount(auxThreadContexts)).isEqualTo(2);
+
+        // when
+        auxThreadContexts.mergeLimitExceeded(withoutEntries);
+        auxThreadContexts.mergeLimitExceeded(withEntries);
+
+        // then
+        assertThat(auxThreadContexts).containsExactly(withEntries);
+        assertThat(getTimerCount(auxThreadContexts)).isEqualTo(2);
+        assertThat(getTotalCpuNanos(auxThreadContexts)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReadWhileAddingAndMerging() throws Exception {
+        // given
+        final AuxThreadContextCollection auxThreadContexts = new AuxThreadContextCollection();
+        final ThreadContextImpl mergeable = mockAuxThreadContext(true, false);
+        final ThreadContextImpl nonMergeable = mockAuxThreadContext(false, true);
+        final Object lock = new Object();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Void> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < 10000; i++) {
+                    synchronized (lock) {
+                        auxThreadContexts.add(i % 2 == 0 ? mergeable : nonMergeable);
+                        if (auxThreadContexts.size() == 1000) {
+                            auxThreadContexts.mergeCompleteAndEmpty();
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+
+        // when
+        long lastTimerCount = 0;
+        while (!future.isDone()) {
+            // reading concurrently with adding and merging, without locking
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                assertThat(auxThreadContext).isNotNull();
+            }
+            long timerCount = getTimerCount(auxThreadContexts);
+            assertThat(timerCount).isGreaterThanOrEqualTo(lastTimerCount);
+            lastTimerCount = timerCount;
+        }
+        future.get();
+        executor.shutdown();
+
+        // then
+        assertThat(getTimerCount(auxThreadContexts)).isEqualTo(10000);
+        assertThat(getTotalCpuNanos(auxThreadContexts)).isEqualTo(10000);
+    }
+
+    private static ThreadContextImpl mockAuxThreadContext(boolean completeAndEmpty,
+            boolean hasTraceEntries) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("aux");
+        when(rootTimer.getCount()).thenReturn(1L);
+        when(rootTimer.getSnapshot()).thenReturn(ImmutableTimerImplSnapshot.builder()
+                .totalNanos(1)
+                .count(1)
+                .active(false)
+                .build());
+        ThreadContextImpl auxThreadContext = mock(ThreadContextImpl.class);
+        when(auxThreadContext.getRootTimer()).thenReturn(rootTimer);
+        when(auxThreadContext.getThreadStats()).thenReturn(new ThreadStats(1, 0, 0, 0));
+        when(auxThreadContext.isCompleteAndEmptyExceptForTimersAndThreadStats())
+                .thenReturn(completeAndEmpty);
+        when(auxThreadContext.hasTraceEntries()).thenReturn(hasTraceEntries);
+        return auxThreadContext;
+    }
+
+    private static long getTimerCount(AuxThreadContextCollection auxThreadContexts) {
+        TimerCounter timerCounter = new TimerCounter();
+        auxThreadContexts.mergeRootTimersInto(timerCounter);
+        return timerCounter.count;
+    }
+
+    private static long getTotalCpuNanos(AuxThreadContextCollection auxThreadContexts) {
+        ThreadStatsCollectorImpl threadStats = new ThreadStatsCollectorImpl();
+        auxThreadContexts.mergeThreadStatsInto(threadStats);
+        return threadStats.getMergedThreadStats().getTotalCpuNanos();
+    }
+
+    private static class TimerCounter implements RootTimerCollector {
+
+        private long count;
+
+        @Override
+        public void mergeRootTimer(CommonTimerImpl rootTimer) {
+            count += rootTimer.getCount();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SerializedAggregatesTest {
+
+    @Test
+    public void shouldReplaySharedQueryTexts() throws Exception {
+        // given
+        SerializedAggregates.Builder builder = new SerializedAggregates.Builder();
+        builder.addOverallAggregate("t1", ImmutableList.of("q1", "q2"), buildAggregate(0, 1));
+        builder.addTransactionAggregate("n1", ImmutableList.<String>of(), buildAggregate(1));
+        builder.addTransactionAggregate("n2", ImmutableList.of("q3"), buildAggregate(2));
+        builder.addOverallAggregate("t2", ImmutableList.<String>of(), buildAggregate(0));
+        SerializedAggregates serializedAggregates = builder.build();
+
+        // when
+        final List<String> visited = Lists.newArrayList();
+        for (int i = 0; i < 2; i++) {
+            // second time is to make sure replay is repeatable (e.g. retry)
+            visited.clear();
+            serializedAggregates.accept(new AggregateVisitor() {
+                @Override
+                public void visitOverallAggregate(String transactionType,
+                        List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                    visited.add(transactionType + ":" + sharedQueryTexts);
+                }
+                @Override
+                public void visitTransactionAggregate(String transactionType,
+                        String transactionName, List<String> sharedQueryTexts,
+                        Aggregate transactionAggregate) {
+                    visited.add(transactionType + "/" + transactionName + ":" + sharedQueryTexts);
+                }
+            });
+        }
+
+        // then
+        assertThat(visited).containsExactly("t1:[q1, q2]", "t1/n1:[]", "t1/n2:[q3]", "t2:[]");
+    }
+
+    @Test
+    public void shouldReadLiveAggregates() throws Exception {
+        // given
+        SerializedAggregates.Builder builder = new SerializedAggregates.Builder();
+        builder.addOverallAggregate("t1", ImmutableList.of("q1", "q2"), buildAggregate(0, 1));
+        builder.addTransactionAggregate("n1", ImmutableList.<String>of(), buildAggregate(1));
+        SerializedAggregates serializedAggregates = builder.build();
+
+        // when
+        OverallSummaryCollector overallSummaryCollector = new OverallSummaryCollector();
+        serializedAggregates.mergeOverallSummaryInto(overallSummaryCollector, "t1");
+        QueryCollector queryCollector = new QueryCollector(100);
+        serializedAggregates.mergeQueriesInto(queryCollector, "t1", "n1");
+
+        // then
+        assertThat(overallSummaryCollector.getOverallSummary().totalDurationNanos())
+                .isEqualTo(100);
+        assertThat(overallSummaryCollector.getOverallSummary().transactionCount()).isEqualTo(2);
+        Map<String, List<MutableQuery>> queries = queryCollector.getSortedAndTruncatedQueries();
+        assertThat(queries.get("SQL")).hasSize(1);
+        assertThat(queries.get("SQL").get(0).getTruncatedText()).isEqualTo("q2");
+        assertThat(queries.get("SQL").get(0).getExecutionCount()).isEqualTo(3);
+        assertThat(serializedAggregates.getOverviewAggregate("t1", "n2", 0)).isNull();
+        assertThat(serializedAggregates.getThroughputAggregate("t1", "n1", 0).transactionCount())
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReadFullQueryText() throws Exception {
+        // given
+        String longQueryText = Strings.repeat("x", StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE + 1);
+        String sha1 = Hashing.sha1().hashString(longQueryText, Charsets.UTF_8).toString();
+        SerializedAggregates.Builder builder = new SerializedAggregates.Builder();
+        builder.addOverallAggregate("t1", ImmutableList.of("q1", longQueryText),
+                buildAggregate(0, 1));
+        builder.addTransactionAggregate("n1", ImmutableList.<String>of(), buildAggregate(1));
+        SerializedAggregates serializedAggregates = builder.build();
+
+        // when
+        QueryCollector queryCollector = new QueryCollector(100);
+        serializedAggregates.mergeQueriesInto(queryCollector, "t1", "n1");
+
+        // then
+        assertThat(serializedAggregates.getFullQueryText(sha1)).isEqualTo(longQueryText);
+        assertThat(serializedAggregates.getFullQueryText("abc")).isNull();
+        MutableQuery query = queryCollector.getSortedAndTruncatedQueries().get("SQL").get(0);
+        assertThat(query.getFullTextSha1()).isEqualTo(sha1);
+        assertThat(query.getTruncatedText())
+                .hasSize(StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE);
+    }
+
+    private static Aggregate buildAggregate(int... sharedQueryTextIndexes) {
+        Aggregate.QueriesByType.Builder queriesByType = Aggregate.QueriesByType.newBuilder()
+                .setType("SQL");
+        for (int sharedQueryTextIndex : sharedQueryTextIndexes) {
+            queriesByType.addQuery(Aggregate.Query.newBuilder()
+                    .setSharedQueryTextIndex(sharedQueryTextIndex)
+                    .setTotalDurationNanos(10)
+                    .setExecutionCount(3));
+        }
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(100)
+                .setTransactionCount(2)
+                .addQueriesByType(queriesByType)
+                .build();
+    }
+}
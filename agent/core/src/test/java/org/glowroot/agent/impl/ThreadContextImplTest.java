@@ -47,7 +47,7 @@ public class ThreadContextImplTest {
         @SuppressWarnings("unchecked")
         Holder<ThreadContextImpl> threadContextHolder = mock(Holder.class);
         threadContext = new ThreadContextImpl(transaction, null, null, messageSupplier,
-                rootTimerName, 0, false, null, false, ticker, threadContextHolder, null);
+                rootTimerName, 0, null, false, ticker, threadContextHolder, null);
     }
 
     @Test
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,10 +15,19 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -78,4 +87,276 @@ public class TraceEntryComponentTest {
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testCollapseConsecutiveQueries() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+        endEntry(traceEntryComponent, entry);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            TraceEntryImpl collapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                    queryMessageSupplier, timer, "SQL", "select 1", 1);
+            assertThat(collapsingEntry).isNotNull();
+            endEntry(traceEntryComponent, collapsingEntry);
+        }
+
+        // then
+        assertThat(traceEntryComponent.getTailEntry()).isEqualTo(entry);
+        assertThat(queryData.getExecutionCount()).isEqualTo(4);
+        Trace.Entry entryProto = toProto(entry);
+        assertThat(entryProto.getCollapsedCount()).isEqualTo(4);
+        assertThat(entryProto.getCollapsedMaxDurationNanos())
+                .isLessThanOrEqualTo(entryProto.getCollapsedTotalDurationNanos());
+        assertThat(entryProto.getCollapsedTotalDurationNanos())
+                .isLessThanOrEqualTo(entryProto.getDurationNanos());
+    }
+
+    @Test
+    public void testCollapsedDurationSpansExecutions() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+        endEntry(traceEntryComponent, entry);
+        long endTick = toProto(entry).getDurationNanos();
+
+        // when
+        TraceEntryImpl collapsingEntry1 = traceEntryComponent.pushCollapsingEntry(endTick + 100,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        collapsingEntry1.end();
+        traceEntryComponent.popEntry(collapsingEntry1, endTick + 300);
+        TraceEntryImpl collapsingEntry2 = traceEntryComponent.pushCollapsingEntry(endTick + 1000,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        collapsingEntry2.end();
+        traceEntryComponent.popEntry(collapsingEntry2, endTick + 1500);
+
+        // then
+        Trace.Entry entryProto = toProto(entry);
+        assertThat(entryProto.getDurationNanos()).isEqualTo(endTick + 1500);
+        assertThat(entryProto.getCollapsedCount()).isEqualTo(3);
+        assertThat(entryProto.getCollapsedTotalDurationNanos()).isEqualTo(endTick + 700);
+        assertThat(entryProto.getCollapsedMaxDurationNanos()).isEqualTo(Math.max(endTick, 500));
+    }
+
+    @Test
+    public void testCollapseSumsRowCounts() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+        entry.setCurrRow(2);
+        endEntry(traceEntryComponent, entry);
+
+        // when
+        TraceEntryImpl collapsingEntry1 = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        collapsingEntry1.setCurrRow(3);
+        endEntry(traceEntryComponent, collapsingEntry1);
+        TraceEntryImpl collapsingEntry2 = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        endEntry(traceEntryComponent, collapsingEntry2);
+
+        // then
+        assertThat(toProto(entry).getQueryEntryMessage().getSuffix()).isEqualTo(" => 5 rows");
+    }
+
+    @Test
+    public void testNotCollapseDifferentExecutionCount() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "insert x", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 10);
+        endEntry(traceEntryComponent, entry);
+
+        // when
+        TraceEntryImpl collapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "insert x", 20);
+
+        // then
+        assertThat(collapsingEntry).isNull();
+    }
+
+    @Test
+    public void testNotCollapseDifferentQuery() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+
+        // when
+        TraceEntryImpl activeCollapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        endEntry(traceEntryComponent, entry);
+        TraceEntryImpl differentCollapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 2", 1);
+        TraceEntryImpl serviceCallCollapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                messageSupplier, timer, "SQL", "select 1", 1);
+
+        // then
+        assertThat(activeCollapsingEntry).isNull();
+        assertThat(differentCollapsingEntry).isNull();
+        assertThat(serviceCallCollapsingEntry).isNull();
+    }
+
+    @Test
+    public void testNotCollapseError() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.allowAnotherErrorEntry()).thenReturn(true);
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+        endEntry(traceEntryComponent, entry);
+
+        // when
+        TraceEntryImpl collapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        collapsingEntry.endWithError("failed");
+        traceEntryComponent.popEntry(collapsingEntry, 0);
+        TraceEntryImpl nextCollapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+
+        // then
+        assertThat(entry.getNextTraceEntry()).isEqualTo(collapsingEntry);
+        assertThat(traceEntryComponent.getTailEntry()).isEqualTo(collapsingEntry);
+        assertThat(toProto(entry).getCollapsedCount()).isZero();
+        // entries with errors are not collapsed into
+        assertThat(nextCollapsingEntry).isNull();
+    }
+
+    @Test
+    public void testNotLinkErrorOverEntryLimit() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.allowAnotherErrorEntry()).thenReturn(false);
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+        endEntry(traceEntryComponent, entry);
+
+        // when
+        TraceEntryImpl collapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+        collapsingEntry.endWithError("failed");
+        traceEntryComponent.popEntry(collapsingEntry, 0);
+
+        // then
+        assertThat(entry.getNextTraceEntry()).isNull();
+        assertThat(traceEntryComponent.getTailEntry()).isEqualTo(entry);
+        // the execution is still counted in the collapsed entry
+        assertThat(toProto(entry).getCollapsedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCaptureChildOfUnlinkedEntryUnderCapturedAncestor() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.allowAnotherEntry()).thenReturn(false);
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        QueryData queryData = new QueryData("SQL", "select 1", null, null);
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(0, queryMessageSupplier, timer, null,
+                queryData, 1);
+        endEntry(traceEntryComponent, entry);
+        TraceEntryImpl collapsingEntry = traceEntryComponent.pushCollapsingEntry(0,
+                queryMessageSupplier, timer, "SQL", "select 1", 1);
+
+        // when
+        // e.g. error entry (which has a higher limit) added while the collapsing entry is active
+        TraceEntryImpl errorEntry = traceEntryComponent.addErrorEntry(0, 0, null, null,
+                ErrorMessage.create("failed", null, new AtomicInteger()));
+        TraceEntryImpl activeEntry = traceEntryComponent.getActiveEntry();
+        endEntry(traceEntryComponent, collapsingEntry);
+
+        // then
+        assertThat(entry.getNextTraceEntry()).isEqualTo(errorEntry);
+        assertThat(errorEntry.getParentTraceEntry()).isEqualTo(collapsingEntry);
+        assertThat(errorEntry.getParentTraceEntry().getNearestCapturedEntry())
+                .isEqualTo(traceEntryComponent.getRootEntry());
+        assertThat(activeEntry).isEqualTo(traceEntryComponent.getRootEntry());
+        assertThat(traceEntryComponent.getActiveEntry())
+                .isEqualTo(traceEntryComponent.getRootEntry());
+    }
+
+    // the thread context is a mock, so the entry also needs to be popped explicitly
+    private static void endEntry(TraceEntryComponent traceEntryComponent, TraceEntryImpl entry) {
+        entry.end();
+        traceEntryComponent.popEntry(entry, entry.getStartTick());
+    }
+
+    private static Trace.Entry toProto(TraceEntryImpl entry) throws Exception {
+        final List<Trace.Entry> entries = Lists.newArrayList();
+        entry.accept(0, 0, Long.MAX_VALUE, new EntryVisitor() {
+            @Override
+            public int visitSharedQueryText(String sharedQueryText) {
+                return 0;
+            }
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries.get(0);
+    }
 }
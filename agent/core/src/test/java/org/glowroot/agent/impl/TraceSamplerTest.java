@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.Invocation;
+
+import org.glowroot.agent.impl.TraceSampler.SampledTransaction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TraceSamplerTest {
+
+    private static final long INTERVAL_MILLIS = 60000;
+
+    private TraceSampler traceSampler;
+
+    @Before
+    public void beforeEachTest() {
+        traceSampler = new TraceSampler(INTERVAL_MILLIS, new Random(0));
+    }
+
+    @Test
+    public void shouldLimitPerTransactionName() {
+        // when
+        int storedAbc = 0;
+        int storedXyz = 0;
+        for (int i = 0; i < 100; i++) {
+            if (traceSampler.sample(transaction("abc"), 1000 + i, 10, 0) > 0) {
+                storedAbc++;
+            }
+            if (traceSampler.sample(transaction("xyz"), 1000 + i, 10, 0) > 0) {
+                storedXyz++;
+            }
+        }
+
+        // then
+        assertThat(storedAbc).isEqualTo(10);
+        assertThat(storedXyz).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldRefillTokens() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            assertThat(traceSampler.sample(transaction("abc"), 1000, 10, 0)).isEqualTo(1);
+        }
+        assertThat(traceSampler.sample(transaction("abc"), 1000, 10, 0)).isZero();
+        assertThat(traceSampler.sample(transaction("abc"), 1000, 10, 0)).isZero();
+
+        // when
+        double samplingWeight = traceSampler.sample(transaction("abc"), 7000, 10, 0);
+
+        // then
+        // one token is refilled every 6 seconds, and the stored trace accounts for the two that
+        // were dropped
+        assertThat(samplingWeight).isEqualTo(3);
+        assertThat(traceSampler.sample(transaction("abc"), 7000, 10, 0)).isZero();
+    }
+
+    @Test
+    public void shouldCarryOverSamplingWeight() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            traceSampler.sample(transaction("abc"), 1000, 10, 0);
+        }
+        traceSampler.sample(transaction("abc"), 1000, 10, 0);
+
+        // when
+        double samplingWeight = traceSampler.sample(transaction("abc"), 7000, 10, 0);
+        traceSampler.carryOver(transaction("abc"), samplingWeight);
+
+        // then
+        assertThat(traceSampler.sample(transaction("abc"), 13000, 10, 0)).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReservoirSampleOverflow() {
+        // given
+        for (int i = 0; i < 100; i++) {
+            traceSampler.sample(transaction("abc"), 1000 + i, 10, 5);
+        }
+
+        // when
+        List<SampledTransaction> beforeIntervalEnd = traceSampler.drain(INTERVAL_MILLIS - 1, 10);
+        List<SampledTransaction> afterIntervalEnd = traceSampler.drain(INTERVAL_MILLIS, 10);
+
+        // then
+        assertThat(beforeIntervalEnd).isEmpty();
+        assertThat(afterIntervalEnd).hasSize(5);
+        double totalSamplingWeight = 0;
+        for (SampledTransaction sampledTransaction : afterIntervalEnd) {
+            assertThat(sampledTransaction.samplingWeight()).isEqualTo(18);
+            totalSamplingWeight += sampledTransaction.samplingWeight();
+        }
+        // 10 were stored immediately
+        assertThat(totalSamplingWeight).isEqualTo(90);
+    }
+
+    @Test
+    public void shouldDrainReservoirFromPriorInterval() {
+        // given
+        for (int i = 0; i < 20; i++) {
+            traceSampler.sample(transaction("abc"), 1000, 10, 5);
+        }
+
+        // when
+        // no drain happened at the end of the first interval (e.g. the drain was delayed)
+        traceSampler.sample(transaction("abc"), INTERVAL_MILLIS + 1000, 10, 5);
+        List<SampledTransaction> sampledTransactions = traceSampler.drain(INTERVAL_MILLIS + 1000,
+                10);
+
+        // then
+        assertThat(sampledTransactions).hasSize(5);
+        assertThat(sampledTransactions.get(0).samplingWeight()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRetainMemoryEstimateWhileInReservoir() {
+        // given
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            Transaction transaction = transaction("abc");
+            transactions.add(transaction);
+            traceSampler.sample(transaction, 1000 + i, 10, 5);
+        }
+
+        // when
+        List<SampledTransaction> sampledTransactions = traceSampler.drain(INTERVAL_MILLIS, 10);
+
+        // then
+        for (SampledTransaction sampledTransaction : sampledTransactions) {
+            verify(sampledTransaction.transaction()).retainEstimatedMemory();
+        }
+        // every retained estimate (including those of transactions that were replaced in the
+        // reservoir) has been released
+        for (Transaction transaction : transactions) {
+            int retainCount = 0;
+            int releaseCount = 0;
+            for (Invocation invocation : mockingDetails(transaction).getInvocations()) {
+                String methodName = invocation.getMethod().getName();
+                if (methodName.equals("retainEstimatedMemory")) {
+                    retainCount++;
+                } else if (methodName.equals("releaseEstimatedMemory")) {
+                    releaseCount++;
+                }
+            }
+            assertThat(releaseCount).isEqualTo(retainCount);
+        }
+    }
+
+    private static Transaction transaction(String transactionName) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        return transaction;
+    }
+}
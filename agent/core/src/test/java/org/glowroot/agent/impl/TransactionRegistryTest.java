@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionRegistryTest {
+
+    @Test
+    public void shouldNotLimitByDefault() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+
+        // when
+        transactionRegistry.addEstimatedMemoryBytes(Long.MAX_VALUE / 2);
+
+        // then
+        assertThat(transactionRegistry.isEntryMemoryLimitExceeded()).isFalse();
+        assertThat(transactionRegistry.isProfileMemoryLimitExceeded()).isFalse();
+    }
+
+    @Test
+    public void shouldStopEntriesBeforeProfiling() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        transactionRegistry.setMemoryLimitBytes(1000);
+
+        // when
+        transactionRegistry.addEstimatedMemoryBytes(800);
+
+        // then
+        assertThat(transactionRegistry.isEntryMemoryLimitExceeded()).isTrue();
+        assertThat(transactionRegistry.isProfileMemoryLimitExceeded()).isFalse();
+    }
+
+    @Test
+    public void shouldStopProfilingAtLimit() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        transactionRegistry.setMemoryLimitBytes(1000);
+
+        // when
+        transactionRegistry.addEstimatedMemoryBytes(1200);
+        transactionRegistry.addEstimatedMemoryBytes(-200);
+
+        // then
+        assertThat(transactionRegistry.getEstimatedMemoryBytes()).isEqualTo(1000);
+        assertThat(transactionRegistry.isEntryMemoryLimitExceeded()).isTrue();
+        assertThat(transactionRegistry.isProfileMemoryLimitExceeded()).isTrue();
+    }
+
+    @Test
+    public void shouldResumeWhenMemoryIsReleased() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        transactionRegistry.setMemoryLimitBytes(1000);
+        transactionRegistry.addEstimatedMemoryBytes(1000);
+
+        // when
+        transactionRegistry.addEstimatedMemoryBytes(-1000);
+
+        // then
+        assertThat(transactionRegistry.isEntryMemoryLimitExceeded()).isFalse();
+        assertThat(transactionRegistry.isProfileMemoryLimitExceeded()).isFalse();
+    }
+}
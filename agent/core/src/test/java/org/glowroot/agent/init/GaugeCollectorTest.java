@@ -17,17 +17,28 @@ package org.glowroot.agent.init;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.Collections;
 import java.util.List;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.openmbean.CompositeData;
 
 import com.google.common.base.Ticker;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.collector.Collector;
@@ -38,6 +49,7 @@ import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.config.ImmutableGaugeConfig;
 import org.glowroot.agent.config.ImmutableMBeanAttribute;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
@@ -48,6 +60,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -146,6 +159,92 @@ public class GaugeCollectorTest {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(SECONDS.toNanos(2));
     }
 
+    @Test
+    public void shouldReadAttributesOfMBeanInOneCall() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd.eee", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd.fff", false))
+                .build();
+        CompositeData compositeData = mock(CompositeData.class);
+        when(compositeData.get("eee")).thenReturn(666);
+        when(compositeData.get("fff")).thenReturn(777);
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 555));
+        attributeList.add(new Attribute("ddd", compositeData));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class),
+                eq(new String[] {"ccc", "ddd"}))).thenReturn(attributeList);
+
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("test:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(555);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("test:aaa=bbb:ddd.eee");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(666);
+        assertThat(gaugeValues.get(2).getGaugeName()).isEqualTo("test:aaa=bbb:ddd.fff");
+        assertThat(gaugeValues.get(2).getValue()).isEqualTo(777);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString());
+    }
+
+    @Test
+    public void shouldOnlyQueryPatternAgainAfterMBeanRegistration() throws Exception {
+        // given
+        NotificationListener notificationListener = initMBeanServer();
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        when(lazyPlatformMBeanServer.queryNames(any(ObjectName.class), nullable(QueryExp.class)))
+                .thenReturn(Collections.singleton(ObjectName.getInstance("test:aaa=bbb")));
+        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+                .thenReturn(555);
+
+        // when
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        notificationListener.handleNotification(new MBeanServerNotification(
+                MBeanServerNotification.REGISTRATION_NOTIFICATION,
+                MBeanServerDelegate.DELEGATE_NAME, 1, ObjectName.getInstance("test:aaa=ccc")),
+                null);
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("test:aaa=bbb:ccc");
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(any(ObjectName.class),
+                nullable(QueryExp.class));
+    }
+
+    @Test
+    public void shouldReadPlatformMemoryAttributesDirectly() throws Exception {
+        // given
+        initMBeanServer();
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("java.lang:type=Memory")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("HeapMemoryUsage.used", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("HeapMemoryUsage.max", false))
+                .build();
+
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName())
+                .isEqualTo("java.lang:type=Memory:HeapMemoryUsage.used");
+        assertThat(gaugeValues.get(0).getValue()).isGreaterThan(0);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString());
+        verify(lazyPlatformMBeanServer, never()).getAttributes(any(ObjectName.class),
+                any(String[].class));
+    }
+
     @Test
     public void shouldHandleInvalidMBeanObjectName() throws Exception {
         // given
@@ -331,6 +430,20 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    private NotificationListener initMBeanServer() throws Exception {
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        initListenerCaptor.getValue().postInit(mbeanServer);
+        ArgumentCaptor<NotificationListener> notificationListenerCaptor =
+                ArgumentCaptor.forClass(NotificationListener.class);
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                notificationListenerCaptor.capture(), nullable(NotificationFilter.class),
+                nullable(Object.class));
+        return notificationListenerCaptor.getValue();
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
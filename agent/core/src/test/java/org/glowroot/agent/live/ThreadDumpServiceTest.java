@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.Transaction;
+import org.glowroot.agent.impl.TransactionCollector;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.IncrementalThreadDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ThreadDumpServiceTest {
+
+    private ThreadDumpService threadDumpService;
+    private CountDownLatch latch;
+    private Thread waitingThread;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getTransactions()).thenReturn(ImmutableList.<Transaction>of());
+        threadDumpService =
+                new ThreadDumpService(transactionRegistry, mock(TransactionCollector.class));
+        latch = new CountDownLatch(1);
+        waitingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waitingThread.start();
+        while (waitingThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        latch.countDown();
+        waitingThread.join();
+    }
+
+    @Test
+    public void shouldLimitStackDepth() {
+        // when
+        ThreadDump threadDump = threadDumpService.getThreadDump(2);
+
+        // then
+        ThreadDump.Thread thread = findThread(threadDump, waitingThread.getId());
+        assertThat(thread.getStackTraceElementCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldSendFullThreadDumpFirst() {
+        // when
+        IncrementalThreadDump threadDump = threadDumpService.getIncrementalThreadDump(0, 0);
+
+        // then
+        assertThat(threadDump.getVersion()).isEqualTo(1);
+        assertThat(threadDump.getBaseVersion()).isZero();
+        assertThat(threadDump.getNewFrameCount()).isPositive();
+        assertThat(threadDump.getNewStackCount()).isPositive();
+        assertThat(getChangedThreadIds(threadDump)).contains(waitingThread.getId());
+    }
+
+    @Test
+    public void shouldSendOnlyChangedThreads() {
+        // given
+        IncrementalThreadDump first = threadDumpService.getIncrementalThreadDump(0, 0);
+
+        // when
+        IncrementalThreadDump second =
+                threadDumpService.getIncrementalThreadDump(first.getVersion(), 0);
+
+        // then
+        assertThat(second.getVersion()).isEqualTo(2);
+        assertThat(second.getBaseVersion()).isEqualTo(1);
+        assertThat(getChangedThreadIds(second)).doesNotContain(waitingThread.getId());
+        assertThat(second.getNewFrameCount()).isLessThan(first.getNewFrameCount());
+    }
+
+    @Test
+    public void shouldSendFullThreadDumpOnBaseVersionMismatch() {
+        // given
+        threadDumpService.getIncrementalThreadDump(0, 0);
+
+        // when
+        IncrementalThreadDump threadDump = threadDumpService.getIncrementalThreadDump(123, 0);
+
+        // then
+        assertThat(threadDump.getBaseVersion()).isZero();
+        assertThat(getChangedThreadIds(threadDump)).contains(waitingThread.getId());
+    }
+
+    private static ThreadDump.Thread findThread(ThreadDump threadDump, long threadId) {
+        for (ThreadDump.Thread thread : threadDump.getUnmatchedThreadList()) {
+            if (thread.getId() == threadId) {
+                return thread;
+            }
+        }
+        throw new AssertionError("Thread not found: " + threadId);
+    }
+
+    private static ImmutableList<Long> getChangedThreadIds(IncrementalThreadDump threadDump) {
+        ImmutableList.Builder<Long> threadIds = ImmutableList.builder();
+        for (IncrementalThreadDump.Thread thread : threadDump.getChangedThreadList()) {
+            threadIds.add(thread.getId());
+        }
+        return threadIds.build();
+    }
+}
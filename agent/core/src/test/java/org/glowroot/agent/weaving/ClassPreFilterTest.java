@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.targets.AbstractNotMiscWithFinal;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassPreFilterTest {
+
+    @Test
+    public void shouldAnalyzeClassThatCannotMatch() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        ClassPreFilter preFilter = createPreFilter(advisors);
+        byte[] bytes = getBytes(AbstractNotMiscWithFinal.class);
+
+        // when
+        AnalyzedClass analyzedClass = preFilter.analyzeIfNoMatch(bytes);
+
+        // then
+        assertThat(analyzedClass).isEqualTo(analyze(bytes, advisors));
+        assertThat(analyzedClass.publicFinalMethods()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotAnalyzeClassMatchingClassName() throws Exception {
+        // given
+        ClassPreFilter preFilter =
+                createPreFilter(ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build()));
+
+        // when
+        AnalyzedClass analyzedClass = preFilter.analyzeIfNoMatch(getBytes(Misc.class));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotAnalyzeClassWithMatchingAnnotations() throws Exception {
+        // given
+        ClassPreFilter preFilter = createPreFilter(
+                ImmutableList.of(new AdviceBuilder(BasicAnnotationBasedAdvice.class).build()));
+
+        // when
+        AnalyzedClass analyzedClass = preFilter.analyzeIfNoMatch(getBytes(BasicMisc.class));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldAnalyzeClassWithoutMatchingAnnotations() throws Exception {
+        // given
+        ClassPreFilter preFilter = createPreFilter(
+                ImmutableList.of(new AdviceBuilder(BasicAnnotationBasedAdvice.class).build()));
+
+        // when
+        AnalyzedClass analyzedClass =
+                preFilter.analyzeIfNoMatch(getBytes(AbstractNotMiscWithFinal.class));
+
+        // then
+        assertThat(analyzedClass).isNotNull();
+    }
+
+    private static ClassPreFilter createPreFilter(List<Advice> advisors) {
+        return ClassPreFilter.create(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), ImmutableSet.<String>of());
+    }
+
+    private static AnalyzedClass analyze(byte[] bytes, List<Advice> advisors) {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        ThinClassVisitor accv = ThinClassVisitor.read(new ClassReader(bytes), false);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(),
+                ClassPreFilterTest.class.getClassLoader(), analyzedWorld, null);
+        classAnalyzer.analyzeMethods();
+        return classAnalyzer.getAnalyzedClass();
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+}
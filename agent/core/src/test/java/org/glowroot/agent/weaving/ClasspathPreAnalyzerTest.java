@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClasspathPreAnalyzerTest {
+
+    @Test
+    public void shouldListClassNamesFromJarFile() throws Exception {
+        // given
+        File jarFile = File.createTempFile("glowroot-test-", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            out.putNextEntry(new JarEntry("abc/Xyz.class"));
+            out.putNextEntry(new JarEntry("abc/Xyz$1.class"));
+            out.putNextEntry(new JarEntry("abc/package-info.class"));
+            out.putNextEntry(new JarEntry("abc/xyz.properties"));
+            out.putNextEntry(new JarEntry("META-INF/versions/9/abc/Xyz.class"));
+        } finally {
+            out.close();
+        }
+
+        // when
+        List<String> classNames = ClasspathPreAnalyzer.getClassNames(jarFile);
+
+        // then
+        assertThat(classNames).containsExactly("abc.Xyz", "abc.Xyz$1");
+        jarFile.delete();
+    }
+
+    @Test
+    public void shouldPreAnalyzeWithoutLoading() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors =
+                Suppliers.<List<Advice>>ofInstance(ImmutableList.<Advice>of());
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        URL location = BasicMisc.class.getProtectionDomain().getCodeSource().getLocation();
+        TestClassLoader loader = new TestClassLoader(location);
+
+        // when
+        AnalyzedClass analyzedClass = analyzedWorld.preAnalyze(BasicMisc.class.getName(), loader);
+
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.interfaceNames()).contains(Misc.class.getName());
+        assertThat(analyzedWorld.getAnalyzedClass(BasicMisc.class.getName(), loader))
+                .isSameAs(analyzedClass);
+        assertThat(loader.isLoaded(BasicMisc.class.getName())).isFalse();
+    }
+
+    private static class TestClassLoader extends URLClassLoader {
+
+        private TestClassLoader(URL url) {
+            super(new URL[] {url}, null);
+        }
+
+        private boolean isLoaded(String name) {
+            return findLoadedClass(name) != null;
+        }
+    }
+}
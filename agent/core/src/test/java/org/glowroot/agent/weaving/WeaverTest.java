@@ -1018,7 +1018,7 @@ public class WeaverTest {
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
                 ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
-                new TimerNameCache(), mock(ConfigService.class));
+                new TimerNameCache(), mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1731,7 +1731,7 @@ public class WeaverTest {
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
+                transactionRegistry, new TimerNameCache(), mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1770,7 +1770,7 @@ public class WeaverTest {
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
+                transactionRegistry, new TimerNameCache(), mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
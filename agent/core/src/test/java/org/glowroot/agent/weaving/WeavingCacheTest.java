@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindClassMetaAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindParameterAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class WeavingCacheTest {
+
+    private File cacheDir;
+
+    @Before
+    public void beforeEachTest() {
+        cacheDir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void shouldReuseWovenBytesAcrossRestarts() throws Exception {
+        // given
+        byte[] classBytes = getBytes(BasicMisc.class);
+        Advice advice = new AdviceBuilder(BasicAdvice.class).build();
+        CachingWeaver first = newCachingWeaver(advice);
+        byte[] firstWovenBytes = first.weave(classBytes);
+
+        // when
+        CachingWeaver second = newCachingWeaver(advice);
+        byte[] secondWovenBytes = second.weave(classBytes);
+
+        // then
+        assertThat(firstWovenBytes).isNotNull();
+        assertThat(secondWovenBytes).isEqualTo(firstWovenBytes);
+        assertThat(first.weavingCache.getMissCount()).isEqualTo(1);
+        assertThat(first.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(second.weavingCache.getMissCount()).isEqualTo(0);
+        assertThat(second.weavingCache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotReuseWovenBytesAfterAdviceChange() throws Exception {
+        // given
+        byte[] classBytes = getBytes(BasicMisc.class);
+        Advice advice = new AdviceBuilder(BasicAdvice.class).build();
+        newCachingWeaver(advice).weave(classBytes);
+
+        // when
+        CachingWeaver cachingWeaver =
+                newCachingWeaver(new AdviceBuilder(BindParameterAdvice.class).build());
+        cachingWeaver.weave(classBytes);
+
+        // then
+        assertThat(cachingWeaver.weavingCache.getMissCount()).isEqualTo(1);
+        assertThat(cachingWeaver.weavingCache.getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotCacheClassesThatNeedMetaHolders() throws Exception {
+        // given
+        byte[] classBytes = getBytes(BasicMisc.class);
+        Advice advice = new AdviceBuilder(BindClassMetaAdvice.class).build();
+        newCachingWeaver(advice).weave(classBytes);
+
+        // when
+        CachingWeaver cachingWeaver = newCachingWeaver(advice);
+        cachingWeaver.weave(classBytes);
+
+        // then
+        assertThat(cachingWeaver.weavingCache.getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictEntriesOverSizeLimit() throws Exception {
+        // given
+        byte[] classBytes = getBytes(BasicMisc.class);
+        Advice advice = new AdviceBuilder(BasicAdvice.class).build();
+        new CachingWeaver(cacheDir, 1, advice).weave(classBytes);
+
+        // when
+        CachingWeaver cachingWeaver = newCachingWeaver(advice);
+        cachingWeaver.weave(classBytes);
+
+        // then
+        assertThat(cachingWeaver.weavingCache.getMissCount()).isEqualTo(1);
+        assertThat(cachingWeaver.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(countEntries(cacheDir)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOnlyReadIndexedEntries() throws Exception {
+        // given
+        byte[] classBytes = getBytes(BasicMisc.class);
+        Advice advice = new AdviceBuilder(BasicAdvice.class).build();
+        CachingWeaver first = new CachingWeaver(cacheDir, 1, advice);
+        first.weave(classBytes);
+
+        // when
+        // entry is written after the first cache built its index
+        newCachingWeaver(advice).weave(classBytes);
+        first.weave(classBytes);
+
+        // then
+        assertThat(first.weavingCache.getMissCount()).isEqualTo(2);
+        assertThat(first.weavingCache.getHitCount()).isEqualTo(0);
+    }
+
+    private CachingWeaver newCachingWeaver(Advice advice) {
+        return new CachingWeaver(cacheDir, 100 * 1024 * 1024, advice);
+    }
+
+    private static int countEntries(File file) {
+        File[] files = file.listFiles();
+        if (files == null) {
+            return 1;
+        }
+        int count = 0;
+        for (File f : files) {
+            count += countEntries(f);
+        }
+        return count;
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+
+    private static class CachingWeaver {
+
+        private final WeavingCache weavingCache;
+        private final Weaver weaver;
+
+        private CachingWeaver(File cacheDir, long maxSizeBytes, Advice advice) {
+            Supplier<List<Advice>> advisorsSupplier =
+                    Suppliers.<List<Advice>>ofInstance(ImmutableList.of(advice));
+            AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                    ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+            weavingCache = checkNotNull(WeavingCache.create(cacheDir, maxSizeBytes, "0.0.1",
+                    ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), analyzedWorld));
+            weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
+                    ImmutableList.<MixinType>of(), analyzedWorld, mock(TransactionRegistry.class),
+                    new TimerNameCache(), mock(ConfigService.class), weavingCache);
+        }
+
+        private byte[] weave(byte[] classBytes) {
+            return weaver.weave(classBytes, ClassNames.toInternalName(BasicMisc.class.getName()),
+                    null, new IsolatedWeavingClassLoader(Misc.class));
+        }
+    }
+}
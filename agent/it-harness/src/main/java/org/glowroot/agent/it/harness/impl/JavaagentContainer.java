@@ -452,7 +452,8 @@ public class JavaagentContainer implements Container {
                 continue;
             }
             String key = (String) keyObject;
-            if (key.startsWith("glowroot.internal.") || key.startsWith("glowroot.test.")) {
+            if (key.startsWith("glowroot.internal.") || key.startsWith("glowroot.test.")
+                    || key.startsWith("glowroot.weaving.")) {
                 command.add("-D" + key + "=" + entry.getValue());
             }
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,4 +20,14 @@ public interface AuxThreadContext {
     TraceEntry start();
 
     TraceEntry startAndMarkAsyncTransactionComplete();
+
+    /**
+     * Same as {@link #start()}, except that the auxiliary thread context is only actually started
+     * (and becomes part of the transaction) if something is recorded on this thread (e.g. a timer
+     * or trace entry is started) before the returned trace entry is ended.
+     * 
+     * This is useful for propagating the context to many small tasks, most of which never record
+     * anything.
+     */
+    TraceEntry startLazily();
 }
@@ -109,6 +109,11 @@ public class NopTransactionService {
         public TraceEntry startAndMarkAsyncTransactionComplete() {
             return NopTransactionService.TRACE_ENTRY;
         }
+
+        @Override
+        public TraceEntry startLazily() {
+            return NopTransactionService.TRACE_ENTRY;
+        }
     }
 
     public static class NopTimer implements Timer {
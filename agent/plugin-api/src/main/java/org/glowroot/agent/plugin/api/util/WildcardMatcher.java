@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.api.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Case-insensitive matcher for a list of wildcard patterns (e.g. "content-*", "*token*"), where
+ * {@code *} matches any sequence of characters.
+ *
+ * The literal prefixes of the patterns (the text before the first {@code *}) are compiled into a
+ * single trie, so names are matched against all patterns in one pass without allocating lower
+ * case copies. Results are cached per name, up to a bounded number of names, since the same names
+ * (e.g. request parameter and header names) tend to be matched over and over.
+ */
+public class WildcardMatcher {
+
+    private static final int MAX_CACHED_NAMES = 1000;
+
+    private static final WildcardMatcher EMPTY = new WildcardMatcher(new Node(), true);
+
+    private final Node root;
+    private final boolean empty;
+
+    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
+
+    private WildcardMatcher(Node root, boolean empty) {
+        this.root = root;
+        this.empty = empty;
+    }
+
+    public static WildcardMatcher empty() {
+        return EMPTY;
+    }
+
+    public static WildcardMatcher compile(Iterable<String> wildcardPatterns) {
+        Node root = new Node();
+        boolean empty = true;
+        for (String wildcardPattern : wildcardPatterns) {
+            int index = wildcardPattern.indexOf('*');
+            String prefix = index == -1 ? wildcardPattern : wildcardPattern.substring(0, index);
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrCreateChild(Character.toLowerCase(prefix.charAt(i)));
+            }
+            if (index == -1) {
+                node.exactMatch = true;
+            } else {
+                node.addTail(new Tail(wildcardPattern.substring(index)));
+            }
+            empty = false;
+        }
+        if (empty) {
+            return EMPTY;
+        }
+        return new WildcardMatcher(root, false);
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean matches(String name) {
+        if (empty) {
+            return false;
+        }
+        Boolean cached = cache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        boolean matches = matchesInternal(name);
+        if (cache.size() >= MAX_CACHED_NAMES) {
+            // names are not bounded in general (e.g. request parameter names are supplied by the
+            // client), so start over instead of growing without bound
+            cache.clear();
+        }
+        cache.put(name, matches);
+        return matches;
+    }
+
+    private boolean matchesInternal(String name) {
+        Node node = root;
+        int length = name.length();
+        for (int i = 0;; i++) {
+            for (Tail tail : node.tails) {
+                if (tail.matches(name, i)) {
+                    return true;
+                }
+            }
+            if (i == length) {
+                return node.exactMatch;
+            }
+            node = node.getChild(Character.toLowerCase(name.charAt(i)));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private static class Node {
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Tail[] tails = new Tail[0];
+        private boolean exactMatch;
+
+        private @Nullable Node getChild(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrCreateChild(char c) {
+            Node child = getChild(c);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = c;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+
+        private void addTail(Tail tail) {
+            tails = Arrays.copyOf(tails, tails.length + 1);
+            tails[tails.length - 1] = tail;
+        }
+    }
+
+    // the remainder of a pattern starting at its first *
+    private static class Tail {
+
+        // the literal segments between the *s
+        private final String[] segments;
+        private final boolean endsWithWildcard;
+
+        private Tail(String tail) {
+            List<String> segments = new ArrayList<String>();
+            int start = 1;
+            int index;
+            while ((index = tail.indexOf('*', start)) != -1) {
+                if (index > start) {
+                    segments.add(tail.substring(start, index));
+                }
+                start = index + 1;
+            }
+            endsWithWildcard = start == tail.length();
+            if (!endsWithWildcard) {
+                segments.add(tail.substring(start));
+            }
+            this.segments = segments.toArray(new String[segments.size()]);
+        }
+
+        private boolean matches(String name, int fromIndex) {
+            int index = fromIndex;
+            int last = endsWithWildcard ? segments.length : segments.length - 1;
+            // greedily matching the first occurrence of each segment is sufficient since the
+            // segments are separated by *
+            for (int i = 0; i < last; i++) {
+                index = indexOfIgnoreCase(name, segments[i], index);
+                if (index == -1) {
+                    return false;
+                }
+                index += segments[i].length();
+            }
+            if (endsWithWildcard) {
+                return true;
+            }
+            String segment = segments[last];
+            int start = name.length() - segment.length();
+            return start >= index && name.regionMatches(true, start, segment, 0, segment.length());
+        }
+
+        private static int indexOfIgnoreCase(String name, String segment, int fromIndex) {
+            int max = name.length() - segment.length();
+            for (int i = fromIndex; i <= max; i++) {
+                if (name.regionMatches(true, i, segment, 0, segment.length())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
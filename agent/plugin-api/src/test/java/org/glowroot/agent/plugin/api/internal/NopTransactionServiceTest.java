@@ -65,6 +65,8 @@ public class NopTransactionServiceTest {
                 .isEqualTo(NopTransactionService.TRACE_ENTRY);
         assertThat(NopAuxThreadContext.INSTANCE.startAndMarkAsyncTransactionComplete())
                 .isEqualTo(NopTransactionService.TRACE_ENTRY);
+        assertThat(NopAuxThreadContext.INSTANCE.startLazily())
+                .isEqualTo(NopTransactionService.TRACE_ENTRY);
     }
 
     @Test
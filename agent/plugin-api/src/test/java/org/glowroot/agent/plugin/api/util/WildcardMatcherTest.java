@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.api.util;
+
+import java.util.Collections;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WildcardMatcherTest {
+
+    @Test
+    public void shouldNotMatchWhenEmpty() {
+        // given
+        WildcardMatcher matcher = WildcardMatcher.compile(Collections.<String>emptyList());
+        // when
+        // then
+        assertThat(matcher.isEmpty()).isTrue();
+        assertThat(matcher.matches("")).isFalse();
+        assertThat(matcher.matches("abc")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchExact() {
+        // given
+        WildcardMatcher matcher = WildcardMatcher.compile(ImmutableList.of("abc", "abd"));
+        // when
+        // then
+        assertThat(matcher.isEmpty()).isFalse();
+        assertThat(matcher.matches("abc")).isTrue();
+        assertThat(matcher.matches("ABD")).isTrue();
+        assertThat(matcher.matches("ab")).isFalse();
+        assertThat(matcher.matches("abcd")).isFalse();
+        assertThat(matcher.matches("xabc")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchWildcards() {
+        // given
+        WildcardMatcher matcher = WildcardMatcher.compile(
+                ImmutableList.of("Content-*", "*token", "x*y*z", "*pass*"));
+        // when
+        // then
+        assertThat(matcher.matches("content-type")).isTrue();
+        assertThat(matcher.matches("CONTENT-")).isTrue();
+        assertThat(matcher.matches("content")).isFalse();
+        assertThat(matcher.matches("csrfToken")).isTrue();
+        assertThat(matcher.matches("token")).isTrue();
+        assertThat(matcher.matches("tokens")).isFalse();
+        assertThat(matcher.matches("xyz")).isTrue();
+        assertThat(matcher.matches("xaaYbbZ")).isTrue();
+        assertThat(matcher.matches("xzyz")).isTrue();
+        assertThat(matcher.matches("xyzy")).isFalse();
+        assertThat(matcher.matches("xz")).isFalse();
+        assertThat(matcher.matches("PassWord")).isTrue();
+        assertThat(matcher.matches("user_password_2")).isTrue();
+        assertThat(matcher.matches("pas")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchEverything() {
+        // given
+        WildcardMatcher matcher = WildcardMatcher.compile(ImmutableList.of("*"));
+        // when
+        // then
+        assertThat(matcher.matches("")).isTrue();
+        assertThat(matcher.matches("anything")).isTrue();
+    }
+
+    @Test
+    public void shouldNotOverlapPrefixAndSuffix() {
+        // given
+        WildcardMatcher matcher = WildcardMatcher.compile(ImmutableList.of("ab*ba"));
+        // when
+        // then
+        assertThat(matcher.matches("aba")).isFalse();
+        assertThat(matcher.matches("abba")).isTrue();
+        assertThat(matcher.matches("abxba")).isTrue();
+    }
+
+    @Test
+    public void shouldReturnSameResultWhenCached() {
+        // given
+        WildcardMatcher matcher = WildcardMatcher.compile(ImmutableList.of("a*"));
+        // when
+        for (int i = 0; i < 2000; i++) {
+            matcher.matches("name" + i);
+        }
+        // then
+        assertThat(matcher.matches("abc")).isTrue();
+        assertThat(matcher.matches("abc")).isTrue();
+        assertThat(matcher.matches("xbc")).isFalse();
+        assertThat(matcher.matches("xbc")).isFalse();
+    }
+}
@@ -29,6 +29,7 @@ import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.Timer;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.config.BooleanProperty;
 import org.glowroot.agent.plugin.api.weaving.BindClassMeta;
 import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
@@ -48,6 +49,9 @@ public class ExecutorAspect {
 
     private static final AtomicBoolean isDoneExceptionLogged = new AtomicBoolean();
 
+    private static final BooleanProperty lowOverheadContextPropagation = Agent
+            .getConfigService("executor").getBooleanProperty("lowOverheadContextPropagation");
+
     // the field and method names are verbose since they will be mixed in to existing classes
     @Mixin({"java.lang.Runnable", "java.util.concurrent.Callable",
             "java.util.concurrent.ForkJoinTask", "akka.jsr166y.ForkJoinTask",
@@ -290,7 +294,7 @@ public class ExecutorAspect {
                 return null;
             }
             runnableMixin.glowroot$setAuxContext(null);
-            return auxContext.start();
+            return start(auxContext);
         }
         @OnReturn
         public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
@@ -330,7 +334,7 @@ public class ExecutorAspect {
                 return null;
             }
             callableMixin.glowroot$setAuxContext(null);
-            return auxContext.start();
+            return start(auxContext);
         }
         @OnReturn
         public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
@@ -371,7 +375,7 @@ public class ExecutorAspect {
                 return null;
             }
             taskMixin.glowroot$setAuxContext(null);
-            return auxContext.start();
+            return start(auxContext);
         }
         @OnReturn
         public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
@@ -388,6 +392,14 @@ public class ExecutorAspect {
         }
     }
 
+    private static TraceEntry start(AuxThreadContext auxContext) {
+        if (lowOverheadContextPropagation.value()) {
+            return auxContext.startLazily();
+        } else {
+            return auxContext.start();
+        }
+    }
+
     // ========== debug ==========
 
     // KEEP THIS CODE IT IS VERY USEFUL
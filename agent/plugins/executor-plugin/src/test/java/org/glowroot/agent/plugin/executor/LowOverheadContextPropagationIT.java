@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TraceEntryMarker;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LowOverheadContextPropagationIT {
+
+    private static final String PLUGIN_ID = "executor";
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that implement Executor and ExecutorService
+        container = Containers.createJavaagent();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "lowOverheadContextPropagation", true);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldNotCaptureAuxThreadThatDoesNotRecordAnything() throws Exception {
+        // when
+        Trace trace = container.execute(DoSubmitEmptyWork.class);
+
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isZero();
+        assertThat(header.getEntryCount()).isZero();
+    }
+
+    @Test
+    public void shouldCaptureAuxThreadThatRecordsSomething() throws Exception {
+        // when
+        Trace trace = container.execute(DoSubmitTraceEntryWork.class);
+
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(3);
+        // auxiliary thread timer should include the time before the first trace entry
+        assertThat(header.getAuxThreadRootTimer(0).getTotalNanos())
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(3 * 150));
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimer(0).getName())
+                .isEqualTo("mock trace entry marker");
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(6);
+        for (int i = 0; i < entries.size(); i += 2) {
+            assertThat(entries.get(i).getDepth()).isEqualTo(0);
+            assertThat(entries.get(i).getMessage()).isEqualTo("auxiliary thread");
+
+            assertThat(entries.get(i + 1).getDepth()).isEqualTo(1);
+            assertThat(entries.get(i + 1).getMessage())
+                    .isEqualTo("trace entry marker / CreateTraceEntry");
+        }
+    }
+
+    @Test
+    public void shouldPropagateThroughAuxThreadThatDoesNotRecordAnything() throws Exception {
+        // when
+        Trace trace = container.execute(DoNestedSubmitFromEmptyWork.class);
+
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(1);
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getDepth()).isEqualTo(0);
+        assertThat(entries.get(0).getMessage()).isEqualTo("auxiliary thread");
+        assertThat(entries.get(1).getDepth()).isEqualTo(1);
+        assertThat(entries.get(1).getMessage())
+                .isEqualTo("trace entry marker / CreateTraceEntry");
+    }
+
+    public static class DoSubmitEmptyWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newCachedThreadPool();
+            Future<?> future1 = executor.submit(new SleepRunnable(50));
+            Future<?> future2 = executor.submit(new SleepRunnable(50));
+            Future<?> future3 = executor.submit(new SleepRunnable(50));
+            future1.get();
+            future2.get();
+            future3.get();
+            executor.shutdown();
+        }
+    }
+
+    public static class DoSubmitTraceEntryWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newCachedThreadPool();
+            Future<Void> future1 = executor.submit(new SleepThenTraceEntryCallable());
+            Future<Void> future2 = executor.submit(new SleepThenTraceEntryCallable());
+            Future<Void> future3 = executor.submit(new SleepThenTraceEntryCallable());
+            future1.get();
+            future2.get();
+            future3.get();
+            executor.shutdown();
+        }
+    }
+
+    public static class DoNestedSubmitFromEmptyWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            final ExecutorService executor = Executors.newCachedThreadPool();
+            final CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // not using Future.get() here since that would be recorded on this thread
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            new CreateTraceEntry().traceEntryMarker();
+                            latch.countDown();
+                        }
+                    });
+                }
+            });
+            latch.await();
+            executor.shutdown();
+        }
+    }
+
+    private static class SleepRunnable implements Runnable {
+
+        private final long millis;
+
+        private SleepRunnable(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private static class SleepThenTraceEntryCallable implements Callable<Void> {
+
+        @Override
+        public Void call() throws Exception {
+            Thread.sleep(50);
+            new CreateTraceEntry().traceEntryMarker();
+            return null;
+        }
+    }
+
+    private static class CreateTraceEntry implements TraceEntryMarker {
+
+        @Override
+        public void traceEntryMarker() {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
@@ -19,10 +19,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -32,6 +30,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import org.glowroot.agent.plugin.api.util.WildcardMatcher;
 import org.glowroot.agent.plugin.servlet.ServletAspect.HttpServletRequest;
 
 // shallow copies are necessary because request may not be thread safe, which may affect ability
@@ -47,8 +46,8 @@ class DetailCapture {
 
     static ImmutableMap<String, Object> captureRequestParameters(
             Map</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/ []> requestParameters) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        WildcardMatcher captureMatcher = ServletPluginProperties.captureRequestParameters();
+        WildcardMatcher maskMatcher = ServletPluginProperties.maskRequestParameters();
         ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
         for (Entry</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/ []> entry : requestParameters
                 .entrySet()) {
@@ -56,12 +55,10 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureMatcher.matches(name)) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskMatcher.matches(name)) {
                 map.put(name, "****");
                 continue;
             }
@@ -79,8 +76,8 @@ class DetailCapture {
         if (e == null) {
             return ImmutableMap.of();
         }
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        WildcardMatcher captureMatcher = ServletPluginProperties.captureRequestParameters();
+        WildcardMatcher maskMatcher = ServletPluginProperties.maskRequestParameters();
         ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
         while (e.hasMoreElements()) {
             Object nameObj = e.nextElement();
@@ -91,12 +88,10 @@ class DetailCapture {
                 continue;
             }
             String name = (String) nameObj;
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureMatcher.matches(name)) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskMatcher.matches(name)) {
                 map.put(name, "****");
                 continue;
             }
@@ -128,8 +123,8 @@ class DetailCapture {
     }
 
     static ImmutableMap<String, Object> captureRequestHeaders(HttpServletRequest request) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestHeaders();
-        if (capturePatterns.isEmpty()) {
+        WildcardMatcher captureMatcher = ServletPluginProperties.captureRequestHeaders();
+        if (captureMatcher.isEmpty()) {
             return ImmutableMap.of();
         }
         Map<String, Object> requestHeaders = Maps.newHashMap();
@@ -142,9 +137,7 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureMatcher.matches(name)) {
                 continue;
             }
             Enumeration</*@Nullable*/ String> values = request.getHeaders(name);
@@ -171,15 +164,6 @@ class DetailCapture {
         }
     }
 
-    static boolean matchesOneOf(String key, List<Pattern> patterns) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(key).matches()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static void captureRequestHeader(String name, Enumeration</*@Nullable*/ String> values,
             Map<String, Object> requestHeaders) {
         if (!values.hasMoreElements()) {
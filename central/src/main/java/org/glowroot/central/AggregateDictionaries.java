@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import org.glowroot.common.config.StorageConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateDictionaryEntry;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateDictionaryEntry.EntryCase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// central collector's copy of each agent's aggregate dictionary (see AggregateStreamHeader)
+//
+// these are only held in memory, if an agent's dictionary is not found (e.g. after restart, or when
+// the agent connects to a different central collector node) then the stream is rejected and the
+// agent re-sends the dictionary as a snapshot on its next stream (which replaces any stale copy)
+class AggregateDictionaries {
+
+    // agent starts a new dictionary at 50,000 entries
+    private static final int MAX_SIZE = 100000;
+
+    private final Cache<String, Dictionary> dictionaries = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, HOURS)
+            .build();
+
+    // returns null if the dictionary is not found
+    @Nullable
+    StreamDecoder newStreamDecoder(AggregateStreamHeader streamHeader) {
+        String agentId = streamHeader.getAgentId();
+        String dictionaryId = streamHeader.getDictionaryId();
+        int baseSize = streamHeader.getDictionaryBaseSize();
+        boolean snapshot = streamHeader.getDictionarySnapshot();
+        Dictionary dictionary = dictionaries.getIfPresent(agentId);
+        if (dictionary == null || !dictionary.id.equals(dictionaryId)) {
+            if (baseSize != 0) {
+                return null;
+            }
+            dictionary = new Dictionary(dictionaryId);
+            dictionaries.put(agentId, dictionary);
+        }
+        synchronized (dictionary) {
+            if (dictionary.entries.size() < baseSize) {
+                return null;
+            }
+        }
+        return new StreamDecoder(dictionary, baseSize, snapshot);
+    }
+
+    private static class Dictionary {
+
+        private final String id;
+
+        // entries are only ever appended
+        @GuardedBy("this")
+        private final List<AggregateDictionaryEntry> entries = Lists.newArrayList();
+
+        private Dictionary(String id) {
+            this.id = id;
+        }
+    }
+
+    static class StreamDecoder {
+
+        private final Dictionary dictionary;
+        private final int baseSize;
+        private final boolean snapshot;
+
+        private final List<AggregateDictionaryEntry> newEntries = Lists.newArrayList();
+
+        // shared query texts are re-indexed per stream since that is what AggregateDao expects
+        private final List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        private final Map<Integer, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+
+        private StreamDecoder(Dictionary dictionary, int baseSize, boolean snapshot) {
+            this.dictionary = dictionary;
+            this.baseSize = baseSize;
+            this.snapshot = snapshot;
+        }
+
+        void addEntry(AggregateDictionaryEntry entry) {
+            newEntries.add(entry);
+        }
+
+        List<Aggregate.SharedQueryText> getSharedQueryTexts() {
+            return sharedQueryTexts;
+        }
+
+        OverallAggregate decode(OverallAggregate overallAggregate) {
+            return OverallAggregate.newBuilder()
+                    .setTransactionType(
+                            getText(overallAggregate.getTransactionTypeDictionaryIndex()))
+                    .setAggregate(decode(overallAggregate.getAggregate()))
+                    .build();
+        }
+
+        TransactionAggregate decode(TransactionAggregate transactionAggregate) {
+            return TransactionAggregate.newBuilder()
+                    .setTransactionType(
+                            getText(transactionAggregate.getTransactionTypeDictionaryIndex()))
+                    .setTransactionName(
+                            getText(transactionAggregate.getTransactionNameDictionaryIndex()))
+                    .setAggregate(decode(transactionAggregate.getAggregate()))
+                    .build();
+        }
+
+        // appends the new entries to the dictionary if this stream's base size still matches (or
+        // replaces the dictionary's entries if this stream is a snapshot), and returns the
+        // resulting dictionary size, which the agent uses to confirm the append
+        int commit() {
+            synchronized (dictionary) {
+                if (snapshot && newEntries.size() <= MAX_SIZE) {
+                    dictionary.entries.clear();
+                }
+                int size = dictionary.entries.size();
+                if (size == baseSize && size + newEntries.size() <= MAX_SIZE) {
+                    for (AggregateDictionaryEntry newEntry : newEntries) {
+                        dictionary.entries.add(retainedForm(newEntry));
+                    }
+                }
+                return dictionary.entries.size();
+            }
+        }
+
+        private Aggregate decode(Aggregate aggregate) {
+            Aggregate.Builder builder = aggregate.toBuilder()
+                    .clearMainThreadRootTimer()
+                    .clearAuxThreadRootTimer()
+                    .clearAsyncTimer()
+                    .clearQueriesByType()
+                    .clearServiceCallsByType();
+            for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+                builder.addMainThreadRootTimer(decode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+                builder.addAuxThreadRootTimer(decode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+                builder.addAsyncTimer(decode(timer));
+            }
+            for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+                Aggregate.QueriesByType.Builder queriesByTypeBuilder =
+                        Aggregate.QueriesByType.newBuilder()
+                                .setType(getText(queriesByType.getTypeDictionaryIndex()));
+                for (Aggregate.Query query : queriesByType.getQueryList()) {
+                    queriesByTypeBuilder.addQuery(query.toBuilder()
+                            .setSharedQueryTextIndex(
+                                    getSharedQueryTextIndex(query.getSharedQueryTextIndex())));
+                }
+                builder.addQueriesByType(queriesByTypeBuilder);
+            }
+            for (Aggregate.ServiceCallsByType serviceCallsByType : aggregate
+                    .getServiceCallsByTypeList()) {
+                Aggregate.ServiceCallsByType.Builder serviceCallsByTypeBuilder =
+                        Aggregate.ServiceCallsByType.newBuilder()
+                                .setType(getText(serviceCallsByType.getTypeDictionaryIndex()));
+                for (Aggregate.ServiceCall serviceCall : serviceCallsByType
+                        .getServiceCallList()) {
+                    serviceCallsByTypeBuilder.addServiceCall(serviceCall.toBuilder()
+                            .clearTextDictionaryIndex()
+                            .setText(getText(serviceCall.getTextDictionaryIndex())));
+                }
+                builder.addServiceCallsByType(serviceCallsByTypeBuilder);
+            }
+            return builder.build();
+        }
+
+        private Aggregate.Timer decode(Aggregate.Timer timer) {
+            Aggregate.Timer.Builder builder = timer.toBuilder()
+                    .clearNameDictionaryIndex()
+                    .setName(getText(timer.getNameDictionaryIndex()))
+                    .clearChildTimer();
+            for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+                builder.addChildTimer(decode(childTimer));
+            }
+            return builder.build();
+        }
+
+        private int getSharedQueryTextIndex(int dictionaryIndex) {
+            Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(dictionaryIndex);
+            if (sharedQueryTextIndex == null) {
+                sharedQueryTextIndex = sharedQueryTexts.size();
+                sharedQueryTexts.add(getEntry(dictionaryIndex).getSharedQueryText());
+                sharedQueryTextIndexes.put(dictionaryIndex, sharedQueryTextIndex);
+            }
+            return sharedQueryTextIndex;
+        }
+
+        private String getText(int dictionaryIndex) {
+            return getEntry(dictionaryIndex).getText();
+        }
+
+        private AggregateDictionaryEntry getEntry(int dictionaryIndex) {
+            if (dictionaryIndex >= baseSize) {
+                return newEntries.get(dictionaryIndex - baseSize);
+            }
+            synchronized (dictionary) {
+                return dictionary.entries.get(dictionaryIndex);
+            }
+        }
+
+        // full text of long queries is stored by AggregateDao the first time it is received, so
+        // only need to retain the truncated text and sha1 (same as the agent sends after that)
+        private static AggregateDictionaryEntry retainedForm(AggregateDictionaryEntry entry) {
+            if (entry.getEntryCase() != EntryCase.SHARED_QUERY_TEXT) {
+                return entry;
+            }
+            Aggregate.SharedQueryText sharedQueryText = entry.getSharedQueryText();
+            String fullText = sharedQueryText.getFullText();
+            if (fullText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                return entry;
+            }
+            return AggregateDictionaryEntry.newBuilder()
+                    .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                            .setTruncatedText(fullText.substring(0,
+                                    StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE))
+                            .setFullTextSha1(
+                                    Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString()))
+                    .build();
+        }
+    }
+}
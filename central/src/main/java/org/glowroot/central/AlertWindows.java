@@ -0,0 +1,400 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.NavigableMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SortedMultiset;
+import com.google.common.collect.TreeMultiset;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.repo.AlertWindowDao;
+import org.glowroot.central.repo.AlertWindowDao.AlertWindowBucket;
+import org.glowroot.central.repo.ImmutableAlertWindowBucket;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.GaugeValueRepository;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sliding windows of per-minute aggregate data (or gauge values) for each agent metric alert, which
+// are updated directly from the collected data so that agent metric alerts can be evaluated without
+// reading the stored aggregates and gauge values back
+//
+// metric values are calculated the same way as in MetricService
+//
+// windows are only maintained for agents (not for agent rollups, whose data is collected from
+// multiple agents, possibly across multiple central nodes)
+//
+// windows are keyed by the data they hold (metric, transaction type/name and time period), so that
+// alerts which only differ by threshold share a window, and editing an alert's threshold does not
+// discard its window
+class AlertWindows {
+
+    private static final Logger logger = LoggerFactory.getLogger(AlertWindows.class);
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    // a window that has not been updated (or reloaded) on this central node recently may be missing
+    // data that was collected by another central node (e.g. after the agent reconnected elsewhere),
+    // in which case it is reloaded from the checkpoint
+    private static final long TRUSTED_MILLIS = MINUTES.toMillis(2);
+
+    private final AlertWindowDao alertWindowDao;
+    private final AggregateRepository aggregateRepository;
+    private final GaugeValueRepository gaugeValueRepository;
+    private final Clock clock;
+
+    private final Cache<List<Object>, Window> windows = CacheBuilder.newBuilder()
+            .expireAfterAccess(10, MINUTES)
+            .build();
+
+    AlertWindows(AlertWindowDao alertWindowDao, AggregateRepository aggregateRepository,
+            GaugeValueRepository gaugeValueRepository, Clock clock) {
+        this.alertWindowDao = alertWindowDao;
+        this.aggregateRepository = aggregateRepository;
+        this.gaugeValueRepository = gaugeValueRepository;
+        this.clock = clock;
+    }
+
+    // this is called each time data is collected for the agent, even if the collected data has no
+    // buckets for the window (e.g. no matching transactions during the minute), so that a quiet
+    // window is still trusted
+    //
+    // the buckets are stored by capture time, so re-collected data (e.g. after a retry) simply
+    // replaces the earlier bucket
+    void add(String agentId, MetricCondition metricCondition, List<AlertWindowBucket> buckets)
+            throws Exception {
+        MetricCondition windowKey = getWindowKey(metricCondition);
+        Window window = getWindow(agentId, windowKey);
+        synchronized (window) {
+            long currentTimeMillis = clock.currentTimeMillis();
+            if (!window.isTrusted(currentTimeMillis)) {
+                window.load(agentId, windowKey, currentTimeMillis);
+            }
+            for (AlertWindowBucket bucket : buckets) {
+                window.buckets.put(bucket.captureTime(), bucket);
+            }
+            window.lastUpdateTime = currentTimeMillis;
+        }
+        // the checkpoint is written outside of the window lock and is not waited on, so that checks
+        // are not held up by cassandra writes (the checkpoint is only read back when the window is
+        // reloaded)
+        for (AlertWindowBucket bucket : buckets) {
+            ListenableFuture<ResultSet> future = alertWindowDao.store(agentId, windowKey, bucket);
+            Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {}
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.error("{} - {}", agentId, t.getMessage(), t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    // checks are registered when they are submitted, so that a check for a later capture time
+    // cannot evict buckets that a queued (or still running) check for an earlier capture time
+    // needs, see getMetricValue()
+    void beginCheck(String agentId, MetricCondition metricCondition, long endTime)
+            throws Exception {
+        Window window = getWindow(agentId, getWindowKey(metricCondition));
+        synchronized (window) {
+            window.checkEndTimes.add(endTime);
+        }
+    }
+
+    void endCheck(String agentId, MetricCondition metricCondition, long endTime)
+            throws Exception {
+        Window window = getWindow(agentId, getWindowKey(metricCondition));
+        synchronized (window) {
+            window.checkEndTimes.remove(endTime);
+        }
+    }
+
+    @Nullable
+    Number getMetricValue(String agentId, MetricCondition metricCondition, long endTime)
+            throws Exception {
+        MetricCondition windowKey = getWindowKey(metricCondition);
+        Window window = getWindow(agentId, windowKey);
+        long timePeriodMillis = SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+        List<AlertWindowBucket> buckets;
+        synchronized (window) {
+            long currentTimeMillis = clock.currentTimeMillis();
+            if (!window.isTrusted(currentTimeMillis)) {
+                window.load(agentId, windowKey, currentTimeMillis);
+            }
+            // expire buckets that have slid out of the window of the oldest check that is still
+            // outstanding
+            long oldestEndTime = endTime;
+            if (!window.checkEndTimes.isEmpty()) {
+                oldestEndTime = Math.min(oldestEndTime, window.checkEndTimes.firstEntry()
+                        .getElement());
+            }
+            window.buckets.headMap(oldestEndTime - timePeriodMillis, true).clear();
+            // startTime is not included in the window (same as MetricService)
+            buckets = ImmutableList.copyOf(window.buckets
+                    .subMap(endTime - timePeriodMillis, false, endTime, true).values());
+        }
+        return getMetricValue(metricCondition, buckets);
+    }
+
+    private Window getWindow(String agentId, MetricCondition windowKey) throws Exception {
+        return windows.get(ImmutableList.of(agentId, windowKey), Window::new);
+    }
+
+    // only the parts of the metric condition that determine the data that the window holds
+    // (e.g. the percentile is not included since the full histogram is retained)
+    @VisibleForTesting
+    static MetricCondition getWindowKey(MetricCondition metricCondition) {
+        return MetricCondition.newBuilder()
+                .setMetric(metricCondition.getMetric())
+                .setTransactionType(metricCondition.getTransactionType())
+                .setTransactionName(metricCondition.getTransactionName())
+                .setTimePeriodSeconds(metricCondition.getTimePeriodSeconds())
+                .build();
+    }
+
+    static List<AlertWindowBucket> createBuckets(MetricCondition metricCondition,
+            long captureTime, List<OldAggregatesByType> aggregatesByTypeList) {
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            if (!aggregatesByType.getTransactionType()
+                    .equals(metricCondition.getTransactionType())) {
+                continue;
+            }
+            String transactionName = metricCondition.getTransactionName();
+            if (transactionName.isEmpty()) {
+                return ImmutableList.of(createBucket(metricCondition, captureTime,
+                        aggregatesByType.getOverallAggregate()));
+            }
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                if (transactionAggregate.getTransactionName().equals(transactionName)) {
+                    return ImmutableList.of(createBucket(metricCondition, captureTime,
+                            transactionAggregate.getAggregate()));
+                }
+            }
+        }
+        // no transactions matching the condition during this minute, so no bucket (same as there
+        // being no aggregate stored for this minute)
+        return ImmutableList.of();
+    }
+
+    static List<AlertWindowBucket> createBuckets(MetricCondition metricCondition,
+            List<GaugeValue> gaugeValues) {
+        String gaugeName = metricCondition.getMetric().substring("gauge:".length());
+        List<AlertWindowBucket> buckets = Lists.newArrayList();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            if (gaugeValue.getGaugeName().equals(gaugeName)) {
+                buckets.add(ImmutableAlertWindowBucket.builder()
+                        .captureTime(gaugeValue.getCaptureTime())
+                        .gaugeValue(gaugeValue.getValue())
+                        .gaugeWeight(gaugeValue.getWeight())
+                        .build());
+            }
+        }
+        return buckets;
+    }
+
+    private static AlertWindowBucket createBucket(MetricCondition metricCondition,
+            long captureTime, Aggregate aggregate) {
+        ImmutableAlertWindowBucket.Builder bucket = ImmutableAlertWindowBucket.builder()
+                .captureTime(captureTime)
+                .transactionCount(aggregate.getTransactionCount())
+                .errorCount(aggregate.getErrorCount())
+                .totalDurationNanos(aggregate.getTotalDurationNanos());
+        if (metricCondition.getMetric().equals("transaction:x-percentile")) {
+            bucket.durationNanosHistogram(aggregate.getDurationNanosHistogram());
+        }
+        return bucket.build();
+    }
+
+    private static @Nullable Number getMetricValue(MetricCondition metricCondition,
+            List<AlertWindowBucket> buckets) {
+        String metric = metricCondition.getMetric();
+        if (metric.startsWith("gauge:")) {
+            double totalWeightedValue = 0;
+            long totalWeight = 0;
+            for (AlertWindowBucket bucket : buckets) {
+                totalWeightedValue += bucket.gaugeValue() * bucket.gaugeWeight();
+                totalWeight += bucket.gaugeWeight();
+            }
+            return totalWeight == 0 ? null : totalWeightedValue / totalWeight;
+        }
+        long totalTransactionCount = 0;
+        long totalErrorCount = 0;
+        double totalDurationNanos = 0;
+        for (AlertWindowBucket bucket : buckets) {
+            totalTransactionCount += bucket.transactionCount();
+            totalErrorCount += bucket.errorCount();
+            totalDurationNanos += bucket.totalDurationNanos();
+        }
+        if (metric.equals("transaction:count")) {
+            return totalTransactionCount;
+        } else if (metric.equals("error:count")) {
+            return totalErrorCount;
+        }
+        if (totalTransactionCount == 0) {
+            // cannot calculate due to no data
+            return null;
+        }
+        if (metric.equals("transaction:x-percentile")) {
+            LazyHistogram durationNanosHistogram = new LazyHistogram();
+            for (AlertWindowBucket bucket : buckets) {
+                Aggregate.Histogram histogram = bucket.durationNanosHistogram();
+                if (histogram != null) {
+                    durationNanosHistogram.merge(histogram);
+                }
+            }
+            return durationNanosHistogram.getValueAtPercentile(
+                    metricCondition.getPercentile().getValue()) / NANOSECONDS_PER_MILLISECOND;
+        } else if (metric.equals("transaction:average")) {
+            return totalDurationNanos / (totalTransactionCount * NANOSECONDS_PER_MILLISECOND);
+        } else if (metric.equals("error:rate")) {
+            return (100.0 * totalErrorCount) / totalTransactionCount;
+        } else {
+            throw new IllegalStateException("Unexpected metric: " + metric);
+        }
+    }
+
+    private class Window {
+
+        @GuardedBy("this")
+        private final NavigableMap<Long, AlertWindowBucket> buckets = Maps.newTreeMap();
+
+        // end times of the checks that have been submitted against this window but not completed
+        @GuardedBy("this")
+        private final SortedMultiset<Long> checkEndTimes = TreeMultiset.create();
+
+        // set when data is collected by this central node (even if it has no buckets for this
+        // window) and when the window is reloaded, so that a window for a quiet series (or for an
+        // agent whose data is collected by another central node) is not reloaded on every check
+        @GuardedBy("this")
+        private long lastUpdateTime;
+
+        @GuardedBy("this")
+        private boolean isTrusted(long currentTimeMillis) {
+            return lastUpdateTime != 0 && currentTimeMillis - lastUpdateTime < TRUSTED_MILLIS;
+        }
+
+        @GuardedBy("this")
+        private void load(String agentId, MetricCondition windowKey, long currentTimeMillis)
+                throws Exception {
+            long startTime = currentTimeMillis
+                    - SECONDS.toMillis(windowKey.getTimePeriodSeconds()) - TRUSTED_MILLIS;
+            List<AlertWindowBucket> checkpoint =
+                    alertWindowDao.read(agentId, windowKey, startTime);
+            if (checkpoint.isEmpty()) {
+                // no checkpoint, e.g. new or edited alert, or first check after upgrade, so fill
+                // the window from the stored data
+                checkpoint = readStoredBuckets(agentId, windowKey, startTime, currentTimeMillis);
+            }
+            buckets.clear();
+            for (AlertWindowBucket bucket : checkpoint) {
+                buckets.put(bucket.captureTime(), bucket);
+            }
+            lastUpdateTime = currentTimeMillis;
+        }
+    }
+
+    private List<AlertWindowBucket> readStoredBuckets(String agentId, MetricCondition windowKey,
+            long startTime, long endTime) throws Exception {
+        String metric = windowKey.getMetric();
+        if (metric.startsWith("gauge:")) {
+            // rollup level 0 is the raw gauge values, same as what is collected
+            List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentId,
+                    metric.substring("gauge:".length()), startTime + 1, endTime, 0);
+            List<AlertWindowBucket> buckets = Lists.newArrayList();
+            for (GaugeValue gaugeValue : gaugeValues) {
+                buckets.add(ImmutableAlertWindowBucket.builder()
+                        .captureTime(gaugeValue.getCaptureTime())
+                        .gaugeValue(gaugeValue.getValue())
+                        .gaugeWeight(gaugeValue.getWeight())
+                        .build());
+            }
+            return buckets;
+        }
+        // rollup level 0 is the per-minute aggregates, same as what is collected
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(windowKey.getTransactionType())
+                .transactionName(Strings.emptyToNull(windowKey.getTransactionName()))
+                .from(startTime + 1)
+                .to(endTime)
+                .rollupLevel(0)
+                .build();
+        List<AlertWindowBucket> buckets = Lists.newArrayList();
+        if (metric.equals("transaction:x-percentile")) {
+            for (PercentileAggregate aggregate : aggregateRepository
+                    .readPercentileAggregates(agentId, query)) {
+                buckets.add(ImmutableAlertWindowBucket.builder()
+                        .captureTime(aggregate.captureTime())
+                        .transactionCount(aggregate.transactionCount())
+                        .totalDurationNanos(aggregate.totalDurationNanos())
+                        .durationNanosHistogram(aggregate.durationNanosHistogram())
+                        .build());
+            }
+        } else if (metric.equals("transaction:average")) {
+            for (OverviewAggregate aggregate : aggregateRepository
+                    .readOverviewAggregates(agentId, query)) {
+                buckets.add(ImmutableAlertWindowBucket.builder()
+                        .captureTime(aggregate.captureTime())
+                        .transactionCount(aggregate.transactionCount())
+                        .totalDurationNanos(aggregate.totalDurationNanos())
+                        .build());
+            }
+        } else {
+            for (ThroughputAggregate aggregate : aggregateRepository
+                    .readThroughputAggregates(agentId, query)) {
+                buckets.add(ImmutableAlertWindowBucket.builder()
+                        .captureTime(aggregate.captureTime())
+                        .transactionCount(aggregate.transactionCount())
+                        .errorCount(MoreObjects.firstNonNull(aggregate.errorCount(), 0L))
+                        .build());
+            }
+        }
+        return buckets;
+    }
+}
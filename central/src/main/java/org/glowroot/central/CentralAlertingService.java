@@ -15,51 +15,101 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.repo.AlertWindowDao;
+import org.glowroot.central.repo.AlertWindowDao.AlertWindowBucket;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.GaugeValueRepository;
 import org.glowroot.common.repo.util.AlertingService;
+import org.glowroot.common.repo.util.MetricReadCache;
+import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.HeartbeatCondition;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertNotification;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class CentralAlertingService {
 
     private static final Logger logger = LoggerFactory.getLogger(CentralAlertingService.class);
 
+    // alert checking is mostly waiting on cassandra reads
+    private static final int ALERT_CHECKING_THREADS = 8;
+
+    private static final String MBEAN_OBJECT_NAME = "org.glowroot.central:type=AlertChecking";
+
     private final ConfigRepositoryImpl configRepository;
     private final HeartbeatDao heartbeatDao;
     private final AlertingService alertingService;
+    private final AlertWindows alertWindows;
+
+    private final ThreadPoolExecutor alertCheckingExecutor;
 
-    private final ExecutorService alertCheckingExecutor;
+    // the same alert can be checked concurrently (e.g. after aggregate collection and after
+    // rollup), which could otherwise result in duplicate notifications
+    private final Striped<Lock> alertCheckingLocks = Striped.lock(64);
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
 
+    private volatile long lastCheckingLagMillis;
+
     CentralAlertingService(ConfigRepositoryImpl configRepository, HeartbeatDao heartbeatDao,
-            AlertingService alertingService) {
+            AlertWindowDao alertWindowDao, AggregateRepository aggregateRepository,
+            GaugeValueRepository gaugeValueRepository, AlertingService alertingService,
+            Clock clock) {
         this.configRepository = configRepository;
         this.heartbeatDao = heartbeatDao;
         this.alertingService = alertingService;
-        alertCheckingExecutor = Executors.newSingleThreadExecutor();
+        alertWindows =
+                new AlertWindows(alertWindowDao, aggregateRepository, gaugeValueRepository, clock);
+        alertCheckingExecutor = new ThreadPoolExecutor(ALERT_CHECKING_THREADS,
+                ALERT_CHECKING_THREADS, 0, MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new AlertCheckingStats(),
+                    new ObjectName(MBEAN_OBJECT_NAME));
+        } catch (Exception e) {
+            // e.g. multiple central instances in the same jvm during tests
+            logger.debug(e.getMessage(), e);
+        }
     }
 
     void close() {
         // then shutdown alert checking executor
         alertCheckingExecutor.shutdown();
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(new ObjectName(MBEAN_OBJECT_NAME));
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+        }
     }
 
     void checkForDeletedAlerts(String agentRollupId, String agentRollupDisplay) {
@@ -70,7 +120,10 @@ class CentralAlertingService {
         }
     }
 
-    void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime) {
+    // agent metric alerts are evaluated against sliding windows that are updated from the collected
+    // data, instead of reading the stored aggregates back
+    void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime,
+            List<OldAggregatesByType> aggregatesByTypeList) {
         List<AlertConfig> alertConfigs;
         try {
             alertConfigs = configRepository.getAlertConfigs(agentId);
@@ -85,10 +138,13 @@ class CentralAlertingService {
                 aggregateAlertConfigs.add(alertConfig);
             }
         }
-        checkAlertsAsync(agentId, agentDisplay, endTime, aggregateAlertConfigs);
+        checkAlertsAsync(agentId, agentDisplay, endTime, aggregateAlertConfigs, true,
+                metricCondition -> AlertWindows.createBuckets(metricCondition, endTime,
+                        aggregatesByTypeList));
     }
 
-    void checkGaugeAndHeartbeatAlertsAsync(String agentId, String agentDisplay, long endTime) {
+    void checkGaugeAndHeartbeatAlertsAsync(String agentId, String agentDisplay, long endTime,
+            List<GaugeValue> gaugeValues) {
         List<AlertConfig> alertConfigs;
         try {
             alertConfigs = configRepository.getAlertConfigs(agentId);
@@ -104,11 +160,14 @@ class CentralAlertingService {
                 gaugeAndHeartbeatAlertConfigs.add(alertConfig);
             }
         }
-        checkAlertsAsync(agentId, agentDisplay, endTime, gaugeAndHeartbeatAlertConfigs);
+        checkAlertsAsync(agentId, agentDisplay, endTime, gaugeAndHeartbeatAlertConfigs, true,
+                metricCondition -> AlertWindows.createBuckets(metricCondition, gaugeValues));
     }
 
+    // this catches alerts that need to be triggered (or un-triggered) due to lack of data, e.g.
+    // transaction count lower bound, and is also the only check for agent rollup metric alerts
     void checkAggregateAndGaugeAndHeartbeatAlertsAsync(String agentRollupId,
-            String agentRollupDisplay, long endTime) {
+            String agentRollupDisplay, long endTime, boolean agent) {
         List<AlertConfig> alertConfigs;
         try {
             alertConfigs = configRepository.getAlertConfigs(agentRollupId);
@@ -124,44 +183,81 @@ class CentralAlertingService {
                 aggregateAndGaugeAndHeartbeatAlertConfigs.add(alertConfig);
             }
         }
+        // no data was collected for these checks, so the windows are not updated (they are only
+        // read, and reloaded if they have not been updated recently)
         checkAlertsAsync(agentRollupId, agentRollupDisplay, endTime,
-                aggregateAndGaugeAndHeartbeatAlertConfigs);
+                aggregateAndGaugeAndHeartbeatAlertConfigs, agent, null);
     }
 
+    // alert conditions that read the same series are grouped so that the series is only read once,
+    // and the groups are then checked concurrently
     private void checkAlertsAsync(String agentRollupId, String agentRollupDisplay, long endTime,
-            List<AlertConfig> alertConfigs) {
-        alertCheckingExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    runInternal();
-                } catch (Throwable t) {
-                    logger.error("{} - {}", agentRollupDisplay, t.getMessage(), t);
+            List<AlertConfig> alertConfigs, boolean windowed,
+            @Nullable AlertWindowBucketFactory bucketFactory) {
+        long startTick = System.nanoTime();
+        for (List<AlertConfig> alertConfigGroup : groupBySeries(alertConfigs)) {
+            List<MetricCondition> windowedMetricConditions = Lists.newArrayList();
+            if (windowed) {
+                for (AlertConfig alertConfig : alertConfigGroup) {
+                    AlertCondition alertCondition = alertConfig.getCondition();
+                    if (isMetricCondition(alertCondition)) {
+                        windowedMetricConditions.add(alertCondition.getMetricCondition());
+                    }
+                }
+                if (!beginWindowedChecks(agentRollupId, agentRollupDisplay,
+                        windowedMetricConditions, endTime)) {
+                    continue;
                 }
             }
-            private void runInternal() throws InterruptedException {
-                for (AlertConfig alertConfig : alertConfigs) {
+            alertCheckingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        checkAlert(agentRollupId, agentRollupDisplay, endTime, alertConfig);
-                    } catch (InterruptedException e) {
-                        // shutdown requested
-                        throw e;
-                    } catch (Exception e) {
-                        logger.error("{} - {}", agentRollupDisplay, e.getMessage(), e);
+                        runInternal();
+                    } catch (Throwable t) {
+                        logger.error("{} - {}", agentRollupDisplay, t.getMessage(), t);
+                    } finally {
+                        endWindowedChecks(agentRollupId, agentRollupDisplay,
+                                windowedMetricConditions, endTime);
                     }
+                    lastCheckingLagMillis = NANOSECONDS.toMillis(System.nanoTime() - startTick);
                 }
-            }
-        });
+                private void runInternal() throws InterruptedException {
+                    MetricReadCache metricReadCache = new MetricReadCache();
+                    for (AlertConfig alertConfig : alertConfigGroup) {
+                        Lock lock = alertCheckingLocks
+                                .get(ImmutableList.of(agentRollupId, alertConfig.getCondition()));
+                        lock.lockInterruptibly();
+                        try {
+                            if (windowed && isMetricCondition(alertConfig.getCondition())) {
+                                checkWindowedMetricAlert(agentRollupId, agentRollupDisplay,
+                                        alertConfig, endTime, bucketFactory);
+                            } else {
+                                checkAlert(agentRollupId, agentRollupDisplay, endTime, alertConfig,
+                                        metricReadCache);
+                            }
+                        } catch (InterruptedException e) {
+                            // shutdown requested
+                            throw e;
+                        } catch (Exception e) {
+                            logger.error("{} - {}", agentRollupDisplay, e.getMessage(), e);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            });
+        }
     }
 
     private void checkAlert(String agentRollupId, String agentDisplay, long endTime,
-            AlertConfig alertConfig) throws Exception {
+            AlertConfig alertConfig, MetricReadCache metricReadCache) throws Exception {
         AlertCondition alertCondition = alertConfig.getCondition();
         switch (alertCondition.getValCase()) {
             case METRIC_CONDITION:
                 checkMetricAlert(agentRollupId, agentDisplay, alertCondition,
                         alertCondition.getMetricCondition(), alertConfig.getNotification(),
-                        endTime);
+                        endTime, metricReadCache);
                 break;
             case HEARTBEAT_CONDITION:
                 if (stopwatch.elapsed(MINUTES) >= 4) {
@@ -185,9 +281,29 @@ class CentralAlertingService {
             timer = "check metric alert")
     private void checkMetricAlert(String agentRollupId, String agentDisplay,
             AlertCondition alertCondition, MetricCondition metricCondition,
-            AlertNotification alertNotification, long endTime) throws Exception {
+            AlertNotification alertNotification, long endTime, MetricReadCache metricReadCache)
+            throws Exception {
         alertingService.checkMetricAlert(agentRollupId, agentDisplay, alertCondition,
-                metricCondition, alertNotification, endTime);
+                metricCondition, alertNotification, endTime, metricReadCache);
+    }
+
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Check windowed metric alert",
+            traceHeadline = "Check windowed metric alert: {{0}}",
+            timer = "check windowed metric alert")
+    private void checkWindowedMetricAlert(String agentId, String agentDisplay,
+            AlertConfig alertConfig, long endTime,
+            @Nullable AlertWindowBucketFactory bucketFactory) throws Exception {
+        AlertCondition alertCondition = alertConfig.getCondition();
+        MetricCondition metricCondition = alertCondition.getMetricCondition();
+        if (bucketFactory != null) {
+            // the window is updated even if there are no buckets, since it means that the window
+            // is still being kept up to date by this central node
+            alertWindows.add(agentId, metricCondition, bucketFactory.create(metricCondition));
+        }
+        Number value = alertWindows.getMetricValue(agentId, metricCondition, endTime);
+        alertingService.sendMetricAlertIfNeeded(agentId, agentDisplay, alertCondition,
+                metricCondition, alertConfig.getNotification(), endTime, value);
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -202,6 +318,60 @@ class CentralAlertingService {
                 heartbeatCondition, alertNotification, endTime, currentlyTriggered);
     }
 
+    private static Collection<List<AlertConfig>> groupBySeries(List<AlertConfig> alertConfigs) {
+        Map<Object, List<AlertConfig>> alertConfigGroups = Maps.newLinkedHashMap();
+        for (AlertConfig alertConfig : alertConfigs) {
+            AlertCondition alertCondition = alertConfig.getCondition();
+            Object groupKey;
+            if (alertCondition.getValCase() == AlertCondition.ValCase.METRIC_CONDITION) {
+                groupKey = AlertingService
+                        .getMetricSeriesKey(alertCondition.getMetricCondition());
+            } else {
+                groupKey = alertCondition;
+            }
+            List<AlertConfig> alertConfigGroup = alertConfigGroups.get(groupKey);
+            if (alertConfigGroup == null) {
+                alertConfigGroup = Lists.newArrayList();
+                alertConfigGroups.put(groupKey, alertConfigGroup);
+            }
+            alertConfigGroup.add(alertConfig);
+        }
+        return alertConfigGroups.values();
+    }
+
+    // the checks are registered with their windows before they are queued, so that a check for a
+    // later end time does not evict buckets that are still needed by the earlier checks
+    private boolean beginWindowedChecks(String agentId, String agentDisplay,
+            List<MetricCondition> metricConditions, long endTime) {
+        List<MetricCondition> begun = Lists.newArrayList();
+        try {
+            for (MetricCondition metricCondition : metricConditions) {
+                alertWindows.beginCheck(agentId, metricCondition, endTime);
+                begun.add(metricCondition);
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentDisplay, e.getMessage(), e);
+            endWindowedChecks(agentId, agentDisplay, begun, endTime);
+            return false;
+        }
+    }
+
+    private void endWindowedChecks(String agentId, String agentDisplay,
+            List<MetricCondition> metricConditions, long endTime) {
+        for (MetricCondition metricCondition : metricConditions) {
+            try {
+                alertWindows.endCheck(agentId, metricCondition, endTime);
+            } catch (Exception e) {
+                logger.error("{} - {}", agentDisplay, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static boolean isMetricCondition(AlertCondition alertCondition) {
+        return alertCondition.getValCase() == AlertCondition.ValCase.METRIC_CONDITION;
+    }
+
     private static boolean isAggregateMetricCondition(AlertCondition alertCondition) {
         if (alertCondition.getValCase() != AlertCondition.ValCase.METRIC_CONDITION) {
             return false;
@@ -214,4 +384,36 @@ class CentralAlertingService {
         return alertCondition.getValCase() == AlertCondition.ValCase.METRIC_CONDITION
                 && alertCondition.getMetricCondition().getMetric().startsWith("gauge:");
     }
+
+    @FunctionalInterface
+    interface AlertWindowBucketFactory {
+        List<AlertWindowBucket> create(MetricCondition metricCondition);
+    }
+
+    private class AlertCheckingStats implements AlertCheckingMXBean {
+
+        @Override
+        public long getLastCheckingLagMillis() {
+            return lastCheckingLagMillis;
+        }
+
+        @Override
+        public int getQueueSize() {
+            return alertCheckingExecutor.getQueue().size();
+        }
+
+        @Override
+        public int getActiveCount() {
+            return alertCheckingExecutor.getActiveCount();
+        }
+    }
+
+    public interface AlertCheckingMXBean {
+
+        // time from when alert checking was requested until it completed, for the most recently
+        // completed group of alerts
+        long getLastCheckingLagMillis();
+        int getQueueSize();
+        int getActiveCount();
+    }
 }
@@ -168,7 +168,8 @@ public class CentralModule {
                     repos.getTriggeredAlertDao(), repos.getAggregateDao(), repos.getGaugeValueDao(),
                     rollupLevelService, new MailService(), httpClient);
             centralAlertingService = new CentralAlertingService(repos.getConfigRepository(),
-                    repos.getHeartbeatDao(), alertingService);
+                    repos.getHeartbeatDao(), repos.getAlertWindowDao(), repos.getAggregateDao(),
+                    repos.getGaugeValueDao(), alertingService, clock);
 
             grpcServer = new GrpcServer(centralConfig.grpcBindAddress(), centralConfig.grpcPort(),
                     repos.getAgentRollupDao(), repos.getAgentConfigDao(), repos.getAggregateDao(),
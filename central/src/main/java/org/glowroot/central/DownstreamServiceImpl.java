@@ -75,6 +75,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogramRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogramResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HelloAck;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.IncrementalThreadDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.JstackRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.JstackResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
@@ -94,9 +95,11 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.SystemPropertiesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpResponse;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -106,6 +109,11 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceImpl.class);
 
+    // large responses (e.g. heap histograms with tens of thousands of classes) are split by the
+    // agent into chunks of about this size, so that no single message on the downstream stream
+    // delays other responses for long or gets close to the grpc max message size
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+
     private final AgentRollupDao agentRollupDao;
 
     private final DistributedExecutionMap<String, ConnectedAgent> connectedAgents;
@@ -157,10 +165,9 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return false;
     }
 
-    ThreadDump threadDump(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
-                .setThreadDumpRequest(ThreadDumpRequest.getDefaultInstance())
-                .build());
+    ThreadDump threadDump(String agentId, int maxStackDepth) throws Exception {
+        AgentResponse responseWrapper =
+                runOnCluster(agentId, new ThreadDumpFunction(maxStackDepth));
         return responseWrapper.getThreadDumpResponse().getThreadDump();
     }
 
@@ -204,7 +211,8 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     HeapHistogram heapHistogram(String agentId) throws Exception {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
-                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder())
+                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder()
+                        .setMaxChunkBytes(MAX_CHUNK_BYTES))
                 .build());
         HeapHistogramResponse response = responseWrapper.getHeapHistogramResponse();
         if (response.getUnavailableDueToRunningInJre()) {
@@ -227,7 +235,8 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
                 .setMbeanDumpRequest(MBeanDumpRequest.newBuilder()
                         .setKind(mbeanDumpKind)
-                        .addAllObjectName(objectNames))
+                        .addAllObjectName(objectNames)
+                        .setMaxChunkBytes(MAX_CHUNK_BYTES))
                 .build());
         return responseWrapper.getMbeanDumpResponse().getMbeanDump();
     }
@@ -387,12 +396,17 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     private AgentResponse runOnCluster(String agentId, CentralRequest centralRequest)
             throws Exception {
+        return runOnCluster(agentId, new SendDownstreamFunction(centralRequest));
+    }
+
+    private AgentResponse runOnCluster(String agentId,
+            SerializableFunction<ConnectedAgent, AgentResult> function) throws Exception {
         // retry up to 5 seconds on shutting-down response to give agent time to reconnect to
         // another cluster node
         Stopwatch stopwatch = Stopwatch.createStarted();
         while (stopwatch.elapsed(SECONDS) < 5) {
             java.util.Optional<AgentResult> optional =
-                    connectedAgents.execute(agentId, new SendDownstreamFunction(centralRequest));
+                    connectedAgents.execute(agentId, function);
             if (!optional.isPresent()) {
                 throw new AgentNotConnectedException();
             }
@@ -433,10 +447,23 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                         .expireAfterWrite(1, HOURS)
                         .build();
 
+        // requests that timed out (or were interrupted) waiting for the response, so that the
+        // remaining chunks of their responses can be ignored quietly when they arrive late (the
+        // value is whether a late chunk has already been logged)
+        private final com.google.common.cache.Cache<Long, Boolean> abandonedRequestIds =
+                CacheBuilder.newBuilder()
+                        .expireAfterWrite(1, HOURS)
+                        .build();
+
         private volatile @MonotonicNonNull String agentId;
 
         private final StreamObserver<CentralRequest> requestObserver;
 
+        // the agent sends thread dumps as changes since the prior thread dump sent over the same
+        // connection, so the state needed to reconstruct the full thread dump lives here (and is
+        // discarded along with the connection)
+        private final ThreadDumpAssembler threadDumpAssembler = new ThreadDumpAssembler();
+
         private ConnectedAgent(StreamObserver<CentralRequest> requestObserver) {
             this.requestObserver = requestObserver;
         }
@@ -461,14 +488,31 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
             long requestId = value.getRequestId();
             ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
-            responseHolders.invalidate(requestId);
             if (responseHolder == null) {
-                logger.error("no response holder for request id: {}", requestId);
+                Boolean lateChunkLogged = abandonedRequestIds.getIfPresent(requestId);
+                if (lateChunkLogged == null) {
+                    logger.error("no response holder for request id: {}", requestId);
+                    return;
+                }
+                if (!lateChunkLogged) {
+                    logger.debug("{} - ignoring late response for abandoned request id: {}",
+                            getDisplayForLogging(agentId), requestId);
+                    abandonedRequestIds.put(requestId, true);
+                }
+                if (!value.getMoreChunks()) {
+                    abandonedRequestIds.invalidate(requestId);
+                }
+                return;
+            }
+            if (value.getMoreChunks()) {
+                responseHolder.addChunk(value);
                 return;
             }
+            responseHolders.invalidate(requestId);
+            AgentResponse response = responseHolder.mergeChunks(value);
             try {
                 // this shouldn't timeout since it is the other side of the exchange that is waiting
-                responseHolder.response.exchange(value, 1, MINUTES);
+                responseHolder.response.exchange(response, 1, MINUTES);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
@@ -520,12 +564,13 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                         .shuttingDown(true)
                         .build();
             }
+            long requestId = nextRequestId.getAndIncrement();
             try {
                 CentralRequest request = CentralRequest.newBuilder(requestWithoutRequestId)
-                        .setRequestId(nextRequestId.getAndIncrement())
+                        .setRequestId(requestId)
                         .build();
                 ResponseHolder responseHolder = new ResponseHolder();
-                responseHolders.put(request.getRequestId(), responseHolder);
+                responseHolders.put(requestId, responseHolder);
                 // synchronization required since individual StreamObservers are not thread-safe
                 synchronized (requestObserver) {
                     requestObserver.onNext(request);
@@ -543,10 +588,12 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                         .build();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                abandon(requestId);
                 return ImmutableAgentResult.builder()
                         .interrupted(true)
                         .build();
             } catch (TimeoutException e) {
+                abandon(requestId);
                 return ImmutableAgentResult.builder()
                         .timeout(true)
                         .build();
@@ -555,6 +602,43 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
         }
 
+        // discards the response holder along with any chunks buffered so far
+        private void abandon(long requestId) {
+            abandonedRequestIds.put(requestId, false);
+            responseHolders.invalidate(requestId);
+        }
+
+        private AgentResult threadDump(int maxStackDepth) {
+            synchronized (threadDumpAssembler) {
+                AgentResult result = sendDownstream(
+                        createThreadDumpRequest(threadDumpAssembler.getVersion(), maxStackDepth));
+                IncrementalThreadDump incrementalThreadDump = getIncrementalThreadDump(result);
+                if (incrementalThreadDump == null) {
+                    // older agents ignore the incremental flag and send the full thread dump
+                    return result;
+                }
+                long baseVersion = incrementalThreadDump.getBaseVersion();
+                if (baseVersion != 0 && baseVersion != threadDumpAssembler.getVersion()) {
+                    // this is not expected since the agent falls back to a full thread dump when
+                    // the requested base version does not match, but just in case
+                    result = sendDownstream(createThreadDumpRequest(0, maxStackDepth));
+                    incrementalThreadDump = getIncrementalThreadDump(result);
+                    if (incrementalThreadDump == null) {
+                        return result;
+                    }
+                }
+                ThreadDump threadDump = threadDumpAssembler.apply(incrementalThreadDump);
+                AgentResponse response = checkNotNull(result.value().orNull());
+                return ImmutableAgentResult.builder()
+                        .value(AgentResponse.newBuilder()
+                                .setRequestId(response.getRequestId())
+                                .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
+                                        .setThreadDump(threadDump))
+                                .build())
+                        .build();
+            }
+        }
+
         private String getDisplayForLogging(String agentRollupId) {
             try {
                 return agentRollupDao.readAgentRollupDisplay(agentRollupId);
@@ -565,6 +649,31 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    private static CentralRequest createThreadDumpRequest(long baseVersion, int maxStackDepth) {
+        return CentralRequest.newBuilder()
+                .setThreadDumpRequest(ThreadDumpRequest.newBuilder()
+                        .setMaxStackDepth(maxStackDepth)
+                        .setIncremental(true)
+                        .setBaseVersion(baseVersion))
+                .build();
+    }
+
+    private static @Nullable IncrementalThreadDump getIncrementalThreadDump(AgentResult result) {
+        Optional<AgentResponse> value = result.value();
+        if (!value.isPresent()) {
+            return null;
+        }
+        AgentResponse response = value.get();
+        if (response.getMessageCase() != AgentResponse.MessageCase.THREAD_DUMP_RESPONSE) {
+            return null;
+        }
+        ThreadDumpResponse threadDumpResponse = response.getThreadDumpResponse();
+        if (!threadDumpResponse.hasIncrementalThreadDump()) {
+            return null;
+        }
+        return threadDumpResponse.getIncrementalThreadDump();
+    }
+
     @Value.Immutable
     @Serial.Structural
     interface AgentResult extends Serializable {
@@ -588,7 +697,30 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     }
 
     private static class ResponseHolder {
+
         private final Exchanger<AgentResponse> response = new Exchanger<>();
+
+        // chunks are received on the grpc stream observer thread, so no synchronization needed
+        private @Nullable AgentResponse.Builder chunks;
+
+        private void addChunk(AgentResponse chunk) {
+            if (chunks == null) {
+                chunks = chunk.toBuilder();
+            } else {
+                chunks.mergeFrom(chunk);
+            }
+        }
+
+        private AgentResponse mergeChunks(AgentResponse lastChunk) {
+            if (chunks == null) {
+                return lastChunk;
+            }
+            AgentResponse merged = chunks.mergeFrom(lastChunk)
+                    .setMoreChunks(false)
+                    .build();
+            chunks = null;
+            return merged;
+        }
     }
 
     @SuppressWarnings("serial")
@@ -627,4 +759,24 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             return connectedAgent.sendDownstream(centralRequest);
         }
     }
+
+    // using named class instead of lambda to avoid "Invalid lambda deserialization" when one node
+    // is running with this class compiled by eclipse and one node is running with this class
+    // compiled by javac, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=516620
+    private static class ThreadDumpFunction
+            implements SerializableFunction<ConnectedAgent, AgentResult> {
+
+        private static final long serialVersionUID = 0L;
+
+        private final int maxStackDepth;
+
+        private ThreadDumpFunction(int maxStackDepth) {
+            this.maxStackDepth = maxStackDepth;
+        }
+
+        @Override
+        public AgentResult apply(ConnectedAgent connectedAgent) {
+            return connectedAgent.threadDump(maxStackDepth);
+        }
+    }
 }
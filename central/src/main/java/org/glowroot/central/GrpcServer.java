@@ -23,10 +23,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import io.grpc.Status;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -36,6 +39,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.AggregateDictionaries.StreamDecoder;
 import org.glowroot.central.repo.AgentConfigDao;
 import org.glowroot.central.repo.AgentRollupDao;
 import org.glowroot.central.repo.AggregateDao;
@@ -97,6 +101,8 @@ class GrpcServer {
 
     private final DownstreamServiceImpl downstreamService;
 
+    private final AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+
     private final ServerImpl server;
 
     private volatile long currentMinute;
@@ -187,7 +193,8 @@ class GrpcServer {
             logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                     request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
             InitResponse.Builder response = InitResponse.newBuilder()
-                    .setGlowrootCentralVersion(version);
+                    .setGlowrootCentralVersion(version)
+                    .setAggregateDictionarySupported(true);
             if (!updatedAgentConfig.equals(request.getAgentConfig())) {
                 response.setAgentConfig(updatedAgentConfig);
             }
@@ -204,18 +211,43 @@ class GrpcServer {
                 private List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
                 private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap =
                         Maps.newHashMap();
+                private @Nullable StreamDecoder streamDecoder;
+                private boolean unknownDictionary;
 
                 @Override
                 public void onNext(AggregateStreamMessage value) {
+                    if (unknownDictionary) {
+                        return;
+                    }
                     switch (value.getMessageCase()) {
                         case STREAM_HEADER:
                             streamHeader = value.getStreamHeader();
+                            if (!streamHeader.getDictionaryId().isEmpty()) {
+                                streamDecoder =
+                                        aggregateDictionaries.newStreamDecoder(streamHeader);
+                                if (streamDecoder == null) {
+                                    // reject right away, instead of after receiving the rest of
+                                    // the stream, agent will retry with a dictionary snapshot
+                                    logger.debug("{} - aggregate dictionary not found",
+                                            getDisplayForLogging(streamHeader.getAgentId()));
+                                    unknownDictionary = true;
+                                    responseObserver.onError(Status.FAILED_PRECONDITION
+                                            .withDescription("Aggregate dictionary not found")
+                                            .asRuntimeException());
+                                }
+                            }
                             break;
                         case SHARED_QUERY_TEXT:
                             sharedQueryTexts.add(value.getSharedQueryText());
                             break;
+                        case DICTIONARY_ENTRY:
+                            checkNotNull(streamDecoder).addEntry(value.getDictionaryEntry());
+                            break;
                         case OVERALL_AGGREGATE:
                             OverallAggregate overallAggregate = value.getOverallAggregate();
+                            if (streamDecoder != null) {
+                                overallAggregate = streamDecoder.decode(overallAggregate);
+                            }
                             String transactionType = overallAggregate.getTransactionType();
                             aggregatesByTypeMap.put(transactionType,
                                     OldAggregatesByType.newBuilder()
@@ -225,6 +257,9 @@ class GrpcServer {
                         case TRANSACTION_AGGREGATE:
                             TransactionAggregate transactionAggregate =
                                     value.getTransactionAggregate();
+                            if (streamDecoder != null) {
+                                transactionAggregate = streamDecoder.decode(transactionAggregate);
+                            }
                             OldAggregatesByType.Builder builder = checkNotNull(aggregatesByTypeMap
                                     .get(transactionAggregate.getTransactionType()));
                             builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
@@ -255,14 +290,25 @@ class GrpcServer {
                 @Override
                 public void onCompleted() {
                     checkNotNull(streamHeader);
+                    if (unknownDictionary) {
+                        // already rejected
+                        return;
+                    }
                     List<OldAggregatesByType> aggregatesByTypeList = Lists.newArrayList();
                     for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap
                             .values()) {
                         aggregatesByTypeList.add(aggregatesByType.build());
                     }
-                    collectAggregatesInternal(streamHeader.getAgentId(),
-                            streamHeader.getCaptureTime(),
-                            sharedQueryTexts, aggregatesByTypeList, responseObserver);
+                    if (streamDecoder == null) {
+                        collectAggregatesInternal(streamHeader.getAgentId(),
+                                streamHeader.getCaptureTime(), sharedQueryTexts,
+                                aggregatesByTypeList, null, responseObserver);
+                    } else {
+                        collectAggregatesInternal(streamHeader.getAgentId(),
+                                streamHeader.getCaptureTime(),
+                                streamDecoder.getSharedQueryTexts(), aggregatesByTypeList,
+                                streamDecoder, responseObserver);
+                    }
                 }
             };
         }
@@ -287,12 +333,13 @@ class GrpcServer {
                 }
             }
             collectAggregatesInternal(request.getAgentId(), request.getCaptureTime(),
-                    sharedQueryTexts, request.getAggregatesByTypeList(), responseObserver);
+                    sharedQueryTexts, request.getAggregatesByTypeList(), null, responseObserver);
         }
 
         private void collectAggregatesInternal(String agentId, long captureTime,
                 List<Aggregate.SharedQueryText> sharedQueryTexts,
                 List<OldAggregatesByType> aggregatesByTypeList,
+                @Nullable StreamDecoder streamDecoder,
                 StreamObserver<AggregateResponseMessage> responseObserver) {
             if (!aggregatesByTypeList.isEmpty()) {
                 try {
@@ -313,10 +360,14 @@ class GrpcServer {
                 return;
             }
             centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
-            centralAlertingService.checkAggregateAlertsAsync(agentId, agentDisplay, captureTime);
-            responseObserver.onNext(AggregateResponseMessage.newBuilder()
-                    .setNextDelayMillis(getNextDelayMillis())
-                    .build());
+            centralAlertingService.checkAggregateAlertsAsync(agentId, agentDisplay, captureTime,
+                    aggregatesByTypeList);
+            AggregateResponseMessage.Builder response = AggregateResponseMessage.newBuilder()
+                    .setNextDelayMillis(getNextDelayMillis());
+            if (streamDecoder != null) {
+                response.setDictionarySize(streamDecoder.commit());
+            }
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
 
@@ -365,7 +416,7 @@ class GrpcServer {
             }
             centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
             centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(agentId, agentDisplay,
-                    maxCaptureTime);
+                    maxCaptureTime, request.getGaugeValuesList());
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
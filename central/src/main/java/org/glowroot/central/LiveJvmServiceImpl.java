@@ -41,8 +41,8 @@ class LiveJvmServiceImpl implements LiveJvmService {
     }
 
     @Override
-    public ThreadDump getThreadDump(String agentId) throws Exception {
-        return downstreamService.threadDump(agentId);
+    public ThreadDump getThreadDump(String agentId, int maxStackDepth) throws Exception {
+        return downstreamService.threadDump(agentId, maxStackDepth);
     }
 
     @Override
@@ -180,7 +180,7 @@ class RollupService implements Runnable {
 
     private void checkAggregateAndGaugeAndHeartbeatAlertsAsync(AgentRollup agentRollup) {
         centralAlertingService.checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup.id(),
-                agentRollup.display(), clock.currentTimeMillis());
+                agentRollup.display(), clock.currentTimeMillis(), agentRollup.agent());
     }
 
     @VisibleForTesting
@@ -22,20 +22,26 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
-import com.google.common.base.Stopwatch;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.machinepublishers.jbrowserdriver.JBrowserDriver;
@@ -47,6 +53,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -95,6 +102,7 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.SyntheticMo
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class SyntheticMonitorService implements Runnable {
@@ -103,6 +111,18 @@ class SyntheticMonitorService implements Runnable {
 
     private static final Pattern encryptedPattern = Pattern.compile("\"ENCRYPTED:([^\"]*)\"");
 
+    private static final int CHECK_THREADS = 8;
+    private static final int PING_EVENT_LOOP_THREADS = 2;
+    private static final int SYNTHETIC_USER_TEST_THREADS = 4;
+    // synthetic user test threads that are still running this long after being cancelled are
+    // abandoned and replaced, up to this many at a time
+    private static final long ABANDON_SYNTHETIC_USER_TEST_THREAD_MILLIS = 10000;
+    private static final int MAX_ABANDONED_SYNTHETIC_USER_TEST_THREADS = 16;
+
+    // synthetic monitors are run once a minute, so a check that is still running after this is
+    // cancelled (unless it has a larger alert threshold)
+    private static final long MAX_CHECK_MILLIS = 60000;
+
     private static final RequestHeaders REQUEST_HEADERS;
 
     static {
@@ -133,14 +153,21 @@ class SyntheticMonitorService implements Runnable {
     private final Ticker ticker;
     private final Clock clock;
 
+    // completions are handled here (storing results and sending alerts), not on the netty event
+    // loop or on the java test workers
     private final ExecutorService checkExecutor;
+    // used to spread out checks over the minute and to enforce timeouts, not for running checks
+    private final ScheduledExecutorService checkScheduler;
     private final ExecutorService mainLoopExecutor;
 
     private final Set<SyntheticMonitorUniqueKey> activeSyntheticMonitors =
             Sets.newConcurrentHashSet();
 
-    private final ListeningExecutorService syntheticUserTestExecutor =
-            MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    // pings are fully asynchronous, so a small shared event loop can handle many concurrent pings
+    private final EventLoopGroup pingEventLoopGroup =
+            new NioEventLoopGroup(PING_EVENT_LOOP_THREADS);
+
+    private final SyntheticUserTestExecutor syntheticUserTestExecutor;
 
     private volatile boolean closed;
 
@@ -154,7 +181,11 @@ class SyntheticMonitorService implements Runnable {
         this.syntheticResponseDao = syntheticResponseDao;
         this.ticker = ticker;
         this.clock = clock;
-        checkExecutor = Executors.newCachedThreadPool();
+        checkExecutor = Executors.newFixedThreadPool(CHECK_THREADS);
+        checkScheduler = Executors.newSingleThreadScheduledExecutor();
+        syntheticUserTestExecutor = new SyntheticUserTestExecutor(SYNTHETIC_USER_TEST_THREADS,
+                MAX_ABANDONED_SYNTHETIC_USER_TEST_THREADS,
+                ABANDON_SYNTHETIC_USER_TEST_THREAD_MILLIS, checkScheduler);
         mainLoopExecutor = Executors.newSingleThreadExecutor();
         mainLoopExecutor.execute(castInitialized(this));
     }
@@ -163,7 +194,6 @@ class SyntheticMonitorService implements Runnable {
     public void run() {
         while (!closed) {
             try {
-                // FIXME spread out agent checks over the minute
                 Thread.sleep(60000);
                 runInternal();
             } catch (InterruptedException e) {
@@ -176,12 +206,22 @@ class SyntheticMonitorService implements Runnable {
 
     void close() throws InterruptedException {
         closed = true;
+        checkScheduler.shutdownNow();
+        // shutdownNow() is needed here to send interrupt to synthetic user test threads
+        syntheticUserTestExecutor.shutdownNow();
         // shutdownNow() is needed here to send interrupt to SyntheticMonitorService check threads
         checkExecutor.shutdownNow();
+        pingEventLoopGroup.shutdownGracefully(0, 0, SECONDS);
         if (!checkExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException(
                     "Timed out waiting for synthetic monitor check threads to terminate");
         }
+        // abandoned synthetic user test threads (which do not respond to interrupt) are not waited
+        // on, and are daemon threads so they do not prevent jvm shutdown
+        if (!syntheticUserTestExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for synthetic user test threads to terminate");
+        }
         // shutdownNow() is needed here to send interrupt to SyntheticMonitorService main thread
         mainLoopExecutor.shutdownNow();
         if (!mainLoopExecutor.awaitTermination(10, SECONDS)) {
@@ -233,29 +273,36 @@ class SyntheticMonitorService implements Runnable {
                 logger.error(e.getMessage(), e);
                 continue;
             }
-            checkExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        switch (syntheticMonitorConfig.getKind()) {
-                            case PING:
-                                runPing(agentRollup, syntheticMonitorConfig, alertConfigs);
-                                break;
-                            case JAVA:
-                                runJava(agentRollup, syntheticMonitorConfig, alertConfigs);
-                                break;
-                            default:
-                                throw new IllegalStateException("Unexpected synthetic kind: "
-                                        + syntheticMonitorConfig.getKind());
-                        }
-                    } catch (InterruptedException e) {
-                        // probably shutdown requested
-                        logger.debug(e.getMessage(), e);
-                    } catch (Exception e) {
-                        logger.error("{} - {}", agentRollup.display(), e.getMessage(), e);
-                    }
-                }
-            });
+            // spread out the checks over the minute so they don't all fire at the same time, each
+            // synthetic monitor keeps the same offset so that it is still checked once a minute
+            long delayMillis = getCheckOffsetMillis(agentRollup.id(),
+                    syntheticMonitorConfig.getId());
+            checkScheduler.schedule(() -> checkExecutor.execute(
+                    () -> check(agentRollup, syntheticMonitorConfig, alertConfigs)),
+                    delayMillis, MILLISECONDS);
+        }
+    }
+
+    @VisibleForTesting
+    void check(AgentRollup agentRollup, SyntheticMonitorConfig syntheticMonitorConfig,
+            List<AlertConfig> alertConfigs) {
+        try {
+            switch (syntheticMonitorConfig.getKind()) {
+                case PING:
+                    runPing(agentRollup, syntheticMonitorConfig, alertConfigs);
+                    break;
+                case JAVA:
+                    runJava(agentRollup, syntheticMonitorConfig, alertConfigs);
+                    break;
+                default:
+                    throw new IllegalStateException(
+                            "Unexpected synthetic kind: " + syntheticMonitorConfig.getKind());
+            }
+        } catch (InterruptedException e) {
+            // probably shutdown requested
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.display(), e.getMessage(), e);
         }
     }
 
@@ -265,9 +312,12 @@ class SyntheticMonitorService implements Runnable {
     private void runPing(AgentRollup agentRollup, SyntheticMonitorConfig syntheticMonitorConfig,
             List<AlertConfig> alertConfigs) throws Exception {
         runSyntheticMonitor(agentRollup, syntheticMonitorConfig, alertConfigs,
-                new Callable<ListenableFuture<?>>() {
+                new SyntheticCheck() {
                     @Override
-                    public ListenableFuture<?> call() throws Exception {
+                    public ListenableFuture<?> start(SettableFuture<Long> startTick)
+                            throws Exception {
+                        // pings are not queued, so they start right away
+                        startTick.set(ticker.read());
                         return runPing(syntheticMonitorConfig.getPingUrl());
                     }
                 });
@@ -288,35 +338,39 @@ class SyntheticMonitorService implements Runnable {
         }
         matcher.appendTail(sb);
         runSyntheticMonitor(agentRollup, syntheticMonitorConfig, alertConfigs,
-                new Callable<ListenableFuture<?>>() {
+                new SyntheticCheck() {
                     @Override
-                    public ListenableFuture<?> call() throws Exception {
-                        return runJava(sb.toString());
+                    public ListenableFuture<?> start(SettableFuture<Long> startTick) {
+                        return runJava(sb.toString(), startTick);
                     }
                 });
     }
 
+    // this does not block waiting for the synthetic monitor to complete, alerts are checked either
+    // on completion or on reaching the largest alert threshold, whichever comes first
     private void runSyntheticMonitor(AgentRollup agentRollup,
             SyntheticMonitorConfig syntheticMonitorConfig, List<AlertConfig> alertConfigs,
-            Callable<ListenableFuture<?>> callable) throws Exception {
+            SyntheticCheck check) throws Exception {
         final SyntheticMonitorUniqueKey uniqueKey =
                 ImmutableSyntheticMonitorUniqueKey.of(agentRollup.id(),
                         syntheticMonitorConfig.getId());
         if (!activeSyntheticMonitors.add(uniqueKey)) {
             return;
         }
-        long startTime = ticker.read();
-        Stopwatch stopwatch = Stopwatch.createStarted();
+        // set by the check when it actually starts running, which for java tests can be after
+        // waiting for a synthetic user test thread, so that time spent waiting does not count
+        // towards the check duration or its timeouts
+        SettableFuture<Long> startTick = SettableFuture.create();
         final ListenableFuture<?> future;
         try {
-            future = callable.call();
+            future = check.start(startTick);
         } catch (InterruptedException e) {
             activeSyntheticMonitors.remove(uniqueKey);
             throw e;
         } catch (Exception e) {
             logger.debug(e.getMessage(), e);
             activeSyntheticMonitors.remove(uniqueKey);
-            long durationNanos = ticker.read() - startTime;
+            long durationNanos = getDurationNanos(startTick);
             long captureTime = clock.currentTimeMillis();
             syntheticResponseDao.store(agentRollup.id(), syntheticMonitorConfig.getId(),
                     captureTime, durationNanos, true);
@@ -324,22 +378,55 @@ class SyntheticMonitorService implements Runnable {
                     e.getMessage(), captureTime);
             return;
         }
+        int timeoutMillis = 0;
+        for (AlertConfig alertConfig : alertConfigs) {
+            timeoutMillis = Math.max(timeoutMillis,
+                    alertConfig.getCondition().getSyntheticMonitorCondition().getThresholdMillis());
+        }
+        int timeoutMillisEffectivelyFinal = timeoutMillis;
+        AtomicBoolean alertsChecked = new AtomicBoolean();
+        AtomicReference<ScheduledFuture<?>> alertTimeoutFuture = new AtomicReference<>();
+        AtomicReference<ScheduledFuture<?>> cancelFuture = new AtomicReference<>();
+        // the timeouts are started when the check starts running
+        startTick.addListener(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            if (!alertConfigs.isEmpty()) {
+                alertTimeoutFuture.set(checkScheduler.schedule(() -> checkExecutor.execute(() -> {
+                    if (alertsChecked.compareAndSet(false, true)) {
+                        checkAlerts(agentRollup, syntheticMonitorConfig, alertConfigs,
+                                getDurationNanos(startTick), false, null);
+                    }
+                }), timeoutMillisEffectivelyFinal, MILLISECONDS));
+            }
+            // the check itself is cancelled if it is still running after this
+            cancelFuture.set(checkScheduler.schedule(() -> future.cancel(true),
+                    Math.max(timeoutMillisEffectivelyFinal, MAX_CHECK_MILLIS), MILLISECONDS));
+        }, MoreExecutors.directExecutor());
         future.addListener(new Runnable() {
             @Override
             public void run() {
                 // remove "lock" after completion, not just after possible timeout
                 activeSyntheticMonitors.remove(uniqueKey);
-                long durationNanos = ticker.read() - startTime;
+                cancel(cancelFuture.get());
+                long durationNanos = getDurationNanos(startTick);
                 long captureTime = clock.currentTimeMillis();
                 boolean error = false;
+                String errorMessage = null;
                 try {
                     future.get();
                 } catch (InterruptedException e) {
                     // probably shutdown requested
                     logger.debug(e.getMessage(), e);
                     return;
+                } catch (CancellationException e) {
+                    logger.debug(e.getMessage(), e);
+                    error = true;
                 } catch (ExecutionException e) {
+                    logger.debug(e.getMessage(), e);
                     error = true;
+                    errorMessage = getRootCause(e).getMessage();
                 }
                 try {
                     syntheticResponseDao.store(agentRollup.id(), syntheticMonitorConfig.getId(),
@@ -351,42 +438,48 @@ class SyntheticMonitorService implements Runnable {
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
                 }
+                if (!alertConfigs.isEmpty() && alertsChecked.compareAndSet(false, true)) {
+                    cancel(alertTimeoutFuture.get());
+                    checkAlerts(agentRollup, syntheticMonitorConfig, alertConfigs, durationNanos,
+                            !error, errorMessage);
+                }
             }
-        }, MoreExecutors.directExecutor());
-        int timeoutMillis = Integer.MAX_VALUE;
-        for (AlertConfig alertConfig : alertConfigs) {
-            timeoutMillis = Math.max(timeoutMillis,
-                    alertConfig.getCondition().getSyntheticMonitorCondition().getThresholdMillis());
-        }
-        boolean success;
-        String errorMessage;
-        try {
-            future.get(timeoutMillis, MILLISECONDS);
-            success = true;
-            errorMessage = null;
-        } catch (TimeoutException e) {
-            logger.debug(e.getMessage(), e);
-            success = false;
-            errorMessage = null;
-        } catch (ExecutionException e) {
-            logger.debug(e.getMessage(), e);
-            success = false;
-            errorMessage = getRootCause(e).getMessage();
+        }, checkExecutor);
+    }
+
+    private long getDurationNanos(SettableFuture<Long> startTick) {
+        if (!startTick.isDone()) {
+            // never started
+            return 0;
         }
+        return ticker.read() - Futures.getUnchecked(startTick);
+    }
+
+    private void checkAlerts(AgentRollup agentRollup,
+            SyntheticMonitorConfig syntheticMonitorConfig, List<AlertConfig> alertConfigs,
+            long durationNanos, boolean success, @Nullable String errorMessage) {
         long captureTime = clock.currentTimeMillis();
-        if (success) {
-            for (AlertConfig alertConfig : alertConfigs) {
-                AlertCondition alertCondition = alertConfig.getCondition();
-                SyntheticMonitorCondition condition = alertCondition.getSyntheticMonitorCondition();
-                boolean currentlyTriggered =
-                        stopwatch.elapsed(MILLISECONDS) > condition.getThresholdMillis();
-                sendAlertIfStatusChanged(agentRollup, syntheticMonitorConfig, alertCondition,
-                        condition, alertConfig.getNotification(), captureTime, currentlyTriggered,
-                        null);
+        try {
+            if (success) {
+                for (AlertConfig alertConfig : alertConfigs) {
+                    AlertCondition alertCondition = alertConfig.getCondition();
+                    SyntheticMonitorCondition condition =
+                            alertCondition.getSyntheticMonitorCondition();
+                    boolean currentlyTriggered = NANOSECONDS
+                            .toMillis(durationNanos) > condition.getThresholdMillis();
+                    sendAlertIfStatusChanged(agentRollup, syntheticMonitorConfig,
+                            alertCondition, condition, alertConfig.getNotification(),
+                            captureTime, currentlyTriggered, null);
+                }
+            } else {
+                sendAlertOnErrorIfStatusChanged(agentRollup, syntheticMonitorConfig,
+                        alertConfigs, errorMessage, captureTime);
             }
-        } else {
-            sendAlertOnErrorIfStatusChanged(agentRollup, syntheticMonitorConfig, alertConfigs,
-                    errorMessage, captureTime);
+        } catch (InterruptedException e) {
+            // probably shutdown requested
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.display(), e.getMessage(), e);
         }
     }
 
@@ -418,10 +511,12 @@ class SyntheticMonitorService implements Runnable {
         }
     }
 
-    private ListenableFuture<?> runJava(final String javaSource) {
+    private ListenableFuture<?> runJava(final String javaSource,
+            final SettableFuture<Long> startTick) {
         return syntheticUserTestExecutor.submit(new Callable</*@Nullable*/ Void>() {
             @Override
             public @Nullable Void call() throws Exception {
+                startTick.set(ticker.read());
                 Class<?> syntheticUserTestClass = Compilations.compile(javaSource);
                 // validation for default constructor and test method occurs on save
                 Constructor<?> defaultConstructor = syntheticUserTestClass.getConstructor();
@@ -473,12 +568,22 @@ class SyntheticMonitorService implements Runnable {
         }
     }
 
+    @VisibleForTesting
+    static long getCheckOffsetMillis(String agentRollupId, String syntheticMonitorId) {
+        int hash = Hashing.murmur3_32().newHasher()
+                .putString(agentRollupId, Charsets.UTF_8)
+                .putString(syntheticMonitorId, Charsets.UTF_8)
+                .hash()
+                .asInt();
+        return (hash & Integer.MAX_VALUE) % 60000;
+    }
+
     @SuppressWarnings("return.type.incompatible")
     private static <T> /*@Initialized*/ T castInitialized(/*@UnderInitialization*/ T obj) {
         return obj;
     }
 
-    private static ListenableFuture<HttpResponseStatus> runPing(String url) throws Exception {
+    private ListenableFuture<HttpResponseStatus> runPing(String url) throws Exception {
         URI uri = new URI(url);
         String scheme = uri.getScheme();
         if (scheme == null) {
@@ -495,11 +600,11 @@ class SyntheticMonitorService implements Runnable {
         } else {
             port = uri.getPort();
         }
-        final EventLoopGroup group = new NioEventLoopGroup();
         final HttpClientHandler httpClientHandler = new HttpClientHandler();
         Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(group)
+        bootstrap.group(pingEventLoopGroup)
                 .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) MAX_CHECK_MILLIS)
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
@@ -527,6 +632,15 @@ class SyntheticMonitorService implements Runnable {
                 if (future.isSuccess()) {
                     ch.writeAndFlush(request);
                 }
+                // close the connection if the ping is cancelled (e.g. due to timeout)
+                settableFuture.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (settableFuture.isCancelled()) {
+                            ch.close();
+                        }
+                    }
+                }, MoreExecutors.directExecutor());
                 ch.closeFuture().addListener(new ChannelFutureListener() {
                     @Override
                     public void operationComplete(ChannelFuture future) {
@@ -541,7 +655,6 @@ class SyntheticMonitorService implements Runnable {
                         } else {
                             settableFuture.setException(future.cause());
                         }
-                        group.shutdownGracefully();
                     }
                 });
             }
@@ -549,6 +662,16 @@ class SyntheticMonitorService implements Runnable {
         return settableFuture;
     }
 
+    private static void cancel(@Nullable ScheduledFuture<?> scheduledFuture) {
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+        }
+    }
+
+    private interface SyntheticCheck {
+        ListenableFuture<?> start(SettableFuture<Long> startTick) throws Exception;
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface SyntheticMonitorUniqueKey {
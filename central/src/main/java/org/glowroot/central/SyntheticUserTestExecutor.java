@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// runs java synthetic user tests on a bounded pool of threads
+//
+// a test that is cancelled (e.g. due to timeout) but does not respond to interrupt would otherwise
+// hold on to its thread forever, so if it is still running after a grace period its thread is
+// abandoned, and the pool is grown by one thread to replace it (up to maxAbandonedThreads), and
+// shrunk back once the abandoned thread finally returns
+class SyntheticUserTestExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyntheticUserTestExecutor.class);
+
+    private final int threads;
+    private final int maxAbandonedThreads;
+    private final long abandonAfterMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final ThreadPoolExecutor threadPool;
+    private final ListeningExecutorService executor;
+
+    @GuardedBy("threadPool")
+    private int abandonedThreads;
+
+    SyntheticUserTestExecutor(int threads, int maxAbandonedThreads, long abandonAfterMillis,
+            ScheduledExecutorService scheduler) {
+        this.threads = threads;
+        this.maxAbandonedThreads = maxAbandonedThreads;
+        this.abandonAfterMillis = abandonAfterMillis;
+        this.scheduler = scheduler;
+        // daemon threads so that abandoned threads do not prevent jvm shutdown
+        threadPool = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Synthetic-User-Test-%d")
+                        .build());
+        executor = MoreExecutors.listeningDecorator(threadPool);
+    }
+
+    <T> ListenableFuture<T> submit(Callable<T> callable) {
+        TestRun<T> testRun = new TestRun<T>(callable);
+        ListenableFuture<T> future = executor.submit(testRun);
+        future.addListener(() -> {
+            if (future.isCancelled() && !scheduler.isShutdown()) {
+                scheduler.schedule(testRun::abandonIfStillRunning, abandonAfterMillis,
+                        MILLISECONDS);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    int getAbandonedThreadCount() {
+        synchronized (threadPool) {
+            return abandonedThreads;
+        }
+    }
+
+    void shutdownNow() {
+        threadPool.shutdownNow();
+    }
+
+    // abandoned threads are not waited on
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        while (threadPool.getActiveCount() > getAbandonedThreadCount()) {
+            if (System.nanoTime() - deadlineNanos > 0) {
+                return false;
+            }
+            MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+
+    private class TestRun<T> implements Callable<T> {
+
+        private final Callable<T> callable;
+
+        @GuardedBy("threadPool")
+        private @Nullable Thread runningThread;
+        @GuardedBy("threadPool")
+        private boolean abandoned;
+
+        private TestRun(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public T call() throws Exception {
+            synchronized (threadPool) {
+                runningThread = Thread.currentThread();
+            }
+            try {
+                return callable.call();
+            } finally {
+                synchronized (threadPool) {
+                    runningThread = null;
+                    if (abandoned) {
+                        abandonedThreads--;
+                        // shrinking core pool size first since it must not exceed max pool size
+                        threadPool.setCorePoolSize(threads + abandonedThreads);
+                        threadPool.setMaximumPoolSize(threads + abandonedThreads);
+                        logger.info("abandoned synthetic user test thread has finally returned:"
+                                + " {}", Thread.currentThread().getName());
+                    }
+                }
+            }
+        }
+
+        private void abandonIfStillRunning() {
+            synchronized (threadPool) {
+                Thread thread = runningThread;
+                if (thread == null || abandoned || threadPool.isShutdown()) {
+                    return;
+                }
+                if (abandonedThreads >= maxAbandonedThreads) {
+                    logger.error("synthetic user test thread {} is not responding to interrupt, and"
+                            + " not replacing it since there are already {} abandoned synthetic"
+                            + " user test threads", thread.getName(), abandonedThreads);
+                    return;
+                }
+                abandoned = true;
+                abandonedThreads++;
+                // growing max pool size first since core pool size must not exceed it
+                threadPool.setMaximumPoolSize(threads + abandonedThreads);
+                threadPool.setCorePoolSize(threads + abandonedThreads);
+                logger.warn("synthetic user test thread {} is still running {} milliseconds after"
+                        + " being cancelled, abandoning it and starting a replacement thread",
+                        thread.getName(), abandonAfterMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.IncrementalThreadDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+
+import static com.google.common.base.Preconditions.checkState;
+
+// applies incremental thread dumps received from a single agent connection, and assembles the full
+// thread dump that is returned to the UI
+//
+// not thread safe, callers must synchronize
+class ThreadDumpAssembler {
+
+    private long version;
+
+    private final List<ThreadDump.StackTraceElement> frames = Lists.newArrayList();
+    private final List<IncrementalThreadDump.Stack> stacks = Lists.newArrayList();
+    private final Map<Long, IncrementalThreadDump.Thread> threads = Maps.newHashMap();
+
+    long getVersion() {
+        return version;
+    }
+
+    ThreadDump apply(IncrementalThreadDump incrementalThreadDump) {
+        long baseVersion = incrementalThreadDump.getBaseVersion();
+        if (baseVersion == 0) {
+            frames.clear();
+            stacks.clear();
+            threads.clear();
+        } else {
+            checkState(baseVersion == version, "Unexpected base version: %s (expecting %s)",
+                    baseVersion, version);
+        }
+        frames.addAll(incrementalThreadDump.getNewFrameList());
+        stacks.addAll(incrementalThreadDump.getNewStackList());
+        for (long removedThreadId : incrementalThreadDump.getRemovedThreadIdList()) {
+            threads.remove(removedThreadId);
+        }
+        for (IncrementalThreadDump.Thread changedThread : incrementalThreadDump
+                .getChangedThreadList()) {
+            threads.put(changedThread.getId(), changedThread);
+        }
+        version = incrementalThreadDump.getVersion();
+
+        ThreadDump.Builder builder = ThreadDump.newBuilder();
+        Set<Long> matchedThreadIds = Sets.newHashSet();
+        for (IncrementalThreadDump.Transaction transaction : incrementalThreadDump
+                .getTransactionList()) {
+            ThreadDump.Transaction.Builder transactionBuilder = ThreadDump.Transaction.newBuilder()
+                    .setHeadline(transaction.getHeadline())
+                    .setTransactionType(transaction.getTransactionType())
+                    .setTransactionName(transaction.getTransactionName())
+                    .setTotalDurationNanos(transaction.getTotalDurationNanos())
+                    .setTraceId(transaction.getTraceId());
+            if (transaction.hasTotalCpuNanos()) {
+                transactionBuilder.setTotalCpuNanos(transaction.getTotalCpuNanos());
+            }
+            for (long threadId : transaction.getThreadIdList()) {
+                transactionBuilder.addThread(getThread(threadId));
+                matchedThreadIds.add(threadId);
+            }
+            builder.addTransaction(transactionBuilder);
+        }
+        long threadDumpingThreadId = incrementalThreadDump.getThreadDumpingThreadId();
+        List<IncrementalThreadDump.Thread> unmatchedThreads = Lists.newArrayList();
+        for (IncrementalThreadDump.Thread thread : threads.values()) {
+            long threadId = thread.getId();
+            if (threadId != threadDumpingThreadId && !matchedThreadIds.contains(threadId)) {
+                unmatchedThreads.add(thread);
+            }
+        }
+        // sort descending by thread id (same as jstack)
+        unmatchedThreads.sort(
+                Comparator.comparingLong(IncrementalThreadDump.Thread::getId).reversed());
+        for (IncrementalThreadDump.Thread unmatchedThread : unmatchedThreads) {
+            builder.addUnmatchedThread(toThreadDumpThread(unmatchedThread));
+        }
+        if (threads.containsKey(threadDumpingThreadId)) {
+            builder.setThreadDumpingThread(getThread(threadDumpingThreadId));
+        }
+        return builder.build();
+    }
+
+    private ThreadDump.Thread getThread(long threadId) {
+        IncrementalThreadDump.Thread thread = threads.get(threadId);
+        checkState(thread != null, "Unexpected thread id: %s", threadId);
+        return toThreadDumpThread(thread);
+    }
+
+    private ThreadDump.Thread toThreadDumpThread(IncrementalThreadDump.Thread thread) {
+        ThreadDump.Thread.Builder builder = ThreadDump.Thread.newBuilder()
+                .setName(thread.getName())
+                .setId(thread.getId())
+                .setState(thread.getState());
+        if (thread.hasLockInfo()) {
+            builder.setLockInfo(thread.getLockInfo());
+        }
+        if (thread.hasLockOwnerId()) {
+            builder.setLockOwnerId(thread.getLockOwnerId());
+        }
+        List<Integer> frameIndexes = stacks.get(thread.getStackIndex()).getFrameIndexList();
+        List<ThreadDump.StackTraceElement.Builder> stackTraceElements =
+                Lists.newArrayListWithCapacity(frameIndexes.size());
+        for (int frameIndex : frameIndexes) {
+            stackTraceElements.add(frames.get(frameIndex).toBuilder());
+        }
+        for (IncrementalThreadDump.LockedMonitor lockedMonitor : thread.getLockedMonitorList()) {
+            stackTraceElements.get(lockedMonitor.getStackDepth())
+                    .addMonitorInfo(lockedMonitor.getLockInfo());
+        }
+        for (ThreadDump.StackTraceElement.Builder stackTraceElement : stackTraceElements) {
+            builder.addStackTraceElement(stackTraceElement);
+        }
+        return builder.build();
+    }
+}
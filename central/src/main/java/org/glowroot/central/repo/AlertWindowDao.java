@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.Session;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// checkpoint of the sliding windows that metric alerts are evaluated against at ingest time, so
+// that windows are not lost on restart, or when an agent reconnects to a different central node
+//
+// windows are keyed by the metric condition stripped down to the data that the window holds (see
+// AlertWindows.getWindowKey()), so that changing an alert's threshold does not orphan its window
+public class AlertWindowDao {
+
+    static final int EXPIRATION_HOURS = 24;
+
+    // rows are retained a bit longer than the alert's time period to cover delayed reads
+    private static final int EXTRA_TTL_SECONDS = 300;
+
+    private final Session session;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+
+    AlertWindowDao(Session session) throws Exception {
+        this.session = session;
+
+        session.createTableWithTWCS("create table if not exists alert_window (agent_rollup_id"
+                + " varchar, window_key blob, capture_time timestamp, transaction_count"
+                + " bigint, error_count bigint, total_duration_nanos double,"
+                + " duration_nanos_histogram blob, gauge_value double, gauge_weight bigint,"
+                + " primary key ((agent_rollup_id, window_key), capture_time))",
+                EXPIRATION_HOURS);
+
+        insertPS = session.prepare("insert into alert_window (agent_rollup_id, window_key,"
+                + " capture_time, transaction_count, error_count, total_duration_nanos,"
+                + " duration_nanos_histogram, gauge_value, gauge_weight) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        readPS = session.prepare("select capture_time, transaction_count, error_count,"
+                + " total_duration_nanos, duration_nanos_histogram, gauge_value, gauge_weight"
+                + " from alert_window where agent_rollup_id = ? and window_key = ?"
+                + " and capture_time > ?");
+    }
+
+    public ResultSetFuture store(String agentRollupId, MetricCondition windowKey,
+            AlertWindowBucket bucket) throws Exception {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setBytes(i++, ByteBuffer.wrap(windowKey.toByteArray()));
+        boundStatement.setTimestamp(i++, new Date(bucket.captureTime()));
+        boundStatement.setLong(i++, bucket.transactionCount());
+        boundStatement.setLong(i++, bucket.errorCount());
+        boundStatement.setDouble(i++, bucket.totalDurationNanos());
+        Aggregate.Histogram durationNanosHistogram = bucket.durationNanosHistogram();
+        if (durationNanosHistogram == null) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, ByteBuffer.wrap(durationNanosHistogram.toByteArray()));
+        }
+        boundStatement.setDouble(i++, bucket.gaugeValue());
+        boundStatement.setLong(i++, bucket.gaugeWeight());
+        boundStatement.setInt(i++, windowKey.getTimePeriodSeconds() + EXTRA_TTL_SECONDS);
+        return session.executeAsync(boundStatement);
+    }
+
+    // returns buckets with capture time greater than the given capture time
+    public List<AlertWindowBucket> read(String agentRollupId, MetricCondition windowKey,
+            long captureTimeFrom) throws Exception {
+        BoundStatement boundStatement = readPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setBytes(i++, ByteBuffer.wrap(windowKey.toByteArray()));
+        boundStatement.setTimestamp(i++, new Date(captureTimeFrom));
+        ResultSet results = session.execute(boundStatement);
+        List<AlertWindowBucket> buckets = Lists.newArrayList();
+        for (Row row : results) {
+            i = 0;
+            ImmutableAlertWindowBucket.Builder bucket = ImmutableAlertWindowBucket.builder()
+                    .captureTime(checkNotNull(row.getTimestamp(i++)).getTime())
+                    .transactionCount(row.getLong(i++))
+                    .errorCount(row.getLong(i++))
+                    .totalDurationNanos(row.getDouble(i++));
+            ByteBuffer bytes = row.getBytes(i++);
+            if (bytes != null) {
+                bucket.durationNanosHistogram(
+                        Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes)));
+            }
+            buckets.add(bucket.gaugeValue(row.getDouble(i++))
+                    .gaugeWeight(row.getLong(i++))
+                    .build());
+        }
+        return buckets;
+    }
+
+    // one capture time's worth of data for a single alert condition, either from an aggregate or
+    // from a gauge value
+    @Value.Immutable
+    public interface AlertWindowBucket {
+        long captureTime();
+        @Value.Default
+        default long transactionCount() {
+            return 0;
+        }
+        @Value.Default
+        default long errorCount() {
+            return 0;
+        }
+        @Value.Default
+        default double totalDurationNanos() {
+            return 0;
+        }
+        // only retained for percentile conditions
+        @Nullable
+        Aggregate.Histogram durationNanosHistogram();
+        @Value.Default
+        default double gaugeValue() {
+            return 0;
+        }
+        @Value.Default
+        default long gaugeWeight() {
+            return 0;
+        }
+    }
+}
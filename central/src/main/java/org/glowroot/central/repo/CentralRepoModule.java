@@ -45,6 +45,7 @@ public class CentralRepoModule {
     private final EnvironmentDao environmentDao;
     private final HeartbeatDao heartbeatDao;
     private final TriggeredAlertDao triggeredAlertDao;
+    private final AlertWindowDao alertWindowDao;
 
     public CentralRepoModule(ClusterManager clusterManager, Session session,
             KeyspaceMetadata keyspaceMetadata, String cassandraSymmetricEncryptionKey, Clock clock)
@@ -70,6 +71,7 @@ public class CentralRepoModule {
         environmentDao = new EnvironmentDao(session);
         heartbeatDao = new HeartbeatDao(session, agentRollupDao, clock);
         triggeredAlertDao = new TriggeredAlertDao(session);
+        alertWindowDao = new AlertWindowDao(session);
     }
 
     public boolean setupAdminUser(List<String> args) throws Exception {
@@ -137,4 +139,8 @@ public class CentralRepoModule {
     public TriggeredAlertDao getTriggeredAlertDao() {
         return triggeredAlertDao;
     }
+
+    public AlertWindowDao getAlertWindowDao() {
+        return alertWindowDao;
+    }
 }
@@ -1073,6 +1073,8 @@ public class SchemaUpgrade {
             return storageConfig.rollupExpirationHours().get(rollupLevel);
         } else if (tableName.equals("heartbeat")) {
             return HeartbeatDao.EXPIRATION_HOURS;
+        } else if (tableName.equals("alert_window")) {
+            return AlertWindowDao.EXPIRATION_HOURS;
         } else {
             logger.warn("unexpected table: {}", tableName);
             return -1;
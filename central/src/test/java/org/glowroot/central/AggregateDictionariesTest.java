@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.central.AggregateDictionaries.StreamDecoder;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateDictionaryEntry;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionariesTest {
+
+    @Test
+    public void shouldDecodeAcrossStreams() {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+        String longQueryText = "select " + Strings.repeat("x, ", 100) + "y from z";
+        StreamDecoder streamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 0));
+        streamDecoder.addEntry(text("Web"));
+        streamDecoder.addEntry(text("/abc"));
+        streamDecoder.addEntry(text("http request"));
+        streamDecoder.addEntry(text("SQL"));
+        streamDecoder.addEntry(AggregateDictionaryEntry.newBuilder()
+                .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                        .setFullText(longQueryText))
+                .build());
+        TransactionAggregate decoded = streamDecoder.decode(createTransactionAggregate());
+        assertThat(streamDecoder.getSharedQueryTexts().get(0).getFullText())
+                .isEqualTo(longQueryText);
+
+        // when
+        assertThat(streamDecoder.commit()).isEqualTo(5);
+        StreamDecoder nextStreamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 5));
+        TransactionAggregate nextDecoded =
+                nextStreamDecoder.decode(createTransactionAggregate());
+
+        // then
+        assertThat(decoded.getTransactionType()).isEqualTo("Web");
+        assertThat(decoded.getTransactionName()).isEqualTo("/abc");
+        assertThat(decoded.getAggregate().getMainThreadRootTimer(0).getName())
+                .isEqualTo("http request");
+        assertThat(decoded.getAggregate().getQueriesByType(0).getType()).isEqualTo("SQL");
+        assertThat(nextDecoded).isEqualTo(decoded);
+        // only the truncated text and sha1 are retained for long query texts
+        Aggregate.SharedQueryText sharedQueryText = nextStreamDecoder.getSharedQueryTexts().get(0);
+        assertThat(sharedQueryText.getFullText()).isEmpty();
+        assertThat(sharedQueryText.getTruncatedText()).isEqualTo(longQueryText.substring(0, 120));
+        assertThat(sharedQueryText.getFullTextSha1()).hasSize(40);
+    }
+
+    @Test
+    public void shouldRejectUnknownDictionary() {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+
+        // when
+        StreamDecoder streamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 5));
+
+        // then
+        assertThat(streamDecoder).isNull();
+    }
+
+    @Test
+    public void shouldNotAppendWhenBaseSizeNoLongerMatches() {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+        StreamDecoder streamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 0));
+        StreamDecoder otherStreamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 0));
+        streamDecoder.addEntry(text("one"));
+        otherStreamDecoder.addEntry(text("two"));
+        otherStreamDecoder.addEntry(text("three"));
+
+        // when
+        int size = streamDecoder.commit();
+        int otherSize = otherStreamDecoder.commit();
+
+        // then
+        assertThat(size).isEqualTo(1);
+        assertThat(otherSize).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReplaceStaleDictionaryWithSnapshot() {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+        StreamDecoder streamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 0));
+        streamDecoder.addEntry(text("Web"));
+        streamDecoder.commit();
+        // the agent has since appended entries to the dictionary via another central collector
+        assertThat(aggregateDictionaries.newStreamDecoder(createHeader("abc", 4))).isNull();
+
+        // when
+        StreamDecoder snapshotStreamDecoder = aggregateDictionaries
+                .newStreamDecoder(createHeader("abc", 0).toBuilder()
+                        .setDictionarySnapshot(true)
+                        .build());
+        snapshotStreamDecoder.addEntry(text("Web"));
+        snapshotStreamDecoder.addEntry(text("/abc"));
+        snapshotStreamDecoder.addEntry(text("http request"));
+        snapshotStreamDecoder.addEntry(text("SQL"));
+        snapshotStreamDecoder.addEntry(AggregateDictionaryEntry.newBuilder()
+                .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                        .setFullText("select 1"))
+                .build());
+        int size = snapshotStreamDecoder.commit();
+        StreamDecoder nextStreamDecoder =
+                aggregateDictionaries.newStreamDecoder(createHeader("abc", 5));
+
+        // then
+        assertThat(size).isEqualTo(5);
+        TransactionAggregate decoded = nextStreamDecoder.decode(createTransactionAggregate());
+        assertThat(decoded.getTransactionName()).isEqualTo("/abc");
+        assertThat(nextStreamDecoder.getSharedQueryTexts().get(0).getFullText())
+                .isEqualTo("select 1");
+    }
+
+    private static AggregateStreamHeader createHeader(String dictionaryId, int baseSize) {
+        return AggregateStreamHeader.newBuilder()
+                .setAgentId("xyz")
+                .setDictionaryId(dictionaryId)
+                .setDictionaryBaseSize(baseSize)
+                .build();
+    }
+
+    private static AggregateDictionaryEntry text(String text) {
+        return AggregateDictionaryEntry.newBuilder()
+                .setText(text)
+                .build();
+    }
+
+    private static TransactionAggregate createTransactionAggregate() {
+        return TransactionAggregate.newBuilder()
+                .setTransactionTypeDictionaryIndex(0)
+                .setTransactionNameDictionaryIndex(1)
+                .setAggregate(Aggregate.newBuilder()
+                        .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                                .setNameDictionaryIndex(2)
+                                .setTotalNanos(123)
+                                .setCount(1))
+                        .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                                .setTypeDictionaryIndex(3)
+                                .addQuery(Aggregate.Query.newBuilder()
+                                        .setSharedQueryTextIndex(4)
+                                        .setTotalDurationNanos(12)
+                                        .setExecutionCount(1))))
+                .build();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AlertWindowDao;
+import org.glowroot.central.repo.AlertWindowDao.AlertWindowBucket;
+import org.glowroot.central.repo.ImmutableAlertWindowBucket;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.GaugeValueRepository;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AlertWindowsTest {
+
+    private static final MetricCondition ERROR_COUNT_CONDITION = MetricCondition.newBuilder()
+            .setMetric("error:count")
+            .setTransactionType("Web")
+            .setThreshold(10)
+            .setTimePeriodSeconds(180)
+            .build();
+
+    private static final MetricCondition WINDOW_KEY =
+            AlertWindows.getWindowKey(ERROR_COUNT_CONDITION);
+
+    private AlertWindowDao alertWindowDao;
+    private AggregateRepository aggregateRepository;
+    private Clock clock;
+    private AlertWindows alertWindows;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        alertWindowDao = mock(AlertWindowDao.class);
+        aggregateRepository = mock(AggregateRepository.class);
+        clock = mock(Clock.class);
+        when(alertWindowDao.read(anyString(), any(MetricCondition.class), anyLong()))
+                .thenReturn(ImmutableList.<AlertWindowBucket>of());
+        when(alertWindowDao.store(anyString(), any(MetricCondition.class),
+                any(AlertWindowBucket.class))).thenReturn(mock(ResultSetFuture.class));
+        when(aggregateRepository.readThroughputAggregates(anyString(),
+                any(TransactionQuery.class))).thenReturn(ImmutableList.<ThroughputAggregate>of());
+        alertWindows = new AlertWindows(alertWindowDao, aggregateRepository,
+                mock(GaugeValueRepository.class), clock);
+    }
+
+    @Test
+    public void shouldSlideWindow() throws Exception {
+        // when
+        for (int minute = 1; minute <= 5; minute++) {
+            add(minute * 60000, minute);
+        }
+
+        // then
+        assertThat(alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 300000))
+                .isEqualTo(3L + 4 + 5);
+        assertThat(alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 360000))
+                .isEqualTo(4L + 5);
+        // only loaded from checkpoint once
+        verify(alertWindowDao, times(1)).read(anyString(), any(MetricCondition.class), anyLong());
+        verify(alertWindowDao, times(5)).store(eq("a"), eq(WINDOW_KEY),
+                any(AlertWindowBucket.class));
+    }
+
+    @Test
+    public void shouldNotReloadQuietWindow() throws Exception {
+        // when
+        for (int minute = 1; minute <= 5; minute++) {
+            when(clock.currentTimeMillis()).thenReturn(minute * 60000L + 5000);
+            alertWindows.add("a", ERROR_COUNT_CONDITION, ImmutableList.<AlertWindowBucket>of());
+            assertThat(alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, minute * 60000L))
+                    .isEqualTo(0L);
+        }
+
+        // then
+        verify(alertWindowDao, times(1)).read(anyString(), any(MetricCondition.class), anyLong());
+        verify(aggregateRepository, times(1)).readThroughputAggregates(anyString(),
+                any(TransactionQuery.class));
+        verify(alertWindowDao, never()).store(anyString(), any(MetricCondition.class),
+                any(AlertWindowBucket.class));
+    }
+
+    @Test
+    public void shouldOnlyReloadUncollectedWindowPeriodically() throws Exception {
+        // when
+        for (int minute = 1; minute <= 5; minute++) {
+            when(clock.currentTimeMillis()).thenReturn(minute * 60000L + 5000);
+            alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, minute * 60000L);
+        }
+
+        // then
+        verify(alertWindowDao, times(3)).read(anyString(), any(MetricCondition.class), anyLong());
+    }
+
+    @Test
+    public void shouldShareWindowAcrossThresholds() throws Exception {
+        // given
+        MetricCondition otherThresholdCondition = ERROR_COUNT_CONDITION.toBuilder()
+                .setThreshold(20)
+                .build();
+
+        // when
+        add(60000, 3);
+
+        // then
+        assertThat(alertWindows.getMetricValue("a", otherThresholdCondition, 60000))
+                .isEqualTo(3L);
+    }
+
+    @Test
+    public void shouldNotEvictBucketsNeededByOutstandingCheck() throws Exception {
+        // given
+        for (int minute = 1; minute <= 5; minute++) {
+            add(minute * 60000, minute);
+        }
+        alertWindows.beginCheck("a", ERROR_COUNT_CONDITION, 240000);
+        alertWindows.beginCheck("a", ERROR_COUNT_CONDITION, 300000);
+
+        // when
+        Number laterValue = alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 300000);
+        alertWindows.endCheck("a", ERROR_COUNT_CONDITION, 300000);
+        Number earlierValue = alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 240000);
+        alertWindows.endCheck("a", ERROR_COUNT_CONDITION, 240000);
+
+        // then
+        assertThat(laterValue).isEqualTo(3L + 4 + 5);
+        assertThat(earlierValue).isEqualTo(2L + 3 + 4);
+    }
+
+    @Test
+    public void shouldFillFromStoredDataWhenNoCheckpoint() throws Exception {
+        // given
+        List<ThroughputAggregate> aggregates = ImmutableList.<ThroughputAggregate>of(
+                ImmutableThroughputAggregate.builder()
+                        .captureTime(60000)
+                        .transactionCount(10)
+                        .errorCount(4L)
+                        .build(),
+                ImmutableThroughputAggregate.builder()
+                        .captureTime(120000)
+                        .transactionCount(10)
+                        .errorCount(5L)
+                        .build());
+        when(aggregateRepository.readThroughputAggregates(eq("a"), any(TransactionQuery.class)))
+                .thenReturn(aggregates);
+        when(clock.currentTimeMillis()).thenReturn(130000L);
+
+        // when
+        Number value = alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 120000);
+
+        // then
+        assertThat(value).isEqualTo(9L);
+    }
+
+    @Test
+    public void shouldReplaceRecollectedBucket() throws Exception {
+        // when
+        add(60000, 1);
+        add(60000, 1);
+
+        // then
+        assertThat(alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 60000))
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldReloadFromCheckpoint() throws Exception {
+        // given
+        List<AlertWindowBucket> checkpoint = ImmutableList.<AlertWindowBucket>of(
+                ImmutableAlertWindowBucket.builder()
+                        .captureTime(60000)
+                        .transactionCount(10)
+                        .errorCount(7)
+                        .build());
+        when(alertWindowDao.read(eq("a"), eq(WINDOW_KEY), anyLong()))
+                .thenReturn(checkpoint);
+        when(clock.currentTimeMillis()).thenReturn(130000L);
+
+        // when
+        Number value = alertWindows.getMetricValue("a", ERROR_COUNT_CONDITION, 120000);
+
+        // then
+        assertThat(value).isEqualTo(7L);
+        verify(aggregateRepository, never()).readThroughputAggregates(anyString(),
+                any(TransactionQuery.class));
+    }
+
+    @Test
+    public void shouldNotCreateBucketForOtherTransactionType() {
+        // when
+        List<AlertWindowBucket> buckets = AlertWindows.createBuckets(ERROR_COUNT_CONDITION,
+                60000, ImmutableList.of(createAggregatesByType("Background", 1)));
+
+        // then
+        assertThat(buckets).isEmpty();
+    }
+
+    private void add(long captureTime, int errorCount) throws Exception {
+        when(clock.currentTimeMillis()).thenReturn(captureTime + 5000);
+        List<AlertWindowBucket> buckets = AlertWindows.createBuckets(ERROR_COUNT_CONDITION,
+                captureTime, ImmutableList.of(createAggregatesByType("Web", errorCount)));
+        alertWindows.add("a", ERROR_COUNT_CONDITION, buckets);
+    }
+
+    private static OldAggregatesByType createAggregatesByType(String transactionType,
+            int errorCount) {
+        return OldAggregatesByType.newBuilder()
+                .setTransactionType(transactionType)
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTransactionCount(100)
+                        .setErrorCount(errorCount)
+                        .setTotalDurationNanos(1000000))
+                .build();
+    }
+}
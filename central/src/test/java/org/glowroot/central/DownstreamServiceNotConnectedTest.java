@@ -58,7 +58,7 @@ public class DownstreamServiceNotConnectedTest {
     @Test
     public void shouldThrowAgentNotConnectExceptionOnThreadDump() throws Exception {
         thrown.expect(AgentNotConnectedException.class);
-        downstreamService.threadDump("a");
+        downstreamService.threadDump("a", 100);
     }
 
     @Test
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AgentRollupDao;
+import org.glowroot.central.repo.ConfigRepositoryImpl;
+import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TriggeredAlertDao;
+import org.glowroot.common.repo.AgentRollupRepository.AgentRollup;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+import org.glowroot.common.repo.util.AlertingService;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.SyntheticMonitorConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class SyntheticMonitorServiceTest {
+
+    private static final int SYNTHETIC_MONITOR_COUNT = 200;
+
+    private HttpServer httpServer;
+    private ExecutorService httpServerExecutor;
+    private SyntheticResultDao syntheticResultDao;
+    private SyntheticMonitorService syntheticMonitorService;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        // slow stub server
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        httpServer.createContext("/", exchange -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        httpServerExecutor = Executors.newFixedThreadPool(4);
+        httpServer.setExecutor(httpServerExecutor);
+        httpServer.start();
+        syntheticResultDao = mock(SyntheticResultDao.class);
+        syntheticMonitorService = new SyntheticMonitorService(mock(AgentRollupDao.class),
+                mock(ConfigRepositoryImpl.class), mock(TriggeredAlertDao.class),
+                mock(AlertingService.class), syntheticResultDao, Ticker.systemTicker(),
+                Clock.systemClock());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        syntheticMonitorService.close();
+        httpServer.stop(0);
+        httpServerExecutor.shutdown();
+    }
+
+    @Test
+    public void shouldKeepThreadCountBounded() throws Exception {
+        // given
+        AgentRollup agentRollup =
+                ImmutableAgentRollup.of("abc", "abc", true, null, ImmutableList.of());
+        String pingUrl = "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/";
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        int threadCountBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // when
+        for (int i = 0; i < SYNTHETIC_MONITOR_COUNT; i++) {
+            syntheticMonitorService.check(agentRollup, SyntheticMonitorConfig.newBuilder()
+                    .setId("ping" + i)
+                    .setKind(SyntheticMonitorConfig.SyntheticMonitorKind.PING)
+                    .setPingUrl(pingUrl)
+                    .build(), ImmutableList.<AlertConfig>of());
+        }
+        int threadCountDuring = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // then
+        verify(syntheticResultDao, timeout(30000).times(SYNTHETIC_MONITOR_COUNT))
+                .store(eq("abc"), anyString(), anyLong(), anyLong(), eq(false));
+        int peakThreadCount = ManagementFactory.getThreadMXBean().getPeakThreadCount();
+        // previously every check occupied a thread and every ping created its own event loop
+        assertThat(threadCountDuring - threadCountBefore).isLessThan(20);
+        assertThat(peakThreadCount - threadCountBefore).isLessThan(20);
+    }
+
+    @Test
+    public void shouldSpreadOutChecks() {
+        // when
+        long offset1 = SyntheticMonitorService.getCheckOffsetMillis("abc", "one");
+        long offset2 = SyntheticMonitorService.getCheckOffsetMillis("abc", "two");
+
+        // then
+        assertThat(offset1).isBetween(0L, 59999L);
+        assertThat(offset2).isBetween(0L, 59999L);
+        assertThat(offset1).isNotEqualTo(offset2);
+        assertThat(SyntheticMonitorService.getCheckOffsetMillis("abc", "one"))
+                .isEqualTo(offset1);
+    }
+}
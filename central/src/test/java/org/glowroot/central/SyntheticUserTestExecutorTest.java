@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SyntheticUserTestExecutorTest {
+
+    private ScheduledExecutorService scheduler;
+    private SyntheticUserTestExecutor syntheticUserTestExecutor;
+
+    @Before
+    public void beforeEachTest() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        syntheticUserTestExecutor = new SyntheticUserTestExecutor(1, 1, 100, scheduler);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        syntheticUserTestExecutor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldReplaceThreadThatIgnoresInterrupt() throws Exception {
+        // given
+        CountDownLatch stuckTestStarted = new CountDownLatch(1);
+        CountDownLatch releaseStuckTest = new CountDownLatch(1);
+        ListenableFuture<?> stuckTest = syntheticUserTestExecutor.submit(() -> {
+            stuckTestStarted.countDown();
+            while (true) {
+                try {
+                    releaseStuckTest.await();
+                    return null;
+                } catch (InterruptedException e) {
+                    // ignoring interrupt
+                }
+            }
+        });
+        stuckTestStarted.await();
+
+        // when
+        stuckTest.cancel(true);
+        ListenableFuture<String> nextTest = syntheticUserTestExecutor.submit(() -> "ok");
+
+        // then
+        assertThat(nextTest.get(10, SECONDS)).isEqualTo("ok");
+        assertThat(syntheticUserTestExecutor.getAbandonedThreadCount()).isEqualTo(1);
+        releaseStuckTest.countDown();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (syntheticUserTestExecutor.getAbandonedThreadCount() != 0
+                && stopwatch.elapsed(SECONDS) < 10) {
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(syntheticUserTestExecutor.getAbandonedThreadCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotAbandonThreadThatRespondsToInterrupt() throws Exception {
+        // given
+        CountDownLatch testStarted = new CountDownLatch(1);
+        ListenableFuture<?> test = syntheticUserTestExecutor.submit(() -> {
+            testStarted.countDown();
+            Thread.sleep(Long.MAX_VALUE);
+            return null;
+        });
+        testStarted.await();
+
+        // when
+        test.cancel(true);
+        ListenableFuture<String> nextTest = syntheticUserTestExecutor.submit(() -> "ok");
+
+        // then
+        assertThat(nextTest.get(10, SECONDS)).isEqualTo("ok");
+        MILLISECONDS.sleep(200);
+        assertThat(syntheticUserTestExecutor.getAbandonedThreadCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotAbandonMoreThanMax() throws Exception {
+        // given
+        CountDownLatch releaseStuckTests = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            CountDownLatch stuckTestStarted = new CountDownLatch(1);
+            ListenableFuture<?> stuckTest = syntheticUserTestExecutor.submit(() -> {
+                stuckTestStarted.countDown();
+                while (true) {
+                    try {
+                        releaseStuckTests.await();
+                        return null;
+                    } catch (InterruptedException e) {
+                        // ignoring interrupt
+                    }
+                }
+            });
+            // the second stuck test only starts once the first stuck thread has been replaced
+            stuckTestStarted.await();
+
+            // when
+            stuckTest.cancel(true);
+        }
+        MILLISECONDS.sleep(200);
+
+        // then
+        assertThat(syntheticUserTestExecutor.getAbandonedThreadCount()).isEqualTo(1);
+        releaseStuckTests.countDown();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.IncrementalThreadDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadDumpAssemblerTest {
+
+    @Test
+    public void shouldAssembleAcrossIncrementalThreadDumps() {
+        // given
+        ThreadDumpAssembler threadDumpAssembler = new ThreadDumpAssembler();
+        IncrementalThreadDump first = IncrementalThreadDump.newBuilder()
+                .setVersion(1)
+                .addNewFrame(frame("a"))
+                .addNewFrame(frame("b"))
+                .addNewStack(stack(0, 1))
+                .addChangedThread(thread(11, 0))
+                .addChangedThread(thread(12, 0))
+                .addChangedThread(thread(13, 0))
+                .addTransaction(IncrementalThreadDump.Transaction.newBuilder()
+                        .setHeadline("/abc")
+                        .addThreadId(12))
+                .setThreadDumpingThreadId(13)
+                .build();
+        IncrementalThreadDump second = IncrementalThreadDump.newBuilder()
+                .setVersion(2)
+                .setBaseVersion(1)
+                .addNewFrame(frame("c"))
+                .addNewStack(stack(2, 0, 1))
+                .addChangedThread(thread(14, 1).toBuilder()
+                        .addLockedMonitor(IncrementalThreadDump.LockedMonitor.newBuilder()
+                                .setStackDepth(1)
+                                .setLockInfo(ThreadDump.LockInfo.newBuilder()
+                                        .setClassName("Lock")
+                                        .setIdentityHashCode(1))))
+                .addRemovedThreadId(12)
+                .setThreadDumpingThreadId(13)
+                .build();
+
+        // when
+        ThreadDump firstThreadDump = threadDumpAssembler.apply(first);
+        ThreadDump secondThreadDump = threadDumpAssembler.apply(second);
+
+        // then
+        assertThat(threadDumpAssembler.getVersion()).isEqualTo(2);
+        assertThat(firstThreadDump.getTransactionCount()).isEqualTo(1);
+        assertThat(firstThreadDump.getTransaction(0).getThread(0).getId()).isEqualTo(12);
+        assertThat(firstThreadDump.getUnmatchedThreadCount()).isEqualTo(1);
+        assertThat(firstThreadDump.getUnmatchedThread(0).getId()).isEqualTo(11);
+        assertThat(firstThreadDump.getThreadDumpingThread().getId()).isEqualTo(13);
+
+        assertThat(secondThreadDump.getTransactionCount()).isZero();
+        assertThat(secondThreadDump.getUnmatchedThreadCount()).isEqualTo(2);
+        ThreadDump.Thread thread = secondThreadDump.getUnmatchedThread(0);
+        assertThat(thread.getId()).isEqualTo(14);
+        assertThat(thread.getStackTraceElementCount()).isEqualTo(3);
+        assertThat(thread.getStackTraceElement(0).getMethodName()).isEqualTo("c");
+        assertThat(thread.getStackTraceElement(1).getMethodName()).isEqualTo("a");
+        assertThat(thread.getStackTraceElement(1).getMonitorInfoCount()).isEqualTo(1);
+        assertThat(secondThreadDump.getUnmatchedThread(1).getId()).isEqualTo(11);
+    }
+
+    @Test
+    public void shouldStartOverOnFullThreadDump() {
+        // given
+        ThreadDumpAssembler threadDumpAssembler = new ThreadDumpAssembler();
+        threadDumpAssembler.apply(IncrementalThreadDump.newBuilder()
+                .setVersion(1)
+                .addNewFrame(frame("a"))
+                .addNewStack(stack(0))
+                .addChangedThread(thread(11, 0))
+                .build());
+
+        // when
+        ThreadDump threadDump = threadDumpAssembler.apply(IncrementalThreadDump.newBuilder()
+                .setVersion(2)
+                .addNewFrame(frame("b"))
+                .addNewStack(stack(0))
+                .addChangedThread(thread(12, 0))
+                .build());
+
+        // then
+        assertThat(threadDump.getUnmatchedThreadCount()).isEqualTo(1);
+        assertThat(threadDump.getUnmatchedThread(0).getId()).isEqualTo(12);
+        assertThat(threadDump.getUnmatchedThread(0).getStackTraceElement(0).getMethodName())
+                .isEqualTo("b");
+    }
+
+    private static ThreadDump.StackTraceElement frame(String methodName) {
+        return ThreadDump.StackTraceElement.newBuilder()
+                .setClassName("Test")
+                .setMethodName(methodName)
+                .build();
+    }
+
+    private static IncrementalThreadDump.Stack stack(int... frameIndexes) {
+        IncrementalThreadDump.Stack.Builder builder = IncrementalThreadDump.Stack.newBuilder();
+        for (int frameIndex : frameIndexes) {
+            builder.addFrameIndex(frameIndex);
+        }
+        return builder.build();
+    }
+
+    private static IncrementalThreadDump.Thread thread(long id, int stackIndex) {
+        return IncrementalThreadDump.Thread.newBuilder()
+                .setId(id)
+                .setName("thread-" + id)
+                .setState("RUNNABLE")
+                .setStackIndex(stackIndex)
+                .build();
+    }
+}
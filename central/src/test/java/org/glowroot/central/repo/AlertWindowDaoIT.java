@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+
+import com.datastax.driver.core.Cluster;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AlertWindowDao.AlertWindowBucket;
+import org.glowroot.central.util.Session;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AlertWindowDaoIT {
+
+    private static final String AGENT_ID = "xyz";
+
+    private static final MetricCondition WINDOW_KEY = MetricCondition.newBuilder()
+            .setMetric("transaction:x-percentile")
+            .setTransactionType("Web")
+            .setTimePeriodSeconds(300)
+            .build();
+
+    private static Cluster cluster;
+    private static Session session;
+    private static AlertWindowDao alertWindowDao;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Clusters.newCluster();
+        session = new Session(cluster.newSession());
+        session.createKeyspaceIfNotExists("glowroot_unit_tests");
+        session.execute("use glowroot_unit_tests");
+
+        alertWindowDao = new AlertWindowDao(session);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Before
+    public void beforeEach() throws Exception {
+        session.execute("truncate alert_window");
+    }
+
+    @Test
+    public void shouldReadAfterStore() throws Exception {
+        // given
+        AlertWindowBucket bucket = ImmutableAlertWindowBucket.builder()
+                .captureTime(120000)
+                .transactionCount(10)
+                .errorCount(2)
+                .totalDurationNanos(12345)
+                .durationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(100)
+                        .addOrderedRawValue(200)
+                        .build())
+                .build();
+        // when
+        alertWindowDao.store(AGENT_ID, WINDOW_KEY, bucket).get();
+        alertWindowDao.store(AGENT_ID, WINDOW_KEY, ImmutableAlertWindowBucket.builder()
+                .captureTime(60000)
+                .transactionCount(1)
+                .build()).get();
+        // then
+        List<AlertWindowBucket> buckets = alertWindowDao.read(AGENT_ID, WINDOW_KEY, 60000);
+        assertThat(buckets).containsExactly(bucket);
+    }
+}
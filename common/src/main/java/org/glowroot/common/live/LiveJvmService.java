@@ -30,7 +30,8 @@ public interface LiveJvmService {
 
     boolean isAvailable(String agentId) throws Exception;
 
-    ThreadDump getThreadDump(String agentId) throws Exception;
+    // zero max stack depth means no limit
+    ThreadDump getThreadDump(String agentId, int maxStackDepth) throws Exception;
 
     String getJstack(String agentId) throws Exception;
 
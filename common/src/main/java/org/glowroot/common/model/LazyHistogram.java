@@ -19,9 +19,12 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
@@ -36,14 +39,31 @@ public class LazyHistogram {
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @Nullable Histogram histogram;
+
+    // when this is non-null, it is used instead of both raw values and HdrHistogram, and once a
+    // compact histogram is merged into a non-compact histogram, the result is also compact
+    private @MonotonicNonNull LogLinearHistogram compactHistogram;
 
     public LazyHistogram() {}
 
+    // compactPrecisionBits of zero means not compact, values above
+    // LogLinearHistogram.MAX_PRECISION_BITS are capped
+    public LazyHistogram(int compactPrecisionBits) {
+        if (compactPrecisionBits > 0) {
+            values = new long[0];
+            compactHistogram = new LogLinearHistogram(
+                    Math.min(compactPrecisionBits, LogLinearHistogram.MAX_PRECISION_BITS));
+        }
+    }
+
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (hist.getLogLinearPrecisionBits() != 0) {
+            values = new long[0];
+            compactHistogram = LogLinearHistogram.create(hist);
+        } else if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
@@ -57,7 +77,9 @@ public class LazyHistogram {
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (compactHistogram != null) {
+            compactHistogram.encodeInto(builder);
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -79,10 +101,18 @@ public class LazyHistogram {
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (toBeMergedHistogram.getLogLinearPrecisionBits() != 0) {
+            if (compactHistogram == null) {
+                convertToCompactHistogram(toBeMergedHistogram.getLogLinearPrecisionBits());
+            }
+            compactHistogram.merge(toBeMergedHistogram);
+        } else if (encodedBytes.isEmpty()) {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
+        } else if (compactHistogram != null) {
+            addTo(compactHistogram,
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         } else {
             if (histogram == null) {
                 convertValuesToHistogram();
@@ -92,10 +122,18 @@ public class LazyHistogram {
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
+        if (toBeMergedHistogram.compactHistogram != null) {
+            if (compactHistogram == null) {
+                convertToCompactHistogram(
+                        toBeMergedHistogram.compactHistogram.getPrecisionBits());
+            }
+            compactHistogram.merge(toBeMergedHistogram.compactHistogram);
+        } else if (toBeMergedHistogram.histogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 add(toBeMergedHistogram.values[i]);
             }
+        } else if (compactHistogram != null) {
+            addTo(compactHistogram, toBeMergedHistogram.histogram);
         } else {
             if (histogram == null) {
                 convertValuesToHistogram();
@@ -105,6 +143,9 @@ public class LazyHistogram {
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (compactHistogram != null) {
+            return compactHistogram.getValueAtPercentile(percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -124,6 +165,10 @@ public class LazyHistogram {
 
     @VisibleForTesting
     public void add(long value) {
+        if (compactHistogram != null) {
+            compactHistogram.add(value);
+            return;
+        }
         ensureCapacity(size + 1);
         if (histogram != null) {
             histogram.recordValue(value);
@@ -160,11 +205,33 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    @EnsuresNonNull("compactHistogram")
+    private void convertToCompactHistogram(int precisionBits) {
+        LogLinearHistogram compactHistogram = new LogLinearHistogram(precisionBits);
+        if (histogram == null) {
+            for (int i = 0; i < size; i++) {
+                compactHistogram.add(values[i]);
+            }
+        } else {
+            addTo(compactHistogram, histogram);
+            histogram = null;
+        }
+        values = new long[0];
+        size = 0;
+        this.compactHistogram = compactHistogram;
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
     }
 
+    private static void addTo(LogLinearHistogram compactHistogram, Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            compactHistogram.add(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
     public static class ScratchBuffer {
 
         private @MonotonicNonNull ByteBuffer buffer;
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// histogram with log-linear buckets, each power of two range is split into 2^precisionBits linear
+// buckets, so values are recorded with relative error of at most 2^-(precisionBits + 1) (values
+// less than 2^(precisionBits + 1) are recorded exactly)
+//
+// bucket counts are stored in a single array covering the range of non-empty buckets, so adding a
+// value is constant time, and merging histograms of the same precision is adding bucket counts
+public class LogLinearHistogram {
+
+    // max relative error of 2^-7 (0.78%)
+    public static final int DEFAULT_PRECISION_BITS = 6;
+
+    // max relative error of 2^-21 (0.00005%)
+    public static final int MAX_PRECISION_BITS = 20;
+
+    private static final int INITIAL_BUCKET_ARRAY_LENGTH = 16;
+
+    private final int precisionBits;
+
+    // counts[i] is the count of bucket (bucketOffset + i)
+    private long[] counts = new long[0];
+    private int bucketOffset;
+
+    private long totalCount;
+
+    public LogLinearHistogram() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    public LogLinearHistogram(int precisionBits) {
+        checkArgument(precisionBits > 0 && precisionBits <= MAX_PRECISION_BITS,
+                "precisionBits must be between 1 and %s", MAX_PRECISION_BITS);
+        this.precisionBits = precisionBits;
+    }
+
+    public static LogLinearHistogram create(Aggregate.Histogram hist) {
+        LogLinearHistogram histogram = new LogLinearHistogram(hist.getLogLinearPrecisionBits());
+        histogram.merge(hist);
+        return histogram;
+    }
+
+    // returns the smallest precision bits that provide the given max relative error
+    public static int getPrecisionBits(double maxRelativeError) {
+        checkArgument(maxRelativeError > 0 && maxRelativeError < 1,
+                "maxRelativeError must be between 0 and 1 (exclusive)");
+        int precisionBits = 1;
+        while (Math.scalb(1.0, -(precisionBits + 1)) > maxRelativeError) {
+            precisionBits++;
+        }
+        return precisionBits;
+    }
+
+    public int getPrecisionBits() {
+        return precisionBits;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    public void add(long value, long count) {
+        int bucketIndex = getBucketIndex(Math.max(value, 0));
+        ensureBucket(bucketIndex);
+        counts[bucketIndex - bucketOffset] += count;
+        totalCount += count;
+    }
+
+    public void merge(LogLinearHistogram histogram) {
+        if (histogram.precisionBits == precisionBits) {
+            if (histogram.totalCount == 0) {
+                return;
+            }
+            ensureBucket(histogram.bucketOffset);
+            ensureBucket(histogram.bucketOffset + histogram.counts.length - 1);
+            int base = histogram.bucketOffset - bucketOffset;
+            for (int i = 0; i < histogram.counts.length; i++) {
+                counts[base + i] += histogram.counts[i];
+            }
+            totalCount += histogram.totalCount;
+        } else {
+            for (int i = 0; i < histogram.counts.length; i++) {
+                long count = histogram.counts[i];
+                if (count != 0) {
+                    add(histogram.getBucketValue(histogram.bucketOffset + i), count);
+                }
+            }
+        }
+    }
+
+    public void merge(Aggregate.Histogram hist) {
+        int histPrecisionBits = hist.getLogLinearPrecisionBits();
+        List<Integer> bucketIndexDeltas = hist.getLogLinearBucketIndexDeltaList();
+        List<Long> bucketCounts = hist.getLogLinearBucketCountList();
+        int bucketIndex = 0;
+        for (int i = 0; i < bucketCounts.size(); i++) {
+            bucketIndex += bucketIndexDeltas.get(i);
+            long count = bucketCounts.get(i);
+            if (histPrecisionBits == precisionBits) {
+                ensureBucket(bucketIndex);
+                counts[bucketIndex - bucketOffset] += count;
+                totalCount += count;
+            } else {
+                add(getBucketValue(bucketIndex, histPrecisionBits), count);
+            }
+        }
+    }
+
+    public void encodeInto(Aggregate.Histogram.Builder builder) {
+        builder.setLogLinearPrecisionBits(precisionBits);
+        int prevBucketIndex = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                int bucketIndex = bucketOffset + i;
+                builder.addLogLinearBucketIndexDelta(bucketIndex - prevBucketIndex);
+                builder.addLogLinearBucketCount(count);
+                prevBucketIndex = bucketIndex;
+            }
+        }
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // "0th" percentile means the smallest tracked value, same as LazyHistogram
+        long rank = Math.max((long) Math.ceil(totalCount * percentile / 100), 1);
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                return getBucketValue(bucketOffset + i);
+            }
+        }
+        // unreachable, the cumulative count reaches total count at the last non-empty bucket
+        throw new IllegalStateException("Rank not found: " + rank);
+    }
+
+    // visible for benchmark
+    public int getBucketArrayLength() {
+        return counts.length;
+    }
+
+    private int getBucketIndex(long value) {
+        // linear buckets of width 1 up to 2^(precisionBits + 1), after that each power of two
+        // range [2^e, 2^(e + 1)) is split into 2^precisionBits buckets, each of width
+        // 2^(e - precisionBits)
+        int shift = Math.max(63 - Long.numberOfLeadingZeros(value) - precisionBits, 0);
+        return (shift << precisionBits) + (int) (value >>> shift);
+    }
+
+    private long getBucketValue(int bucketIndex) {
+        return getBucketValue(bucketIndex, precisionBits);
+    }
+
+    // returns the midpoint of the bucket
+    private static long getBucketValue(int bucketIndex, int precisionBits) {
+        int shift = Math.max((bucketIndex >>> precisionBits) - 1, 0);
+        long mantissa = bucketIndex - (shift << precisionBits);
+        long lowerBound = mantissa << shift;
+        return shift == 0 ? lowerBound : lowerBound + (1L << (shift - 1));
+    }
+
+    private void ensureBucket(int bucketIndex) {
+        if (counts.length == 0) {
+            counts = new long[INITIAL_BUCKET_ARRAY_LENGTH];
+            bucketOffset = Math.max(bucketIndex - INITIAL_BUCKET_ARRAY_LENGTH / 2, 0);
+            return;
+        }
+        int end = bucketOffset + counts.length;
+        if (bucketIndex >= bucketOffset && bucketIndex < end) {
+            return;
+        }
+        // at least double in size, extending in the direction of the new bucket, so that values
+        // spreading out over time (e.g. into a slow tail) do not cause repeated copying
+        int length = Math.max(counts.length * 2,
+                Math.max(end, bucketIndex + 1) - Math.min(bucketOffset, bucketIndex));
+        int newBucketOffset;
+        if (bucketIndex < bucketOffset) {
+            newBucketOffset = Math.max(end - length, 0);
+        } else {
+            newBucketOffset = bucketOffset;
+        }
+        long[] newCounts = new long[Math.max(end, newBucketOffset + length) - newBucketOffset];
+        System.arraycopy(counts, 0, newCounts, bucketOffset - newBucketOffset, counts.length);
+        counts = newCounts;
+        bucketOffset = newBucketOffset;
+    }
+}
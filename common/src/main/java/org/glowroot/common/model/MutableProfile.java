@@ -64,6 +64,8 @@ public class MutableProfile {
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
+    private int nodeCount;
+
     // this method is not used that often (only for traces with > 20 stack trace samples) so ok
     // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
@@ -121,6 +123,7 @@ public class MutableProfile {
                 node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
                         fileNameIndex, lineNumber, leafThreadState);
                 mergeIntoNodes.add(node);
+                nodeCount++;
             }
             node.sampleCount++;
             lastMatchedNode = node;
@@ -182,6 +185,11 @@ public class MutableProfile {
         return sampleCount;
     }
 
+    // number of nodes created by merging (filtering and truncating do not reduce this count)
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
     public long getUnfilteredSampleCount() {
         if (unfilteredSampleCount == -1) {
             return getSampleCount();
@@ -424,6 +432,7 @@ public class MutableProfile {
                     toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
                     toBeMergedLineNumber, toBeMergedLeafThreadState);
             destinationNodes.add(destinationNode);
+            nodeCount++;
             merge(toBeMergedNode, destinationNode);
             return destinationNode;
         }
@@ -17,18 +17,8 @@ package org.glowroot.common.model;
 
 import javax.annotation.Nullable;
 
-import com.google.common.collect.Ordering;
-import com.google.common.primitives.Doubles;
-
 public class MutableQuery {
 
-    static final Ordering<MutableQuery> byTotalDurationDesc = new Ordering<MutableQuery>() {
-        @Override
-        public int compare(MutableQuery left, MutableQuery right) {
-            return Doubles.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
-        }
-    };
-
     private final String truncatedText;
     private final @Nullable String fullTextSha1;
 
@@ -81,10 +71,4 @@ public class MutableQuery {
             this.totalRows += totalRows;
         }
     }
-
-    void addTo(MutableQuery query) {
-        addToTotalDurationNanos(query.totalDurationNanos);
-        addToExecutionCount(query.executionCount);
-        addToTotalRows(query.hasTotalRows, query.totalRows);
-    }
 }
@@ -15,14 +15,12 @@
  */
 package org.glowroot.common.model;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
 
-import com.google.common.base.MoreObjects;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -30,9 +28,9 @@ public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
-    // first key is query type, second key is either full query text (if query text is relatively
-    // short) or sha1 of full query text (if query text is long)
-    private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
+    // key is query type, query table is keyed by either full query text (if query text is
+    // relatively short) or sha1 of full query text (if query text is long)
+    private final Map<String, QueryTable> queries = Maps.newHashMap();
     private final int limitPerQueryType;
 
     // this is only used by UI
@@ -52,33 +50,43 @@ public class QueryCollector {
 
     public Map<String, List<MutableQuery>> getSortedAndTruncatedQueries() {
         Map<String, List<MutableQuery>> sortedQueries = Maps.newHashMap();
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            Map<String, MutableQuery> innerMap = outerEntry.getValue();
-            if (innerMap.size() > limitPerQueryType) {
-                MutableQuery limitExceededBucket = innerMap.get(LIMIT_EXCEEDED_BUCKET);
-                if (limitExceededBucket == null) {
-                    limitExceededBucket = new MutableQuery(LIMIT_EXCEEDED_BUCKET, null);
-                } else {
-                    // make copy to not modify original
-                    innerMap = Maps.newHashMap(innerMap);
-                    // remove temporarily so it is not included in initial sort/truncation
-                    innerMap.remove(LIMIT_EXCEEDED_BUCKET);
+        for (Entry<String, QueryTable> entry : queries.entrySet()) {
+            QueryTable table = entry.getValue();
+            int limitExceededBucketIndex = table.indexOf(LIMIT_EXCEEDED_BUCKET);
+            int count = limitExceededBucketIndex == -1 ? table.size() : table.size() - 1;
+            if (count > limitPerQueryType) {
+                int[] indexes = table.getIndexesByTotalDurationDesc(limitPerQueryType,
+                        limitExceededBucketIndex);
+                MutableQuery limitExceededBucket = new MutableQuery(LIMIT_EXCEEDED_BUCKET, null);
+                if (limitExceededBucketIndex != -1) {
+                    addTo(limitExceededBucket, table, limitExceededBucketIndex);
                 }
-                List<MutableQuery> queries =
-                        MutableQuery.byTotalDurationDesc.sortedCopy(innerMap.values());
-                List<MutableQuery> exceededQueries =
-                        queries.subList(limitPerQueryType, queries.size());
-                queries = Lists.newArrayList(queries.subList(0, limitPerQueryType));
-                for (MutableQuery exceededQuery : exceededQueries) {
-                    limitExceededBucket.addTo(exceededQuery);
+                for (int i = limitPerQueryType; i < indexes.length; i++) {
+                    addTo(limitExceededBucket, table, indexes[i]);
                 }
-                queries.add(limitExceededBucket);
-                // need to re-sort now including limit exceeded bucket
-                Collections.sort(queries, MutableQuery.byTotalDurationDesc);
-                sortedQueries.put(outerEntry.getKey(), queries);
+                // + 1 is for the limit exceeded bucket
+                List<MutableQuery> queries = Lists.newArrayListWithCapacity(limitPerQueryType + 1);
+                boolean limitExceededBucketAdded = false;
+                for (int i = 0; i < limitPerQueryType; i++) {
+                    int index = indexes[i];
+                    if (!limitExceededBucketAdded && limitExceededBucket
+                            .getTotalDurationNanos() > table.getTotalDurationNanos(index)) {
+                        queries.add(limitExceededBucket);
+                        limitExceededBucketAdded = true;
+                    }
+                    queries.add(toMutableQuery(table, index));
+                }
+                if (!limitExceededBucketAdded) {
+                    queries.add(limitExceededBucket);
+                }
+                sortedQueries.put(entry.getKey(), queries);
             } else {
-                sortedQueries.put(outerEntry.getKey(),
-                        MutableQuery.byTotalDurationDesc.sortedCopy(innerMap.values()));
+                int[] indexes = table.getIndexesByTotalDurationDesc(Integer.MAX_VALUE, -1);
+                List<MutableQuery> queries = Lists.newArrayListWithCapacity(indexes.length);
+                for (int index : indexes) {
+                    queries.add(toMutableQuery(table, index));
+                }
+                sortedQueries.put(entry.getKey(), queries);
             }
         }
         return sortedQueries;
@@ -86,26 +94,25 @@ public class QueryCollector {
 
     public void mergeQuery(String queryType, String truncatedText, @Nullable String fullTextSha1,
             double totalDurationNanos, long executionCount, boolean hasRows, long totalRows) {
-        Map<String, MutableQuery> queriesForType = queries.get(queryType);
-        if (queriesForType == null) {
-            queriesForType = Maps.newHashMap();
-            queries.put(queryType, queriesForType);
+        QueryTable table = queries.get(queryType);
+        if (table == null) {
+            table = new QueryTable();
+            queries.put(queryType, table);
         }
-        mergeQuery(truncatedText, fullTextSha1, totalDurationNanos, executionCount,
-                hasRows, totalRows, queriesForType);
+        int index = table.getOrAdd(truncatedText, fullTextSha1);
+        table.add(index, totalDurationNanos, executionCount, hasRows, totalRows);
     }
 
-    private void mergeQuery(String truncatedText, @Nullable String fullTextSha1,
-            double totalDurationNanos, long executionCount, boolean hasRows, long totalRows,
-            Map<String, MutableQuery> queriesForType) {
-        String queryKey = MoreObjects.firstNonNull(fullTextSha1, truncatedText);
-        MutableQuery aggregateQuery = queriesForType.get(queryKey);
-        if (aggregateQuery == null) {
-            aggregateQuery = new MutableQuery(truncatedText, fullTextSha1);
-            queriesForType.put(queryKey, aggregateQuery);
-        }
-        aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
-        aggregateQuery.addToExecutionCount(executionCount);
-        aggregateQuery.addToTotalRows(hasRows, totalRows);
+    private static MutableQuery toMutableQuery(QueryTable table, int index) {
+        MutableQuery query =
+                new MutableQuery(table.getText(index), table.getFullTextSha1(index));
+        addTo(query, table, index);
+        return query;
+    }
+
+    private static void addTo(MutableQuery query, QueryTable table, int index) {
+        query.addToTotalDurationNanos(table.getTotalDurationNanos(index));
+        query.addToExecutionCount(table.getExecutionCount(index));
+        query.addToTotalRows(table.hasTotalRows(index), table.getTotalRows(index));
     }
 }
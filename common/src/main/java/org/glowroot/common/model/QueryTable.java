@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+// aggregated queries (or service calls) of a single type, keyed by query text (or sha1 of the full
+// query text), stored in parallel primitive arrays in insertion order, with an open-addressed
+// (linear probing) index over the keys
+//
+// this is used instead of a map of mutable objects since the number of distinct queries can be
+// large (thousands per type), and these tables are built and flushed continually
+public class QueryTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // entry index + 1, or zero if the slot is empty
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    private String[] texts = new String[INITIAL_CAPACITY];
+    private double[] totalDurationNanos = new double[INITIAL_CAPACITY];
+    private long[] executionCounts = new long[INITIAL_CAPACITY];
+
+    // these are only allocated once needed, since service calls never have a full text sha1 or
+    // total rows, and only long query texts have a full text sha1
+    private @Nullable String /*@Nullable*/ [] fullTextSha1s;
+    // -1 means no total rows
+    private long /*@Nullable*/ [] totalRows;
+
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(String key) {
+        int mask = slots.length - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                return -1;
+            }
+            if (keyEquals(slot - 1, key)) {
+                return slot - 1;
+            }
+        }
+    }
+
+    // text is the (possibly truncated) query text, and the key is the full text sha1 if there is
+    // one, otherwise the text
+    public int getOrAdd(String text, @Nullable String fullTextSha1) {
+        String key = fullTextSha1 == null ? text : fullTextSha1;
+        int mask = slots.length - 1;
+        int i = hash(key) & mask;
+        for (;; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                break;
+            }
+            if (keyEquals(slot - 1, key)) {
+                return slot - 1;
+            }
+        }
+        if (size == texts.length) {
+            growEntries();
+        }
+        int index = size++;
+        texts[index] = text;
+        if (fullTextSha1 != null) {
+            if (fullTextSha1s == null) {
+                fullTextSha1s = new String[texts.length];
+            }
+            fullTextSha1s[index] = fullTextSha1;
+        }
+        if (totalRows != null) {
+            totalRows[index] = -1;
+        }
+        slots[i] = index + 1;
+        // max load factor 0.75
+        if (size * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+        return index;
+    }
+
+    public void add(int index, double totalDurationNanos, long executionCount,
+            boolean hasTotalRows, long totalRows) {
+        this.totalDurationNanos[index] += totalDurationNanos;
+        executionCounts[index] += executionCount;
+        if (hasTotalRows) {
+            if (this.totalRows == null) {
+                this.totalRows = new long[texts.length];
+                Arrays.fill(this.totalRows, -1);
+            }
+            if (this.totalRows[index] == -1) {
+                this.totalRows[index] = totalRows;
+            } else {
+                this.totalRows[index] += totalRows;
+            }
+        }
+    }
+
+    public String getKey(int index) {
+        String fullTextSha1 = getFullTextSha1(index);
+        return fullTextSha1 == null ? texts[index] : fullTextSha1;
+    }
+
+    public String getText(int index) {
+        return texts[index];
+    }
+
+    public @Nullable String getFullTextSha1(int index) {
+        return fullTextSha1s == null ? null : fullTextSha1s[index];
+    }
+
+    public double getTotalDurationNanos(int index) {
+        return totalDurationNanos[index];
+    }
+
+    public long getExecutionCount(int index) {
+        return executionCounts[index];
+    }
+
+    public boolean hasTotalRows(int index) {
+        return totalRows != null && totalRows[index] != -1;
+    }
+
+    public long getTotalRows(int index) {
+        if (totalRows == null) {
+            return 0;
+        }
+        long value = totalRows[index];
+        return value == -1 ? 0 : value;
+    }
+
+    // returns the entry indexes, excluding excludedIndex (-1 for none), ordered so that the first
+    // min(limit, length) indexes are the entries with the largest total durations, sorted by total
+    // duration descending, with the remaining indexes following in no particular order
+    //
+    // this uses partial selection instead of sorting all entries since only the top entries (up to
+    // the per query type limit) are retained
+    public int[] getIndexesByTotalDurationDesc(int limit, int excludedIndex) {
+        int[] indexes = new int[excludedIndex == -1 ? size : size - 1];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (i != excludedIndex) {
+                indexes[j++] = i;
+            }
+        }
+        if (limit < indexes.length) {
+            select(indexes, 0, indexes.length - 1, limit);
+            sort(indexes, 0, limit - 1);
+        } else {
+            sort(indexes, 0, indexes.length - 1);
+        }
+        return indexes;
+    }
+
+    private void growEntries() {
+        int capacity = texts.length * 2;
+        texts = Arrays.copyOf(texts, capacity);
+        totalDurationNanos = Arrays.copyOf(totalDurationNanos, capacity);
+        executionCounts = Arrays.copyOf(executionCounts, capacity);
+        if (fullTextSha1s != null) {
+            fullTextSha1s = Arrays.copyOf(fullTextSha1s, capacity);
+        }
+        if (totalRows != null) {
+            totalRows = Arrays.copyOf(totalRows, capacity);
+            Arrays.fill(totalRows, size, capacity, -1);
+        }
+    }
+
+    private void rehash(int slotCount) {
+        slots = new int[slotCount];
+        int mask = slotCount - 1;
+        for (int index = 0; index < size; index++) {
+            int i = hash(getKey(index)) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = index + 1;
+        }
+    }
+
+    // quickselect, rearranges indexes[left..right] so that the k (relative to left) indexes with
+    // the largest total durations come first
+    private void select(int[] indexes, int left, int right, int k) {
+        int target = left + k - 1;
+        while (left < right) {
+            long bounds = partition(indexes, left, right);
+            int first = (int) (bounds >>> 32);
+            int last = (int) bounds;
+            if (target < first) {
+                right = first - 1;
+            } else if (target > last) {
+                left = last + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void sort(int[] indexes, int left, int right) {
+        while (right - left > 16) {
+            long bounds = partition(indexes, left, right);
+            int first = (int) (bounds >>> 32);
+            int last = (int) bounds;
+            // recurse into the smaller side to bound the stack depth
+            if (first - left < right - last) {
+                sort(indexes, left, first - 1);
+                left = last + 1;
+            } else {
+                sort(indexes, last + 1, right);
+                right = first - 1;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            int index = indexes[i];
+            double value = totalDurationNanos[index];
+            int j = i - 1;
+            while (j >= left && totalDurationNanos[indexes[j]] < value) {
+                indexes[j + 1] = indexes[j];
+                j--;
+            }
+            indexes[j + 1] = index;
+        }
+    }
+
+    // three-way partitions indexes[left..right] around a median-of-three pivot so that larger
+    // total durations come first, followed by those equal to the pivot (it is common for many
+    // entries to have the same total duration), and returns the bounds of the equal range packed
+    // into a long (first << 32 | last)
+    private long partition(int[] indexes, int left, int right) {
+        double a = totalDurationNanos[indexes[left]];
+        double b = totalDurationNanos[indexes[(left + right) >>> 1]];
+        double c = totalDurationNanos[indexes[right]];
+        double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        int first = left;
+        int last = right;
+        int i = left;
+        while (i <= last) {
+            double value = totalDurationNanos[indexes[i]];
+            if (value > pivot) {
+                swap(indexes, first++, i++);
+            } else if (value < pivot) {
+                swap(indexes, i, last--);
+            } else {
+                i++;
+            }
+        }
+        return ((long) first << 32) | last;
+    }
+
+    private static void swap(int[] indexes, int i, int j) {
+        int temp = indexes[i];
+        indexes[i] = indexes[j];
+        indexes[j] = temp;
+    }
+
+    private boolean keyEquals(int index, String key) {
+        String indexKey = getKey(index);
+        // string hash codes are cached, so this is a cheap check before comparing the strings
+        // (query texts often share long prefixes)
+        return indexKey.hashCode() == key.hashCode() && indexKey.equals(key);
+    }
+
+    // query texts that differ only in a trailing literal have nearly consecutive string hash codes,
+    // which would form long runs of occupied slots under linear probing, so the hash code is
+    // spread across all bits before masking
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -15,7 +15,6 @@
  */
 package org.glowroot.common.model;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,8 +29,8 @@ public class ServiceCallCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
-    private final Map<String, Map<String, MutableServiceCall>> serviceCalls = Maps.newHashMap();
-    private final Map<String, MutableServiceCall> limitExceededBuckets = Maps.newHashMap();
+    // key is service call type, service call table is keyed by service call text
+    private final Map<String, QueryTable> serviceCalls = Maps.newHashMap();
     private final int limitPerServiceCallType;
     private final int maxMultiplierWhileBuilding;
 
@@ -56,99 +55,109 @@ public class ServiceCallCollector {
             return ImmutableList.of();
         }
         List<Aggregate.ServiceCallsByType> serviceCallsByType = Lists.newArrayList();
-        for (Entry<String, List<MutableServiceCall>> entry : getSortedAndTruncatedQueries()
-                .entrySet()) {
+        for (Entry<String, QueryTable> entry : serviceCalls.entrySet()) {
             Aggregate.ServiceCallsByType.Builder builder = Aggregate.ServiceCallsByType.newBuilder()
                     .setType(entry.getKey());
-            for (MutableServiceCall serviceCall : entry.getValue()) {
-                builder.addServiceCall(serviceCall.toProto());
-            }
+            addSortedAndTruncatedServiceCalls(entry.getValue(), builder);
             serviceCallsByType.add(builder.build());
         }
         return serviceCallsByType;
     }
 
-    private Map<String, List<MutableServiceCall>> getSortedAndTruncatedQueries() {
-        Map<String, List<MutableServiceCall>> sortedQueries = Maps.newHashMap();
-        for (Entry<String, Map<String, MutableServiceCall>> outerEntry : serviceCalls.entrySet()) {
-            Map<String, MutableServiceCall> innerMap = outerEntry.getValue();
-            if (innerMap.size() > limitPerServiceCallType) {
-                MutableServiceCall limitExceededBucket = innerMap.get(LIMIT_EXCEEDED_BUCKET);
-                if (limitExceededBucket == null) {
-                    limitExceededBucket = new MutableServiceCall(LIMIT_EXCEEDED_BUCKET);
-                } else {
-                    // make copy to not modify original
-                    innerMap = Maps.newHashMap(innerMap);
-                    // remove temporarily so it is not included in initial sort/truncation
-                    innerMap.remove(LIMIT_EXCEEDED_BUCKET);
-                }
-                List<MutableServiceCall> queries =
-                        MutableServiceCall.byTotalDurationDesc.sortedCopy(innerMap.values());
-                List<MutableServiceCall> exceededQueries =
-                        queries.subList(limitPerServiceCallType, queries.size());
-                queries = Lists.newArrayList(queries.subList(0, limitPerServiceCallType));
-                for (MutableServiceCall exceededServiceCall : exceededQueries) {
-                    limitExceededBucket.addTo(exceededServiceCall);
+    private void addSortedAndTruncatedServiceCalls(QueryTable table,
+            Aggregate.ServiceCallsByType.Builder builder) {
+        int limitExceededBucketIndex = table.indexOf(LIMIT_EXCEEDED_BUCKET);
+        int count = limitExceededBucketIndex == -1 ? table.size() : table.size() - 1;
+        if (count > limitPerServiceCallType) {
+            int[] indexes = table.getIndexesByTotalDurationDesc(limitPerServiceCallType,
+                    limitExceededBucketIndex);
+            double limitExceededBucketTotalDurationNanos = 0;
+            long limitExceededBucketExecutionCount = 0;
+            if (limitExceededBucketIndex != -1) {
+                limitExceededBucketTotalDurationNanos +=
+                        table.getTotalDurationNanos(limitExceededBucketIndex);
+                limitExceededBucketExecutionCount +=
+                        table.getExecutionCount(limitExceededBucketIndex);
+            }
+            for (int i = limitPerServiceCallType; i < indexes.length; i++) {
+                limitExceededBucketTotalDurationNanos += table.getTotalDurationNanos(indexes[i]);
+                limitExceededBucketExecutionCount += table.getExecutionCount(indexes[i]);
+            }
+            boolean limitExceededBucketAdded = false;
+            for (int i = 0; i < limitPerServiceCallType; i++) {
+                int index = indexes[i];
+                if (!limitExceededBucketAdded && limitExceededBucketTotalDurationNanos > table
+                        .getTotalDurationNanos(index)) {
+                    builder.addServiceCall(toProto(LIMIT_EXCEEDED_BUCKET,
+                            limitExceededBucketTotalDurationNanos,
+                            limitExceededBucketExecutionCount));
+                    limitExceededBucketAdded = true;
                 }
-                queries.add(limitExceededBucket);
-                // need to re-sort now including limit exceeded bucket
-                Collections.sort(queries, MutableServiceCall.byTotalDurationDesc);
-                sortedQueries.put(outerEntry.getKey(), queries);
-            } else {
-                sortedQueries.put(outerEntry.getKey(),
-                        MutableServiceCall.byTotalDurationDesc.sortedCopy(innerMap.values()));
+                builder.addServiceCall(toProto(table, index));
+            }
+            if (!limitExceededBucketAdded) {
+                builder.addServiceCall(toProto(LIMIT_EXCEEDED_BUCKET,
+                        limitExceededBucketTotalDurationNanos, limitExceededBucketExecutionCount));
+            }
+        } else {
+            for (int index : table.getIndexesByTotalDurationDesc(Integer.MAX_VALUE, -1)) {
+                builder.addServiceCall(toProto(table, index));
             }
         }
-        return sortedQueries;
     }
 
     public void mergeServiceCalls(List<Aggregate.ServiceCallsByType> toBeMergedServiceCalls) {
         for (Aggregate.ServiceCallsByType toBeMergedServiceCallsByType : toBeMergedServiceCalls) {
-            String serviceCallType = toBeMergedServiceCallsByType.getType();
-            Map<String, MutableServiceCall> serviceCallsForType = serviceCalls.get(serviceCallType);
-            if (serviceCallsForType == null) {
-                serviceCallsForType = Maps.newHashMap();
-                serviceCalls.put(serviceCallType, serviceCallsForType);
-            }
+            QueryTable table = getOrCreateTable(toBeMergedServiceCallsByType.getType());
             for (Aggregate.ServiceCall serviceCall : toBeMergedServiceCallsByType
                     .getServiceCallList()) {
-                mergeServiceCall(serviceCallType, serviceCall.getText(),
-                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount(),
-                        serviceCallsForType);
+                mergeServiceCall(serviceCall.getText(), serviceCall.getTotalDurationNanos(),
+                        serviceCall.getExecutionCount(), table);
             }
         }
     }
 
     public void mergeServiceCall(String serviceCallType, String serviceCallText,
             double totalDurationNanos, long executionCount) {
-        Map<String, MutableServiceCall> serviceCallsForType = serviceCalls.get(serviceCallType);
-        if (serviceCallsForType == null) {
-            serviceCallsForType = Maps.newHashMap();
-            serviceCalls.put(serviceCallType, serviceCallsForType);
+        mergeServiceCall(serviceCallText, totalDurationNanos, executionCount,
+                getOrCreateTable(serviceCallType));
+    }
+
+    private QueryTable getOrCreateTable(String serviceCallType) {
+        QueryTable table = serviceCalls.get(serviceCallType);
+        if (table == null) {
+            table = new QueryTable();
+            serviceCalls.put(serviceCallType, table);
         }
-        mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos, executionCount,
-                serviceCallsForType);
+        return table;
     }
 
-    private void mergeServiceCall(String serviceCallType, String serviceCallText,
-            double totalDurationNanos, long executionCount,
-            Map<String, MutableServiceCall> serviceCallsForType) {
-        MutableServiceCall aggregateServiceCall = serviceCallsForType.get(serviceCallText);
-        if (aggregateServiceCall == null) {
-            if (maxMultiplierWhileBuilding == 0
-                    || serviceCallsForType.size() < limitPerServiceCallType
-                            * maxMultiplierWhileBuilding) {
-                aggregateServiceCall = new MutableServiceCall(serviceCallText);
-                serviceCallsForType.put(serviceCallText, aggregateServiceCall);
-            } else {
-                aggregateServiceCall = limitExceededBuckets.get(serviceCallType);
-                if (aggregateServiceCall == null) {
-                    aggregateServiceCall = new MutableServiceCall(LIMIT_EXCEEDED_BUCKET);
-                    limitExceededBuckets.put(serviceCallType, aggregateServiceCall);
-                }
+    private void mergeServiceCall(String serviceCallText, double totalDurationNanos,
+            long executionCount, QueryTable table) {
+        int index;
+        if (maxMultiplierWhileBuilding == 0
+                || table.size() < limitPerServiceCallType * maxMultiplierWhileBuilding) {
+            index = table.getOrAdd(serviceCallText, null);
+        } else {
+            index = table.indexOf(serviceCallText);
+            if (index == -1) {
+                index = table.getOrAdd(LIMIT_EXCEEDED_BUCKET, null);
             }
         }
-        aggregateServiceCall.addToTotalDurationNanos(totalDurationNanos);
-        aggregateServiceCall.addToExecutionCount(executionCount);
+        table.add(index, totalDurationNanos, executionCount, false, 0);
+    }
+
+    private static Aggregate.ServiceCall toProto(QueryTable table, int index) {
+        return toProto(table.getText(index), table.getTotalDurationNanos(index),
+                table.getExecutionCount(index));
+    }
+
+    private static Aggregate.ServiceCall toProto(String serviceCallText, double totalDurationNanos,
+            long executionCount) {
+        return Aggregate.ServiceCall.newBuilder()
+                .setText(serviceCallText)
+                .setTotalDurationNanos(totalDurationNanos)
+                .setExecutionCount(executionCount)
+                .build();
     }
 }
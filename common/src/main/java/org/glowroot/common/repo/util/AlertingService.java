@@ -100,13 +100,37 @@ public class AlertingService {
         }
     }
 
+    // metric conditions with the same series key (and same agent rollup id and end time) can share
+    // a MetricReadCache
+    public static Object getMetricSeriesKey(MetricCondition metricCondition) {
+        return MetricService.getSeriesKey(metricCondition);
+    }
+
     public void checkMetricAlert(String agentRollupId, String agentRollupDisplay,
             AlertCondition alertCondition, MetricCondition metricCondition,
             AlertNotification alertNotification, long endTime) throws Exception {
+        checkMetricAlert(agentRollupId, agentRollupDisplay, alertCondition, metricCondition,
+                alertNotification, endTime, new MetricReadCache());
+    }
+
+    public void checkMetricAlert(String agentRollupId, String agentRollupDisplay,
+            AlertCondition alertCondition, MetricCondition metricCondition,
+            AlertNotification alertNotification, long endTime, MetricReadCache metricReadCache)
+            throws Exception {
 
         long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
-        Number value =
-                metricService.getMetricValue(agentRollupId, metricCondition, startTime, endTime);
+        Number value = metricService.getMetricValue(agentRollupId, metricCondition, startTime,
+                endTime, metricReadCache);
+        sendMetricAlertIfNeeded(agentRollupId, agentRollupDisplay, alertCondition, metricCondition,
+                alertNotification, endTime, value);
+    }
+
+    // only used by central, which also calculates metric values from sliding windows that are
+    // maintained at ingest time
+    public void sendMetricAlertIfNeeded(String agentRollupId, String agentRollupDisplay,
+            AlertCondition alertCondition, MetricCondition metricCondition,
+            AlertNotification alertNotification, long endTime, @Nullable Number value)
+            throws Exception {
         if (value == null) {
             // cannot calculate due to no data, e.g. error rate (but not error count, which can be
             // calculated - zero - when no data)
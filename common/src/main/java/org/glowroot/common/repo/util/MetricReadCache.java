@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+
+// shares repository reads across metric alert conditions that are evaluated together, e.g.
+// transaction:count, error:rate and error:count conditions over the same transaction type and time
+// period all read the same throughput aggregates
+public class MetricReadCache {
+
+    @GuardedBy("reads")
+    private final Map<Object, List<?>> reads = Maps.newHashMap();
+
+    <T> List<T> get(Object key, Callable<List<T>> reader) throws Exception {
+        synchronized (reads) {
+            @SuppressWarnings("unchecked")
+            List<T> read = (List<T>) reads.get(key);
+            if (read != null) {
+                return read;
+            }
+        }
+        // not holding lock during read, at worst the same read is performed twice
+        List<T> read = reader.call();
+        synchronized (reads) {
+            reads.put(key, read);
+        }
+        return read;
+    }
+}
@@ -16,16 +16,19 @@
 package org.glowroot.common.repo.util;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.GaugeValueRepository;
@@ -49,49 +52,81 @@ class MetricService {
         this.rollupLevelService = rollupLevelService;
     }
 
+    // metric conditions with the same series key read the same underlying data (given the same
+    // agent rollup and end time), see MetricReadCache
+    static Object getSeriesKey(MetricCondition metricCondition) {
+        String metric = metricCondition.getMetric();
+        String dataKind;
+        if (metric.equals("transaction:x-percentile")) {
+            dataKind = "percentile";
+        } else if (metric.equals("transaction:average")) {
+            dataKind = "overview";
+        } else if (metric.equals("transaction:count") || metric.equals("error:rate")
+                || metric.equals("error:count")) {
+            dataKind = "throughput";
+        } else if (metric.startsWith("gauge:")) {
+            return ImmutableList.of(metric, metricCondition.getTimePeriodSeconds());
+        } else {
+            throw new IllegalStateException("Unexpected metric: " + metric);
+        }
+        return ImmutableList.of(dataKind, metricCondition.getTransactionType(),
+                metricCondition.getTransactionName(), metricCondition.getTimePeriodSeconds());
+    }
+
     @Nullable
     Number getMetricValue(String agentRollupId, MetricCondition metricCondition, long startTime,
-            long endTime) throws Exception {
+            long endTime, MetricReadCache metricReadCache) throws Exception {
         String metric = metricCondition.getMetric();
         if (metric.equals("transaction:x-percentile")) {
             return getTransactionDurationPercentile(agentRollupId,
                     metricCondition.getTransactionType(),
                     Strings.emptyToNull(metricCondition.getTransactionName()),
-                    metricCondition.getPercentile().getValue(), startTime, endTime);
+                    metricCondition.getPercentile().getValue(), startTime, endTime,
+                    metricReadCache);
         } else if (metric.equals("transaction:average")) {
             return getTransactionAverage(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime,
+                    metricReadCache);
         } else if (metric.equals("transaction:count")) {
             return getTransactionCount(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime,
+                    metricReadCache);
         } else if (metric.equals("error:rate")) {
             return getErrorRate(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime,
+                    metricReadCache);
         } else if (metric.equals("error:count")) {
             return getErrorCount(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime,
+                    metricReadCache);
         } else if (metric.startsWith("gauge:")) {
             return getGaugeValue(agentRollupId, metric.substring("gauge:".length()), startTime,
-                    endTime);
+                    endTime, metricReadCache);
         } else {
             throw new IllegalStateException("Unexpected metric: " + metric);
         }
     }
 
-    private @Nullable Double getTransactionDurationPercentile(String agentRollupId,
+    private @Nullable Double getTransactionDurationPercentile(final String agentRollupId,
             String transactionType, @Nullable String transactionName, double percentile,
-            long startTime, long endTime) throws Exception {
+            long startTime, long endTime, MetricReadCache metricReadCache) throws Exception {
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
         // startTime + 1 in order to not include the aggregate value at startTime
-        List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(transactionType)
-                                .transactionName(transactionName)
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
+        final TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .transactionName(transactionName)
+                .from(startTime + 1)
+                .to(endTime)
+                .rollupLevel(rollupLevel)
+                .build();
+        List<PercentileAggregate> aggregates = metricReadCache.get(
+                ImmutableList.of("percentile", agentRollupId, query),
+                new Callable<List<PercentileAggregate>>() {
+                    @Override
+                    public List<PercentileAggregate> call() throws Exception {
+                        return aggregateRepository.readPercentileAggregates(agentRollupId, query);
+                    }
+                });
         if (aggregates.isEmpty()) {
             return null;
         }
@@ -104,9 +139,10 @@ class MetricService {
     }
 
     private @Nullable Double getTransactionAverage(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
+            @Nullable String transactionName, long startTime, long endTime,
+            MetricReadCache metricReadCache) throws Exception {
         List<OverviewAggregate> aggregates = getOverviewAggregates(agentRollupId, transactionType,
-                transactionName, startTime, endTime);
+                transactionName, startTime, endTime, metricReadCache);
         if (aggregates.isEmpty()) {
             return null;
         }
@@ -123,9 +159,10 @@ class MetricService {
     }
 
     private long getTransactionCount(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
+            @Nullable String transactionName, long startTime, long endTime,
+            MetricReadCache metricReadCache) throws Exception {
         List<ThroughputAggregate> throughputAggregates = getThroughputAggregates(agentRollupId,
-                transactionType, transactionName, startTime, endTime);
+                transactionType, transactionName, startTime, endTime, metricReadCache);
         long totalTransactionCount = 0;
         for (ThroughputAggregate throughputAggregate : throughputAggregates) {
             totalTransactionCount += throughputAggregate.transactionCount();
@@ -134,9 +171,10 @@ class MetricService {
     }
 
     private @Nullable Double getErrorRate(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
+            @Nullable String transactionName, long startTime, long endTime,
+            MetricReadCache metricReadCache) throws Exception {
         List<ThroughputAggregate> aggregates = getThroughputAggregates(agentRollupId,
-                transactionType, transactionName, startTime, endTime);
+                transactionType, transactionName, startTime, endTime, metricReadCache);
         if (aggregates.isEmpty()) {
             return null;
         }
@@ -153,9 +191,10 @@ class MetricService {
     }
 
     private long getErrorCount(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
+            @Nullable String transactionName, long startTime, long endTime,
+            MetricReadCache metricReadCache) throws Exception {
         List<ThroughputAggregate> aggregates = getThroughputAggregates(agentRollupId,
-                transactionType, transactionName, startTime, endTime);
+                transactionType, transactionName, startTime, endTime, metricReadCache);
         long totalErrorCount = 0;
         for (ThroughputAggregate aggregate : aggregates) {
             totalErrorCount += MoreObjects.firstNonNull(aggregate.errorCount(), 0L);
@@ -163,12 +202,21 @@ class MetricService {
         return totalErrorCount;
     }
 
-    private @Nullable Double getGaugeValue(String agentRollupId, String gaugeName,
-            long startTime, long endTime) throws Exception {
-        int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                gaugeName, startTime + 1, endTime, rollupLevel);
+    private @Nullable Double getGaugeValue(final String agentRollupId, final String gaugeName,
+            final long startTime, final long endTime, MetricReadCache metricReadCache)
+            throws Exception {
+        final int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime);
+        List<GaugeValue> gaugeValues = metricReadCache.get(
+                ImmutableList.of("gauge", agentRollupId, gaugeName, startTime, endTime,
+                        rollupLevel),
+                new Callable<List<GaugeValue>>() {
+                    @Override
+                    public List<GaugeValue> call() throws Exception {
+                        // startTime + 1 in order to not include the gauge value at startTime
+                        return gaugeValueRepository.readGaugeValues(agentRollupId, gaugeName,
+                                startTime + 1, endTime, rollupLevel);
+                    }
+                });
         if (gaugeValues.isEmpty()) {
             return null;
         }
@@ -184,33 +232,45 @@ class MetricService {
         return totalWeightedValue / totalWeight;
     }
 
-    private List<ThroughputAggregate> getThroughputAggregates(String agentRollupId,
-            String transactionType, @Nullable String transactionName, long startTime, long endTime)
-            throws Exception {
+    private List<ThroughputAggregate> getThroughputAggregates(final String agentRollupId,
+            String transactionType, @Nullable String transactionName, long startTime, long endTime,
+            MetricReadCache metricReadCache) throws Exception {
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
         // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readThroughputAggregates(agentRollupId,
-                ImmutableTransactionQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        final TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .transactionName(transactionName)
+                .from(startTime + 1)
+                .to(endTime)
+                .rollupLevel(rollupLevel)
+                .build();
+        return metricReadCache.get(ImmutableList.of("throughput", agentRollupId, query),
+                new Callable<List<ThroughputAggregate>>() {
+                    @Override
+                    public List<ThroughputAggregate> call() throws Exception {
+                        return aggregateRepository.readThroughputAggregates(agentRollupId, query);
+                    }
+                });
     }
 
-    private List<OverviewAggregate> getOverviewAggregates(String agentRollupId,
-            String transactionType, @Nullable String transactionName, long startTime, long endTime)
-            throws Exception {
+    private List<OverviewAggregate> getOverviewAggregates(final String agentRollupId,
+            String transactionType, @Nullable String transactionName, long startTime, long endTime,
+            MetricReadCache metricReadCache) throws Exception {
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
         // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readOverviewAggregates(agentRollupId,
-                ImmutableTransactionQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        final TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .transactionName(transactionName)
+                .from(startTime + 1)
+                .to(endTime)
+                .rollupLevel(rollupLevel)
+                .build();
+        return metricReadCache.get(ImmutableList.of("overview", agentRollupId, query),
+                new Callable<List<OverviewAggregate>>() {
+                    @Override
+                    public List<OverviewAggregate> call() throws Exception {
+                        return aggregateRepository.readOverviewAggregates(agentRollupId, query);
+                    }
+                });
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LogLinearHistogramTest {
+
+    private static final double[] PERCENTILES = {0, 1, 25, 50, 75, 90, 95, 99, 99.9, 100};
+
+    @Test
+    public void shouldCalculatePrecisionBits() {
+        assertThat(LogLinearHistogram.getPrecisionBits(0.25)).isEqualTo(1);
+        assertThat(LogLinearHistogram.getPrecisionBits(0.01)).isEqualTo(6);
+        assertThat(LogLinearHistogram.getPrecisionBits(0.001)).isEqualTo(9);
+    }
+
+    @Test
+    public void shouldRecordSmallValuesExactly() {
+        // given
+        LogLinearHistogram histogram = new LogLinearHistogram();
+
+        // when
+        for (int i = 0; i < 128; i++) {
+            histogram.add(i);
+        }
+
+        // then
+        for (int i = 1; i <= 128; i++) {
+            assertThat(histogram.getValueAtPercentile(i * 100.0 / 128)).isEqualTo(i - 1);
+        }
+    }
+
+    @Test
+    public void shouldCalculatePercentilesWithinRelativeError() {
+        for (int precisionBits = 1; precisionBits <= 10; precisionBits++) {
+            shouldCalculatePercentilesWithinRelativeError(precisionBits);
+        }
+    }
+
+    @Test
+    public void shouldEncodeDecode() {
+        // given
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        long[] values = randomValues(new Random(42), 10000);
+        for (long value : values) {
+            histogram.add(value);
+        }
+
+        // when
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        histogram.encodeInto(builder);
+        LogLinearHistogram decoded = LogLinearHistogram.create(builder.build());
+
+        // then
+        assertThat(decoded.getTotalCount()).isEqualTo(histogram.getTotalCount());
+        for (double percentile : PERCENTILES) {
+            assertThat(decoded.getValueAtPercentile(percentile))
+                    .isEqualTo(histogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldMerge() {
+        // given
+        Random random = new Random(42);
+        long[] values1 = randomValues(random, 5000);
+        long[] values2 = randomValues(random, 5000);
+        LogLinearHistogram histogram1 = new LogLinearHistogram();
+        LogLinearHistogram histogram2 = new LogLinearHistogram();
+        LogLinearHistogram expected = new LogLinearHistogram();
+        for (long value : values1) {
+            histogram1.add(value);
+            expected.add(value);
+        }
+        for (long value : values2) {
+            histogram2.add(value * 1000);
+            expected.add(value * 1000);
+        }
+
+        // when
+        histogram1.merge(histogram2);
+
+        // then
+        assertThat(histogram1.getTotalCount()).isEqualTo(10000);
+        for (double percentile : PERCENTILES) {
+            assertThat(histogram1.getValueAtPercentile(percentile))
+                    .isEqualTo(expected.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldMergeDifferentPrecision() {
+        // given
+        long[] values = randomValues(new Random(42), 10000);
+        long[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        LogLinearHistogram histogram = new LogLinearHistogram(4);
+        LogLinearHistogram toBeMerged = new LogLinearHistogram(8);
+        for (long value : values) {
+            toBeMerged.add(value);
+        }
+
+        // when
+        histogram.merge(toBeMerged);
+
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(10000);
+        for (double percentile : PERCENTILES) {
+            long expected = getExactValueAtPercentile(sortedValues, percentile);
+            // error of the coarser histogram plus error of the finer histogram
+            assertThat((double) histogram.getValueAtPercentile(percentile))
+                    .isCloseTo(expected, within(expected * (1.0 / 32 + 1.0 / 512) + 1));
+        }
+    }
+
+    @Test
+    public void shouldMergeIntoNonCompactLazyHistogram() {
+        // given
+        long[] values = randomValues(new Random(42), 10000);
+        LazyHistogram compact = new LazyHistogram(LogLinearHistogram.DEFAULT_PRECISION_BITS);
+        LazyHistogram raw = new LazyHistogram();
+        LazyHistogram hdr = new LazyHistogram();
+        for (long value : values) {
+            compact.add(value);
+            hdr.add(value);
+        }
+        raw.add(123);
+
+        // when
+        raw.merge(compact.toProto(new ScratchBuffer()));
+        hdr.merge(compact);
+
+        // then
+        Aggregate.Histogram rawProto = raw.toProto(new ScratchBuffer());
+        Aggregate.Histogram hdrProto = hdr.toProto(new ScratchBuffer());
+        assertThat(rawProto.getLogLinearPrecisionBits())
+                .isEqualTo(LogLinearHistogram.DEFAULT_PRECISION_BITS);
+        assertThat(rawProto.getOrderedRawValueCount()).isZero();
+        assertThat(hdrProto.getLogLinearPrecisionBits())
+                .isEqualTo(LogLinearHistogram.DEFAULT_PRECISION_BITS);
+        assertThat(hdrProto.getEncodedBytes().isEmpty()).isTrue();
+        assertThat(new LazyHistogram(hdrProto).getValueAtPercentile(50))
+                .isEqualTo(compact.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void shouldUseConfiguredPrecisionInLazyHistogram() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(10);
+        LazyHistogram cappedLazyHistogram = new LazyHistogram(100);
+
+        // when
+        lazyHistogram.add(123456789);
+        cappedLazyHistogram.add(123456789);
+
+        // then
+        assertThat(lazyHistogram.toProto(new ScratchBuffer()).getLogLinearPrecisionBits())
+                .isEqualTo(10);
+        assertThat(cappedLazyHistogram.toProto(new ScratchBuffer()).getLogLinearPrecisionBits())
+                .isEqualTo(LogLinearHistogram.MAX_PRECISION_BITS);
+        assertThat((double) lazyHistogram.getValueAtPercentile(50))
+                .isCloseTo(123456789, within(123456789 * Math.scalb(1.0, -11)));
+    }
+
+    @Test
+    public void shouldMergeCompactIntoNonCompactAtItsPrecision() {
+        // given
+        LazyHistogram compact = new LazyHistogram(3);
+        LazyHistogram raw = new LazyHistogram();
+        compact.add(123456789);
+
+        // when
+        raw.merge(compact);
+
+        // then
+        assertThat(raw.toProto(new ScratchBuffer()).getLogLinearPrecisionBits()).isEqualTo(3);
+    }
+
+    private static void shouldCalculatePercentilesWithinRelativeError(int precisionBits) {
+        // given
+        LogLinearHistogram histogram = new LogLinearHistogram(precisionBits);
+        long[] values = randomValues(new Random(precisionBits), 10000);
+        for (long value : values) {
+            histogram.add(value);
+        }
+        Arrays.sort(values);
+
+        // then
+        double maxRelativeError = Math.scalb(1.0, -(precisionBits + 1));
+        for (double percentile : PERCENTILES) {
+            long expected = getExactValueAtPercentile(values, percentile);
+            assertThat((double) histogram.getValueAtPercentile(percentile))
+                    .isCloseTo(expected, within(expected * maxRelativeError));
+        }
+    }
+
+    // durations spread log-uniformly between 1 microsecond and 100 seconds
+    private static long[] randomValues(Random random, int count) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 8);
+        }
+        return values;
+    }
+
+    private static long getExactValueAtPercentile(long[] sortedValues, double percentile) {
+        if (percentile == 0) {
+            return sortedValues[0];
+        }
+        return sortedValues[(int) Math.ceil(sortedValues.length * percentile / 100) - 1];
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryCollectorTest {
+
+    @Test
+    public void shouldTruncateIntoLimitExceededBucket() {
+        // given
+        QueryCollector collector = new QueryCollector(100);
+        for (int i = 1; i <= 300; i++) {
+            collector.mergeQuery("SQL", Integer.toString(i), null, i, 1, true, 1);
+        }
+        // when
+        Map<String, List<MutableQuery>> queries = collector.getSortedAndTruncatedQueries();
+        // then
+        List<MutableQuery> sqlQueries = queries.get("SQL");
+        assertThat(sqlQueries).hasSize(101);
+        MutableQuery limitExceededBucket = sqlQueries.get(0);
+        assertThat(limitExceededBucket.getTruncatedText()).isEqualTo("LIMIT EXCEEDED BUCKET");
+        assertThat(limitExceededBucket.getTotalDurationNanos()).isEqualTo(200 * 201 / 2);
+        assertThat(limitExceededBucket.getExecutionCount()).isEqualTo(200);
+        assertThat(limitExceededBucket.getTotalRows()).isEqualTo(200);
+        assertThat(sqlQueries.get(1).getTotalDurationNanos()).isEqualTo(300);
+        assertThat(sqlQueries.get(100).getTotalDurationNanos()).isEqualTo(201);
+    }
+
+    @Test
+    public void shouldMergeIntoExistingLimitExceededBucket() {
+        // given
+        QueryCollector collector = new QueryCollector(2);
+        collector.mergeQuery("SQL", "LIMIT EXCEEDED BUCKET", null, 5, 1, false, 0);
+        collector.mergeQuery("SQL", "a", null, 10, 1, false, 0);
+        collector.mergeQuery("SQL", "b", null, 20, 1, false, 0);
+        collector.mergeQuery("SQL", "c", "sha1", 3, 1, false, 0);
+        collector.mergeQuery("SQL", "c", "sha1", 3, 1, false, 0);
+        // when
+        Map<String, List<MutableQuery>> queries = collector.getSortedAndTruncatedQueries();
+        // then
+        List<MutableQuery> sqlQueries = queries.get("SQL");
+        assertThat(sqlQueries).hasSize(3);
+        assertThat(sqlQueries.get(0).getTruncatedText()).isEqualTo("b");
+        assertThat(sqlQueries.get(1).getTruncatedText()).isEqualTo("LIMIT EXCEEDED BUCKET");
+        assertThat(sqlQueries.get(1).getTotalDurationNanos()).isEqualTo(11);
+        assertThat(sqlQueries.get(1).getExecutionCount()).isEqualTo(3);
+        assertThat(sqlQueries.get(1).hasTotalRows()).isFalse();
+        assertThat(sqlQueries.get(2).getTruncatedText()).isEqualTo("a");
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTableTest {
+
+    @Test
+    public void shouldAddAndLookup() {
+        // given
+        QueryTable table = new QueryTable();
+        // when
+        for (int i = 0; i < 1000; i++) {
+            int index = table.getOrAdd("q" + i, null);
+            table.add(index, i, 1, i % 2 == 0, 10);
+        }
+        for (int i = 0; i < 1000; i++) {
+            int index = table.getOrAdd("q" + i, null);
+            table.add(index, i, 1, false, 0);
+        }
+        // then
+        assertThat(table.size()).isEqualTo(1000);
+        assertThat(table.indexOf("q1000")).isEqualTo(-1);
+        for (int i = 0; i < 1000; i++) {
+            int index = table.indexOf("q" + i);
+            assertThat(table.getKey(index)).isEqualTo("q" + i);
+            assertThat(table.getTotalDurationNanos(index)).isEqualTo(2 * i);
+            assertThat(table.getExecutionCount(index)).isEqualTo(2);
+            assertThat(table.hasTotalRows(index)).isEqualTo(i % 2 == 0);
+            assertThat(table.getTotalRows(index)).isEqualTo(i % 2 == 0 ? 10 : 0);
+        }
+    }
+
+    @Test
+    public void shouldSelectTopIndexes() {
+        Random random = new Random(0);
+        for (int size : new int[] {0, 1, 5, 100, 1000, 5000}) {
+            for (int limit : new int[] {1, 10, 500, 10000}) {
+                // many equal durations
+                shouldSelectTopIndexes(random, size, limit, 10);
+                // mostly distinct durations
+                shouldSelectTopIndexes(random, size, limit, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    @Test
+    public void shouldExcludeIndex() {
+        // given
+        QueryTable table = new QueryTable();
+        for (int i = 0; i < 10; i++) {
+            table.add(table.getOrAdd("q" + i, null), i, 1, false, 0);
+        }
+        // when
+        int[] indexes = table.getIndexesByTotalDurationDesc(3, table.indexOf("q9"));
+        // then
+        assertThat(indexes).hasSize(9);
+        assertThat(Arrays.copyOf(indexes, 3)).containsExactly(table.indexOf("q8"),
+                table.indexOf("q7"), table.indexOf("q6"));
+    }
+
+    private static void shouldSelectTopIndexes(Random random, int size, int limit,
+            int maxDuration) {
+        // given
+        QueryTable table = new QueryTable();
+        double[] durations = new double[size];
+        for (int i = 0; i < size; i++) {
+            durations[i] = random.nextInt(maxDuration);
+            table.add(table.getOrAdd("q" + i, null), durations[i], 1, false, 0);
+        }
+        // when
+        int[] indexes = table.getIndexesByTotalDurationDesc(limit, -1);
+        // then
+        assertThat(indexes).hasSize(size);
+        int[] sortedIndexes = Arrays.copyOf(indexes, size);
+        Arrays.sort(sortedIndexes);
+        for (int i = 0; i < size; i++) {
+            assertThat(sortedIndexes[i]).isEqualTo(i);
+        }
+        Arrays.sort(durations);
+        for (int i = 0; i < Math.min(limit, size); i++) {
+            assertThat(table.getTotalDurationNanos(indexes[i]))
+                    .isEqualTo(durations[size - 1 - i]);
+        }
+    }
+}
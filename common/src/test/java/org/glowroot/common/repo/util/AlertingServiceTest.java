@@ -32,6 +32,7 @@ import org.glowroot.common.config.SmtpConfig.ConnectionSecurity;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.repo.AgentRollupRepository;
@@ -50,7 +51,11 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AlertingServiceTest {
@@ -247,6 +252,33 @@ public class AlertingServiceTest {
         assertThat(mailService.getMessage()).isNull();
     }
 
+    @Test
+    public void shouldShareReadsAcrossAlertsOnSameSeries() throws Exception {
+        // given
+        setupForTransaction(1000001);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService, httpClient);
+        MetricCondition otherCondition = TRANSACTION_X_PERCENTILE_CONDITION.toBuilder()
+                .setPercentile(OptionalDouble.newBuilder().setValue(99))
+                .build();
+        AlertCondition otherAlertCondition = AlertCondition.newBuilder()
+                .setMetricCondition(otherCondition)
+                .build();
+        MetricReadCache metricReadCache = new MetricReadCache();
+        // when
+        alertingService.checkMetricAlert("", "", TRANSACTION_TIME_ALERT_CONDITION,
+                TRANSACTION_X_PERCENTILE_CONDITION, ALERT_NOTIFICATION, 120000,
+                metricReadCache);
+        alertingService.checkMetricAlert("", "", otherAlertCondition, otherCondition,
+                ALERT_NOTIFICATION, 120000, metricReadCache);
+        // then
+        assertThat(AlertingService.getMetricSeriesKey(otherCondition))
+                .isEqualTo(AlertingService.getMetricSeriesKey(TRANSACTION_X_PERCENTILE_CONDITION));
+        verify(aggregateRepository, times(1)).readPercentileAggregates(eq(AGENT_ID),
+                any(TransactionQuery.class));
+    }
+
     @Test
     public void shouldReturnCorrectPercentileName() {
         shouldReturnCorrectPercentileName(0, "th");
@@ -377,6 +377,13 @@ class ConfigJsonService {
         abstract @Nullable Integer maxTraceEntriesPerTransaction(); // null for rollup config
         abstract @Nullable Integer maxStackTraceSamplesPerTransaction(); // null for rollup config
         abstract @Nullable Integer mbeanGaugeNotFoundDelaySeconds(); // null for rollup config
+        abstract @Nullable Integer compactHistogramPrecisionBits(); // null for rollup cfg
+        abstract @Nullable Boolean fastThreadStats(); // null for rollup config
+        abstract @Nullable Integer threadStatsSamplingInterval(); // null for rollup config
+        abstract @Nullable Integer maxSlowTracesPerMinute(); // null for rollup config
+        abstract @Nullable Integer slowTraceReservoirSize(); // null for rollup config
+        abstract @Nullable Boolean collapseTraceEntries(); // null for rollup config
+        abstract @Nullable Integer maxActiveTransactionMemoryMb(); // null for rollup config
         abstract String version();
 
         private AdvancedConfig convert(boolean agent) {
@@ -395,6 +402,16 @@ class ConfigJsonService {
                                 of(checkNotNull(maxStackTraceSamplesPerTransaction())))
                         .setMbeanGaugeNotFoundDelaySeconds(
                                 of(checkNotNull(mbeanGaugeNotFoundDelaySeconds())))
+                        .setCompactHistogramPrecisionBits(
+                                checkNotNull(compactHistogramPrecisionBits()))
+                        .setFastThreadStats(checkNotNull(fastThreadStats()))
+                        .setThreadStatsSamplingInterval(
+                                of(checkNotNull(threadStatsSamplingInterval())))
+                        .setMaxSlowTracesPerMinute(of(checkNotNull(maxSlowTracesPerMinute())))
+                        .setSlowTraceReservoirSize(of(checkNotNull(slowTraceReservoirSize())))
+                        .setCollapseTraceEntries(checkNotNull(collapseTraceEntries()))
+                        .setMaxActiveTransactionMemoryMb(
+                                checkNotNull(maxActiveTransactionMemoryMb()))
                         .build();
             } else {
                 return AdvancedConfig.newBuilder()
@@ -422,6 +439,14 @@ class ConfigJsonService {
                                 config.getMaxStackTraceSamplesPerTransaction().getValue())
                         .mbeanGaugeNotFoundDelaySeconds(
                                 config.getMbeanGaugeNotFoundDelaySeconds().getValue())
+                        .compactHistogramPrecisionBits(config.getCompactHistogramPrecisionBits())
+                        .fastThreadStats(config.getFastThreadStats())
+                        .threadStatsSamplingInterval(
+                                config.getThreadStatsSamplingInterval().getValue())
+                        .maxSlowTracesPerMinute(config.getMaxSlowTracesPerMinute().getValue())
+                        .slowTraceReservoirSize(config.getSlowTraceReservoirSize().getValue())
+                        .collapseTraceEntries(config.getCollapseTraceEntries())
+                        .maxActiveTransactionMemoryMb(config.getMaxActiveTransactionMemoryMb())
                         .version(Versions.getVersion(config))
                         .build();
             } else {
@@ -139,11 +139,12 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/thread-dump", permission = "agent:jvm:threadDump")
-    String getThreadDump(@BindAgentId String agentId) throws Exception {
+    String getThreadDump(@BindAgentId String agentId, @BindRequest ThreadDumpRequest request)
+            throws Exception {
         checkNotNull(liveJvmService);
         ThreadDump threadDump;
         try {
-            threadDump = liveJvmService.getThreadDump(agentId);
+            threadDump = liveJvmService.getThreadDump(agentId, request.maxStackDepth());
         } catch (AgentNotConnectedException e) {
             logger.debug(e.getMessage(), e);
             return "{\"agentNotConnected\":true}";
@@ -638,6 +639,15 @@ class JvmJsonService {
         }
     }
 
+    @Value.Immutable
+    abstract static class ThreadDumpRequest {
+        // zero means no limit
+        @Value.Default
+        int maxStackDepth() {
+            return 0;
+        }
+    }
+
     @Value.Immutable
     interface HeapDumpRequest {
         String directory();
@@ -406,6 +406,10 @@ class TraceCommonService {
             jg.writeFieldName("auxThreadStats");
             writeThreadStats(header.getAuxThreadStats(), jg);
         }
+        double samplingWeight = header.getSamplingWeight();
+        if (samplingWeight != 0) {
+            jg.writeNumberField("samplingWeight", samplingWeight);
+        }
         jg.writeNumberField("entryCount", header.getEntryCount());
         boolean entryLimitExceeded = header.getEntryLimitExceeded();
         if (entryLimitExceeded) {
@@ -438,6 +442,14 @@ class TraceCommonService {
     private static void writeJson(Trace.Entry entry, JsonGenerator jg) throws IOException {
         jg.writeNumberField("startOffsetNanos", entry.getStartOffsetNanos());
         jg.writeNumberField("durationNanos", entry.getDurationNanos());
+        long collapsedCount = entry.getCollapsedCount();
+        if (collapsedCount != 0) {
+            jg.writeNumberField("collapsedCount", collapsedCount);
+            jg.writeNumberField("collapsedTotalDurationNanos",
+                    entry.getCollapsedTotalDurationNanos());
+            jg.writeNumberField("collapsedMaxDurationNanos",
+                    entry.getCollapsedMaxDurationNanos());
+        }
         if (entry.getActive()) {
             jg.writeBooleanField("active", true);
         }